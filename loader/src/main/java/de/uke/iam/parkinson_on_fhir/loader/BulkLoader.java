@@ -0,0 +1,250 @@
+package de.uke.iam.parkinson_on_fhir.loader;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+
+import de.uke.iam.parkinson_on_fhir.ingest.MeasurementCopyWriter;
+import de.uke.iam.parkinson_on_fhir.ingest.SampleBlock;
+import de.uke.iam.parkinson_on_fhir.provider.DimensionCache;
+import de.uke.iam.parkinson_on_fhir.provider.ObservationValidator;
+import de.uke.iam.parkinson_on_fhir.schema.SensorKey;
+
+/**
+ * Loads local accelerometer exports directly into the database, bypassing the
+ * REST API. The files are validated like uploads to the server and written in
+ * parallel with COPY, one file per thread.
+ *
+ * <pre>
+ * java -jar parkinson-fhir-loader.jar --url jdbc:postgresql://host/db --user u --password p
+ *     [--threads 4] [--batch-rows 50000] [--checkpoint loader.checkpoint] FILE...
+ * </pre>
+ *
+ * Files ending with .csv or .tsv hold one sample per line (see
+ * CsvSampleSource), files ending with .ndjson hold one acceleration
+ * observation per line. After an abort, running the same command again skips
+ * all records already written.
+ */
+public final class BulkLoader {
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(BulkLoader.class);
+
+    private static final int MAX_LOGGED_ERRORS = 10;
+    private static final long PROGRESS_INTERVAL_SECONDS = 10;
+
+    private final DataSource pool;
+    private final SensorResolver sensors;
+    private final FhirContext context;
+    private final Checkpoints checkpoints;
+    private final int batchSize;
+
+    private final AtomicLong numRead;
+    private final AtomicLong numInvalid;
+    private final AtomicLong numWritten;
+    private final AtomicInteger numFilesDone;
+
+    private BulkLoader(DataSource pool, SensorResolver sensors, Checkpoints checkpoints, int batchSize) {
+        this.pool = pool;
+        this.sensors = sensors;
+        this.context = FhirContext.forR4();
+        this.checkpoints = checkpoints;
+        this.batchSize = batchSize;
+        this.numRead = new AtomicLong();
+        this.numInvalid = new AtomicLong();
+        this.numWritten = new AtomicLong();
+        this.numFilesDone = new AtomicInteger();
+    }
+
+    public static void main(String[] args) throws Exception {
+        var options = new HashMap<String, String>();
+        var files = new ArrayList<Path>();
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].startsWith("--") && i + 1 < args.length) {
+                options.put(args[i].substring(2), args[++i]);
+            } else {
+                files.add(Paths.get(args[i]));
+            }
+        }
+        if (!options.containsKey("url") || files.isEmpty()) {
+            System.err.println("Usage: BulkLoader --url JDBC_URL [--user USER] [--password PASSWORD] "
+                    + "[--threads 4] [--batch-rows 50000] [--checkpoint loader.checkpoint] FILE...");
+            System.exit(2);
+        }
+        var numThreads = Integer.parseInt(options.getOrDefault("threads", "4"));
+        var batchSize = Integer.parseInt(options.getOrDefault("batch-rows", "50000"));
+        var checkpoints = Checkpoints.load(Paths.get(options.getOrDefault("checkpoint", "loader.checkpoint")));
+
+        var poolConfig = new HikariConfig();
+        poolConfig.setPoolName("parkinson-fhir-loader");
+        poolConfig.setJdbcUrl(options.get("url"));
+        poolConfig.setUsername(options.get("user"));
+        poolConfig.setPassword(options.get("password"));
+        // One connection per thread and one for creating missing sensors
+        poolConfig.setMaximumPoolSize(numThreads + 1);
+
+        try (var pool = new HikariDataSource(poolConfig)) {
+            var connection = DSL.using(pool, SQLDialect.POSTGRES);
+            SensorKey.install(connection);
+            var validator = new ObservationValidator(connection, new DimensionCache(connection));
+            var loader = new BulkLoader(pool, new SensorResolver(validator), checkpoints, batchSize);
+            System.exit(loader.run(files, numThreads) ? 0 : 1);
+        }
+    }
+
+    /**
+     * Load all files.
+     *
+     * @return True, if all files were loaded completely.
+     */
+    private boolean run(List<Path> files, int numThreads) throws InterruptedException {
+        var workers = Executors.newFixedThreadPool(numThreads);
+        var progress = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "loader-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        var startNanos = System.nanoTime();
+        progress.scheduleAtFixedRate(() -> this.report(files.size(), startNanos), PROGRESS_INTERVAL_SECONDS,
+                PROGRESS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+        var results = new ArrayList<Future<?>>(files.size());
+        for (var file : files) {
+            results.add(workers.submit(() -> {
+                this.load(file);
+                return null;
+            }));
+        }
+
+        var succeeded = true;
+        for (int i = 0; i < files.size(); ++i) {
+            try {
+                results.get(i).get();
+            } catch (ExecutionException e) {
+                logger.error("Loading '{}' failed and resumes from the last checkpoint when started again: {}",
+                        files.get(i), e.getCause().toString());
+                succeeded = false;
+            }
+        }
+        workers.shutdown();
+        progress.shutdownNow();
+        this.report(files.size(), startNanos);
+        return succeeded;
+    }
+
+    private void load(Path file) throws IOException, SQLException {
+        if (this.checkpoints.isComplete(file)) {
+            logger.info("Skipping '{}' loaded before", file);
+            this.numFilesDone.incrementAndGet();
+            return;
+        }
+        var numSkipped = this.checkpoints.getRecords(file);
+        if (numSkipped > 0) {
+            logger.info("Resuming '{}' after {} records", file, numSkipped);
+        }
+
+        // The samples are collected per subject and sensor, as blocks share both
+        var blocks = new HashMap<Long, SampleBlock>();
+        var sample = new SampleSource.Sample();
+        long numRecords = 0;
+        int numPending = 0, numErrors = 0;
+        try (var source = this.open(file)) {
+            while (true) {
+                try {
+                    if (!source.next(sample)) {
+                        break;
+                    }
+                } catch (IllegalArgumentException e) {
+                    if (++numRecords > numSkipped) {
+                        this.numInvalid.incrementAndGet();
+                        if (++numErrors <= MAX_LOGGED_ERRORS) {
+                            logger.warn("Skipping record {} of '{}': {}", numRecords, file, e.getMessage());
+                        }
+                    }
+                    continue;
+                }
+                if (++numRecords <= numSkipped) {
+                    continue;
+                }
+
+                var key = ((long) sample.subject << 32) | (sample.sensor & 0xffffffffL);
+                var block = blocks.get(key);
+                if (block == null) {
+                    block = new SampleBlock(this.batchSize);
+                    block.setKey(sample.subject, sample.sensor);
+                    blocks.put(key, block);
+                }
+                block.add(sample.micros, sample.x, sample.y, sample.z);
+                this.numRead.incrementAndGet();
+
+                if (++numPending == this.batchSize) {
+                    this.flush(blocks);
+                    this.checkpoints.update(file, numRecords, false);
+                    numPending = 0;
+                }
+            }
+        }
+        this.flush(blocks);
+        this.checkpoints.update(file, numRecords, true);
+        this.numFilesDone.incrementAndGet();
+    }
+
+    private SampleSource open(Path file) throws IOException {
+        var name = file.getFileName().toString().toLowerCase();
+        var reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+        try {
+            if (name.endsWith(".csv")) {
+                return new CsvSampleSource(reader, this.sensors, ',');
+            } else if (name.endsWith(".tsv")) {
+                return new CsvSampleSource(reader, this.sensors, '\t');
+            } else if (name.endsWith(".ndjson")) {
+                return new ObservationSampleSource(this.context, reader, this.sensors);
+            }
+            throw new IOException("Only .csv, .tsv and .ndjson files are supported");
+        } catch (IOException e) {
+            reader.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Write all collected samples. Samples already stored before an abort are
+     * skipped by the database.
+     */
+    private void flush(Map<Long, SampleBlock> blocks) throws SQLException {
+        try (var connection = this.pool.getConnection()) {
+            for (var block : blocks.values()) {
+                this.numWritten.addAndGet(MeasurementCopyWriter.write(connection, block));
+                block.clear();
+            }
+        }
+        // Drop the blocks of finished recordings instead of keeping them all
+        blocks.clear();
+    }
+
+    private void report(int numFiles, long startNanos) {
+        var seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos));
+        logger.info("{} of {} files done, {} samples read ({} per second), {} written, {} invalid",
+                this.numFilesDone.get(), numFiles, this.numRead.get(), this.numRead.get() / seconds,
+                this.numWritten.get(), this.numInvalid.get());
+    }
+}
@@ -0,0 +1,81 @@
+package de.uke.iam.parkinson_on_fhir.loader;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers how many records of each file are written, such that an aborted
+ * run resumes instead of starting over. Each line of the file holds the path,
+ * the number of records and whether the file is complete, separated by tabs.
+ * The file is replaced atomically on each update.
+ */
+final class Checkpoints {
+
+    private static final String COMPLETE = "complete";
+
+    private final Path file;
+    private final Map<String, Long> records;
+    private final Map<String, Boolean> complete;
+
+    private Checkpoints(Path file) {
+        this.file = file;
+        this.records = new HashMap<String, Long>();
+        this.complete = new HashMap<String, Boolean>();
+    }
+
+    /**
+     * Read the checkpoints of a previous run, if any.
+     */
+    static Checkpoints load(Path file) throws IOException {
+        var checkpoints = new Checkpoints(file);
+        if (Files.exists(file)) {
+            for (var line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                var values = line.split("\t");
+                if (values.length != 3) {
+                    throw new IOException(String.format("The checkpoint '%s' is malformed", line));
+                }
+                checkpoints.records.put(values[0], Long.parseLong(values[1]));
+                checkpoints.complete.put(values[0], COMPLETE.equals(values[2]));
+            }
+        }
+        return checkpoints;
+    }
+
+    /**
+     * The number of records of the file already written.
+     */
+    synchronized long getRecords(Path path) {
+        return this.records.getOrDefault(key(path), 0L);
+    }
+
+    synchronized boolean isComplete(Path path) {
+        return this.complete.getOrDefault(key(path), false);
+    }
+
+    /**
+     * Store that the first records of the file are written.
+     */
+    synchronized void update(Path path, long numRecords, boolean isComplete) throws IOException {
+        this.records.put(key(path), numRecords);
+        this.complete.put(key(path), isComplete);
+
+        var lines = new ArrayList<String>(this.records.size());
+        for (var entry : this.records.entrySet()) {
+            lines.add(String.format("%s\t%d\t%s", entry.getKey(), entry.getValue(),
+                    this.complete.get(entry.getKey()) ? COMPLETE : "partial"));
+        }
+        var temporary = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+        Files.write(temporary, lines, StandardCharsets.UTF_8);
+        Files.move(temporary, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String key(Path path) {
+        return path.toAbsolutePath().normalize().toString();
+    }
+}
@@ -0,0 +1,90 @@
+package de.uke.iam.parkinson_on_fhir.loader;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits delimited text into records as described by RFC 4180: Fields may be
+ * enclosed in double quotes, in which case they may contain the separator,
+ * line breaks and quotes escaped by doubling them.
+ */
+final class CsvReader {
+
+    private static final char QUOTE = '"';
+
+    private final BufferedReader reader;
+    private final char separator;
+
+    CsvReader(BufferedReader reader, char separator) {
+        this.reader = reader;
+        this.separator = separator;
+    }
+
+    /**
+     * Read the fields of the next record.
+     *
+     * @return The fields or null, if the input is exhausted. An empty line is a
+     *         record with a single, empty field.
+     * @throws IllegalArgumentException If the quotes of the record are
+     *                                  malformed. Reading may be continued with
+     *                                  the next record.
+     */
+    List<String> next() throws IOException {
+        var line = this.reader.readLine();
+        if (line == null) {
+            return null;
+        }
+
+        var fields = new ArrayList<String>();
+        var field = new StringBuilder();
+        int position = 0;
+        while (true) {
+            if (position < line.length() && line.charAt(position) == QUOTE) {
+                // A quoted field, possibly spanning multiple lines
+                ++position;
+                while (true) {
+                    if (position == line.length()) {
+                        line = this.reader.readLine();
+                        if (line == null) {
+                            throw new IllegalArgumentException("The input ends within a quoted field");
+                        }
+                        field.append('\n');
+                        position = 0;
+                        continue;
+                    }
+
+                    var next = line.charAt(position++);
+                    if (next != QUOTE) {
+                        field.append(next);
+                    } else if (position < line.length() && line.charAt(position) == QUOTE) {
+                        field.append(QUOTE);
+                        ++position;
+                    } else {
+                        break;
+                    }
+                }
+                if (position < line.length() && line.charAt(position) != this.separator) {
+                    throw new IllegalArgumentException("A quoted field is followed by further characters");
+                }
+            } else {
+                while (position < line.length() && line.charAt(position) != this.separator) {
+                    var next = line.charAt(position++);
+                    if (next == QUOTE) {
+                        throw new IllegalArgumentException("A field not enclosed in quotes contains a quote");
+                    }
+                    field.append(next);
+                }
+            }
+
+            fields.add(field.toString());
+            field.setLength(0);
+            if (position == line.length()) {
+                return fields;
+            }
+            // Skip the separator
+            ++position;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package de.uke.iam.parkinson_on_fhir.loader;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Reads accelerometer exports with one sample per record. The first record
+ * names the columns, which must include timestamp, subject, device, bodyPart,
+ * x, y and z in any order. Timestamps are either ISO-8601 instants or
+ * microseconds since the epoch (UTC). Fields may be quoted as described by
+ * CsvReader.
+ */
+final class CsvSampleSource implements SampleSource {
+
+    private static final List<String> COLUMNS = List.of("timestamp", "subject", "device", "bodyPart", "x", "y",
+            "z");
+    private static final Pattern DIGITS = Pattern.compile("-?[0-9]+");
+
+    private final BufferedReader reader;
+    private final CsvReader records;
+    private final SensorResolver sensors;
+    private final int[] columns;
+    private final int numColumns;
+
+    /**
+     * Create a new source and read the header.
+     *
+     * @param separator The character separating the columns.
+     */
+    CsvSampleSource(BufferedReader reader, SensorResolver sensors, char separator) throws IOException {
+        this.reader = reader;
+        this.records = new CsvReader(reader, separator);
+        this.sensors = sensors;
+
+        List<String> names;
+        try {
+            names = this.records.next();
+        } catch (IllegalArgumentException e) {
+            throw new IOException("The header is malformed: " + e.getMessage());
+        }
+        if (names == null) {
+            throw new IOException("The file is empty");
+        }
+        names.replaceAll(String::trim);
+        this.columns = new int[COLUMNS.size()];
+        for (int i = 0; i < COLUMNS.size(); ++i) {
+            this.columns[i] = names.indexOf(COLUMNS.get(i));
+            if (this.columns[i] < 0) {
+                throw new IOException(String.format("The column '%s' is missing", COLUMNS.get(i)));
+            }
+        }
+        this.numColumns = Arrays.stream(this.columns).max().getAsInt() + 1;
+    }
+
+    @Override
+    public boolean next(Sample sample) throws IOException {
+        var values = this.records.next();
+        if (values == null) {
+            return false;
+        } else if (values.size() == 1 && values.get(0).isBlank()) {
+            throw new IllegalArgumentException("The line is empty");
+        } else if (values.size() < this.numColumns) {
+            throw new IllegalArgumentException("The line has too few columns");
+        }
+        sample.micros = parseTimestamp(values.get(this.columns[0]).trim());
+        sample.subject = this.sensors.requireSubject(Integer.parseInt(values.get(this.columns[1]).trim()));
+        sample.sensor = this.sensors.resolve(values.get(this.columns[2]).trim(), values.get(this.columns[3]).trim());
+        sample.x = Float.parseFloat(values.get(this.columns[4]));
+        sample.y = Float.parseFloat(values.get(this.columns[5]));
+        sample.z = Float.parseFloat(values.get(this.columns[6]));
+        return true;
+    }
+
+    private static long parseTimestamp(String value) {
+        if (DIGITS.matcher(value).matches()) {
+            return Long.parseLong(value);
+        }
+        try {
+            var instant = Instant.parse(value);
+            return instant.getEpochSecond() * 1000 * 1000 + instant.getNano() / 1000;
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException(String.format("The timestamp '%s' is malformed", value));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.reader.close();
+    }
+}
@@ -0,0 +1,58 @@
+package de.uke.iam.parkinson_on_fhir.loader;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.time.ZoneOffset;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+
+import de.uke.iam.parkinson_on_fhir.provider.ResourceStream;
+
+/**
+ * Reads acceleration observations from NDJSON, validated just like by the
+ * server.
+ */
+final class ObservationSampleSource implements SampleSource {
+
+    private final Reader reader;
+    private final ResourceStream stream;
+    private final SensorResolver sensors;
+
+    ObservationSampleSource(FhirContext context, Reader reader, SensorResolver sensors) throws IOException {
+        this.reader = reader;
+        this.stream = ResourceStream.ofNdjson(context, reader);
+        this.sensors = sensors;
+    }
+
+    @Override
+    public boolean next(Sample sample) throws IOException {
+        try {
+            var resource = this.stream.next();
+            if (resource == null) {
+                return false;
+            }
+
+            var validated = this.sensors.validate(resource);
+            if (!validated.isValid()) {
+                throw new IllegalArgumentException(validated.getError());
+            }
+            var measurement = validated.getMeasurement();
+            var timestamp = measurement.getTimestamp().toInstant(ZoneOffset.UTC);
+            sample.micros = timestamp.getEpochSecond() * 1000 * 1000 + timestamp.getNano() / 1000;
+            sample.subject = measurement.getSubject();
+            sample.sensor = measurement.getSensor();
+            sample.x = measurement.getX();
+            sample.y = measurement.getY();
+            sample.z = measurement.getZ();
+            return true;
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.reader.close();
+    }
+}
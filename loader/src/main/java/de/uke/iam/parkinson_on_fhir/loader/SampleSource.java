@@ -0,0 +1,32 @@
+package de.uke.iam.parkinson_on_fhir.loader;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Reads accelerometer samples record by record from a local file.
+ */
+interface SampleSource extends Closeable {
+
+    /**
+     * A single sample, reused for all records of a source.
+     */
+    final class Sample {
+        int subject;
+        int sensor;
+        long micros;
+        float x;
+        float y;
+        float z;
+    }
+
+    /**
+     * Read the next record into the sample.
+     *
+     * @return False, if the file is exhausted.
+     * @throws IllegalArgumentException If the record is invalid. Reading may be
+     *                                  continued with the next record.
+     * @throws IOException              If the file could not be read.
+     */
+    boolean next(Sample sample) throws IOException;
+}
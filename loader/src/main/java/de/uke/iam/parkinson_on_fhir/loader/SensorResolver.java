@@ -0,0 +1,75 @@
+package de.uke.iam.parkinson_on_fhir.loader;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import de.uke.iam.parkinson_on_fhir.provider.ObservationValidator;
+
+/**
+ * Shares the sensor resolution and validation of the server among all loader
+ * threads. Calls are serialized, such that concurrent threads never create the
+ * same sensor twice.
+ *
+ * The outcome of each lookup is kept for the whole run, including unknown
+ * subjects and devices: Exports referencing them repeat them on every line.
+ */
+class SensorResolver {
+
+    private final ObservationValidator validator;
+    private final Map<String, Integer> sensors;
+    private final Set<String> unknownDevices;
+    private final Map<Integer, Boolean> subjects;
+
+    SensorResolver(ObservationValidator validator) {
+        this.validator = validator;
+        this.sensors = new HashMap<String, Integer>();
+        this.unknownDevices = new HashSet<String>();
+        this.subjects = new HashMap<Integer, Boolean>();
+    }
+
+    /**
+     * Get the sensor for a device and body part and create it, if necessary.
+     *
+     * @throws IllegalArgumentException If the device is unknown.
+     */
+    synchronized int resolve(String device, String bodyPart) {
+        if (this.unknownDevices.contains(device)) {
+            throw new IllegalArgumentException(String.format("The device '%s' is unknown", device));
+        }
+        var key = device + '\0' + bodyPart;
+        var sensorId = this.sensors.get(key);
+        if (sensorId == null) {
+            sensorId = this.validator.getSensorId(device, bodyPart);
+            if (sensorId == null) {
+                this.unknownDevices.add(device);
+                throw new IllegalArgumentException(String.format("The device '%s' is unknown", device));
+            }
+            this.sensors.put(key, sensorId);
+        }
+        return sensorId;
+    }
+
+    /**
+     * Check that a subject is available within the database.
+     *
+     * @return The ID of the subject.
+     * @throws IllegalArgumentException If the subject is unknown.
+     */
+    synchronized int requireSubject(int subjectId) {
+        if (!this.subjects.computeIfAbsent(subjectId, this.validator::hasSubject)) {
+            throw new IllegalArgumentException(String.format("The subject '%d' is unknown", subjectId));
+        }
+        return subjectId;
+    }
+
+    /**
+     * Validate an observation just like the server does.
+     */
+    synchronized ObservationValidator.Result validate(IBaseResource resource) {
+        return this.validator.validate(resource);
+    }
+}
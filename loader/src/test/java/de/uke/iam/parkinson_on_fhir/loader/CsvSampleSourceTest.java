@@ -0,0 +1,94 @@
+package de.uke.iam.parkinson_on_fhir.loader;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class CsvSampleSourceTest {
+
+    private static final String HEADER = "timestamp,subject,device,bodyPart,x,y,z\n";
+
+    /**
+     * Knows subject 1 and the device "watch" with any body part.
+     */
+    private static class StubResolver extends SensorResolver {
+        private final List<String> bodyParts = new ArrayList<String>();
+
+        StubResolver() {
+            super(null);
+        }
+
+        @Override
+        int resolve(String device, String bodyPart) {
+            if (!"watch".equals(device)) {
+                throw new IllegalArgumentException("The device is unknown");
+            }
+            this.bodyParts.add(bodyPart);
+            return 7;
+        }
+
+        @Override
+        int requireSubject(int subjectId) {
+            if (subjectId != 1) {
+                throw new IllegalArgumentException("The subject is unknown");
+            }
+            return subjectId;
+        }
+    }
+
+    private static CsvSampleSource open(String content, SensorResolver sensors) throws IOException {
+        return new CsvSampleSource(new BufferedReader(new StringReader(content)), sensors, ',');
+    }
+
+    @Test
+    void readsPlainAndQuotedFields() throws IOException {
+        var sensors = new StubResolver();
+        var source = open(HEADER + "1000,1,watch,wrist,1.5,2,3\n"
+                + "2024-01-01T00:00:00.000001Z,1,\"watch\",\"left, \"\"upper\"\" arm\",4,5,6\n", sensors);
+        var sample = new SampleSource.Sample();
+
+        assertTrue(source.next(sample));
+        assertEquals(1000, sample.micros);
+        assertEquals(1, sample.subject);
+        assertEquals(7, sample.sensor);
+        assertEquals(1.5f, sample.x);
+
+        assertTrue(source.next(sample));
+        assertEquals(1704067200000001L, sample.micros);
+        assertEquals(6f, sample.z);
+        assertEquals(List.of("wrist", "left, \"upper\" arm"), sensors.bodyParts);
+
+        assertFalse(source.next(sample));
+    }
+
+    @Test
+    void skipsInvalidRecords() throws IOException {
+        var source = open(HEADER + "1000,2,watch,wrist,1,2,3\n"
+                + "1000,1,phone,wrist,1,2,3\n"
+                + "1000,1,wat\"ch,wrist,1,2,3\n"
+                + "1000,1,watch\n"
+                + "\n"
+                + "2000,1,watch,wrist,1,2,3\n", new StubResolver());
+        var sample = new SampleSource.Sample();
+
+        // Each invalid record is reported once and reading continues afterwards
+        for (int i = 0; i < 5; ++i) {
+            assertThrows(IllegalArgumentException.class, () -> source.next(sample));
+        }
+        assertTrue(source.next(sample));
+        assertEquals(2000, sample.micros);
+        assertFalse(source.next(sample));
+    }
+
+    @Test
+    void requiresAllColumns() {
+        assertThrows(IOException.class, () -> open("timestamp,subject,device,x,y,z\n", new StubResolver()));
+        assertThrows(IOException.class, () -> open("", new StubResolver()));
+    }
+}
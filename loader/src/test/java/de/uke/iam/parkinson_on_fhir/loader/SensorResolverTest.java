@@ -0,0 +1,58 @@
+package de.uke.iam.parkinson_on_fhir.loader;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import de.uke.iam.parkinson_on_fhir.provider.ObservationValidator;
+
+class SensorResolverTest {
+
+    /**
+     * Knows subject 1 and the device "watch", counting the lookups.
+     */
+    private static class CountingValidator extends ObservationValidator {
+        private int numSensorLookups = 0;
+        private int numSubjectLookups = 0;
+
+        CountingValidator() {
+            super(null, null);
+        }
+
+        @Override
+        public Integer getSensorId(String device, String bodyPart) {
+            ++this.numSensorLookups;
+            return "watch".equals(device) ? 7 : null;
+        }
+
+        @Override
+        public boolean hasSubject(int subjectId) {
+            ++this.numSubjectLookups;
+            return subjectId == 1;
+        }
+    }
+
+    @Test
+    void cachesKnownAndUnknownDevices() {
+        var validator = new CountingValidator();
+        var sensors = new SensorResolver(validator);
+
+        assertEquals(7, sensors.resolve("watch", "wrist"));
+        assertEquals(7, sensors.resolve("watch", "wrist"));
+        assertThrows(IllegalArgumentException.class, () -> sensors.resolve("phone", "wrist"));
+        assertThrows(IllegalArgumentException.class, () -> sensors.resolve("phone", "ankle"));
+        assertEquals(2, validator.numSensorLookups);
+    }
+
+    @Test
+    void cachesKnownAndUnknownSubjects() {
+        var validator = new CountingValidator();
+        var sensors = new SensorResolver(validator);
+
+        assertEquals(1, sensors.requireSubject(1));
+        assertEquals(1, sensors.requireSubject(1));
+        assertThrows(IllegalArgumentException.class, () -> sensors.requireSubject(2));
+        assertThrows(IllegalArgumentException.class, () -> sensors.requireSubject(2));
+        assertEquals(2, validator.numSubjectLookups);
+    }
+}
@@ -0,0 +1,237 @@
+package de.uke.iam.parkinson_on_fhir.analysis;
+
+import java.util.Arrays;
+
+/**
+ * Computes movement features of the samples of a single sensor within a window
+ * of arbitrary length. Samples are pushed one by one, the features are
+ * available after finish():
+ *
+ * <ul>
+ * <li>the root mean square and the mean absolute jerk of each axis,</li>
+ * <li>the signal magnitude area, i. e. the mean of |x| + |y| + |z|,</li>
+ * <li>the dominant frequency and the normalized spectral entropy of each
+ * axis.</li>
+ * </ul>
+ *
+ * The spectra are averaged over segments of a fixed size overlapping by half
+ * (Welch's method), such that windows of any length are analyzed with the same
+ * buffers. Windows shorter than a segment have no spectral features.
+ *
+ * All buffers are allocated once. Instances are not thread-safe.
+ */
+public class FeatureExtractor {
+
+    public static final int NUM_AXES = 3;
+
+    private final Fft fft;
+    private final int segmentSize;
+    private final double[] weights;
+    private final double[][] segments;
+    private final double[][] powers;
+    private final double[] real;
+    private final double[] imag;
+    private final float[] last;
+
+    private int numSamples;
+    private int numFilled;
+    private int numSegments;
+    private long firstMicros;
+    private long lastMicros;
+    private double magnitudeArea;
+    private final double[] squares;
+    private final double[] jerks;
+    private int numJerks;
+
+    // The outcome of the last finished window
+    private double sampleRate;
+    private double sma;
+    private final double[] rms;
+    private final double[] jerk;
+    private final double[] dominantFrequency;
+    private final double[] entropy;
+
+    /**
+     * Create a new FeatureExtractor.
+     *
+     * @param segmentSize The number of samples of the segments the spectra are
+     *                    computed for, a power of two.
+     */
+    public FeatureExtractor(int segmentSize) {
+        this.fft = new Fft(segmentSize);
+        this.segmentSize = segmentSize;
+        this.weights = new double[segmentSize];
+        for (int i = 0; i < segmentSize; ++i) {
+            this.weights[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / (segmentSize - 1));
+        }
+        this.segments = new double[NUM_AXES][segmentSize];
+        this.powers = new double[NUM_AXES][segmentSize / 2 + 1];
+        this.real = new double[segmentSize];
+        this.imag = new double[segmentSize];
+        this.last = new float[NUM_AXES];
+        this.squares = new double[NUM_AXES];
+        this.jerks = new double[NUM_AXES];
+        this.rms = new double[NUM_AXES];
+        this.jerk = new double[NUM_AXES];
+        this.dominantFrequency = new double[NUM_AXES];
+        this.entropy = new double[NUM_AXES];
+        this.reset();
+    }
+
+    /**
+     * Start a new window.
+     */
+    public void reset() {
+        this.numSamples = 0;
+        this.numFilled = 0;
+        this.numSegments = 0;
+        this.numJerks = 0;
+        this.magnitudeArea = 0;
+        for (int axis = 0; axis < NUM_AXES; ++axis) {
+            this.squares[axis] = 0;
+            this.jerks[axis] = 0;
+            Arrays.fill(this.powers[axis], 0);
+        }
+    }
+
+    /**
+     * Add the next sample. Samples must be added in the order of their
+     * timestamps.
+     */
+    public void add(long timestampMicros, float x, float y, float z) {
+        if (this.numSamples == 0) {
+            this.firstMicros = timestampMicros;
+        } else if (timestampMicros > this.lastMicros) {
+            var seconds = (timestampMicros - this.lastMicros) / 1e6;
+            this.jerks[0] += Math.abs(x - this.last[0]) / seconds;
+            this.jerks[1] += Math.abs(y - this.last[1]) / seconds;
+            this.jerks[2] += Math.abs(z - this.last[2]) / seconds;
+            ++this.numJerks;
+        }
+        this.lastMicros = timestampMicros;
+        this.last[0] = x;
+        this.last[1] = y;
+        this.last[2] = z;
+        ++this.numSamples;
+
+        this.squares[0] += (double) x * x;
+        this.squares[1] += (double) y * y;
+        this.squares[2] += (double) z * z;
+        this.magnitudeArea += Math.abs(x) + Math.abs(y) + Math.abs(z);
+
+        this.segments[0][this.numFilled] = x;
+        this.segments[1][this.numFilled] = y;
+        this.segments[2][this.numFilled] = z;
+        if (++this.numFilled == this.segmentSize) {
+            for (int axis = 0; axis < NUM_AXES; ++axis) {
+                this.accumulate(axis);
+                // Keep the second half as the start of the next segment
+                System.arraycopy(this.segments[axis], this.segmentSize / 2, this.segments[axis], 0,
+                        this.segmentSize / 2);
+            }
+            ++this.numSegments;
+            this.numFilled = this.segmentSize / 2;
+        }
+    }
+
+    /**
+     * Compute the features of the samples added since the last reset.
+     */
+    public void finish() {
+        var duration = this.lastMicros - this.firstMicros;
+        this.sampleRate = this.numSamples > 1 && duration > 0 ? (this.numSamples - 1) * 1e6 / duration : Double.NaN;
+        this.sma = this.numSamples > 0 ? this.magnitudeArea / this.numSamples : Double.NaN;
+        var resolution = this.sampleRate / this.segmentSize;
+        for (int axis = 0; axis < NUM_AXES; ++axis) {
+            this.rms[axis] = this.numSamples > 0 ? Math.sqrt(this.squares[axis] / this.numSamples) : Double.NaN;
+            this.jerk[axis] = this.numJerks > 0 ? this.jerks[axis] / this.numJerks : Double.NaN;
+            this.dominantFrequency[axis] = Double.NaN;
+            this.entropy[axis] = Double.NaN;
+            if (this.numSegments == 0 || Double.isNaN(this.sampleRate)) {
+                continue;
+            }
+
+            var power = this.powers[axis];
+            double total = 0, maxPower = 0;
+            int dominant = 0;
+            for (int k = 1; k < power.length; ++k) {
+                total += power[k];
+                if (power[k] > maxPower) {
+                    maxPower = power[k];
+                    dominant = k;
+                }
+            }
+            if (total <= 0) {
+                continue;
+            }
+            double sum = 0;
+            for (int k = 1; k < power.length; ++k) {
+                if (power[k] > 0) {
+                    var share = power[k] / total;
+                    sum -= share * Math.log(share);
+                }
+            }
+            this.dominantFrequency[axis] = dominant * resolution;
+            this.entropy[axis] = sum / Math.log(power.length - 1);
+        }
+    }
+
+    public int getNumSamples() {
+        return this.numSamples;
+    }
+
+    /**
+     * The rate of the samples estimated from the first and last timestamp, or NaN.
+     */
+    public double getSampleRate() {
+        return this.sampleRate;
+    }
+
+    public double getSignalMagnitudeArea() {
+        return this.sma;
+    }
+
+    public double getRms(int axis) {
+        return this.rms[axis];
+    }
+
+    /**
+     * The mean absolute change of the acceleration per second, or NaN.
+     */
+    public double getJerk(int axis) {
+        return this.jerk[axis];
+    }
+
+    /**
+     * The frequency with the highest power excluding the constant part, or NaN.
+     */
+    public double getDominantFrequency(int axis) {
+        return this.dominantFrequency[axis];
+    }
+
+    /**
+     * The Shannon entropy of the power spectrum, normalized to [0, 1], or NaN.
+     */
+    public double getEntropy(int axis) {
+        return this.entropy[axis];
+    }
+
+    private void accumulate(int axis) {
+        var segment = this.segments[axis];
+        double mean = 0;
+        for (int i = 0; i < this.segmentSize; ++i) {
+            mean += segment[i];
+        }
+        mean /= this.segmentSize;
+        for (int i = 0; i < this.segmentSize; ++i) {
+            this.real[i] = (segment[i] - mean) * this.weights[i];
+            this.imag[i] = 0;
+        }
+        this.fft.transform(this.real, this.imag);
+
+        var power = this.powers[axis];
+        for (int k = 0; k < power.length; ++k) {
+            power[k] += this.real[k] * this.real[k] + this.imag[k] * this.imag[k];
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package de.uke.iam.parkinson_on_fhir.analysis;
+
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.jooq.Condition;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.SQLDialect;
+import org.jooq.exception.DataAccessException;
+import org.jooq.impl.DSL;
+
+import de.uke.iam.parkinson_on_fhir.schema.MovementFeatures;
+
+import static de.uke.iam.parkinson_on_fhir.database.Tables.*;
+
+/**
+ * Keeps MOVEMENT_FEATURES up-to-date in background. Periodically, the epochs
+ * marked by the triggers are claimed, their features recomputed from the
+ * samples and the windows of the tasks overlapping them recomputed as well.
+ * Windows without samples left are removed. Marks are removed only after
+ * their recomputation, unless they were marked again meanwhile.
+ */
+public class FeatureMaintainer {
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(FeatureMaintainer.class);
+
+    public static final int SEGMENT_SIZE = 256;
+
+    private static final int FETCH_SIZE = 1000;
+
+    /**
+     * The age of a claim after which its epoch is claimed again, as the server
+     * claiming it was stopped in between.
+     */
+    private static final long CLAIM_TIMEOUT_MINUTES = 10;
+
+    /**
+     * A window of the samples of a single sensor.
+     */
+    private static class Window {
+        private final int subject;
+        private final int sensor;
+        private final String kind;
+        private final LocalDateTime start;
+        private final LocalDateTime end;
+        private final Integer task;
+
+        private Window(int subject, int sensor, String kind, LocalDateTime start, LocalDateTime end, Integer task) {
+            this.subject = subject;
+            this.sensor = sensor;
+            this.kind = kind;
+            this.start = start;
+            this.end = end;
+            this.task = task;
+        }
+
+        /**
+         * Epochs exclude their end, tasks include it like the joins with TASKS.
+         */
+        private Condition getSamples() {
+            var where = MEASUREMENTS.SUBJECT.eq(this.subject).and(MEASUREMENTS.SENSOR.eq(this.sensor))
+                    .and(MEASUREMENTS.TIMESTAMP.ge(this.start));
+            return this.task == null ? where.and(MEASUREMENTS.TIMESTAMP.lt(this.end))
+                    : where.and(MEASUREMENTS.TIMESTAMP.le(this.end));
+        }
+    }
+
+    private final DataSource pool;
+    private final int batchSize;
+    private final FeatureExtractor extractor;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Create a new FeatureMaintainer and start maintaining periodically.
+     *
+     * @param pool       The pool providing the connections.
+     * @param intervalMs The time between looking for marked epochs.
+     * @param batchSize  The maximal number of epochs claimed at once.
+     */
+    public FeatureMaintainer(DataSource pool, long intervalMs, int batchSize) {
+        this.pool = pool;
+        this.batchSize = Math.max(1, batchSize);
+        // Only used by the single thread of the scheduler
+        this.extractor = new FeatureExtractor(SEGMENT_SIZE);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "feature-maintainer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::maintain, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create a FeatureMaintainer from the system properties.
+     *
+     * @return The FeatureMaintainer or null, if maintaining the features is
+     *         disabled.
+     */
+    public static FeatureMaintainer loadFromContext(DataSource pool) {
+        if (!isEnabled()) {
+            return null;
+        }
+        var intervalMs = getIntervalMillis();
+        var batchSize = Integer.getInteger("de.uke.iam.parkinson_on_fhir.feature_batch_epochs", 64);
+
+        logger.info("Movement features maintained every {} ms, {} epochs at once", intervalMs, batchSize);
+        return new FeatureMaintainer(pool, intervalMs, batchSize);
+    }
+
+    /**
+     * Check whether maintaining the features is enabled by the system
+     * properties. Otherwise, their triggers should not be installed either.
+     */
+    public static boolean isEnabled() {
+        return getIntervalMillis() > 0;
+    }
+
+    private static long getIntervalMillis() {
+        return Long.getLong("de.uke.iam.parkinson_on_fhir.feature_interval_millis", 5000);
+    }
+
+    /**
+     * Stop maintaining. Epochs still marked are recomputed after the next start.
+     */
+    public void shutdown() {
+        this.scheduler.shutdownNow();
+    }
+
+    /**
+     * Mark all epochs of a subject or of all subjects for recomputation and start
+     * maintaining immediately. Subjects are marked one after another, each in its
+     * own transaction. Existing features are kept until their epochs are
+     * recomputed; epochs of another length overlapping them are replaced then.
+     *
+     * @return The number of marked epochs.
+     */
+    public int backfill(Integer subject, LocalDateTime start, LocalDateTime end) throws SQLException {
+        int numMarked = 0;
+        try (var connection = this.pool.getConnection()) {
+            var context = DSL.using(connection, SQLDialect.POSTGRES);
+            var subjects = subject != null ? List.of(subject)
+                    : context.select(SUBJECTS.SUBJECT_ID).from(SUBJECTS).orderBy(SUBJECTS.SUBJECT_ID)
+                            .fetch(SUBJECTS.SUBJECT_ID);
+            for (var subjectId : subjects) {
+                Condition samples = MEASUREMENTS.SUBJECT.eq(subjectId);
+                if (start != null) {
+                    samples = samples.and(MEASUREMENTS.TIMESTAMP.ge(start));
+                }
+                if (end != null) {
+                    samples = samples.and(MEASUREMENTS.TIMESTAMP.le(end));
+                }
+                numMarked += MovementFeatures.mark(context, samples);
+            }
+        }
+        this.scheduler.execute(this::maintain);
+        return numMarked;
+    }
+
+    private void maintain() {
+        try {
+            while (this.maintainBatch() == this.batchSize) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+            }
+        } catch (SQLException | DataAccessException e) {
+            logger.error("Maintaining the movement features failed: {}", e.toString());
+        } catch (RuntimeException e) {
+            logger.error("Maintaining the movement features failed", e);
+        }
+    }
+
+    /**
+     * Claim a batch of marked epochs and recompute them together with the tasks
+     * overlapping them. Only the claim is a statement of its own; each window is
+     * recomputed within a short transaction, such that writers marking a claimed
+     * epoch never wait for the batch. Afterwards, a mark is removed only if it
+     * was not marked again meanwhile. If the batch fails, the claims are
+     * released and the epochs stay marked. Claims of a server stopped in between
+     * expire after a while.
+     *
+     * @return The number of claimed epochs.
+     */
+    private int maintainBatch() throws SQLException {
+        try (var connection = this.pool.getConnection()) {
+            var context = DSL.using(connection, SQLDialect.POSTGRES);
+            var now = LocalDateTime.now(ZoneOffset.UTC);
+            var claimed = context.update(MovementFeatures.MARKS)
+                    .set(MovementFeatures.MARK_CLAIMED_AT, now)
+                    .where(DSL.row(MovementFeatures.MARK_SUBJECT, MovementFeatures.MARK_SENSOR,
+                            MovementFeatures.MARK_EPOCH_START).in(
+                                    DSL.select(MovementFeatures.MARK_SUBJECT, MovementFeatures.MARK_SENSOR,
+                                            MovementFeatures.MARK_EPOCH_START)
+                                            .from(MovementFeatures.MARKS)
+                                            .where(MovementFeatures.MARK_CLAIMED_AT.isNull().or(
+                                                    MovementFeatures.MARK_CLAIMED_AT.lt(
+                                                            now.minusMinutes(CLAIM_TIMEOUT_MINUTES))))
+                                            .orderBy(MovementFeatures.MARK_EPOCH_START)
+                                            .limit(this.batchSize)
+                                            .forUpdate().skipLocked()))
+                    .returning(MovementFeatures.MARK_SUBJECT, MovementFeatures.MARK_SENSOR,
+                            MovementFeatures.MARK_EPOCH_START, MovementFeatures.MARK_EPOCH_END,
+                            MovementFeatures.MARK_GENERATION)
+                    .fetch();
+
+            try {
+                var tasks = new LinkedHashMap<List<Integer>, Window>();
+                for (var mark : claimed) {
+                    var epoch = new Window(mark.get(MovementFeatures.MARK_SUBJECT),
+                            mark.get(MovementFeatures.MARK_SENSOR), MovementFeatures.KIND_EPOCH,
+                            mark.get(MovementFeatures.MARK_EPOCH_START), mark.get(MovementFeatures.MARK_EPOCH_END),
+                            null);
+                    this.compute(context, epoch);
+
+                    for (var task : context.select(TASKS.TASK_ID, TASKS.TASK_START, TASKS.TASK_END)
+                            .from(TASKS)
+                            .where(TASKS.SUBJECT.eq(epoch.subject)
+                                    .and(TASKS.TASK_START.lt(epoch.end))
+                                    .and(TASKS.TASK_END.ge(epoch.start)))
+                            .fetch()) {
+                        tasks.putIfAbsent(List.of(task.value1(), epoch.sensor), new Window(epoch.subject,
+                                epoch.sensor, MovementFeatures.KIND_TASK, task.value2(), task.value3(),
+                                task.value1()));
+                    }
+                }
+                for (var task : tasks.values()) {
+                    this.compute(context, task);
+                }
+            } catch (RuntimeException e) {
+                for (var mark : claimed) {
+                    context.update(MovementFeatures.MARKS)
+                            .setNull(MovementFeatures.MARK_CLAIMED_AT)
+                            .where(isUnchanged(mark))
+                            .execute();
+                }
+                throw e;
+            }
+
+            for (var mark : claimed) {
+                context.deleteFrom(MovementFeatures.MARKS).where(isUnchanged(mark)).execute();
+            }
+            return claimed.size();
+        }
+    }
+
+    /**
+     * Select a claimed mark, unless it was marked again since its claim.
+     */
+    private static Condition isUnchanged(Record mark) {
+        return MovementFeatures.MARK_SUBJECT.eq(mark.get(MovementFeatures.MARK_SUBJECT))
+                .and(MovementFeatures.MARK_SENSOR.eq(mark.get(MovementFeatures.MARK_SENSOR)))
+                .and(MovementFeatures.MARK_EPOCH_START.eq(mark.get(MovementFeatures.MARK_EPOCH_START)))
+                .and(MovementFeatures.MARK_GENERATION.eq(mark.get(MovementFeatures.MARK_GENERATION)));
+    }
+
+    /**
+     * Stream the samples of a window through the extractor and replace its
+     * features within a single transaction.
+     */
+    private void compute(DSLContext context, Window window) {
+        context.transaction(configuration -> this.computeWithin(DSL.using(configuration), window));
+    }
+
+    private void computeWithin(DSLContext context, Window window) {
+        this.extractor.reset();
+        // Streamed as the transaction of the window is outside of auto-commit mode
+        try (var cursor = context
+                .select(MEASUREMENTS.TIMESTAMP, MEASUREMENTS.X, MEASUREMENTS.Y, MEASUREMENTS.Z)
+                .from(MEASUREMENTS)
+                .where(window.getSamples())
+                .orderBy(MEASUREMENTS.TIMESTAMP)
+                .fetchSize(FETCH_SIZE).fetchLazy()) {
+            for (var sample : cursor) {
+                var timestamp = sample.value1();
+                var micros = timestamp.toEpochSecond(ZoneOffset.UTC) * 1000000 + timestamp.getNano() / 1000;
+                this.extractor.add(micros, sample.value2(), sample.value3(), sample.value4());
+            }
+        }
+        this.extractor.finish();
+
+        // Epochs replace the ones overlapping them, which were computed for another
+        // length of the epochs
+        var key = window.task == null
+                ? MovementFeatures.KIND.eq(MovementFeatures.KIND_EPOCH)
+                        .and(MovementFeatures.SUBJECT.eq(window.subject))
+                        .and(MovementFeatures.SENSOR.eq(window.sensor))
+                        .and(MovementFeatures.WINDOW_START.lt(window.end))
+                        .and(MovementFeatures.WINDOW_END.gt(window.start))
+                : MovementFeatures.KIND.eq(MovementFeatures.KIND_TASK)
+                        .and(MovementFeatures.TASK.eq(window.task))
+                        .and(MovementFeatures.SENSOR.eq(window.sensor));
+        context.deleteFrom(MovementFeatures.TABLE).where(key).execute();
+        if (this.extractor.getNumSamples() == 0) {
+            return;
+        }
+
+        var values = new HashMap<Field<?>, Object>();
+        values.put(MovementFeatures.SUBJECT, window.subject);
+        values.put(MovementFeatures.SENSOR, window.sensor);
+        values.put(MovementFeatures.KIND, window.kind);
+        values.put(MovementFeatures.WINDOW_START, window.start);
+        values.put(MovementFeatures.WINDOW_END, window.end);
+        values.put(MovementFeatures.TASK, window.task);
+        values.put(MovementFeatures.NUM_SAMPLES, this.extractor.getNumSamples());
+        values.put(MovementFeatures.SAMPLE_RATE, toReal(this.extractor.getSampleRate()));
+        values.put(MovementFeatures.SMA, toReal(this.extractor.getSignalMagnitudeArea()));
+        for (int axis = 0; axis < FeatureExtractor.NUM_AXES; ++axis) {
+            values.put(MovementFeatures.RMS.get(axis), toReal(this.extractor.getRms(axis)));
+            values.put(MovementFeatures.JERK.get(axis), toReal(this.extractor.getJerk(axis)));
+            values.put(MovementFeatures.DOMINANT_FREQUENCY.get(axis),
+                    toReal(this.extractor.getDominantFrequency(axis)));
+            values.put(MovementFeatures.ENTROPY.get(axis), toReal(this.extractor.getEntropy(axis)));
+        }
+        values.put(MovementFeatures.COMPUTED_AT, DSL.currentLocalDateTime());
+        context.insertInto(MovementFeatures.TABLE).set(values).execute();
+    }
+
+    private static Float toReal(double value) {
+        return Double.isNaN(value) ? null : (float) value;
+    }
+}
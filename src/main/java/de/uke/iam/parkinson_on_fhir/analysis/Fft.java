@@ -0,0 +1,82 @@
+package de.uke.iam.parkinson_on_fhir.analysis;
+
+/**
+ * An iterative radix-2 fast Fourier transform of a fixed size. The twiddle
+ * factors and the bit reversal are computed once; transforms work in place on
+ * the arrays of the caller and allocate nothing.
+ */
+public final class Fft {
+
+    private final int size;
+    private final int[] reversed;
+    private final double[] cos;
+    private final double[] sin;
+
+    /**
+     * Create a new Fft.
+     *
+     * @param size The number of points, a power of two.
+     * @throws IllegalArgumentException If the size is not a power of two.
+     */
+    public Fft(int size) {
+        if (size < 2 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("The size of the FFT must be a power of two");
+        }
+        this.size = size;
+
+        var numBits = Integer.numberOfTrailingZeros(size);
+        this.reversed = new int[size];
+        for (int i = 0; i < size; ++i) {
+            this.reversed[i] = Integer.reverse(i) >>> (32 - numBits);
+        }
+        this.cos = new double[size / 2];
+        this.sin = new double[size / 2];
+        for (int i = 0; i < size / 2; ++i) {
+            this.cos[i] = Math.cos(-2 * Math.PI * i / size);
+            this.sin[i] = Math.sin(-2 * Math.PI * i / size);
+        }
+    }
+
+    public int getSize() {
+        return this.size;
+    }
+
+    /**
+     * Transform the signal in place.
+     *
+     * @param real The real parts, at least of the size of the FFT.
+     * @param imag The imaginary parts, at least of the size of the FFT.
+     */
+    public void transform(double[] real, double[] imag) {
+        for (int i = 0; i < this.size; ++i) {
+            var j = this.reversed[i];
+            if (j > i) {
+                var swap = real[i];
+                real[i] = real[j];
+                real[j] = swap;
+                swap = imag[i];
+                imag[i] = imag[j];
+                imag[j] = swap;
+            }
+        }
+
+        for (int length = 2; length <= this.size; length <<= 1) {
+            var half = length / 2;
+            var step = this.size / length;
+            for (int start = 0; start < this.size; start += length) {
+                for (int k = 0; k < half; ++k) {
+                    var even = start + k;
+                    var odd = even + half;
+                    var wr = this.cos[k * step];
+                    var wi = this.sin[k * step];
+                    var oddReal = real[odd] * wr - imag[odd] * wi;
+                    var oddImag = real[odd] * wi + imag[odd] * wr;
+                    real[odd] = real[even] - oddReal;
+                    imag[odd] = imag[even] - oddImag;
+                    real[even] += oddReal;
+                    imag[even] += oddImag;
+                }
+            }
+        }
+    }
+}
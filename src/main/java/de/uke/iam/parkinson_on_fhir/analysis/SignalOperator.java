@@ -0,0 +1,244 @@
+package de.uke.iam.parkinson_on_fhir.analysis;
+
+/**
+ * A streaming operator of a SignalPipeline. Samples are pushed one by one
+ * together with their timestamp; operators pass their output on to the next
+ * operator. The array holding the values of a sample belongs to the caller and
+ * is reused for the next sample.
+ */
+public abstract class SignalOperator {
+
+    private final int numChannels;
+    private final double sampleRate;
+    protected SignalOperator next;
+
+    /**
+     * @param numChannels The number of values per sample produced.
+     * @param sampleRate  The fixed rate of the samples produced or NaN, if the
+     *                    samples are not evenly spaced.
+     */
+    protected SignalOperator(int numChannels, double sampleRate) {
+        this.numChannels = numChannels;
+        this.sampleRate = sampleRate;
+    }
+
+    public int getNumChannels() {
+        return this.numChannels;
+    }
+
+    public double getSampleRate() {
+        return this.sampleRate;
+    }
+
+    /**
+     * Pass the output of this operator on to the given one.
+     *
+     * @return The given operator.
+     */
+    public SignalOperator then(SignalOperator next) {
+        this.next = next;
+        return next;
+    }
+
+    /**
+     * Process the next sample.
+     */
+    public abstract void push(long micros, float[] values);
+
+    /**
+     * All samples pushed since the previous call form a window.
+     */
+    public void endWindow(long startMicros, long endMicros) {
+        this.next.endWindow(startMicros, endMicros);
+    }
+
+    /**
+     * No further samples follow.
+     */
+    public void finish() {
+        this.next.finish();
+    }
+
+    /**
+     * Passes the samples on unchanged, e. g. as the head of a pipeline.
+     */
+    public static class Source extends SignalOperator {
+        public Source(int numChannels) {
+            super(numChannels, Double.NaN);
+        }
+
+        @Override
+        public void push(long micros, float[] values) {
+            this.next.push(micros, values);
+        }
+    }
+
+    /**
+     * Interpolates the samples linearly onto a grid of a fixed rate. The grid is
+     * restarted after gaps of more than ten periods instead of bridging them.
+     */
+    public static class Resample extends SignalOperator {
+        private final long periodMicros;
+        private final float[] previous;
+        private final float[] output;
+        private long previousMicros;
+        private long nextMicros;
+        private boolean started;
+
+        public Resample(int numChannels, double rate) {
+            super(numChannels, rate);
+            if (!(rate > 0) || rate > 1e6) {
+                throw new IllegalArgumentException("The rate of resample must be between 0 and 1000000 Hz");
+            }
+            this.periodMicros = Math.max(1, Math.round(1e6 / rate));
+            this.previous = new float[numChannels];
+            this.output = new float[numChannels];
+            this.started = false;
+        }
+
+        @Override
+        public void push(long micros, float[] values) {
+            if (!this.started || micros - this.previousMicros > 10 * this.periodMicros) {
+                this.started = true;
+                this.nextMicros = micros;
+            }
+            while (this.nextMicros <= micros) {
+                var span = micros - this.previousMicros;
+                var weight = span > 0 ? (double) (this.nextMicros - this.previousMicros) / span : 1.0;
+                for (int i = 0; i < this.output.length; ++i) {
+                    this.output[i] = (float) (this.previous[i] + weight * (values[i] - this.previous[i]));
+                }
+                this.next.push(this.nextMicros, this.output);
+                this.nextMicros += this.periodMicros;
+            }
+            this.previousMicros = micros;
+            System.arraycopy(values, 0, this.previous, 0, this.previous.length);
+        }
+    }
+
+    /**
+     * A second order band-pass filter of each channel. Requires samples of a
+     * fixed rate.
+     */
+    public static class Bandpass extends SignalOperator {
+        private final double b0, b2, a1, a2;
+        private final double[] x1, x2, y1, y2;
+        private final float[] output;
+
+        public Bandpass(int numChannels, double sampleRate, double lowHz, double highHz) {
+            super(numChannels, sampleRate);
+            if (Double.isNaN(sampleRate)) {
+                throw new IllegalArgumentException("bandpass requires a fixed rate: resample first");
+            } else if (!(lowHz > 0) || !(highHz > lowHz) || highHz >= sampleRate / 2) {
+                throw new IllegalArgumentException(
+                        "The band of bandpass must be positive, increasing and below half of the rate");
+            }
+
+            // Coefficients of the band-pass with a peak gain of 0 dB from the Audio EQ
+            // Cookbook by R. Bristow-Johnson
+            var center = Math.sqrt(lowHz * highHz);
+            var omega = 2 * Math.PI * center / sampleRate;
+            var alpha = Math.sin(omega) / (2 * center / (highHz - lowHz));
+            var a0 = 1 + alpha;
+            this.b0 = alpha / a0;
+            this.b2 = -alpha / a0;
+            this.a1 = -2 * Math.cos(omega) / a0;
+            this.a2 = (1 - alpha) / a0;
+
+            this.x1 = new double[numChannels];
+            this.x2 = new double[numChannels];
+            this.y1 = new double[numChannels];
+            this.y2 = new double[numChannels];
+            this.output = new float[numChannels];
+        }
+
+        @Override
+        public void push(long micros, float[] values) {
+            for (int i = 0; i < this.output.length; ++i) {
+                var y = this.b0 * values[i] + this.b2 * this.x2[i] - this.a1 * this.y1[i] - this.a2 * this.y2[i];
+                this.x2[i] = this.x1[i];
+                this.x1[i] = values[i];
+                this.y2[i] = this.y1[i];
+                this.y1[i] = y;
+                this.output[i] = (float) y;
+            }
+            this.next.push(micros, this.output);
+        }
+    }
+
+    /**
+     * Replaces the channels by their Euclidean norm.
+     */
+    public static class Magnitude extends SignalOperator {
+        private final float[] output;
+
+        public Magnitude(double sampleRate) {
+            super(1, sampleRate);
+            this.output = new float[1];
+        }
+
+        @Override
+        public void push(long micros, float[] values) {
+            double sum = 0;
+            for (var value : values) {
+                sum += (double) value * value;
+            }
+            this.output[0] = (float) Math.sqrt(sum);
+            this.next.push(micros, this.output);
+        }
+    }
+
+    /**
+     * Groups the samples into windows of a fixed number of samples. Samples at the
+     * end not filling a window are dropped.
+     */
+    public static class Window extends SignalOperator {
+        private final int size;
+        private final int step;
+        private final long[] micros;
+        private final float[][] values;
+        private int numFilled;
+        private int numSkipped;
+
+        public Window(int numChannels, double sampleRate, int size, int step) {
+            super(numChannels, sampleRate);
+            if (size < 1 || size > 1 << 20 || step < 1) {
+                throw new IllegalArgumentException("The window must hold 1 to 1048576 samples and step be positive");
+            }
+            this.size = size;
+            this.step = step;
+            this.micros = new long[size];
+            this.values = new float[size][numChannels];
+            this.numFilled = 0;
+            this.numSkipped = 0;
+        }
+
+        @Override
+        public void push(long micros, float[] values) {
+            if (this.numSkipped > 0) {
+                // The step exceeds the window: Skip the samples in between
+                --this.numSkipped;
+                return;
+            }
+            this.micros[this.numFilled] = micros;
+            System.arraycopy(values, 0, this.values[this.numFilled], 0, this.getNumChannels());
+            if (++this.numFilled < this.size) {
+                return;
+            }
+
+            for (int i = 0; i < this.size; ++i) {
+                this.next.push(this.micros[i], this.values[i]);
+            }
+            this.next.endWindow(this.micros[0], this.micros[this.size - 1]);
+
+            // Keep the samples overlapping with the next window
+            var numKept = Math.max(0, this.size - this.step);
+            for (int i = 0; i < numKept; ++i) {
+                this.micros[i] = this.micros[this.size - numKept + i];
+                System.arraycopy(this.values[this.size - numKept + i], 0, this.values[i], 0, this.getNumChannels());
+            }
+            this.numFilled = numKept;
+            this.numSkipped = Math.max(0, this.step - this.size);
+        }
+    }
+}
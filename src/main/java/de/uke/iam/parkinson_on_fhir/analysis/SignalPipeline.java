@@ -0,0 +1,272 @@
+package de.uke.iam.parkinson_on_fhir.analysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A chain of streaming SignalOperators over the acceleration samples of a
+ * single sensor, declared by a specification like
+ *
+ * <pre>
+ * resample(50) | bandpass(3, 7) | magnitude | window(256, 128) | aggregate(mean, rms, max)
+ * </pre>
+ *
+ * The operators are:
+ *
+ * <ul>
+ * <li>resample(rate): interpolate onto a fixed rate in Hz,</li>
+ * <li>bandpass(low, high): filter each channel, requires a fixed rate,</li>
+ * <li>magnitude: replace x, y and z by their Euclidean norm,</li>
+ * <li>window(size[, step]): group into windows of a number of samples,</li>
+ * <li>aggregate(functions...): summarize each window, or all samples without
+ * windows, by count, mean, min, max, rms or std of each channel.</li>
+ * </ul>
+ *
+ * A pipeline must end with aggregate, such that its output stays small
+ * compared to the samples. A window must be followed by aggregate directly,
+ * as the other operators process a continuous signal.
+ */
+public class SignalPipeline {
+
+    private static final String[] FUNCTIONS = { "count", "mean", "min", "max", "rms", "std" };
+
+    /**
+     * Receives the aggregates of each window.
+     */
+    public interface Listener {
+        /**
+         * @param values The aggregates ordered like getNames(). The array is reused
+         *               for the next window.
+         */
+        void onWindow(long startMicros, long endMicros, double[] values);
+    }
+
+    /**
+     * Summarizes the windows of samples.
+     */
+    private static class Aggregate extends SignalOperator {
+        private final int[] functions;
+        private final Listener listener;
+        private final double[] sums;
+        private final double[] squares;
+        private final double[] minima;
+        private final double[] maxima;
+        private final double[] output;
+        private long count;
+        private long firstMicros;
+        private long lastMicros;
+        private boolean windowed;
+
+        private Aggregate(int numChannels, int[] functions, Listener listener) {
+            super(functions.length * numChannels, Double.NaN);
+            this.functions = functions;
+            this.listener = listener;
+            this.sums = new double[numChannels];
+            this.squares = new double[numChannels];
+            this.minima = new double[numChannels];
+            this.maxima = new double[numChannels];
+            this.output = new double[functions.length * numChannels];
+            this.windowed = false;
+            this.reset();
+        }
+
+        @Override
+        public void push(long micros, float[] values) {
+            if (this.count++ == 0) {
+                this.firstMicros = micros;
+            }
+            this.lastMicros = micros;
+            for (int i = 0; i < this.sums.length; ++i) {
+                this.sums[i] += values[i];
+                this.squares[i] += (double) values[i] * values[i];
+                this.minima[i] = Math.min(this.minima[i], values[i]);
+                this.maxima[i] = Math.max(this.maxima[i], values[i]);
+            }
+        }
+
+        @Override
+        public void endWindow(long startMicros, long endMicros) {
+            this.windowed = true;
+            this.emit(startMicros, endMicros);
+        }
+
+        @Override
+        public void finish() {
+            // Without windows, all samples are aggregated at once
+            if (!this.windowed && this.count > 0) {
+                this.emit(this.firstMicros, this.lastMicros);
+            }
+        }
+
+        private void emit(long startMicros, long endMicros) {
+            int index = 0;
+            for (var function : this.functions) {
+                for (int i = 0; i < this.sums.length; ++i) {
+                    var mean = this.sums[i] / this.count;
+                    switch (FUNCTIONS[function]) {
+                        case "count":
+                            this.output[index++] = this.count;
+                            break;
+                        case "mean":
+                            this.output[index++] = mean;
+                            break;
+                        case "min":
+                            this.output[index++] = this.minima[i];
+                            break;
+                        case "max":
+                            this.output[index++] = this.maxima[i];
+                            break;
+                        case "rms":
+                            this.output[index++] = Math.sqrt(this.squares[i] / this.count);
+                            break;
+                        default:
+                            this.output[index++] = Math.sqrt(Math.max(0, this.squares[i] / this.count - mean * mean));
+                            break;
+                    }
+                }
+            }
+            this.listener.onWindow(startMicros, endMicros, this.output);
+            this.reset();
+        }
+
+        private void reset() {
+            this.count = 0;
+            Arrays.fill(this.sums, 0);
+            Arrays.fill(this.squares, 0);
+            Arrays.fill(this.minima, Double.POSITIVE_INFINITY);
+            Arrays.fill(this.maxima, Double.NEGATIVE_INFINITY);
+        }
+    }
+
+    private final SignalOperator head;
+    private final float[] sample;
+    private final List<String> names;
+
+    /**
+     * Build the pipeline of a specification.
+     *
+     * @param spec     The specification.
+     * @param listener The receiver of the aggregates.
+     * @throws IllegalArgumentException If the specification is malformed.
+     */
+    public SignalPipeline(String spec, Listener listener) {
+        this.head = new SignalOperator.Source(3);
+        this.sample = new float[3];
+        this.names = new ArrayList<String>();
+
+        var channels = List.of("x", "y", "z");
+        SignalOperator tail = this.head;
+        Aggregate aggregate = null;
+        var windowed = false;
+        for (var stage : spec.split("\\|")) {
+            stage = stage.trim();
+            if (aggregate != null) {
+                throw new IllegalArgumentException("aggregate must be the last operator");
+            }
+
+            var open = stage.indexOf('(');
+            var name = open < 0 ? stage : stage.substring(0, open).trim();
+            String[] arguments = {};
+            if (open >= 0) {
+                if (!stage.endsWith(")")) {
+                    throw new IllegalArgumentException(String.format("Missing ')' after '%s'", stage));
+                }
+                var list = stage.substring(open + 1, stage.length() - 1).trim();
+                arguments = list.isEmpty() ? arguments : list.split("\\s*,\\s*");
+            }
+
+            if (windowed && !name.equals("aggregate")) {
+                throw new IllegalArgumentException("window must be followed by aggregate");
+            }
+            switch (name) {
+                case "resample":
+                    requireArguments(name, arguments, 1, 1);
+                    tail = tail.then(new SignalOperator.Resample(tail.getNumChannels(),
+                            parseNumber(name, arguments[0])));
+                    break;
+                case "bandpass":
+                    requireArguments(name, arguments, 2, 2);
+                    tail = tail.then(new SignalOperator.Bandpass(tail.getNumChannels(), tail.getSampleRate(),
+                            parseNumber(name, arguments[0]), parseNumber(name, arguments[1])));
+                    break;
+                case "magnitude":
+                    requireArguments(name, arguments, 0, 0);
+                    tail = tail.then(new SignalOperator.Magnitude(tail.getSampleRate()));
+                    channels = List.of("magnitude");
+                    break;
+                case "window":
+                    requireArguments(name, arguments, 1, 2);
+                    var size = (int) parseNumber(name, arguments[0]);
+                    var step = arguments.length > 1 ? (int) parseNumber(name, arguments[1]) : size;
+                    tail = tail.then(new SignalOperator.Window(tail.getNumChannels(), tail.getSampleRate(), size,
+                            step));
+                    windowed = true;
+                    break;
+                case "aggregate":
+                    requireArguments(name, arguments, 1, FUNCTIONS.length);
+                    var functions = new int[arguments.length];
+                    for (int i = 0; i < arguments.length; ++i) {
+                        functions[i] = Arrays.asList(FUNCTIONS).indexOf(arguments[i]);
+                        if (functions[i] < 0) {
+                            throw new IllegalArgumentException(String.format(
+                                    "Unknown function '%s' of aggregate. Supported are %s", arguments[i],
+                                    String.join(", ", FUNCTIONS)));
+                        }
+                        for (var channel : channels) {
+                            this.names.add(String.format("%s-%s", arguments[i], channel));
+                        }
+                    }
+                    aggregate = new Aggregate(tail.getNumChannels(), functions, listener);
+                    tail = tail.then(aggregate);
+                    break;
+                default:
+                    throw new IllegalArgumentException(String.format("Unknown operator '%s'", name));
+            }
+        }
+        if (aggregate == null) {
+            throw new IllegalArgumentException("The pipeline must end with aggregate");
+        }
+    }
+
+    /**
+     * The names of the aggregates, i. e. the function and the channel.
+     */
+    public List<String> getNames() {
+        return this.names;
+    }
+
+    /**
+     * Push the next sample. Samples must be pushed in the order of their
+     * timestamps.
+     */
+    public void push(long micros, float x, float y, float z) {
+        this.sample[0] = x;
+        this.sample[1] = y;
+        this.sample[2] = z;
+        this.head.push(micros, this.sample);
+    }
+
+    /**
+     * Aggregate the remaining samples, if not windowed.
+     */
+    public void finish() {
+        this.head.finish();
+    }
+
+    private static void requireArguments(String name, String[] arguments, int min, int max) {
+        if (arguments.length < min || arguments.length > max) {
+            throw new IllegalArgumentException(min == max
+                    ? String.format("%s takes %d arguments", name, min)
+                    : String.format("%s takes %d to %d arguments", name, min, max));
+        }
+    }
+
+    private static double parseNumber(String name, String argument) {
+        try {
+            return Double.parseDouble(argument);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("Malformed argument '%s' of %s", argument, name));
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package de.uke.iam.parkinson_on_fhir.analysis;
+
+/**
+ * Computes the spectrum of the acceleration magnitude of a single sensor over
+ * sliding windows. Samples are pushed one by one; once a window is filled, its
+ * dominant frequency and band powers are available until the next sample is
+ * added.
+ *
+ * The magnitude is freed of its mean, which mostly is gravity, and weighted
+ * with a Hann window. Powers are given in (m/s^2)^2, such that the power of all
+ * frequencies approximates the variance of the magnitude. The sample rate is
+ * estimated from the first and last timestamp of each window, i. e. gaps within
+ * a window distort the frequencies.
+ *
+ * All buffers are allocated once. Instances are not thread-safe.
+ */
+public class TremorSpectrum {
+
+    private final Fft fft;
+    private final int windowSize;
+    private final int stepSize;
+    private final double lowHz;
+    private final double highHz;
+
+    private final double[] weights;
+    private final double weightEnergy;
+    private final long[] micros;
+    private final double[] magnitudes;
+    private final double[] real;
+    private final double[] imag;
+    private int numFilled;
+
+    // The outcome of the last completed window
+    private long startMicros;
+    private long endMicros;
+    private double sampleRate;
+    private double dominantFrequency;
+    private double bandPower;
+    private double totalPower;
+
+    /**
+     * Create a new TremorSpectrum.
+     *
+     * @param windowSize The number of samples per window, a power of two.
+     * @param stepSize   The number of samples between the starts of consecutive
+     *                   windows, at most the window size.
+     * @param lowHz      The lower bound of the band of interest.
+     * @param highHz     The upper bound of the band of interest.
+     */
+    public TremorSpectrum(int windowSize, int stepSize, double lowHz, double highHz) {
+        if (stepSize < 1 || stepSize > windowSize) {
+            throw new IllegalArgumentException("The step must be between 1 and the window size");
+        }
+        this.fft = new Fft(windowSize);
+        this.windowSize = windowSize;
+        this.stepSize = stepSize;
+        this.lowHz = lowHz;
+        this.highHz = highHz;
+
+        this.weights = new double[windowSize];
+        double energy = 0;
+        for (int i = 0; i < windowSize; ++i) {
+            this.weights[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / (windowSize - 1));
+            energy += this.weights[i] * this.weights[i];
+        }
+        this.weightEnergy = energy;
+        this.micros = new long[windowSize];
+        this.magnitudes = new double[windowSize];
+        this.real = new double[windowSize];
+        this.imag = new double[windowSize];
+        this.numFilled = 0;
+    }
+
+    /**
+     * Add the next sample. Samples must be added in the order of their
+     * timestamps.
+     *
+     * @return True, if a window was completed by the sample.
+     */
+    public boolean add(long timestampMicros, float x, float y, float z) {
+        if (this.numFilled == this.windowSize) {
+            // Keep the samples overlapping with the next window
+            var numKept = this.windowSize - this.stepSize;
+            System.arraycopy(this.micros, this.stepSize, this.micros, 0, numKept);
+            System.arraycopy(this.magnitudes, this.stepSize, this.magnitudes, 0, numKept);
+            this.numFilled = numKept;
+        }
+
+        this.micros[this.numFilled] = timestampMicros;
+        this.magnitudes[this.numFilled] = Math.sqrt((double) x * x + (double) y * y + (double) z * z);
+        if (++this.numFilled < this.windowSize) {
+            return false;
+        }
+        return this.analyze();
+    }
+
+    public long getStartMicros() {
+        return this.startMicros;
+    }
+
+    public long getEndMicros() {
+        return this.endMicros;
+    }
+
+    public double getSampleRate() {
+        return this.sampleRate;
+    }
+
+    /**
+     * The frequency with the highest power, excluding the constant part.
+     */
+    public double getDominantFrequency() {
+        return this.dominantFrequency;
+    }
+
+    /**
+     * The power of the frequencies within the band of interest.
+     */
+    public double getBandPower() {
+        return this.bandPower;
+    }
+
+    /**
+     * The power of all frequencies, excluding the constant part.
+     */
+    public double getTotalPower() {
+        return this.totalPower;
+    }
+
+    private boolean analyze() {
+        var duration = this.micros[this.windowSize - 1] - this.micros[0];
+        if (duration <= 0) {
+            return false;
+        }
+        this.startMicros = this.micros[0];
+        this.endMicros = this.micros[this.windowSize - 1];
+        this.sampleRate = (this.windowSize - 1) * 1e6 / duration;
+
+        double mean = 0;
+        for (int i = 0; i < this.windowSize; ++i) {
+            mean += this.magnitudes[i];
+        }
+        mean /= this.windowSize;
+        for (int i = 0; i < this.windowSize; ++i) {
+            this.real[i] = (this.magnitudes[i] - mean) * this.weights[i];
+            this.imag[i] = 0;
+        }
+        this.fft.transform(this.real, this.imag);
+
+        // One-sided spectrum: All bins but the constant and the Nyquist one appear
+        // twice
+        var resolution = this.sampleRate / this.windowSize;
+        var scale = 1.0 / (this.windowSize * this.weightEnergy);
+        double maxPower = -1, band = 0, total = 0;
+        int dominant = 0;
+        for (int k = 1; k <= this.windowSize / 2; ++k) {
+            var power = (this.real[k] * this.real[k] + this.imag[k] * this.imag[k]) * scale;
+            if (k < this.windowSize / 2) {
+                power *= 2;
+            }
+            total += power;
+            var frequency = k * resolution;
+            if (frequency >= this.lowHz && frequency <= this.highHz) {
+                band += power;
+            }
+            if (power > maxPower) {
+                maxPower = power;
+                dominant = k;
+            }
+        }
+        this.dominantFrequency = dominant * resolution;
+        this.bandPower = band;
+        this.totalPower = total;
+        return true;
+    }
+}
@@ -0,0 +1,240 @@
+package de.uke.iam.parkinson_on_fhir.export;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import de.uke.iam.parkinson_on_fhir.database.tables.records.MeasurementsRecord;
+import de.uke.iam.parkinson_on_fhir.ingest.SampleBlock;
+import de.uke.iam.parkinson_on_fhir.provider.DimensionCache;
+
+/**
+ * Writes the measurements of a subject in a compact columnar format for
+ * analysis. All values are little endian:
+ *
+ * <pre>
+ * file:      magic "PoFC" | int32 version | row group... | footer
+ * row group: int32 sensor | int32 rows | int64 min, max timestamp | float32
+ *            min, max x | float32 min, max y | float32 min, max z |
+ *            int64 timestamps[rows] | float32 x[rows] | float32 y[rows] |
+ *            float32 z[rows]
+ * footer:    int32 subject | int32 sensors | per sensor: int32 sensor, uint16
+ *            length + UTF-8 device, uint16 length + UTF-8 body part | int32
+ *            row groups | int64 offsets[row groups] | int32 footer length |
+ *            magic "PoFC"
+ * </pre>
+ *
+ * Timestamps are microseconds since the epoch (UTC). A row group holds the
+ * samples of a single sensor, such that readers skip the row groups of other
+ * sensors or outside of a range using the statistics only. Samples are
+ * buffered per sensor up to the size of a row group; the columns of a
+ * subject are never held in memory as a whole.
+ */
+public final class ColumnarWriter implements MeasurementSink {
+
+    public static final int MAGIC = 0x43466f50; // "PoFC" read as little endian
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 4 + 4 + 2 * 8 + 6 * 4;
+
+    private final FileChannel channel;
+    private final int subject;
+    private final DimensionCache dimensions;
+    private final int rowGroupSize;
+    private final Map<Integer, SampleBlock> buffers;
+    private final List<Long> offsets;
+    private final TreeSet<Integer> sensors;
+    private final ByteBuffer buffer;
+
+    private ColumnarWriter(FileChannel channel, int subject, DimensionCache dimensions, int rowGroupSize) {
+        this.channel = channel;
+        this.subject = subject;
+        this.dimensions = dimensions;
+        this.rowGroupSize = rowGroupSize;
+        this.buffers = new LinkedHashMap<Integer, SampleBlock>();
+        this.offsets = new ArrayList<Long>();
+        this.sensors = new TreeSet<Integer>();
+        this.buffer = ByteBuffer.allocateDirect(HEADER_SIZE + rowGroupSize * (8 + 3 * 4))
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Start a new file or continue a file written up to a previous sync.
+     *
+     * @param channel      The file, positioned at its end.
+     * @param subject      The subject whose measurements are written.
+     * @param rowGroupSize The maximal number of samples per row group.
+     */
+    static ColumnarWriter open(FileChannel channel, int subject, DimensionCache dimensions, int rowGroupSize)
+            throws IOException {
+        var writer = new ColumnarWriter(channel, subject, dimensions, rowGroupSize);
+        var length = channel.position();
+        if (length == 0) {
+            writer.buffer.clear();
+            writer.buffer.putInt(MAGIC).putInt(VERSION).flip();
+            writer.writeBuffer();
+            return writer;
+        }
+
+        // Rebuild the index of the row groups written before
+        var header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        long offset = 8;
+        while (offset < length) {
+            header.clear();
+            while (header.hasRemaining()) {
+                if (channel.read(header, offset + header.position()) < 0) {
+                    throw new IOException("The columnar file ends within a row group");
+                }
+            }
+            header.flip();
+            writer.offsets.add(offset);
+            writer.sensors.add(header.getInt());
+            offset += HEADER_SIZE + (long) header.getInt() * (8 + 3 * 4);
+        }
+        if (offset != length) {
+            throw new IOException("The columnar file ends within a row group");
+        }
+        return writer;
+    }
+
+    @Override
+    public void write(MeasurementsRecord measurement) throws IOException {
+        var block = this.buffers.get(measurement.getSensor());
+        if (block == null) {
+            block = new SampleBlock(this.rowGroupSize);
+            block.setKey(this.subject, measurement.getSensor());
+            this.buffers.put(measurement.getSensor(), block);
+        }
+
+        var timestamp = measurement.getTimestamp().toInstant(ZoneOffset.UTC);
+        block.add(timestamp.getEpochSecond() * 1000 * 1000 + timestamp.getNano() / 1000, measurement.getX(),
+                measurement.getY(), measurement.getZ());
+        if (block.isFull()) {
+            this.writeRowGroup(block);
+        }
+    }
+
+    /**
+     * Checkpoint once every sensor seen may have filled a row group. Sensors
+     * sampled at the same rate then reach the checkpoint with empty buffers, so
+     * syncing does not cut their row groups short.
+     */
+    @Override
+    public int getCheckpointRows() {
+        return this.rowGroupSize * Math.max(1, this.buffers.size());
+    }
+
+    @Override
+    public long sync() throws IOException {
+        for (var block : this.buffers.values()) {
+            this.writeRowGroup(block);
+        }
+        return this.channel.position();
+    }
+
+    @Override
+    public void finish() throws IOException {
+        this.sync();
+
+        var footer = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+        footer.putInt(this.subject);
+        footer.putInt(this.sensors.size());
+        for (var sensorId : this.sensors) {
+            var sensor = this.dimensions.getSensor(sensorId);
+            var device = sensor.getDevice().getBytes(StandardCharsets.UTF_8);
+            var bodyPart = sensor.getBodyPart().getBytes(StandardCharsets.UTF_8);
+            footer = ensureCapacity(footer, 4 + 2 + device.length + 2 + bodyPart.length);
+            footer.putInt(sensorId);
+            putString(footer, device);
+            putString(footer, bodyPart);
+        }
+        footer = ensureCapacity(footer, 4 + 8 * this.offsets.size() + 8);
+        footer.putInt(this.offsets.size());
+        for (var offset : this.offsets) {
+            footer.putLong(offset);
+        }
+        footer.putInt(footer.position() + 8);
+        footer.putInt(MAGIC);
+        footer.flip();
+        while (footer.hasRemaining()) {
+            this.channel.write(footer);
+        }
+    }
+
+    private void writeRowGroup(SampleBlock block) throws IOException {
+        var numRows = block.size();
+        if (numRows == 0) {
+            return;
+        }
+
+        // The statistics are computed while the columns are copied
+        long minMicros = Long.MAX_VALUE, maxMicros = Long.MIN_VALUE;
+        float minX = Float.POSITIVE_INFINITY, maxX = Float.NEGATIVE_INFINITY;
+        float minY = Float.POSITIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+        float minZ = Float.POSITIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+        this.buffer.clear();
+        this.buffer.position(HEADER_SIZE);
+        for (int i = 0; i < numRows; ++i) {
+            var micros = block.getMicros(i);
+            minMicros = Math.min(minMicros, micros);
+            maxMicros = Math.max(maxMicros, micros);
+            this.buffer.putLong(micros);
+        }
+        for (int i = 0; i < numRows; ++i) {
+            minX = Math.min(minX, block.getX(i));
+            maxX = Math.max(maxX, block.getX(i));
+            this.buffer.putFloat(block.getX(i));
+        }
+        for (int i = 0; i < numRows; ++i) {
+            minY = Math.min(minY, block.getY(i));
+            maxY = Math.max(maxY, block.getY(i));
+            this.buffer.putFloat(block.getY(i));
+        }
+        for (int i = 0; i < numRows; ++i) {
+            minZ = Math.min(minZ, block.getZ(i));
+            maxZ = Math.max(maxZ, block.getZ(i));
+            this.buffer.putFloat(block.getZ(i));
+        }
+        this.buffer.putInt(0, block.getSensor())
+                .putInt(4, numRows)
+                .putLong(8, minMicros)
+                .putLong(16, maxMicros)
+                .putFloat(24, minX).putFloat(28, maxX)
+                .putFloat(32, minY).putFloat(36, maxY)
+                .putFloat(40, minZ).putFloat(44, maxZ);
+        this.buffer.flip();
+
+        this.offsets.add(this.channel.position());
+        this.sensors.add(block.getSensor());
+        this.writeBuffer();
+        block.clear();
+    }
+
+    private void writeBuffer() throws IOException {
+        while (this.buffer.hasRemaining()) {
+            this.channel.write(this.buffer);
+        }
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int numBytes) {
+        if (buffer.remaining() >= numBytes) {
+            return buffer;
+        }
+        var larger = ByteBuffer.allocate(Math.max(2 * buffer.capacity(), buffer.position() + numBytes))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.flip();
+        return larger.put(buffer);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+}
@@ -0,0 +1,430 @@
+package de.uke.iam.parkinson_on_fhir.export;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * A bulk export of the resources of a group. Each subject is exported into a
+ * file of its own, such that subjects are written in parallel. The state of
+ * the job including the progress of each file is stored within its directory,
+ * such that it resumes after a restart.
+ */
+public class ExportJob {
+
+    public enum State {
+        QUEUED, RUNNING, COMPLETED, FAILED
+    }
+
+    static final String STATE_FILE = "job.properties";
+
+    /**
+     * A completed file of the export.
+     */
+    public static class Output {
+        private final String type;
+        private final String name;
+        private final long count;
+
+        private Output(String type, String name, long count) {
+            this.type = type;
+            this.name = name;
+            this.count = count;
+        }
+
+        public String getType() {
+            return this.type;
+        }
+
+        /**
+         * The name of the file within the directory of the job.
+         */
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * The number of resources within the file.
+         */
+        public long getCount() {
+            return this.count;
+        }
+    }
+
+    /**
+     * The progress of writing a single file, guarded by the job.
+     */
+    static class Task {
+        private final String type;
+        private final Integer subject;
+        private final String extension;
+        private long count;
+        private long bytes;
+        private LocalDateTime lastTimestamp;
+        private int lastSensor;
+        private boolean done;
+
+        private Task(String type, Integer subject, String extension) {
+            this.type = type;
+            this.subject = subject;
+            this.extension = extension;
+        }
+
+        String getType() {
+            return this.type;
+        }
+
+        /**
+         * The subject whose observations are written or null for the patients.
+         */
+        Integer getSubject() {
+            return this.subject;
+        }
+
+        String getName() {
+            return this.subject != null ? String.format("%s-%d.%s", this.type, this.subject, this.extension)
+                    : String.format("%s.%s", this.type, this.extension);
+        }
+
+        /**
+         * The number of resources written until the last checkpoint.
+         */
+        long getCount() {
+            return this.count;
+        }
+
+        /**
+         * The length of the file at the last checkpoint.
+         */
+        long getBytes() {
+            return this.bytes;
+        }
+
+        /**
+         * The timestamp of the last measurement written or null.
+         */
+        LocalDateTime getLastTimestamp() {
+            return this.lastTimestamp;
+        }
+
+        int getLastSensor() {
+            return this.lastSensor;
+        }
+
+        private String serialize() {
+            if (this.done) {
+                return String.format("done,%d", this.count);
+            } else if (this.lastTimestamp == null) {
+                return "pending";
+            }
+            return String.format("%d,%d,%s,%d", this.count, this.bytes, this.lastTimestamp, this.lastSensor);
+        }
+
+        private void deserialize(String value) {
+            var values = value.split(",");
+            if (values[0].equals("done")) {
+                this.done = true;
+                this.count = Long.parseLong(values[1]);
+            } else if (values.length == 4) {
+                this.count = Long.parseLong(values[0]);
+                this.bytes = Long.parseLong(values[1]);
+                this.lastTimestamp = LocalDateTime.parse(values[2]);
+                this.lastSensor = Integer.parseInt(values[3]);
+            }
+        }
+    }
+
+    private final String id;
+    private final int groupId;
+    private final List<Integer> subjects;
+    private final Set<String> types;
+    private final String format;
+    private final String request;
+    private final Instant transactionTime;
+    private final Path directory;
+    private final Map<String, Task> tasks;
+    private volatile State state;
+    private volatile String error;
+    private long completedMillis;
+
+    private ExportJob(String id, int groupId, List<Integer> subjects, Set<String> types, String format,
+            String request, Instant transactionTime, Path directory) {
+        this.id = id;
+        this.groupId = groupId;
+        this.subjects = subjects;
+        this.types = types;
+        this.format = format;
+        this.request = request;
+        this.transactionTime = transactionTime;
+        this.directory = directory;
+        this.state = State.QUEUED;
+        this.error = null;
+        this.completedMillis = 0;
+
+        // Split the job into one task per file. Only the measurements are written
+        // in columns, the few patients always as NDJSON.
+        this.tasks = new LinkedHashMap<String, Task>();
+        if (types.contains(ExportManager.PATIENT)) {
+            this.addTask(new Task(ExportManager.PATIENT, null, ExportManager.FORMAT_NDJSON));
+        }
+        if (types.contains(ExportManager.OBSERVATION)) {
+            for (var subject : subjects) {
+                this.addTask(new Task(ExportManager.OBSERVATION, subject, format));
+            }
+        }
+    }
+
+    /**
+     * Create a new job queued for running.
+     *
+     * @param baseDirectory The directory holding the directories of all jobs.
+     */
+    static ExportJob create(int groupId, List<Integer> subjects, Set<String> types, String format,
+            String request, Path baseDirectory) {
+        var id = UUID.randomUUID().toString();
+        return new ExportJob(id, groupId, subjects, types, format, request, Instant.now(),
+                baseDirectory.resolve(id));
+    }
+
+    /**
+     * Restore a job from the state stored within its directory.
+     */
+    static ExportJob load(Path directory) throws IOException {
+        var properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(directory.resolve(STATE_FILE), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+
+        try {
+            var subjects = properties.getProperty("subjects").isEmpty() ? List.<Integer>of()
+                    : Arrays.stream(properties.getProperty("subjects").split(",")).map(Integer::valueOf)
+                            .collect(Collectors.toList());
+            var types = new LinkedHashSet<String>(Arrays.asList(properties.getProperty("types").split(",")));
+            var job = new ExportJob(directory.getFileName().toString(),
+                    Integer.parseInt(properties.getProperty("group")), subjects, types,
+                    properties.getProperty("format", ExportManager.FORMAT_NDJSON),
+                    properties.getProperty("request"), Instant.parse(properties.getProperty("transactionTime")),
+                    directory);
+            job.state = State.valueOf(properties.getProperty("state"));
+            job.error = properties.getProperty("error");
+            job.completedMillis = Long.parseLong(properties.getProperty("completedMillis", "0"));
+            for (var task : job.tasks.values()) {
+                task.deserialize(properties.getProperty("task." + task.getName(), "pending"));
+            }
+            return job;
+        } catch (RuntimeException e) {
+            throw new IOException(String.format("The state of the export '%s' is malformed", directory), e);
+        }
+    }
+
+    public String getId() {
+        return this.id;
+    }
+
+    public int getGroupId() {
+        return this.groupId;
+    }
+
+    public List<Integer> getSubjects() {
+        return this.subjects;
+    }
+
+    /**
+     * The exported resource types.
+     */
+    public Set<String> getTypes() {
+        return this.types;
+    }
+
+    /**
+     * The format of the observation files, one of the formats of ExportManager.
+     */
+    public String getFormat() {
+        return this.format;
+    }
+
+    /**
+     * The URL of the kick-off request.
+     */
+    public String getRequest() {
+        return this.request;
+    }
+
+    /**
+     * The time the export started. Later changes may or may not be included.
+     */
+    public Instant getTransactionTime() {
+        return this.transactionTime;
+    }
+
+    public Path getDirectory() {
+        return this.directory;
+    }
+
+    public State getState() {
+        return this.state;
+    }
+
+    /**
+     * The reason the export failed or null.
+     */
+    public String getError() {
+        return this.error;
+    }
+
+    synchronized long getCompletedMillis() {
+        return this.completedMillis;
+    }
+
+    public synchronized int getNumSubjectsDone() {
+        int numDone = 0;
+        for (var task : this.tasks.values()) {
+            if (task.done && task.subject != null) {
+                ++numDone;
+            }
+        }
+        return numDone;
+    }
+
+    /**
+     * Get the files completed so far.
+     */
+    public synchronized List<Output> getOutputs() {
+        var outputs = new ArrayList<Output>();
+        for (var task : this.tasks.values()) {
+            if (task.done && task.count > 0) {
+                outputs.add(new Output(task.type, task.getName(), task.count));
+            }
+        }
+        return outputs;
+    }
+
+    /**
+     * Find a completed file by its name.
+     */
+    public synchronized Output getOutput(String name) {
+        var task = this.tasks.get(name);
+        if (task == null || !task.done || task.count == 0) {
+            return null;
+        }
+        return new Output(task.type, task.getName(), task.count);
+    }
+
+    /**
+     * Get the tasks not done yet.
+     */
+    synchronized List<Task> getPendingTasks() {
+        var pending = new ArrayList<Task>();
+        for (var task : this.tasks.values()) {
+            if (!task.done) {
+                pending.add(task);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Mark the job as running. Completed jobs are left as they are.
+     */
+    synchronized void run() throws IOException {
+        if (this.state == State.QUEUED || this.state == State.RUNNING) {
+            this.state = State.RUNNING;
+            this.finishIfDone();
+            this.save();
+        }
+    }
+
+    /**
+     * Store the progress of a task. All data up to the given length must be
+     * durable in the file already.
+     */
+    synchronized void checkpoint(Task task, long count, long bytes, LocalDateTime lastTimestamp, int lastSensor)
+            throws IOException {
+        task.count = count;
+        task.bytes = bytes;
+        task.lastTimestamp = lastTimestamp;
+        task.lastSensor = lastSensor;
+        this.save();
+    }
+
+    /**
+     * Mark a task as done.
+     *
+     * @param count The number of resources written. Empty files are not
+     *              reported as output.
+     */
+    synchronized void complete(Task task, long count) throws IOException {
+        task.count = count;
+        task.done = true;
+        this.finishIfDone();
+        this.save();
+    }
+
+    /**
+     * Abort the job. Remaining tasks are skipped.
+     */
+    synchronized void fail(String error) throws IOException {
+        if (this.state == State.QUEUED || this.state == State.RUNNING) {
+            this.error = error;
+            this.state = State.FAILED;
+            this.completedMillis = System.currentTimeMillis();
+            this.save();
+        }
+    }
+
+    private void finishIfDone() {
+        if (this.state == State.RUNNING && this.tasks.values().stream().allMatch(task -> task.done)) {
+            this.state = State.COMPLETED;
+            this.completedMillis = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Write the state atomically, such that a crash never leaves it corrupted.
+     */
+    synchronized void save() throws IOException {
+        var properties = new Properties();
+        properties.setProperty("group", Integer.toString(this.groupId));
+        properties.setProperty("subjects",
+                this.subjects.stream().map(String::valueOf).collect(Collectors.joining(",")));
+        properties.setProperty("types", String.join(",", this.types));
+        properties.setProperty("format", this.format);
+        properties.setProperty("request", this.request);
+        properties.setProperty("transactionTime", this.transactionTime.toString());
+        properties.setProperty("state", this.state.name());
+        properties.setProperty("completedMillis", Long.toString(this.completedMillis));
+        if (this.error != null) {
+            properties.setProperty("error", this.error);
+        }
+        for (var task : this.tasks.values()) {
+            properties.setProperty("task." + task.getName(), task.serialize());
+        }
+
+        var temporary = this.directory.resolve(STATE_FILE + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            properties.store(writer, "Export " + this.id);
+        }
+        Files.move(temporary, this.directory.resolve(STATE_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void addTask(Task task) {
+        this.tasks.put(task.getName(), task);
+    }
+}
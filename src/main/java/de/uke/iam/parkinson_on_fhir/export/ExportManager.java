@@ -0,0 +1,491 @@
+package de.uke.iam.parkinson_on_fhir.export;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import java.util.stream.Collectors;
+
+import javax.sql.DataSource;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.zaxxer.hikari.HikariDataSource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.jooq.Condition;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+
+import de.uke.iam.parkinson_on_fhir.database.tables.records.MeasurementsRecord;
+import de.uke.iam.parkinson_on_fhir.provider.DimensionCache;
+import de.uke.iam.parkinson_on_fhir.provider.ObservationResourceProvider;
+import de.uke.iam.parkinson_on_fhir.provider.PatientResourceProvider;
+
+import static de.uke.iam.parkinson_on_fhir.database.Tables.*;
+
+/**
+ * Runs bulk exports of groups in background. The resources are written as
+ * NDJSON into a local directory: the patients into a single file and the
+ * observations of each subject into a file of its own, written by parallel
+ * workers on pooled connections. For analysis, the observations may be written
+ * in the columnar format of ColumnarWriter instead.
+ *
+ * Exports run for hours, so they must neither start over after a restart nor
+ * crowd out interactive requests: Each file is checkpointed regularly and
+ * resumed after the last checkpoint, only a few jobs run at once and workers
+ * hand back their connection while interactive requests are running.
+ */
+public class ExportManager {
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(ExportManager.class);
+
+    public static final String PATIENT = "Patient";
+    public static final String OBSERVATION = "Observation";
+    public static final Set<String> TYPES = Set.of(PATIENT, OBSERVATION);
+
+    /**
+     * The output formats of the observations, named by their file extensions.
+     */
+    public static final String FORMAT_NDJSON = "ndjson";
+    public static final String FORMAT_COLUMNAR = "pofc";
+
+    private static final int FETCH_SIZE = 1000;
+    private static final int ROW_GROUP_ROWS = 8192;
+    private static final int CHECKPOINT_ROWS = 10000;
+    private static final long YIELD_MILLIS = 200;
+    private static final long SHUTDOWN_MILLIS = 10 * 1000;
+
+    private final DataSource pool;
+    private final DimensionCache dimensions;
+    private final FhirContext context;
+    private final Path directory;
+    private final int maxRunningJobs;
+    private final long retentionMillis;
+    private final IntSupplier activeRequests;
+    private final ExecutorService workers;
+    private final Map<String, ExportJob> jobs;
+    private volatile boolean stopping;
+
+    // The scheduling of the jobs, guarded by "this"
+    private final ArrayDeque<ExportJob> queued;
+    private final Map<ExportJob, Integer> numActiveTasks;
+
+    /**
+     * Create a new ExportManager and resume the jobs interrupted before.
+     *
+     * @param pool            The pool providing the connections of the workers.
+     * @param dimensions      The cache of the known body parts, devices and
+     *                        sensors.
+     * @param context         The context encoding the resources.
+     * @param directory       The directory holding the files of all jobs.
+     * @param numWorkers      The number of files written concurrently.
+     * @param maxRunningJobs  The number of jobs running concurrently. Others
+     *                        are queued.
+     * @param retentionMillis The time the files of finished jobs are kept.
+     * @param activeRequests  The number of short interactive requests, i. e.
+     *                        reads and searches but no operations, currently
+     *                        served, most of them on the shared connection
+     *                        instead of the pool.
+     */
+    public ExportManager(DataSource pool, DimensionCache dimensions, FhirContext context, Path directory,
+            int numWorkers, int maxRunningJobs, long retentionMillis, IntSupplier activeRequests)
+            throws IOException {
+        this.pool = pool;
+        this.dimensions = dimensions;
+        this.context = context;
+        this.directory = directory;
+        this.maxRunningJobs = maxRunningJobs;
+        this.retentionMillis = retentionMillis;
+        this.activeRequests = activeRequests;
+        this.workers = Executors.newFixedThreadPool(numWorkers, runnable -> {
+            var thread = new Thread(runnable, "export-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.jobs = new ConcurrentHashMap<String, ExportJob>();
+        this.queued = new ArrayDeque<ExportJob>();
+        this.numActiveTasks = new HashMap<ExportJob, Integer>();
+
+        Files.createDirectories(directory);
+        this.recover();
+    }
+
+    /**
+     * Create an ExportManager from the system properties.
+     *
+     * @return The ExportManager or null, if the export directory is unusable.
+     */
+    public static ExportManager loadFromContext(DataSource pool, DimensionCache dimensions, FhirContext context,
+            IntSupplier activeRequests) {
+        var directory = System.getProperty("de.uke.iam.parkinson_on_fhir.export_directory");
+        var path = directory != null && !directory.isEmpty() ? Paths.get(directory)
+                : Paths.get(System.getProperty("java.io.tmpdir"), "parkinson-fhir-export");
+        var numWorkers = Integer.getInteger("de.uke.iam.parkinson_on_fhir.export_workers", 4);
+        var maxRunningJobs = Integer.getInteger("de.uke.iam.parkinson_on_fhir.export_jobs", 2);
+        var retentionHours = Long.getLong("de.uke.iam.parkinson_on_fhir.export_retention_hours", 24);
+
+        logger.info("Exporting into '{}' with {} workers and up to {} concurrent jobs", path, numWorkers,
+                maxRunningJobs);
+        try {
+            return new ExportManager(pool, dimensions, context, path, Math.max(1, numWorkers),
+                    Math.max(1, maxRunningJobs), TimeUnit.HOURS.toMillis(retentionHours), activeRequests);
+        } catch (IOException e) {
+            logger.error("Unable to use the export directory '{}': {}", path, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Queue an export of the resources of a group.
+     *
+     * @param groupId  The ID of the group.
+     * @param subjects The IDs of the members of the group.
+     * @param types    The resource types to export, a subset of TYPES.
+     * @param format   The format of the observations, one of the FORMAT_*.
+     * @param request  The URL of the kick-off request.
+     */
+    public ExportJob start(int groupId, List<Integer> subjects, Set<String> types, String format,
+            String request) throws IOException {
+        this.removeExpired();
+
+        var job = ExportJob.create(groupId, subjects, types, format, request, this.directory);
+        Files.createDirectories(job.getDirectory());
+        job.save();
+        this.jobs.put(job.getId(), job);
+        this.enqueue(job);
+        return job;
+    }
+
+    /**
+     * Get a job by its ID or null, if it is unknown.
+     */
+    public ExportJob get(String jobId) {
+        return this.jobs.get(jobId);
+    }
+
+    /**
+     * Stop all background threads. Running jobs resume after the next start.
+     *
+     * The workers are not interrupted as this would close their files. Instead,
+     * they stop at their next checkpoint, leaving their jobs running.
+     */
+    public void shutdown() {
+        this.stopping = true;
+        this.workers.shutdown();
+        try {
+            if (!this.workers.awaitTermination(SHUTDOWN_MILLIS, TimeUnit.MILLISECONDS)) {
+                logger.warn("Exports did not reach a checkpoint in time and are resumed from the previous one");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Load the jobs of previous runs and resume the unfinished ones in the order
+     * they were started.
+     */
+    private void recover() throws IOException {
+        List<ExportJob> unfinished;
+        try (var directories = Files.list(this.directory)) {
+            unfinished = directories
+                    .filter(path -> Files.exists(path.resolve(ExportJob.STATE_FILE)))
+                    .map(path -> {
+                        try {
+                            return ExportJob.load(path);
+                        } catch (IOException e) {
+                            logger.error("Skipping export: {}", e.getMessage());
+                            return null;
+                        }
+                    })
+                    .filter(job -> job != null)
+                    .peek(job -> this.jobs.put(job.getId(), job))
+                    .filter(job -> job.getState() == ExportJob.State.QUEUED
+                            || job.getState() == ExportJob.State.RUNNING)
+                    .sorted(Comparator.comparing(ExportJob::getTransactionTime))
+                    .collect(Collectors.toList());
+        }
+        this.removeExpired();
+
+        for (var job : unfinished) {
+            logger.info("Resuming export '{}' of group {}", job.getId(), job.getGroupId());
+            this.enqueue(job);
+        }
+    }
+
+    private synchronized void enqueue(ExportJob job) {
+        this.queued.add(job);
+        this.schedule();
+    }
+
+    /**
+     * Start queued jobs as long as there are free slots.
+     */
+    private synchronized void schedule() {
+        while (!this.stopping && this.numActiveTasks.size() < this.maxRunningJobs && !this.queued.isEmpty()) {
+            var job = this.queued.poll();
+            try {
+                job.run();
+            } catch (IOException e) {
+                this.fail(job, "Unable to store the state of the export: " + e.getMessage());
+                continue;
+            }
+
+            var pending = job.getPendingTasks();
+            if (job.getState() != ExportJob.State.RUNNING || pending.isEmpty()) {
+                continue;
+            }
+            this.numActiveTasks.put(job, pending.size());
+            for (var task : pending) {
+                this.workers.execute(() -> {
+                    try {
+                        this.run(job, task);
+                    } finally {
+                        this.finish(job);
+                    }
+                });
+            }
+        }
+    }
+
+    private synchronized void finish(ExportJob job) {
+        var numRemaining = this.numActiveTasks.get(job) - 1;
+        if (numRemaining > 0) {
+            this.numActiveTasks.put(job, numRemaining);
+        } else {
+            this.numActiveTasks.remove(job);
+            this.schedule();
+        }
+    }
+
+    private void run(ExportJob job, ExportJob.Task task) {
+        if (job.getState() != ExportJob.State.RUNNING || this.stopping) {
+            return;
+        }
+
+        var file = job.getDirectory().resolve(task.getName());
+        try {
+            long count;
+            if (task.getSubject() == null) {
+                count = this.writePatients(job, file);
+            } else {
+                count = this.writeObservations(job, task, file);
+            }
+            if (count < 0) {
+                // Interrupted by a shutdown and resumed after the next start
+                return;
+            }
+            if (count == 0) {
+                Files.deleteIfExists(file);
+            }
+            job.complete(task, count);
+        } catch (IOException | SQLException | RuntimeException e) {
+            if (this.stopping) {
+                // Likely caused by the closed pool, the job stays running and is resumed
+                logger.info("Export '{}' stopped while writing '{}': {}", job.getId(), task.getName(),
+                        e.toString());
+                return;
+            }
+            logger.error("Export '{}' failed while writing '{}': {}", job.getId(), task.getName(), e.toString());
+            this.fail(job, String.format("Unable to export '%s': %s", task.getName(), e.getMessage()));
+        }
+    }
+
+    private long writePatients(ExportJob job, Path file) throws IOException, SQLException {
+        try (var connection = this.pool.getConnection();
+                var writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            var parser = this.context.newJsonParser().setPrettyPrint(false);
+            var patients = PatientResourceProvider.loadPatients(DSL.using(connection, SQLDialect.POSTGRES),
+                    SUBJECTS.SUBJECT_ID.in(job.getSubjects()));
+            for (var patient : patients) {
+                writeLine(patient, parser, writer);
+            }
+            return patients.size();
+        }
+    }
+
+    /**
+     * Write the observations of a subject, continuing after the last checkpoint.
+     *
+     * @return The number of written observations or -1, if stopped.
+     */
+    private long writeObservations(ExportJob job, ExportJob.Task task, Path file)
+            throws IOException, SQLException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // Drop whatever was written after the last checkpoint
+            channel.truncate(task.getBytes());
+            channel.position(task.getBytes());
+            var sink = FORMAT_COLUMNAR.equals(job.getFormat())
+                    ? ColumnarWriter.open(channel, task.getSubject(), this.dimensions, ROW_GROUP_ROWS)
+                    : new NdjsonSink(channel);
+
+            long count = task.getCount();
+            int sinceCheckpoint = 0;
+            var lastTimestamp = task.getLastTimestamp();
+            var lastSensor = task.getLastSensor();
+            while (true) {
+                var finished = true;
+                try (var connection = this.pool.getConnection()) {
+                    // Postgres only streams results outside of auto-commit mode
+                    connection.setAutoCommit(false);
+                    Condition where = MEASUREMENTS.SUBJECT.eq(task.getSubject());
+                    if (lastTimestamp != null) {
+                        where = where.and(DSL.row(MEASUREMENTS.TIMESTAMP, MEASUREMENTS.SENSOR)
+                                .gt(lastTimestamp, lastSensor));
+                    }
+                    try (var cursor = DSL.using(connection, SQLDialect.POSTGRES)
+                            .selectFrom(MEASUREMENTS)
+                            .where(where)
+                            .orderBy(MEASUREMENTS.TIMESTAMP, MEASUREMENTS.SENSOR)
+                            .fetchSize(FETCH_SIZE).fetchLazy()) {
+                        for (var measurement : cursor) {
+                            sink.write(measurement);
+                            lastTimestamp = measurement.getTimestamp();
+                            lastSensor = measurement.getSensor();
+                            ++count;
+                            if (++sinceCheckpoint < sink.getCheckpointRows()) {
+                                continue;
+                            }
+                            sinceCheckpoint = 0;
+
+                            var length = sink.sync();
+                            channel.force(false);
+                            job.checkpoint(task, count, length, lastTimestamp, lastSensor);
+                            if (job.getState() != ExportJob.State.RUNNING || this.stopping) {
+                                return -1;
+                            } else if (this.isContended()) {
+                                finished = false;
+                                break;
+                            }
+                        }
+                    } finally {
+                        connection.rollback();
+                        connection.setAutoCommit(true);
+                    }
+                }
+                if (finished) {
+                    sink.finish();
+                    return count;
+                }
+
+                // Let interactive requests go first before continuing
+                try {
+                    Thread.sleep(YIELD_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return -1;
+                }
+                if (this.stopping) {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the measurements as observations, one per line.
+     */
+    private class NdjsonSink implements MeasurementSink {
+        private final FileChannel channel;
+        private final Writer writer;
+        private final IParser parser;
+
+        private NdjsonSink(FileChannel channel) {
+            this.channel = channel;
+            this.writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.name()));
+            this.parser = context.newJsonParser().setPrettyPrint(false);
+        }
+
+        @Override
+        public void write(MeasurementsRecord measurement) throws IOException {
+            writeLine(ObservationResourceProvider.toObservation(measurement, dimensions), this.parser, this.writer);
+        }
+
+        @Override
+        public int getCheckpointRows() {
+            return CHECKPOINT_ROWS;
+        }
+
+        @Override
+        public long sync() throws IOException {
+            this.writer.flush();
+            return this.channel.position();
+        }
+
+        @Override
+        public void finish() throws IOException {
+            this.writer.flush();
+        }
+    }
+
+    /**
+     * Check whether short interactive requests are running or others are
+     * waiting for a connection of the pool. The former mostly use the shared
+     * connection, which competes with the export for the database but not for
+     * the pool.
+     */
+    private boolean isContended() {
+        if (this.activeRequests.getAsInt() > 0) {
+            return true;
+        }
+        if (this.pool instanceof HikariDataSource) {
+            var statistics = ((HikariDataSource) this.pool).getHikariPoolMXBean();
+            return statistics != null && statistics.getThreadsAwaitingConnection() > 0;
+        }
+        return false;
+    }
+
+    private void fail(ExportJob job, String error) {
+        try {
+            job.fail(error);
+        } catch (IOException e) {
+            logger.error("Unable to store the failure of export '{}': {}", job.getId(), e.toString());
+        }
+    }
+
+    /**
+     * Delete the files of jobs finished longer ago than the retention time.
+     */
+    private void removeExpired() {
+        var threshold = System.currentTimeMillis() - this.retentionMillis;
+        for (var job : this.jobs.values()) {
+            var state = job.getState();
+            if ((state != ExportJob.State.COMPLETED && state != ExportJob.State.FAILED)
+                    || job.getCompletedMillis() >= threshold) {
+                continue;
+            }
+
+            this.jobs.remove(job.getId());
+            try (var files = Files.walk(job.getDirectory())) {
+                for (var path : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                    Files.delete(path);
+                }
+            } catch (IOException e) {
+                logger.warn("Unable to delete the files of export '{}': {}", job.getId(), e.toString());
+            }
+        }
+    }
+
+    private static void writeLine(IBaseResource resource, IParser parser, Writer writer) throws IOException {
+        parser.encodeResourceToWriter(resource, writer);
+        writer.write('\n');
+    }
+}
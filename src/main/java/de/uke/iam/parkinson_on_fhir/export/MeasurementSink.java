@@ -0,0 +1,34 @@
+package de.uke.iam.parkinson_on_fhir.export;
+
+import java.io.IOException;
+
+import de.uke.iam.parkinson_on_fhir.database.tables.records.MeasurementsRecord;
+
+/**
+ * Writes the measurements of an export file in one of the output formats.
+ */
+interface MeasurementSink {
+
+    /**
+     * Append a measurement. Measurements arrive ordered by timestamp and sensor.
+     */
+    void write(MeasurementsRecord measurement) throws IOException;
+
+    /**
+     * Get the number of measurements to be written between two checkpoints.
+     */
+    int getCheckpointRows();
+
+    /**
+     * Write everything buffered such that the file may be resumed from its
+     * current length.
+     *
+     * @return The length of the file.
+     */
+    long sync() throws IOException;
+
+    /**
+     * Write everything buffered and complete the file.
+     */
+    void finish() throws IOException;
+}
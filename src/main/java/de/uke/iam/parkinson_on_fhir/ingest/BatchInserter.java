@@ -0,0 +1,99 @@
+package de.uke.iam.parkinson_on_fhir.ingest;
+
+import java.util.HashSet;
+import java.util.List;
+
+import org.jooq.DSLContext;
+import org.jooq.exception.DataAccessException;
+
+import static de.uke.iam.parkinson_on_fhir.database.Tables.*;
+import de.uke.iam.parkinson_on_fhir.database.tables.records.MeasurementsRecord;
+
+/**
+ * Writes multiple measurements with multi-row INSERTs.
+ */
+public final class BatchInserter {
+
+    /**
+     * PostgreSQL supports at most 32767 bind values per statement.
+     */
+    private static final int MAX_ROWS_PER_STATEMENT = 5000;
+
+    private BatchInserter() {
+    }
+
+    /**
+     * Insert all the given measurements with as few statements as possible.
+     * Measurements already stored are skipped, such that re-sent measurements do
+     * not fail the whole statement.
+     *
+     * @param context      The connection with the database.
+     * @param measurements The measurements to be inserted.
+     * @return The number of inserted rows, excluding the skipped ones.
+     */
+    public static int insert(DSLContext context, List<MeasurementsRecord> measurements) {
+        int numInserted = 0;
+        for (int start = 0; start < measurements.size(); start += MAX_ROWS_PER_STATEMENT) {
+            var chunk = measurements.subList(start, Math.min(start + MAX_ROWS_PER_STATEMENT, measurements.size()));
+
+            var insert = context.insertInto(MEASUREMENTS, MEASUREMENTS.TIMESTAMP, MEASUREMENTS.SENSOR,
+                    MEASUREMENTS.SUBJECT, MEASUREMENTS.X, MEASUREMENTS.Y, MEASUREMENTS.Z);
+            for (var measurement : chunk) {
+                insert = insert.values(measurement.getTimestamp(), measurement.getSensor(), measurement.getSubject(),
+                        measurement.getX(), measurement.getY(), measurement.getZ());
+            }
+            numInserted += insert.onDuplicateKeyIgnore().execute();
+        }
+        return numInserted;
+    }
+
+    /**
+     * Insert all the given measurements like insert(), but report which of them
+     * were actually inserted.
+     *
+     * @param context      The connection with the database.
+     * @param measurements The measurements to be inserted.
+     * @return Per measurement, whether it was inserted. Measurements stored
+     *         already or occurring twice within the list are false.
+     */
+    public static boolean[] insertReturning(DSLContext context, List<MeasurementsRecord> measurements) {
+        var inserted = new HashSet<List<Object>>();
+        for (int start = 0; start < measurements.size(); start += MAX_ROWS_PER_STATEMENT) {
+            var chunk = measurements.subList(start, Math.min(start + MAX_ROWS_PER_STATEMENT, measurements.size()));
+
+            var insert = context.insertInto(MEASUREMENTS, MEASUREMENTS.TIMESTAMP, MEASUREMENTS.SENSOR,
+                    MEASUREMENTS.SUBJECT, MEASUREMENTS.X, MEASUREMENTS.Y, MEASUREMENTS.Z);
+            for (var measurement : chunk) {
+                insert = insert.values(measurement.getTimestamp(), measurement.getSensor(), measurement.getSubject(),
+                        measurement.getX(), measurement.getY(), measurement.getZ());
+            }
+            for (var row : insert.onDuplicateKeyIgnore()
+                    .returningResult(MEASUREMENTS.TIMESTAMP, MEASUREMENTS.SENSOR, MEASUREMENTS.SUBJECT).fetch()) {
+                inserted.add(List.of(row.value1(), row.value2(), row.value3()));
+            }
+        }
+
+        var result = new boolean[measurements.size()];
+        for (int i = 0; i < result.length; ++i) {
+            var measurement = measurements.get(i);
+            // Removing the key assigns a row inserted once to its first occurrence only
+            result[i] = inserted.remove(
+                    List.of(measurement.getTimestamp(), measurement.getSensor(), measurement.getSubject()));
+        }
+        return result;
+    }
+
+    /**
+     * Check whether a failed insert is caused by the inserted values, i. e. will
+     * fail again when retried.
+     */
+    static boolean isCausedByData(DataAccessException e) {
+        switch (e.sqlStateClass()) {
+            case C22_DATA_EXCEPTION:
+            case C23_INTEGRITY_CONSTRAINT_VIOLATION:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
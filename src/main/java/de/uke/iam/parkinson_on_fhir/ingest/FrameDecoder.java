@@ -0,0 +1,150 @@
+package de.uke.iam.parkinson_on_fhir.ingest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes the compact binary upload of device gateways. All values are little
+ * endian:
+ *
+ * <pre>
+ * header: magic "PoF1" | int32 subject | int64 start (microseconds since the
+ *         epoch, UTC) | uint16 length + UTF-8 device | uint16 length + UTF-8
+ *         body part
+ * frame:  uint32 microseconds since the previous frame (the first one: since
+ *         start) | float32 x | float32 y | float32 z
+ * </pre>
+ *
+ * Frames follow the header until the end of the upload. They are decoded in
+ * place from a single reused buffer.
+ */
+public class FrameDecoder {
+
+    /**
+     * Thrown if the upload does not follow the format.
+     */
+    public static class MalformedFramesException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public MalformedFramesException(String message) {
+            super(message);
+        }
+    }
+
+    public static final int MAGIC = 0x31466f50; // "PoF1" read as little endian
+    public static final int FRAME_SIZE = 16;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final int subject;
+    private final String device;
+    private final String bodyPart;
+    private long lastMicros;
+    private boolean exhausted;
+
+    /**
+     * Create a new FrameDecoder and read the header.
+     *
+     * @param channel    The upload.
+     * @param bufferSize The size of the buffer, at least large enough for the
+     *                   header.
+     * @throws MalformedFramesException If the header is malformed.
+     */
+    public FrameDecoder(ReadableByteChannel channel, int bufferSize) throws IOException {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+        this.buffer.flip();
+        this.exhausted = false;
+
+        this.require(4 + 4 + 8);
+        if (this.buffer.getInt() != MAGIC) {
+            throw new MalformedFramesException("The upload does not start with the expected magic bytes");
+        }
+        this.subject = this.buffer.getInt();
+        this.lastMicros = this.buffer.getLong();
+        this.device = this.readString();
+        this.bodyPart = this.readString();
+        if (this.device.isEmpty() || this.bodyPart.isEmpty()) {
+            throw new MalformedFramesException("Device and body part must not be empty");
+        }
+    }
+
+    public int getSubject() {
+        return this.subject;
+    }
+
+    public String getDevice() {
+        return this.device;
+    }
+
+    public String getBodyPart() {
+        return this.bodyPart;
+    }
+
+    /**
+     * Decode frames into the block until it is full or the upload ends.
+     *
+     * @return The number of decoded frames, 0 at the end of the upload.
+     * @throws MalformedFramesException If the upload ends within a frame.
+     */
+    public int read(SampleBlock block) throws IOException {
+        int numRead = 0;
+        while (!block.isFull()) {
+            if (this.buffer.remaining() < FRAME_SIZE && !this.fill()) {
+                if (this.buffer.hasRemaining()) {
+                    throw new MalformedFramesException("The upload ends within a frame");
+                }
+                break;
+            }
+
+            while (this.buffer.remaining() >= FRAME_SIZE && !block.isFull()) {
+                this.lastMicros += Integer.toUnsignedLong(this.buffer.getInt());
+                block.add(this.lastMicros, this.buffer.getFloat(), this.buffer.getFloat(), this.buffer.getFloat());
+                ++numRead;
+            }
+        }
+        return numRead;
+    }
+
+    private String readString() throws IOException {
+        this.require(2);
+        int length = Short.toUnsignedInt(this.buffer.getShort());
+        this.require(length);
+        var bytes = new byte[length];
+        this.buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void require(int numBytes) throws IOException {
+        if (numBytes > this.buffer.capacity()) {
+            throw new MalformedFramesException("The header is too large");
+        }
+        while (this.buffer.remaining() < numBytes) {
+            if (!this.fill()) {
+                throw new MalformedFramesException("The upload ends within the header");
+            }
+        }
+    }
+
+    /**
+     * Move the remaining bytes to the front and read more.
+     *
+     * @return False, if the upload is exhausted.
+     */
+    private boolean fill() throws IOException {
+        if (this.exhausted) {
+            return false;
+        }
+        this.buffer.compact();
+        int numRead = this.channel.read(this.buffer);
+        this.buffer.flip();
+        if (numRead < 0) {
+            this.exhausted = true;
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,199 @@
+package de.uke.iam.parkinson_on_fhir.ingest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import javax.sql.DataSource;
+
+import org.jooq.DSLContext;
+import org.jooq.SQLDialect;
+import org.jooq.exception.DataAccessException;
+import org.jooq.impl.DSL;
+
+import de.uke.iam.parkinson_on_fhir.database.tables.records.MeasurementsRecord;
+
+/**
+ * Collects measurements inserted concurrently by multiple requests and writes
+ * them as one multi-row statement within a single commit. Each caller still
+ * gets its individual outcome.
+ */
+public class GroupCommitWriter {
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(GroupCommitWriter.class);
+
+    /**
+     * The time a request waits for the grouped commit of its measurement.
+     */
+    public static final long WRITE_TIMEOUT_MILLIS = 30 * 1000;
+
+    /**
+     * A measurement waiting for being written.
+     */
+    private static class Pending {
+        private final MeasurementsRecord measurement;
+        private final CompletableFuture<Boolean> written;
+
+        private Pending(MeasurementsRecord measurement) {
+            this.measurement = measurement;
+            this.written = new CompletableFuture<Boolean>();
+        }
+    }
+
+    private final DSLContext context;
+    private final BlockingQueue<Pending> queue;
+    private final List<Thread> writers;
+    private final int maxRows;
+    private final long maxDelayNanos;
+    private volatile boolean stopped;
+
+    /**
+     * Create a new GroupCommitWriter and start its writers.
+     *
+     * @param dataSource     The pool providing the connections of the writers.
+     * @param numWriters     The number of batches written concurrently.
+     * @param maxRows        The maximal number of measurements per commit.
+     * @param maxDelayMillis The maximal time a measurement waits for others.
+     */
+    public GroupCommitWriter(DataSource dataSource, int numWriters, int maxRows, long maxDelayMillis) {
+        this.context = DSL.using(dataSource, SQLDialect.POSTGRES);
+        this.queue = new LinkedBlockingQueue<Pending>();
+        this.maxRows = maxRows;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+
+        this.writers = new ArrayList<Thread>(numWriters);
+        for (int i = 0; i < numWriters; ++i) {
+            var writer = new Thread(this::run, "group-commit-writer");
+            writer.setDaemon(true);
+            writer.start();
+            this.writers.add(writer);
+        }
+    }
+
+    /**
+     * Create a GroupCommitWriter from the system properties.
+     *
+     * @return The GroupCommitWriter or null, if group commits are disabled.
+     */
+    public static GroupCommitWriter loadFromContext(DataSource dataSource) {
+        var maxDelayMillis = Long.getLong("de.uke.iam.parkinson_on_fhir.group_commit_millis", 5);
+        if (maxDelayMillis <= 0) {
+            return null;
+        }
+        var maxRows = Integer.getInteger("de.uke.iam.parkinson_on_fhir.group_commit_rows", 500);
+        var numWriters = Integer.getInteger("de.uke.iam.parkinson_on_fhir.group_commit_writers", 2);
+
+        logger.info("Grouping single inserts for up to {} ms or {} rows", maxDelayMillis, maxRows);
+        return new GroupCommitWriter(dataSource, numWriters, maxRows, maxDelayMillis);
+    }
+
+    /**
+     * Stop all writers. Pending measurements are failed with a
+     * RejectedExecutionException, as are measurements submitted afterwards.
+     */
+    public void shutdown() {
+        this.stopped = true;
+        for (var writer : this.writers) {
+            writer.interrupt();
+        }
+        for (var pending = this.queue.poll(); pending != null; pending = this.queue.poll()) {
+            pending.written.completeExceptionally(new RejectedExecutionException("The writer was shut down"));
+        }
+    }
+
+    /**
+     * Queue a measurement for the next commit.
+     *
+     * @param measurement The measurement to be inserted.
+     * @return A future completed once the measurement is committed with false, if
+     *         it was stored already, or failing with the DataAccessException of
+     *         its insert or a RejectedExecutionException during a shutdown.
+     */
+    public CompletableFuture<Boolean> submit(MeasurementsRecord measurement) {
+        var pending = new Pending(measurement);
+        this.queue.add(pending);
+        if (this.stopped && this.queue.remove(pending)) {
+            pending.written.completeExceptionally(new RejectedExecutionException("The writer was shut down"));
+        }
+        return pending.written;
+    }
+
+    /**
+     * Write a measurement with the next commit and wait for it at most
+     * WRITE_TIMEOUT_MILLIS.
+     *
+     * @param measurement The measurement to be inserted.
+     * @return False, if the measurement was stored already.
+     * @throws DataAccessException        If the measurement could not be
+     *                                    inserted.
+     * @throws RejectedExecutionException If the writer was shut down.
+     * @throws TimeoutException           If the commit did not complete in time.
+     *                                    The measurement may still be written
+     *                                    afterwards.
+     */
+    public boolean write(MeasurementsRecord measurement) throws InterruptedException, TimeoutException {
+        try {
+            return this.submit(measurement).get(WRITE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private void run() {
+        var batch = new ArrayList<Pending>(this.maxRows);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                // Wait for the first measurement and collect more for a short time
+                batch.add(this.queue.take());
+                var deadline = System.nanoTime() + this.maxDelayNanos;
+                while (batch.size() < this.maxRows) {
+                    var next = this.queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            this.flush(batch);
+            batch.clear();
+        }
+    }
+
+    private void flush(List<Pending> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        // Try to write everything at once ...
+        var measurements = new ArrayList<MeasurementsRecord>(batch.size());
+        for (var pending : batch) {
+            measurements.add(pending.measurement);
+        }
+        try {
+            var inserted = BatchInserter.insertReturning(this.context, measurements);
+            for (int i = 0; i < batch.size(); ++i) {
+                batch.get(i).written.complete(inserted[i]);
+            }
+            return;
+        } catch (DataAccessException e) {
+            if (batch.size() == 1) {
+                batch.get(0).written.completeExceptionally(e);
+                return;
+            }
+        }
+
+        // ... and identify the failing measurements otherwise.
+        for (var pending : batch) {
+            try {
+                pending.written.complete(BatchInserter.insertReturning(this.context, List.of(pending.measurement))[0]);
+            } catch (DataAccessException e) {
+                pending.written.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package de.uke.iam.parkinson_on_fhir.ingest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import de.uke.iam.parkinson_on_fhir.database.tables.records.MeasurementsRecord;
+
+/**
+ * A batch of measurements accepted for asynchronous ingest together with the
+ * outcome of each of its entries.
+ */
+public class IngestJob {
+
+    public enum State {
+        QUEUED, RUNNING, COMPLETED
+    }
+
+    private final String id;
+    private final MeasurementsRecord[] measurements;
+    private final String[] errors;
+    private final boolean[] duplicates;
+    private final long createdMillis;
+    private volatile State state;
+    private volatile long completedMillis;
+    private volatile int numProcessed;
+    private long journalId;
+
+    /**
+     * Create a new job.
+     *
+     * @param measurements The parsed measurements of all entries. Entries failing
+     *                     validation are null and must have an error.
+     * @param errors       The validation errors of all entries or null, if an
+     *                     entry is valid.
+     */
+    public IngestJob(List<MeasurementsRecord> measurements, List<String> errors) {
+        this.id = UUID.randomUUID().toString();
+        this.measurements = measurements.toArray(new MeasurementsRecord[0]);
+        this.errors = errors.toArray(new String[0]);
+        this.duplicates = new boolean[this.measurements.length];
+        this.createdMillis = System.currentTimeMillis();
+        this.state = State.QUEUED;
+        this.completedMillis = 0;
+        this.numProcessed = 0;
+        this.journalId = -1;
+    }
+
+    public String getId() {
+        return this.id;
+    }
+
+    public State getState() {
+        return this.state;
+    }
+
+    public long getCreatedMillis() {
+        return this.createdMillis;
+    }
+
+    public long getCompletedMillis() {
+        return this.completedMillis;
+    }
+
+    public int size() {
+        return this.measurements.length;
+    }
+
+    /**
+     * Get the number of entries already written or rejected.
+     */
+    public int getNumProcessed() {
+        return this.numProcessed;
+    }
+
+    /**
+     * Get the measurement of an entry, or null if the entry was rejected.
+     */
+    public MeasurementsRecord getMeasurement(int index) {
+        return this.measurements[index];
+    }
+
+    /**
+     * Get the error of an entry, or null if it was written successfully.
+     */
+    public synchronized String getError(int index) {
+        return this.errors[index];
+    }
+
+    /**
+     * Get the valid measurements of all entries.
+     */
+    List<MeasurementsRecord> getValidMeasurements() {
+        var valid = new ArrayList<MeasurementsRecord>(this.measurements.length);
+        for (var measurement : this.measurements) {
+            if (measurement != null) {
+                valid.add(measurement);
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Get the ID of the batch within the journal, or -1 if it is not journaled.
+     */
+    long getJournalId() {
+        return this.journalId;
+    }
+
+    void setJournalId(long journalId) {
+        this.journalId = journalId;
+    }
+
+    /**
+     * Check whether an entry was skipped as it is stored already.
+     */
+    public synchronized boolean isDuplicate(int index) {
+        return this.duplicates[index];
+    }
+
+    synchronized void markDuplicate(int index) {
+        this.duplicates[index] = true;
+    }
+
+    synchronized void fail(int index, String error) {
+        this.errors[index] = error;
+    }
+
+    void start() {
+        this.state = State.RUNNING;
+    }
+
+    void progress(int numProcessed) {
+        this.numProcessed = numProcessed;
+    }
+
+    synchronized void complete() {
+        this.numProcessed = this.measurements.length;
+        this.completedMillis = System.currentTimeMillis();
+        this.state = State.COMPLETED;
+        this.notifyAll();
+    }
+
+    /**
+     * Wait until all entries are written or rejected.
+     */
+    public synchronized void awaitCompletion() throws InterruptedException {
+        while (this.state != State.COMPLETED) {
+            this.wait();
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package de.uke.iam.parkinson_on_fhir.ingest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.jooq.DSLContext;
+import org.jooq.exception.DataAccessException;
+
+import de.uke.iam.parkinson_on_fhir.database.tables.records.MeasurementsRecord;
+
+/**
+ * An append-only journal of accepted measurement batches on the local disk.
+ * Batches are journaled before they are acknowledged and marked as committed
+ * once they are written into MEASUREMENTS. Uncommitted batches are replayed
+ * on startup.
+ *
+ * The journal consists of memory-mapped segment files holding records of the
+ * form [length][crc32][type][batch ID][payload]. A segment is deleted as soon
+ * as it is full and all of its batches are committed.
+ */
+public class IngestJournal {
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(IngestJournal.class);
+
+    /**
+     * When journaled batches are forced onto the disk.
+     */
+    public enum SyncPolicy {
+        /**
+         * Before each batch is acknowledged.
+         */
+        ALWAYS,
+        /**
+         * Periodically in background. A crash may lose the last interval.
+         */
+        INTERVAL,
+        /**
+         * Whenever the operating system decides to. Only survives crashes of the
+         * server, not of the host.
+         */
+        NONE
+    }
+
+    private static final byte TYPE_BATCH = 1;
+    private static final byte TYPE_COMMIT = 2;
+
+    private static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+    private static final int BODY_HEADER_SIZE = Byte.BYTES + Long.BYTES;
+    private static final int MEASUREMENT_SIZE = Long.BYTES + 2 * Integer.BYTES + 3 * Float.BYTES;
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String REJECTED_FILE = "rejected.csv";
+
+    /**
+     * A single segment file and the batches within it not committed yet.
+     */
+    private static class Segment {
+        private final Path path;
+        private final long number;
+        private MappedByteBuffer buffer;
+        private int numOutstanding;
+
+        private Segment(Path path, long number) {
+            this.path = path;
+            this.number = number;
+            this.buffer = null;
+            this.numOutstanding = 0;
+        }
+    }
+
+    private final Path directory;
+    private final long segmentSize;
+    private final SyncPolicy policy;
+    private final ScheduledExecutorService syncer;
+
+    // The state of the journal, guarded by "this"
+    private final Map<Long, Segment> outstanding;
+    private final Map<Long, List<MeasurementsRecord>> recovered;
+    private final List<Segment> recoveredSegments;
+    private Segment current;
+    private long nextBatchId;
+    private long nextSegment;
+    private boolean dirty;
+
+    /**
+     * Open the journal and read the batches not committed before.
+     *
+     * @param directory   The directory holding the segment files.
+     * @param segmentSize The size of a single segment file in bytes.
+     * @param policy      When journaled batches are forced onto the disk.
+     * @param syncMillis  The interval of forcing for SyncPolicy.INTERVAL.
+     * @throws IOException If the journal could not be read.
+     */
+    public IngestJournal(Path directory, long segmentSize, SyncPolicy policy, long syncMillis) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.policy = policy;
+        this.outstanding = new HashMap<Long, Segment>();
+        this.recovered = new LinkedHashMap<Long, List<MeasurementsRecord>>();
+        this.recoveredSegments = new ArrayList<Segment>();
+        this.current = null;
+        this.nextBatchId = 0;
+        this.nextSegment = 0;
+        this.dirty = false;
+
+        Files.createDirectories(directory);
+        this.recover();
+
+        if (policy == SyncPolicy.INTERVAL) {
+            this.syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                var thread = new Thread(runnable, "journal-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.syncer.scheduleWithFixedDelay(this::sync, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.syncer = null;
+        }
+    }
+
+    /**
+     * Open the journal configured in the system properties.
+     *
+     * @return The journal or null, if journaling is disabled.
+     * @throws IOException If the journal could not be read.
+     */
+    public static IngestJournal loadFromContext() throws IOException {
+        var directory = System.getProperty("de.uke.iam.parkinson_on_fhir.journal_directory");
+        if (directory == null || directory.isEmpty()) {
+            return null;
+        }
+        var segmentMegabytes = Long.getLong("de.uke.iam.parkinson_on_fhir.journal_segment_mb", 64);
+        var policy = SyncPolicy.valueOf(
+                System.getProperty("de.uke.iam.parkinson_on_fhir.journal_fsync", SyncPolicy.ALWAYS.name()));
+        var syncMillis = Long.getLong("de.uke.iam.parkinson_on_fhir.journal_fsync_millis", 100);
+
+        logger.info("Journaling accepted measurements in '{}' with fsync policy {}", directory, policy);
+        return new IngestJournal(Paths.get(directory), segmentMegabytes * 1024 * 1024, policy, syncMillis);
+    }
+
+    /**
+     * Write all batches not committed before the last shutdown into the database
+     * and drop them from the journal afterwards. Batches already written
+     * partially are completed as duplicates are ignored.
+     *
+     * A batch rejected by the database is replayed entry by entry. Entries that
+     * will never be accepted, e. g. as their sensor was deleted meanwhile, are
+     * dropped from the journal and appended to the file REJECTED_FILE beside
+     * the segments.
+     *
+     * @param context The connection with the database.
+     * @return The number of replayed measurements, excluding rejected ones.
+     * @throws IOException         If the replayed segments could not be deleted.
+     * @throws DataAccessException If the database is unavailable. The batches
+     *                             not replayed yet stay within the journal.
+     */
+    public synchronized int replay(DSLContext context) throws IOException {
+        int numReplayed = 0;
+        int numRejected = 0;
+        var batches = this.recovered.values().iterator();
+        while (batches.hasNext()) {
+            var batch = batches.next();
+            try {
+                BatchInserter.insert(context, batch);
+                numReplayed += batch.size();
+            } catch (DataAccessException e) {
+                if (!BatchInserter.isCausedByData(e)) {
+                    throw e;
+                }
+                for (var measurement : batch) {
+                    try {
+                        BatchInserter.insert(context, List.of(measurement));
+                        numReplayed += 1;
+                    } catch (DataAccessException entryError) {
+                        if (!BatchInserter.isCausedByData(entryError)) {
+                            throw entryError;
+                        }
+                        this.reject(measurement, entryError);
+                        numRejected += 1;
+                    }
+                }
+            }
+            batches.remove();
+        }
+
+        for (var segment : this.recoveredSegments) {
+            Files.deleteIfExists(segment.path);
+        }
+        this.recoveredSegments.clear();
+
+        if (numRejected > 0) {
+            logger.warn("Dropped {} measurements from the ingest journal rejected by the database, see '{}'",
+                    numRejected, this.directory.resolve(REJECTED_FILE));
+        }
+        return numReplayed;
+    }
+
+    /**
+     * Keep a measurement dropped during the replay, such that it may be
+     * inspected and corrected manually.
+     */
+    private void reject(MeasurementsRecord measurement, DataAccessException error) throws IOException {
+        var line = String.format("%s,%d,%d,%s,%s,%s,%s%n", measurement.getTimestamp(), measurement.getSensor(),
+                measurement.getSubject(), measurement.getX(), measurement.getY(), measurement.getZ(),
+                error.sqlState());
+        Files.writeString(this.directory.resolve(REJECTED_FILE), line, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Append a batch to the journal. Depending on the policy, it is on the disk
+     * once this method returns.
+     *
+     * @param measurements The measurements to be journaled.
+     * @return The ID of the batch, required for committing it.
+     * @throws IOException If the segment could not be written.
+     */
+    public synchronized long append(List<MeasurementsRecord> measurements) throws IOException {
+        var batchId = this.nextBatchId++;
+        var body = ByteBuffer.allocate(BODY_HEADER_SIZE + Integer.BYTES + measurements.size() * MEASUREMENT_SIZE);
+        body.put(TYPE_BATCH).putLong(batchId).putInt(measurements.size());
+        for (var measurement : measurements) {
+            var timestamp = measurement.getTimestamp().atOffset(ZoneOffset.UTC);
+            body.putLong(TimeUnit.SECONDS.toMicros(timestamp.toEpochSecond())
+                    + TimeUnit.NANOSECONDS.toMicros(timestamp.getNano()));
+            body.putInt(measurement.getSensor());
+            body.putInt(measurement.getSubject());
+            body.putFloat(measurement.getX());
+            body.putFloat(measurement.getY());
+            body.putFloat(measurement.getZ());
+        }
+
+        var segment = this.write(body.flip());
+        segment.numOutstanding += 1;
+        this.outstanding.put(batchId, segment);
+
+        if (this.policy == SyncPolicy.ALWAYS) {
+            segment.buffer.force();
+        } else {
+            this.dirty = true;
+        }
+        return batchId;
+    }
+
+    /**
+     * Mark a batch as written into the database. The record need not to be forced:
+     * If it is lost, the batch is just replayed once more.
+     *
+     * @param batchId The ID returned by append().
+     * @throws IOException If the segment could not be written.
+     */
+    public synchronized void commit(long batchId) throws IOException {
+        var segment = this.outstanding.remove(batchId);
+        if (segment == null) {
+            return;
+        }
+        segment.numOutstanding -= 1;
+
+        if (segment != this.current && segment.numOutstanding == 0) {
+            Files.deleteIfExists(segment.path);
+        } else {
+            var body = ByteBuffer.allocate(BODY_HEADER_SIZE);
+            body.put(TYPE_COMMIT).putLong(batchId);
+            this.write(body.flip());
+            this.dirty = true;
+        }
+    }
+
+    /**
+     * Force the journal onto the disk and stop the background sync.
+     */
+    public synchronized void shutdown() {
+        if (this.syncer != null) {
+            this.syncer.shutdownNow();
+        }
+        if (this.current != null) {
+            this.current.buffer.force();
+        }
+    }
+
+    private synchronized void sync() {
+        if (this.dirty && this.current != null) {
+            this.current.buffer.force();
+            this.dirty = false;
+        }
+    }
+
+    /**
+     * Append a record to the current segment, starting a new one if necessary.
+     *
+     * @return The segment the record was written into.
+     */
+    private Segment write(ByteBuffer body) throws IOException {
+        var recordSize = HEADER_SIZE + body.remaining();
+        if (this.current == null || this.current.buffer.remaining() < recordSize) {
+            this.roll(recordSize);
+        }
+
+        var crc = new CRC32();
+        crc.update(body.duplicate());
+        this.current.buffer.putInt(body.remaining()).putInt((int) crc.getValue()).put(body);
+        return this.current;
+    }
+
+    /**
+     * Seal the current segment and start a new one with room for at least the
+     * given number of bytes.
+     */
+    private void roll(int minimalSize) throws IOException {
+        var sealed = this.current;
+        if (sealed != null) {
+            sealed.buffer.force();
+            if (sealed.numOutstanding == 0) {
+                Files.deleteIfExists(sealed.path);
+            }
+        }
+
+        var number = this.nextSegment++;
+        var segment = new Segment(this.directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, number,
+                SEGMENT_SUFFIX)), number);
+        try (var channel = FileChannel.open(segment.path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // The file is filled with zeros, marking the end of the records.
+            segment.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    Math.max(this.segmentSize, minimalSize + HEADER_SIZE));
+        }
+        this.current = segment;
+    }
+
+    /**
+     * Read all existing segments and collect the batches without commit.
+     */
+    private void recover() throws IOException {
+        var segments = new ArrayList<Segment>();
+        try (var files = Files.newDirectoryStream(this.directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (var file : files) {
+                var name = file.getFileName().toString();
+                try {
+                    var number = Long.parseLong(
+                            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    segments.add(new Segment(file, number));
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring unexpected file '{}' in the journal", file);
+                }
+            }
+        }
+        segments.sort(Comparator.comparingLong(segment -> segment.number));
+
+        for (var segment : segments) {
+            try (var channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+                this.recoverSegment(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+            this.nextSegment = segment.number + 1;
+        }
+        this.recoveredSegments.addAll(segments);
+
+        if (!this.recovered.isEmpty()) {
+            logger.warn("Found {} batches in the journal not written into the database", this.recovered.size());
+        }
+    }
+
+    private void recoverSegment(ByteBuffer buffer) {
+        while (buffer.remaining() >= HEADER_SIZE + BODY_HEADER_SIZE) {
+            var length = buffer.getInt();
+            var checksum = buffer.getInt();
+            if (length < BODY_HEADER_SIZE || length > buffer.remaining()) {
+                // The end of the records or a torn write during a crash
+                return;
+            }
+
+            var body = buffer.slice().limit(length);
+            var crc = new CRC32();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                logger.warn("Stopping the recovery of a journal segment at a corrupted record");
+                return;
+            }
+            buffer.position(buffer.position() + length);
+
+            var type = body.get();
+            var batchId = body.getLong();
+            this.nextBatchId = Math.max(this.nextBatchId, batchId + 1);
+            if (type == TYPE_BATCH) {
+                var numMeasurements = body.getInt();
+                var measurements = new ArrayList<MeasurementsRecord>(numMeasurements);
+                for (int i = 0; i < numMeasurements; ++i) {
+                    var micros = body.getLong();
+                    var timestamp = LocalDateTime.ofEpochSecond(Math.floorDiv(micros, 1_000_000L),
+                            (int) Math.floorMod(micros, 1_000_000L) * 1000, ZoneOffset.UTC);
+                    var sensor = body.getInt();
+                    var subject = body.getInt();
+                    measurements.add(new MeasurementsRecord(timestamp, sensor, subject, body.getFloat(),
+                            body.getFloat(), body.getFloat()));
+                }
+                this.recovered.put(batchId, measurements);
+            } else if (type == TYPE_COMMIT) {
+                this.recovered.remove(batchId);
+            }
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package de.uke.iam.parkinson_on_fhir.ingest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import javax.sql.DataSource;
+
+import org.jooq.DSLContext;
+import org.jooq.SQLDialect;
+import org.jooq.exception.DataAccessException;
+import org.jooq.impl.DSL;
+
+import de.uke.iam.parkinson_on_fhir.database.tables.records.MeasurementsRecord;
+
+/**
+ * A bounded queue of ingest jobs drained by a pool of batched writers. Jobs
+ * are kept for a while after their completion, such that clients can query
+ * the outcome of each entry.
+ */
+public class IngestQueue {
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(IngestQueue.class);
+
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 30 * 1000;
+    private static final String SHUTDOWN_ERROR = "The server was shut down before the entry was written";
+    private static final String REPLAY_NOTE = ". It is written from the journal after the next start";
+
+    private final DSLContext context;
+    private final IngestJournal journal;
+    private final ReplayFilter replays;
+    private final BlockingQueue<IngestJob> queue;
+    private final ConcurrentHashMap<String, IngestJob> jobs;
+    private final ExecutorService writers;
+    private final int batchSize;
+    private final long retentionMillis;
+    private volatile boolean stopped;
+
+    /**
+     * Create a new IngestQueue and start its writers.
+     *
+     * @param dataSource      The pool providing the connections of the writers.
+     * @param numWriters      The number of jobs written concurrently.
+     * @param maxQueued       The maximal number of jobs waiting for a writer.
+     * @param batchSize       The number of measurements written per commit.
+     * @param retentionMillis The time a completed job is kept for queries.
+     * @param journal         The journal making accepted jobs durable or null.
+     * @param replays         The filter recognizing re-sent measurements or null.
+     */
+    public IngestQueue(DataSource dataSource, int numWriters, int maxQueued, int batchSize, long retentionMillis,
+            IngestJournal journal, ReplayFilter replays) {
+        this.context = DSL.using(dataSource, SQLDialect.POSTGRES);
+        this.journal = journal;
+        this.replays = replays;
+        this.queue = new ArrayBlockingQueue<IngestJob>(maxQueued);
+        this.jobs = new ConcurrentHashMap<String, IngestJob>();
+        this.batchSize = batchSize;
+        this.retentionMillis = retentionMillis;
+        this.stopped = false;
+
+        this.writers = Executors.newFixedThreadPool(numWriters, runnable -> {
+            var thread = new Thread(runnable, "ingest-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < numWriters; ++i) {
+            this.writers.execute(this::run);
+        }
+    }
+
+    /**
+     * Create an IngestQueue from the system properties.
+     *
+     * @return The IngestQueue or null, if asynchronous ingest is disabled.
+     */
+    public static IngestQueue loadFromContext(DataSource dataSource, IngestJournal journal,
+            ReplayFilter replays) {
+        var numWriters = Integer.getInteger("de.uke.iam.parkinson_on_fhir.ingest_writers", 2);
+        if (numWriters <= 0) {
+            return null;
+        }
+        var maxQueued = Integer.getInteger("de.uke.iam.parkinson_on_fhir.ingest_queue_depth", 16);
+        var batchSize = Integer.getInteger("de.uke.iam.parkinson_on_fhir.ingest_batch_rows", 1000);
+        var retentionMinutes = Long.getLong("de.uke.iam.parkinson_on_fhir.ingest_retention_minutes", 60);
+
+        logger.info("Asynchronous ingest with {} writers and up to {} queued jobs", numWriters, maxQueued);
+        return new IngestQueue(dataSource, numWriters, maxQueued, batchSize, retentionMinutes * 60 * 1000,
+                journal, replays);
+    }
+
+    /**
+     * Stop all writers. Entries of queued or running jobs not written yet are
+     * failed, such that clients waiting for them get an answer. Journaled jobs
+     * stay uncommitted and are replayed at the next start.
+     */
+    public void shutdown() {
+        this.stopped = true;
+        this.writers.shutdownNow();
+        for (var job = this.queue.poll(); job != null; job = this.queue.poll()) {
+            this.abort(job, SHUTDOWN_ERROR);
+        }
+    }
+
+    /**
+     * Try to queue a job. If a journal is used, the job is journaled before.
+     *
+     * @return True, if the job was accepted. False, if the queue is full.
+     * @throws IOException If the job could not be journaled.
+     */
+    public boolean submit(IngestJob job) throws IOException {
+        this.evictExpired();
+        if (this.journal != null) {
+            var measurements = job.getValidMeasurements();
+            if (!measurements.isEmpty()) {
+                job.setJournalId(this.journal.append(measurements));
+            }
+        }
+
+        this.jobs.put(job.getId(), job);
+        if (!this.queue.offer(job)) {
+            this.jobs.remove(job.getId());
+            if (job.getJournalId() >= 0) {
+                this.journal.commit(job.getJournalId());
+            }
+            return false;
+        }
+        this.abortIfStopped(job);
+        return true;
+    }
+
+    /**
+     * Queue a job, waiting until a writer has capacity. Unlike submit(), the job
+     * is not kept for status queries: The caller has to track it itself.
+     *
+     * @throws IOException If the job could not be journaled.
+     */
+    public void put(IngestJob job) throws IOException, InterruptedException {
+        if (this.journal != null) {
+            var measurements = job.getValidMeasurements();
+            if (!measurements.isEmpty()) {
+                job.setJournalId(this.journal.append(measurements));
+            }
+        }
+
+        try {
+            this.queue.put(job);
+        } catch (InterruptedException e) {
+            if (job.getJournalId() >= 0) {
+                this.journal.commit(job.getJournalId());
+            }
+            throw e;
+        }
+        this.abortIfStopped(job);
+    }
+
+    /**
+     * Get the number of measurements written per commit.
+     */
+    public int getBatchSize() {
+        return this.batchSize;
+    }
+
+    /**
+     * Find a job given its ID.
+     *
+     * @return The job or null, if it is unknown or already expired.
+     */
+    public IngestJob get(String id) {
+        return this.jobs.get(id);
+    }
+
+    private void evictExpired() {
+        var threshold = System.currentTimeMillis() - this.retentionMillis;
+        this.jobs.values().removeIf(
+                job -> job.getState() == IngestJob.State.COMPLETED && job.getCompletedMillis() < threshold);
+    }
+
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            IngestJob job;
+            try {
+                job = this.queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                this.write(job);
+            } catch (InterruptedException e) {
+                this.abort(job, SHUTDOWN_ERROR);
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Writing ingest job '{}' failed: {}", job.getId(), e.toString());
+                this.abort(job, e.toString());
+                continue;
+            }
+
+            this.commitJournal(job);
+            job.complete();
+        }
+    }
+
+    /**
+     * Complete a job whose remaining entries are not written by this run. The
+     * journal is not committed, so accepted entries are not lost but replayed at
+     * the next start. Without a journal, the client has to re-send them.
+     */
+    private void abort(IngestJob job, String error) {
+        if (job.getJournalId() >= 0) {
+            error += REPLAY_NOTE;
+        }
+        for (int i = job.getNumProcessed(); i < job.size(); ++i) {
+            if (job.getMeasurement(i) != null && !job.isDuplicate(i)) {
+                job.fail(i, error);
+            }
+        }
+        job.complete();
+    }
+
+    /**
+     * Abort a job queued concurrently to shutdown(), which no writer will take.
+     */
+    private void abortIfStopped(IngestJob job) {
+        if (this.stopped && this.queue.remove(job)) {
+            this.abort(job, SHUTDOWN_ERROR);
+        }
+    }
+
+    private void commitJournal(IngestJob job) {
+        if (this.journal != null && job.getJournalId() >= 0) {
+            try {
+                this.journal.commit(job.getJournalId());
+            } catch (IOException e) {
+                logger.error("Unable to commit ingest job '{}' in the journal: {}", job.getId(), e.toString());
+            }
+        }
+    }
+
+    private void write(IngestJob job) throws InterruptedException {
+        job.start();
+
+        var indices = new ArrayList<Integer>(this.batchSize);
+        var batch = new ArrayList<MeasurementsRecord>(this.batchSize);
+        for (int i = 0; i < job.size(); ++i) {
+            var measurement = job.getMeasurement(i);
+            if (measurement != null && this.replays != null && this.replays.isDuplicate(measurement)) {
+                job.markDuplicate(i);
+            } else if (measurement != null) {
+                indices.add(i);
+                batch.add(measurement);
+            }
+
+            if (batch.size() == this.batchSize || (i + 1 == job.size() && !batch.isEmpty())) {
+                this.writeBatch(job, indices, batch);
+                indices.clear();
+                batch.clear();
+            }
+            // Entries waiting within the batch are not processed before it is committed
+            job.progress(batch.isEmpty() ? i + 1 : indices.get(0));
+        }
+    }
+
+    /**
+     * Write a batch within one commit. Accepted measurements must not get lost:
+     * If the database is unavailable, the batch is retried until it succeeds.
+     */
+    private void writeBatch(IngestJob job, List<Integer> indices, List<MeasurementsRecord> batch)
+            throws InterruptedException {
+        long backoffMillis = INITIAL_BACKOFF_MILLIS;
+        while (true) {
+            try {
+                this.tryWriteBatch(job, indices, batch);
+                return;
+            } catch (DataAccessException e) {
+                logger.warn("Writing ingest job '{}' failed, retrying in {} ms: {}", job.getId(), backoffMillis,
+                        e.getMessage());
+                Thread.sleep(backoffMillis);
+                backoffMillis = Math.min(2 * backoffMillis, MAX_BACKOFF_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Try to write a batch at once. If an entry is invalid, fall back to single
+     * inserts for identifying it. Entries processed are removed from the lists.
+     *
+     * @throws DataAccessException If the failure is not caused by the entries.
+     */
+    private void tryWriteBatch(IngestJob job, List<Integer> indices, List<MeasurementsRecord> batch) {
+        try {
+            this.markSkipped(job, indices, BatchInserter.insertReturning(this.context, batch));
+            this.record(batch);
+            batch.clear();
+            indices.clear();
+            return;
+        } catch (DataAccessException e) {
+            if (!BatchInserter.isCausedByData(e)) {
+                throw e;
+            }
+        }
+
+        while (!batch.isEmpty()) {
+            try {
+                this.markSkipped(job, indices.subList(0, 1),
+                        BatchInserter.insertReturning(this.context, List.of(batch.get(0))));
+                this.record(List.of(batch.get(0)));
+            } catch (DataAccessException e) {
+                if (!BatchInserter.isCausedByData(e)) {
+                    throw e;
+                }
+                job.fail(indices.get(0), e.getMessage());
+            }
+            batch.remove(0);
+            indices.remove(0);
+        }
+    }
+
+    /**
+     * Report entries the database skipped, as they are stored already, as
+     * duplicates instead of created ones.
+     */
+    private void markSkipped(IngestJob job, List<Integer> indices, boolean[] inserted) {
+        for (int i = 0; i < inserted.length; ++i) {
+            if (!inserted[i]) {
+                job.markDuplicate(indices.get(i));
+            }
+        }
+    }
+
+    private void record(List<MeasurementsRecord> measurements) {
+        if (this.replays != null) {
+            for (var measurement : measurements) {
+                this.replays.record(measurement);
+            }
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package de.uke.iam.parkinson_on_fhir.ingest;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+/**
+ * Accumulates samples pushed continuously by live sessions and flushes them in
+ * blocks, which a pool of writers writes in background. After each flush, the
+ * session is told the range of sequence numbers written, such that the gateway
+ * may drop them from its buffer.
+ *
+ * A message of a session consists of the little endian int64 sequence number of
+ * its first frame followed by frames of int64 microseconds since the epoch
+ * (UTC) and float32 x, y and z.
+ */
+public class LiveIngest {
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(LiveIngest.class);
+
+    public static final int FRAME_SIZE = 8 + 3 * 4;
+
+    /**
+     * Receives the outcome of the flushes of a session. It is called by a writer
+     * while the session is locked and must not block.
+     */
+    public interface Listener {
+        /**
+         * All frames with a sequence number within the range are written.
+         */
+        void onFlushed(long firstSequence, long lastSequence);
+
+        /**
+         * Writing failed. Frames not acknowledged before must be sent again.
+         *
+         * @param reason    The error of the database.
+         * @param permanent True, if the frames themselves were rejected, e. g. as
+         *                  their subject was deleted. Sending them again will fail
+         *                  once more.
+         */
+        void onFailed(String reason, boolean permanent);
+    }
+
+    /**
+     * The frames of a single subject and sensor received over one connection.
+     * Frames are appended to one block while the other one is written in
+     * background, so at most one flush per session is in flight.
+     */
+    public class Session {
+        private final Listener listener;
+        private SampleBlock block;
+        private SampleBlock spare;
+        private long firstSequence;
+        private long lastSequence;
+        private long lastFlushNanos;
+        private boolean writing;
+        private boolean closed;
+        private boolean failed;
+
+        private Session(int subject, int sensor, Listener listener) {
+            this.block = new SampleBlock(batchSize);
+            this.block.setKey(subject, sensor);
+            this.spare = new SampleBlock(batchSize);
+            this.spare.setKey(subject, sensor);
+            this.listener = listener;
+            this.lastFlushNanos = System.nanoTime();
+            this.writing = false;
+            this.closed = false;
+            this.failed = false;
+        }
+
+        /**
+         * Append the frames of a message. Full blocks are handed to the writers.
+         * If the previous block is still written, the caller waits for it, i. e. a
+         * fast sender is slowed down to the speed of the database.
+         *
+         * @throws IllegalArgumentException If the message is malformed.
+         */
+        public synchronized void append(ByteBuffer message) {
+            if (this.failed) {
+                return;
+            }
+            message = message.slice().order(ByteOrder.LITTLE_ENDIAN);
+            if (message.remaining() < 8 || (message.remaining() - 8) % FRAME_SIZE != 0) {
+                throw new IllegalArgumentException("The message does not consist out of complete frames");
+            }
+
+            var sequence = message.getLong();
+            while (message.hasRemaining()) {
+                if (this.block.isFull() && !this.awaitWriter()) {
+                    return;
+                }
+                if (this.block.size() == 0) {
+                    this.firstSequence = sequence;
+                }
+                this.block.add(message.getLong(), message.getFloat(), message.getFloat(), message.getFloat());
+                this.lastSequence = sequence++;
+                if (this.block.isFull()) {
+                    this.flush();
+                }
+            }
+        }
+
+        /**
+         * Flush the remaining frames and stop flushing periodically.
+         */
+        public synchronized void close() {
+            sessions.remove(this);
+            this.closed = true;
+            this.flush();
+        }
+
+        private synchronized void flushIfDue(long nowNanos) {
+            if (nowNanos - this.lastFlushNanos >= flushIntervalNanos) {
+                this.flush();
+            }
+        }
+
+        /**
+         * Wait until the block in flight is written and the full one is handed to
+         * the writers. Waiting releases the lock, so acknowledgements are sent
+         * meanwhile.
+         *
+         * @return False, if the session failed while waiting.
+         */
+        private boolean awaitWriter() {
+            try {
+                while (this.writing && !this.failed) {
+                    this.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                this.fail("Interrupted while waiting for the database", false);
+            }
+            if (!this.failed) {
+                this.flush();
+            }
+            return !this.failed;
+        }
+
+        /**
+         * Hand the frames to a writer, unless one is still writing the previous
+         * block. These frames are then handed over once it finished.
+         */
+        private void flush() {
+            this.lastFlushNanos = System.nanoTime();
+            if (this.block.size() == 0 || this.failed || this.writing) {
+                return;
+            }
+
+            var full = this.block;
+            var first = this.firstSequence;
+            var last = this.lastSequence;
+            this.block = this.spare;
+            this.spare = null;
+            this.writing = true;
+            try {
+                writers.execute(() -> this.write(full, first, last));
+            } catch (RejectedExecutionException e) {
+                this.fail("The server is shutting down", false);
+            }
+        }
+
+        private void write(SampleBlock full, long first, long last) {
+            SQLException error = null;
+            try (var connection = pool.getConnection()) {
+                MeasurementCopyWriter.write(connection, full);
+            } catch (SQLException e) {
+                error = e;
+            }
+
+            synchronized (this) {
+                full.clear();
+                this.spare = full;
+                this.writing = false;
+                this.notifyAll();
+                if (error != null) {
+                    // The gateway keeps the frames not acknowledged and sends them again
+                    logger.warn("Flushing live session failed: {}", error.getMessage());
+                    var state = error.getSQLState();
+                    this.fail(error.getMessage(),
+                            state != null && (state.startsWith("22") || state.startsWith("23")));
+                    return;
+                }
+                this.listener.onFlushed(first, last);
+                if (this.closed || this.block.isFull()) {
+                    this.flush();
+                }
+            }
+        }
+
+        private void fail(String reason, boolean permanent) {
+            if (!this.failed) {
+                this.failed = true;
+                sessions.remove(this);
+                this.notifyAll();
+                this.listener.onFailed(reason, permanent);
+            }
+        }
+    }
+
+    private final DataSource pool;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final Set<Session> sessions;
+    private final ScheduledExecutorService flusher;
+    private final ExecutorService writers;
+
+    /**
+     * Create a new LiveIngest and start flushing periodically.
+     *
+     * @param pool            The pool providing the connections for COPY.
+     * @param batchSize       The maximal number of frames per flush.
+     * @param flushIntervalMs The maximal time a frame waits for being written.
+     * @param numWriters      The number of blocks written concurrently.
+     */
+    public LiveIngest(DataSource pool, int batchSize, long flushIntervalMs, int numWriters) {
+        this.pool = pool;
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+        this.sessions = ConcurrentHashMap.newKeySet();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "live-ingest-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher.scheduleWithFixedDelay(this::flushDue, flushIntervalMs, Math.max(1, flushIntervalMs / 4),
+                TimeUnit.MILLISECONDS);
+        this.writers = Executors.newFixedThreadPool(numWriters, runnable -> {
+            var thread = new Thread(runnable, "live-ingest-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Create a LiveIngest from the system properties.
+     *
+     * @return The LiveIngest or null, if live sessions are disabled.
+     */
+    public static LiveIngest loadFromContext(DataSource pool) {
+        var flushIntervalMs = Long.getLong("de.uke.iam.parkinson_on_fhir.live_flush_millis", 1000);
+        if (flushIntervalMs <= 0) {
+            return null;
+        }
+        var batchSize = Integer.getInteger("de.uke.iam.parkinson_on_fhir.live_batch_rows", 5000);
+        var numWriters = Math.max(1, Integer.getInteger("de.uke.iam.parkinson_on_fhir.live_writers", 2));
+
+        logger.info("Live sessions flushed every {} ms or {} frames by {} writers", flushIntervalMs, batchSize,
+                numWriters);
+        return new LiveIngest(pool, batchSize, flushIntervalMs, numWriters);
+    }
+
+    /**
+     * Open a session for the frames of a subject and sensor.
+     */
+    public Session open(int subject, int sensor, Listener listener) {
+        var session = new Session(subject, sensor, listener);
+        this.sessions.add(session);
+        return session;
+    }
+
+    /**
+     * Stop flushing periodically. Frames not acknowledged are sent again by the
+     * gateways after reconnecting.
+     */
+    public void shutdown() {
+        this.flusher.shutdownNow();
+        this.writers.shutdownNow();
+    }
+
+    private void flushDue() {
+        var now = System.nanoTime();
+        for (var session : this.sessions) {
+            try {
+                session.flushIfDue(now);
+            } catch (RuntimeException e) {
+                logger.error("Flushing live session failed: {}", e.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package de.uke.iam.parkinson_on_fhir.ingest;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.postgresql.PGConnection;
+
+/**
+ * Writes blocks of samples with the binary COPY protocol of PostgreSQL. COPY
+ * cannot skip rows already stored: The samples are copied into a temporary
+ * staging table first and moved into MEASUREMENTS with a single INSERT
+ * skipping duplicates.
+ */
+public final class MeasurementCopyWriter {
+
+    private static final String STAGING_TABLE = "measurements_staging";
+
+    /**
+     * PostgreSQL counts timestamps from 2000-01-01 instead of 1970-01-01.
+     */
+    private static final long POSTGRES_EPOCH_MICROS = 946684800L * 1000 * 1000;
+
+    private static final byte[] HEADER = { 'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0,
+            0, 0, 0, 0, 0, 0, 0, 0 };
+    private static final short NUM_COLUMNS = 6;
+    private static final int ROW_SIZE = 2 + (4 + 8) + 5 * (4 + 4);
+
+    private MeasurementCopyWriter() {
+    }
+
+    /**
+     * Write all samples of the block within a single transaction.
+     *
+     * @param connection A connection not used by others in the meantime.
+     * @param block      The samples to be written.
+     * @return The number of inserted rows, excluding the ones already stored.
+     * @throws SQLException If the samples could not be written, e. g. because
+     *                      the subject is unknown.
+     */
+    public static int write(Connection connection, SampleBlock block) throws SQLException {
+        if (block.size() == 0) {
+            return 0;
+        }
+
+        var autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            try (var statement = connection.createStatement()) {
+                statement.execute(String.format("CREATE TEMPORARY TABLE IF NOT EXISTS %s "
+                        + "(LIKE measurements INCLUDING DEFAULTS) ON COMMIT DELETE ROWS", STAGING_TABLE));
+            }
+
+            var copy = connection.unwrap(PGConnection.class).getCopyAPI().copyIn(String.format(
+                    "COPY %s (\"timestamp\", sensor, subject, x, y, z) FROM STDIN (FORMAT BINARY)", STAGING_TABLE));
+            try {
+                var encoded = encode(block);
+                copy.writeToCopy(encoded.array(), 0, encoded.position());
+                copy.endCopy();
+            } finally {
+                if (copy.isActive()) {
+                    copy.cancelCopy();
+                }
+            }
+
+            int numInserted;
+            try (var statement = connection.createStatement()) {
+                numInserted = statement.executeUpdate(String.format(
+                        "INSERT INTO measurements (\"timestamp\", sensor, subject, x, y, z) "
+                                + "SELECT \"timestamp\", sensor, subject, x, y, z FROM %s ON CONFLICT DO NOTHING",
+                        STAGING_TABLE));
+            }
+            connection.commit();
+            return numInserted;
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Encode the block in the binary COPY format. All values are big endian.
+     */
+    private static ByteBuffer encode(SampleBlock block) {
+        var buffer = ByteBuffer.allocate(HEADER.length + block.size() * ROW_SIZE + 2);
+        buffer.put(HEADER);
+        for (int i = 0; i < block.size(); ++i) {
+            buffer.putShort(NUM_COLUMNS);
+            buffer.putInt(8).putLong(block.getMicros(i) - POSTGRES_EPOCH_MICROS);
+            buffer.putInt(4).putInt(block.getSensor());
+            buffer.putInt(4).putInt(block.getSubject());
+            buffer.putInt(4).putFloat(block.getX(i));
+            buffer.putInt(4).putFloat(block.getY(i));
+            buffer.putInt(4).putFloat(block.getZ(i));
+        }
+        buffer.putShort((short) -1);
+        return buffer;
+    }
+}
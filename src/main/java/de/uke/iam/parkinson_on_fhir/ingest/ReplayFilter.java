@@ -0,0 +1,169 @@
+package de.uke.iam.parkinson_on_fhir.ingest;
+
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import de.uke.iam.parkinson_on_fhir.database.tables.records.MeasurementsRecord;
+
+/**
+ * Remembers the measurements recently written per subject and sensor, such
+ * that windows re-sent by devices after a connectivity loss are recognized
+ * before they reach the database.
+ *
+ * The filter is exact: Only timestamps close to the latest one of a sensor
+ * are remembered. Everything else is unknown and left to the database, which
+ * ignores duplicates anyway.
+ */
+public class ReplayFilter {
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(ReplayFilter.class);
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * The sorted timestamps recently written for a single subject and sensor.
+     */
+    private static class Stream {
+        private long[] timestamps;
+        private int size;
+
+        private Stream() {
+            this.timestamps = new long[INITIAL_CAPACITY];
+            this.size = 0;
+        }
+
+        private boolean contains(long timestamp) {
+            return Arrays.binarySearch(this.timestamps, 0, this.size, timestamp) >= 0;
+        }
+
+        private void add(long timestamp, long window, int maxSize) {
+            var position = Arrays.binarySearch(this.timestamps, 0, this.size, timestamp);
+            if (position >= 0) {
+                return;
+            }
+            position = -position - 1;
+
+            // Make room by growing or dropping the oldest timestamps
+            if (this.size == this.timestamps.length) {
+                if (this.size < maxSize) {
+                    this.timestamps = Arrays.copyOf(this.timestamps, Math.min(2 * this.size, maxSize));
+                } else if (position == 0) {
+                    return;
+                } else {
+                    this.removeFirst(1);
+                    position -= 1;
+                }
+            }
+            System.arraycopy(this.timestamps, position, this.timestamps, position + 1, this.size - position);
+            this.timestamps[position] = timestamp;
+            this.size += 1;
+
+            // Forget everything outside of the window
+            var threshold = this.timestamps[this.size - 1] - window;
+            var numExpired = Arrays.binarySearch(this.timestamps, 0, this.size, threshold);
+            this.removeFirst(numExpired >= 0 ? numExpired : -numExpired - 1);
+        }
+
+        private void remove(long timestamp) {
+            var position = Arrays.binarySearch(this.timestamps, 0, this.size, timestamp);
+            if (position >= 0) {
+                System.arraycopy(this.timestamps, position + 1, this.timestamps, position,
+                        this.size - position - 1);
+                this.size -= 1;
+            }
+        }
+
+        private void removeFirst(int count) {
+            if (count > 0) {
+                System.arraycopy(this.timestamps, count, this.timestamps, 0, this.size - count);
+                this.size -= count;
+            }
+        }
+    }
+
+    private final Map<Long, Stream> streams;
+    private final long windowMicros;
+    private final int maxTimestamps;
+
+    /**
+     * Create a new ReplayFilter.
+     *
+     * @param windowMillis  The time before the latest measurement of a sensor
+     *                      within which timestamps are remembered.
+     * @param maxStreams    The maximal number of combinations of subject and
+     *                      sensor remembered. The least recently used ones are
+     *                      dropped.
+     * @param maxTimestamps The maximal number of timestamps remembered per
+     *                      combination of subject and sensor.
+     */
+    public ReplayFilter(long windowMillis, int maxStreams, int maxTimestamps) {
+        this.windowMicros = TimeUnit.MILLISECONDS.toMicros(windowMillis);
+        this.maxTimestamps = maxTimestamps;
+        this.streams = new LinkedHashMap<Long, Stream>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Stream> eldest) {
+                return this.size() > maxStreams;
+            }
+        };
+    }
+
+    /**
+     * Create a ReplayFilter from the system properties.
+     *
+     * @return The ReplayFilter or null, if it is disabled.
+     */
+    public static ReplayFilter loadFromContext() {
+        var windowSeconds = Long.getLong("de.uke.iam.parkinson_on_fhir.replay_window_seconds", 600);
+        if (windowSeconds <= 0) {
+            return null;
+        }
+        var maxStreams = Integer.getInteger("de.uke.iam.parkinson_on_fhir.replay_streams", 1024);
+        var maxTimestamps = Integer.getInteger("de.uke.iam.parkinson_on_fhir.replay_samples", 4096);
+
+        logger.info("Suppressing re-sent measurements within {} seconds for up to {} sensors", windowSeconds,
+                maxStreams);
+        return new ReplayFilter(windowSeconds * 1000, maxStreams, Math.max(maxTimestamps, INITIAL_CAPACITY));
+    }
+
+    /**
+     * Check whether a measurement is known to be written already.
+     *
+     * @return True, if it was written. False, if it is new or unknown.
+     */
+    public synchronized boolean isDuplicate(MeasurementsRecord measurement) {
+        var stream = this.streams.get(getKey(measurement));
+        return stream != null && stream.contains(getTimestamp(measurement));
+    }
+
+    /**
+     * Remember a measurement successfully written.
+     */
+    public synchronized void record(MeasurementsRecord measurement) {
+        this.streams.computeIfAbsent(getKey(measurement), key -> new Stream())
+                .add(getTimestamp(measurement), this.windowMicros, this.maxTimestamps);
+    }
+
+    /**
+     * Forget a measurement deleted from the database.
+     */
+    public synchronized void forget(MeasurementsRecord measurement) {
+        var stream = this.streams.get(getKey(measurement));
+        if (stream != null) {
+            stream.remove(getTimestamp(measurement));
+        }
+    }
+
+    private static long getKey(MeasurementsRecord measurement) {
+        return ((long) measurement.getSubject() << 32) | (measurement.getSensor() & 0xffffffffL);
+    }
+
+    private static long getTimestamp(MeasurementsRecord measurement) {
+        var timestamp = measurement.getTimestamp().atOffset(ZoneOffset.UTC);
+        return TimeUnit.SECONDS.toMicros(timestamp.toEpochSecond())
+                + TimeUnit.NANOSECONDS.toMicros(timestamp.getNano());
+    }
+}
@@ -0,0 +1,87 @@
+package de.uke.iam.parkinson_on_fhir.ingest;
+
+/**
+ * A block of accelerometer samples of a single sensor and subject, stored
+ * column-wise in primitive arrays. Blocks are reused, such that decoding and
+ * writing large uploads does not create an object per sample.
+ */
+public final class SampleBlock {
+
+    private final long[] micros;
+    private final float[] x;
+    private final float[] y;
+    private final float[] z;
+    private int size;
+    private int subject;
+    private int sensor;
+
+    /**
+     * Create a new, empty block.
+     *
+     * @param capacity The maximal number of samples.
+     */
+    public SampleBlock(int capacity) {
+        this.micros = new long[capacity];
+        this.x = new float[capacity];
+        this.y = new float[capacity];
+        this.z = new float[capacity];
+        this.size = 0;
+    }
+
+    /**
+     * Set the subject and sensor all samples belong to.
+     */
+    public void setKey(int subject, int sensor) {
+        this.subject = subject;
+        this.sensor = sensor;
+    }
+
+    /**
+     * Append a sample.
+     *
+     * @param micros The timestamp in microseconds since the epoch (UTC).
+     */
+    public void add(long micros, float x, float y, float z) {
+        this.micros[this.size] = micros;
+        this.x[this.size] = x;
+        this.y[this.size] = y;
+        this.z[this.size] = z;
+        ++this.size;
+    }
+
+    public void clear() {
+        this.size = 0;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isFull() {
+        return this.size == this.micros.length;
+    }
+
+    public int getSubject() {
+        return this.subject;
+    }
+
+    public int getSensor() {
+        return this.sensor;
+    }
+
+    public long getMicros(int index) {
+        return this.micros[index];
+    }
+
+    public float getX(int index) {
+        return this.x[index];
+    }
+
+    public float getY(int index) {
+        return this.y[index];
+    }
+
+    public float getZ(int index) {
+        return this.z[index];
+    }
+}
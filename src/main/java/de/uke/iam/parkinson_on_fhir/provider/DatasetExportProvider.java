@@ -0,0 +1,276 @@
+package de.uke.iam.parkinson_on_fhir.provider;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.sql.DataSource;
+
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.StringType;
+
+import ca.uhn.fhir.i18n.Msg;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import org.jooq.Condition;
+import org.jooq.DSLContext;
+import org.jooq.Record;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+
+import de.uke.iam.parkinson_on_fhir.schema.RatingObservations;
+
+import static de.uke.iam.parkinson_on_fhir.database.Tables.*;
+
+/**
+ * Exports labeled training data: The samples recorded during each task are cut
+ * into windows of a fixed number of samples per sensor and labeled with the
+ * task type, its UPDRS code and the ratings of the task and sensor.
+ *
+ * The response is a ZIP archive of two entries:
+ *
+ * <pre>
+ * windows.f32:  magic "PoFT" | int32 version | int32 samples per window |
+ *               int32 channels (3) | float32 windows[n][samples][x, y, z]
+ * index.ndjson: one line per window in the same order holding its labels
+ * </pre>
+ *
+ * All values are little endian. Windows never span two tasks or sensors;
+ * the remaining samples at the end of a task that do not fill a window are
+ * dropped.
+ */
+public class DatasetExportProvider {
+
+    public static final int MAGIC = 0x54466f50; // "PoFT" read as little endian
+    public static final int VERSION = 1;
+    public static final int NUM_CHANNELS = 3;
+
+    private static final int FETCH_SIZE = 1000;
+    private static final int MAX_WINDOW_SIZE = 65536;
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private final DataSource pool;
+    private final DimensionCache dimensions;
+
+    /**
+     * Create a new DatasetExportProvider.
+     *
+     * @param pool       The pool providing the connections of the cursors.
+     * @param dimensions The cache of the known body parts, devices and sensors.
+     */
+    public DatasetExportProvider(DataSource pool, DimensionCache dimensions) {
+        this.pool = pool;
+        this.dimensions = dimensions;
+    }
+
+    /**
+     * Export the windows of all tasks, optionally restricted to a subject or a
+     * task type.
+     *
+     * @param window The number of samples per window, 256 by default.
+     * @param stride The number of samples between the starts of consecutive
+     *               windows, the window size by default.
+     */
+    @Operation(name = "$export-dataset", type = Observation.class, idempotent = true, manualResponse = true)
+    public void exportDataset(@OperationParam(name = "subject", max = 1) StringType subject,
+            @OperationParam(name = "taskType", max = 1) StringType taskType,
+            @OperationParam(name = "window", max = 1) IntegerType window,
+            @OperationParam(name = "stride", max = 1) IntegerType stride,
+            ServletRequestDetails details) throws IOException {
+        var windowSize = window != null && window.getValue() != null ? window.getValue() : 256;
+        var strideSize = stride != null && stride.getValue() != null ? stride.getValue() : windowSize;
+        if (windowSize < 1 || windowSize > MAX_WINDOW_SIZE || strideSize < 1) {
+            throw new InvalidRequestException(String.format(
+                    "%sThe window must hold 1 to %d samples and the stride must be positive", Msg.code(639),
+                    MAX_WINDOW_SIZE));
+        }
+
+        Condition tasks = DSL.trueCondition();
+        Condition ratings = DSL.trueCondition();
+        if (subject != null && subject.getValue() != null) {
+            int subjectId;
+            try {
+                subjectId = new IdType(subject.getValue()).getIdPartAsLong().intValue();
+            } catch (NumberFormatException | NullPointerException e) {
+                throw new InvalidRequestException(String.format("%sMalformed subject ID: %s", Msg.code(639),
+                        subject.getValue()));
+            }
+            tasks = tasks.and(TASKS.SUBJECT.eq(subjectId));
+            ratings = ratings.and(RatingObservations.SUBJECT.eq(subjectId));
+        }
+        if (taskType != null && taskType.getValue() != null) {
+            tasks = tasks.and(TASKS.TASK_TYPE.eq(taskType.getValue()));
+            ratings = ratings.and(RatingObservations.TASK_TYPE.eq(taskType.getValue()));
+        }
+
+        var response = details.getServletResponse();
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/zip");
+        response.setHeader("Content-Disposition", "attachment; filename=\"dataset.zip\"");
+
+        // The index is only known after all windows are written. It is spooled to
+        // a file instead of being held in memory.
+        var index = Files.createTempFile("parkinson-fhir-dataset", ".ndjson");
+        try (var connection = this.pool.getConnection();
+                var zip = new ZipOutputStream(response.getOutputStream())) {
+            zip.setLevel(Deflater.BEST_SPEED);
+            // Postgres only streams results outside of auto-commit mode
+            connection.setAutoCommit(false);
+            try {
+                var context = DSL.using(connection, SQLDialect.POSTGRES);
+                zip.putNextEntry(new ZipEntry("windows.f32"));
+                try (var labels = JSON.createGenerator(Files.newBufferedWriter(index, StandardCharsets.UTF_8))) {
+                    labels.setRootValueSeparator(null);
+                    this.writeWindows(context, tasks, ratings, windowSize, strideSize, zip, labels);
+                }
+                zip.closeEntry();
+
+                zip.putNextEntry(new ZipEntry("index.ndjson"));
+                Files.copy(index, zip);
+                zip.closeEntry();
+            } finally {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new InternalErrorException("Unable to read the samples", e);
+        } finally {
+            Files.deleteIfExists(index);
+        }
+    }
+
+    /**
+     * Join the tasks with their samples in a single pass and cut them into
+     * windows.
+     */
+    private void writeWindows(DSLContext context, Condition tasks, Condition ratings, int windowSize,
+            int strideSize, OutputStream output, JsonGenerator labels) throws IOException {
+        // Labels are small compared to the samples: Look them up in memory
+        var taskLabels = context.select(TASKS.TASK_ID, TASKS.SUBJECT, TASKS.TASK_TYPE, TASKTYPES.UPDRS_CODE)
+                .from(TASKS)
+                .join(TASKTYPES).on(TASKS.TASK_TYPE.eq(TASKTYPES.NAME))
+                .where(tasks)
+                .fetchMap(TASKS.TASK_ID);
+        var ratingLabels = new HashMap<Long, Map<String, Float>>();
+        for (var rating : context.select(RatingObservations.TASK, RatingObservations.SENSOR,
+                RatingObservations.ASSESSMENT, RatingObservations.RATING)
+                .from(RatingObservations.TABLE)
+                .where(ratings)
+                .fetch()) {
+            ratingLabels.computeIfAbsent(key(rating.value1(), rating.value2()), k -> new TreeMap<String, Float>())
+                    .put(rating.value3(), rating.value4());
+        }
+
+        var header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(windowSize).putInt(NUM_CHANNELS);
+        output.write(header.array());
+
+        var samples = new float[windowSize * NUM_CHANNELS];
+        var timestamps = new LocalDateTime[windowSize];
+        var encoded = ByteBuffer.allocate(samples.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        long numWindows = 0;
+        int numFilled = 0, numSkipped = 0;
+        Integer currentTask = null, currentSensor = null;
+        try (var cursor = context
+                .select(TASKS.TASK_ID, MEASUREMENTS.SENSOR, MEASUREMENTS.TIMESTAMP, MEASUREMENTS.X,
+                        MEASUREMENTS.Y, MEASUREMENTS.Z)
+                .from(TASKS)
+                .join(MEASUREMENTS).on(MEASUREMENTS.SUBJECT.eq(TASKS.SUBJECT)
+                        .and(MEASUREMENTS.TIMESTAMP.between(TASKS.TASK_START, TASKS.TASK_END)))
+                .where(tasks)
+                .orderBy(TASKS.TASK_ID, MEASUREMENTS.SENSOR, MEASUREMENTS.TIMESTAMP)
+                .fetchSize(FETCH_SIZE).fetchLazy()) {
+            for (var sample : cursor) {
+                if (!sample.value1().equals(currentTask) || !sample.value2().equals(currentSensor)) {
+                    currentTask = sample.value1();
+                    currentSensor = sample.value2();
+                    numFilled = 0;
+                    numSkipped = 0;
+                } else if (numSkipped > 0) {
+                    // The stride exceeds the window: Skip the samples in between
+                    --numSkipped;
+                    continue;
+                }
+
+                timestamps[numFilled] = sample.value3();
+                samples[numFilled * NUM_CHANNELS] = sample.value4();
+                samples[numFilled * NUM_CHANNELS + 1] = sample.value5();
+                samples[numFilled * NUM_CHANNELS + 2] = sample.value6();
+                if (++numFilled < windowSize) {
+                    continue;
+                }
+
+                encoded.clear();
+                encoded.asFloatBuffer().put(samples);
+                output.write(encoded.array());
+                this.writeLabels(labels, numWindows++, taskLabels.get(currentTask), currentSensor,
+                        timestamps[0], timestamps[windowSize - 1],
+                        ratingLabels.get(key(currentTask, currentSensor)));
+
+                // Keep the samples overlapping with the next window
+                var numKept = Math.max(0, windowSize - strideSize);
+                System.arraycopy(samples, (windowSize - numKept) * NUM_CHANNELS, samples, 0,
+                        numKept * NUM_CHANNELS);
+                System.arraycopy(timestamps, windowSize - numKept, timestamps, 0, numKept);
+                numFilled = numKept;
+                numSkipped = Math.max(0, strideSize - windowSize);
+            }
+        }
+    }
+
+    private void writeLabels(JsonGenerator labels, long window, Record task, int sensorId, LocalDateTime start,
+            LocalDateTime end, Map<String, Float> ratings) throws IOException {
+        var sensor = this.dimensions.getSensor(sensorId);
+        labels.writeStartObject();
+        labels.writeNumberField("window", window);
+        labels.writeNumberField("task", task.get(TASKS.TASK_ID));
+        labels.writeNumberField("subject", task.get(TASKS.SUBJECT));
+        labels.writeStringField("device", sensor.getDevice());
+        labels.writeStringField("bodyPart", sensor.getBodyPart());
+        labels.writeStringField("start", format(start));
+        labels.writeStringField("end", format(end));
+        labels.writeStringField("taskType", task.get(TASKS.TASK_TYPE));
+        labels.writeStringField("updrsCode", task.get(TASKTYPES.UPDRS_CODE));
+        labels.writeObjectFieldStart("ratings");
+        if (ratings != null) {
+            for (var rating : ratings.entrySet()) {
+                labels.writeNumberField(rating.getKey(), rating.getValue());
+            }
+        }
+        labels.writeEndObject();
+        labels.writeEndObject();
+        labels.writeRaw('\n');
+    }
+
+    private static String format(LocalDateTime timestamp) {
+        return DateTimeFormatter.ISO_INSTANT.format(timestamp.atZone(ZoneOffset.UTC));
+    }
+
+    private static long key(int task, int sensor) {
+        return ((long) task << 32) | (sensor & 0xffffffffL);
+    }
+}
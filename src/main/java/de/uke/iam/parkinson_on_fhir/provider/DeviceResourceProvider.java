@@ -20,16 +20,19 @@ import org.jooq.impl.DSL;
 import org.jooq.Condition;
 
 import static de.uke.iam.parkinson_on_fhir.database.Tables.*;
+import de.uke.iam.parkinson_on_fhir.database.tables.records.DevicesRecord;
 
 public class DeviceResourceProvider implements IResourceProvider {
 
     private DSLContext connection;
+    private DimensionCache dimensions;
 
     /**
      * Create a new DeviceResourceProvider.
      */
-    public DeviceResourceProvider(DSLContext connection) {
+    public DeviceResourceProvider(DSLContext connection, DimensionCache dimensions) {
         this.connection = connection;
+        this.dimensions = dimensions;
     }
 
     @Override
@@ -92,6 +95,39 @@ public class DeviceResourceProvider implements IResourceProvider {
 
     @Create
     public MethodOutcome createDevice(@ResourceParam Device device) {
+        var record = parseDevice(device);
+
+        // Try to insert the device into the database
+        try {
+            insertDevices(this.connection, List.of(record));
+        } catch (DataAccessException e) {
+            throw new UnprocessableEntityException(String
+                    .format("%sUnable to create the device '%s'. Is the identifier already used?",
+                            Msg.code(639),
+                            record.getDevice()));
+        }
+        this.dimensions.invalidate();
+
+        // Generate the result
+        MethodOutcome result = new MethodOutcome();
+        result.setId(new IdType("Device", record.getDevice()));
+        result.setOperationOutcome(new OperationOutcome());
+        return result;
+    }
+
+    @Delete
+    public void deleteDevice(@IdParam IdType id) {
+        deleteDevice(this.connection, id);
+        this.dimensions.invalidate();
+    }
+
+    /**
+     * Convert a device to be created into its row. The ID of a device is its
+     * distinct identifier, i. e. known before it is inserted.
+     *
+     * @throws UnprocessableEntityException If the device is not supported.
+     */
+    static DevicesRecord parseDevice(Device device) throws UnprocessableEntityException {
         var deviceDescription = device.getDistinctIdentifier();
         if (deviceDescription == null) {
             throw new UnprocessableEntityException(
@@ -111,35 +147,36 @@ public class DeviceResourceProvider implements IResourceProvider {
         if (deviceName == null || deviceName.isBlank()) {
             deviceName = deviceDescription;
         }
+        return new DevicesRecord(deviceDescription, deviceName);
+    }
 
-        // Try to insert the device into the database
-        try {
-            if (this.connection.insertInto(DEVICES).set(DEVICES.DEVICE, deviceDescription)
-                    .set(DEVICES.DESCRIPTION, deviceName).execute() != 1) {
-                throw new DataAccessException("Insert failed");
-            }
-        } catch (DataAccessException e) {
-            throw new UnprocessableEntityException(String
-                    .format("%sUnable to create the device '%s'. Is the identifier already used?",
-                            Msg.code(639),
-                            deviceDescription));
+    /**
+     * Insert devices with a single statement. The dimension cache must be
+     * invalidated afterwards.
+     *
+     * @throws DataAccessException If any of the identifiers is already used.
+     */
+    static void insertDevices(DSLContext connection, List<DevicesRecord> devices) throws DataAccessException {
+        var insert = connection.insertInto(DEVICES, DEVICES.DEVICE, DEVICES.DESCRIPTION);
+        for (var device : devices) {
+            insert = insert.values(device.getDevice(), device.getDescription());
+        }
+        if (insert.execute() != devices.size()) {
+            throw new DataAccessException("Insert failed");
         }
-
-        // Generate the result
-        MethodOutcome result = new MethodOutcome();
-        result.setId(new IdType("Device", deviceDescription));
-        result.setOperationOutcome(new OperationOutcome());
-        return result;
     }
 
-    @Delete
-    public void deleteDevice(@IdParam IdType id) {
+    /**
+     * Delete a device not used by any sensor. The dimension cache must be
+     * invalidated afterwards.
+     */
+    static void deleteDevice(DSLContext connection, IdType id) {
         var identifier = id.getIdPart();
 
         // Try to delete the device from the database
         try {
             // Check if anything was deleted
-            if (this.connection.deleteFrom(DEVICES).where(DEVICES.DEVICE.eq(identifier)).execute() == 0) {
+            if (connection.deleteFrom(DEVICES).where(DEVICES.DEVICE.eq(identifier)).execute() == 0) {
                 throw new ResourceNotFoundException(String.format("Device '%s' not found.", Msg.code(634), identifier));
             }
         } catch (DataAccessException e) {
@@ -0,0 +1,176 @@
+package de.uke.iam.parkinson_on_fhir.provider;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.jooq.DSLContext;
+
+import static de.uke.iam.parkinson_on_fhir.database.Tables.*;
+import de.uke.iam.parkinson_on_fhir.database.tables.records.SensorsRecord;
+
+/**
+ * An in-memory copy of the small lookup tables BODYPARTS, SENSORS, DEVICES
+ * and SUBJECTS. Searches select only the columns of the fact tables and
+ * resolve descriptions here instead of joining.
+ *
+ * The cache is loaded lazily and reloaded on misses, as other clients may
+ * write into the database, too. A miss within a snapshot younger than the
+ * miss interval is answered without reloading, such that a batch full of
+ * unknown references does not reload the tables per entry. Write paths of
+ * the providers must call invalidate() after changing one of the tables.
+ */
+public class DimensionCache {
+
+    /**
+     * An immutable copy of all lookup tables.
+     */
+    private static class Snapshot {
+        private final Map<Integer, SensorsRecord> sensors;
+        private final Map<String, Integer> sensorIds;
+        private final Map<String, String> bodyParts;
+        private final Set<String> devices;
+        private final Set<Integer> subjects;
+        private final long loadedMillis;
+
+        private Snapshot(DSLContext connection) {
+            this.loadedMillis = System.currentTimeMillis();
+            this.sensors = connection.selectFrom(SENSORS).fetchMap(SENSORS.SENSOR_ID);
+            this.sensorIds = new HashMap<String, Integer>();
+            for (var sensor : this.sensors.values()) {
+                this.sensorIds.put(sensorKey(sensor.getDevice(), sensor.getBodyPart()), sensor.getSensorId());
+            }
+            this.bodyParts = connection.select(BODYPARTS.NAME, BODYPARTS.DESCRIPTION).from(BODYPARTS)
+                    .fetchMap(BODYPARTS.NAME, BODYPARTS.DESCRIPTION);
+            this.devices = connection.select(DEVICES.DEVICE).from(DEVICES).fetchSet(DEVICES.DEVICE);
+            this.subjects = connection.select(SUBJECTS.SUBJECT_ID).from(SUBJECTS).fetchSet(SUBJECTS.SUBJECT_ID);
+        }
+
+        private static String sensorKey(String device, String bodyPart) {
+            return device + '\0' + bodyPart;
+        }
+    }
+
+    private final DSLContext connection;
+    private final long missMillis;
+    private final AtomicLong generation;
+    private volatile Snapshot snapshot;
+
+    /**
+     * Create a new, still empty DimensionCache with the miss interval configured
+     * in the system properties.
+     */
+    public DimensionCache(DSLContext connection) {
+        this(connection, Long.getLong("de.uke.iam.parkinson_on_fhir.dimension_miss_millis", 1000));
+    }
+
+    /**
+     * Create a new, still empty DimensionCache.
+     *
+     * @param connection The connection the tables are loaded with.
+     * @param missMillis The age of a snapshot below which misses are not
+     *                   reloaded.
+     */
+    public DimensionCache(DSLContext connection, long missMillis) {
+        this.connection = connection;
+        this.missMillis = missMillis;
+        this.generation = new AtomicLong();
+        this.snapshot = null;
+    }
+
+    /**
+     * Drop the cached content. It is loaded again with the next access.
+     */
+    public void invalidate() {
+        this.generation.incrementAndGet();
+        this.snapshot = null;
+    }
+
+    /**
+     * Get a sensor given its ID. Sensors referenced by stored rows always exist,
+     * so a miss within a fresh snapshot is answered by the database.
+     *
+     * @return The sensor or null, if it is not available within the database.
+     */
+    public SensorsRecord getSensor(int sensorId) {
+        var sensor = this.lookup(snapshot -> snapshot.sensors.get(sensorId));
+        if (sensor == null) {
+            sensor = this.connection.selectFrom(SENSORS).where(SENSORS.SENSOR_ID.eq(sensorId)).fetchOne();
+        }
+        return sensor;
+    }
+
+    /**
+     * Find the ID of the sensor for the given combination of device and body part.
+     *
+     * @return The ID or null, if there is no such sensor within the database.
+     */
+    public Integer findSensorId(String device, String bodyPart) {
+        var key = Snapshot.sensorKey(device, bodyPart);
+        return this.lookup(snapshot -> snapshot.sensorIds.get(key));
+    }
+
+    /**
+     * Check if a body part is already stored within the database.
+     */
+    public boolean hasBodyPart(String name) {
+        return this.lookup(snapshot -> snapshot.bodyParts.containsKey(name) ? Boolean.TRUE : null) != null;
+    }
+
+    /**
+     * Get the description of a body part, or null if it is unknown.
+     */
+    public String getBodyPartDescription(String name) {
+        return this.lookup(snapshot -> snapshot.bodyParts.get(name));
+    }
+
+    /**
+     * Check if a device is already stored within the database.
+     */
+    public boolean hasDevice(String device) {
+        return this.lookup(snapshot -> snapshot.devices.contains(device) ? Boolean.TRUE : null) != null;
+    }
+
+    /**
+     * Check if a subject is already stored within the database.
+     */
+    public boolean hasSubject(int subjectId) {
+        return this.lookup(snapshot -> snapshot.subjects.contains(subjectId) ? Boolean.TRUE : null) != null;
+    }
+
+    /**
+     * Query the current snapshot and reload it once if the value is missing and
+     * the snapshot is older than the miss interval.
+     */
+    private <T> T lookup(Function<Snapshot, T> getter) {
+        var current = this.snapshot;
+        if (current != null) {
+            var value = getter.apply(current);
+            if (value != null || System.currentTimeMillis() - current.loadedMillis < this.missMillis) {
+                return value;
+            }
+        }
+        return getter.apply(this.reload(current));
+    }
+
+    /**
+     * Replace the given snapshot by a new one. If another thread replaced it
+     * meanwhile, its snapshot is used instead of loading once more. A snapshot
+     * loaded while invalidate() was called may miss the change, so it answers
+     * this lookup only and is not kept.
+     */
+    private synchronized Snapshot reload(Snapshot stale) {
+        var current = this.snapshot;
+        if (current != null && current != stale) {
+            return current;
+        }
+        var generation = this.generation.get();
+        current = new Snapshot(this.connection);
+        this.snapshot = current;
+        // Checked after publishing, as invalidate() does not take the lock
+        if (this.generation.get() != generation) {
+            this.snapshot = null;
+        }
+        return current;
+    }
+}
@@ -0,0 +1,201 @@
+package de.uke.iam.parkinson_on_fhir.provider;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.StringType;
+
+import ca.uhn.fhir.i18n.Msg;
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+import com.fasterxml.jackson.core.JsonFactory;
+
+import org.jooq.DSLContext;
+
+import de.uke.iam.parkinson_on_fhir.export.ExportJob;
+import de.uke.iam.parkinson_on_fhir.export.ExportManager;
+
+/**
+ * Implements the bulk data export of groups: $export kicks off a job, whose
+ * state is polled by $export-poll-status. Once completed, the status lists the
+ * NDJSON files to be downloaded by $export-file. Jobs survive restarts of the
+ * server, so are their status URLs.
+ */
+public class ExportProvider {
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    /**
+     * The media type of the columnar format of the observations.
+     */
+    public static final String CT_COLUMNAR = "application/vnd.parkinson-fhir.columnar";
+
+    private final DSLContext connection;
+    private final ExportManager exports;
+
+    /**
+     * Create a new ExportProvider.
+     *
+     * @param connection The connection used for looking up the groups.
+     * @param exports    The manager running the jobs.
+     */
+    public ExportProvider(DSLContext connection, ExportManager exports) {
+        this.connection = connection;
+        this.exports = exports;
+    }
+
+    /**
+     * Start exporting the members of a group and their observations.
+     */
+    @Operation(name = "$export", type = Group.class, idempotent = true, manualResponse = true)
+    public void exportGroup(@IdParam IdType groupId,
+            @OperationParam(name = "_outputFormat", max = 1) StringType outputFormat,
+            @OperationParam(name = "_type", max = 1) StringType type,
+            ServletRequestDetails details) throws IOException {
+        var format = ExportManager.FORMAT_NDJSON;
+        if (outputFormat != null && outputFormat.getValue() != null) {
+            switch (outputFormat.getValue()) {
+                case Constants.CT_FHIR_NDJSON:
+                case "application/ndjson":
+                case "ndjson":
+                    break;
+                case CT_COLUMNAR:
+                case "columnar":
+                    format = ExportManager.FORMAT_COLUMNAR;
+                    break;
+                default:
+                    throw new InvalidRequestException(String.format(
+                            "%sOnly NDJSON or '%s' are supported as output format", Msg.code(639), CT_COLUMNAR));
+            }
+        }
+
+        var types = new HashSet<String>(ExportManager.TYPES);
+        if (type != null && type.getValue() != null) {
+            types.clear();
+            for (var requested : type.getValue().split(",")) {
+                if (!ExportManager.TYPES.contains(requested.trim())) {
+                    throw new InvalidRequestException(String.format(
+                            "%sResources of type '%s' cannot be exported", Msg.code(639), requested.trim()));
+                }
+                types.add(requested.trim());
+            }
+        }
+
+        var members = GroupResourceProvider.loadMembers(this.connection, groupId);
+        var job = this.exports.start(groupId.getIdPartAsLong().intValue(), members, types, format,
+                details.getCompleteUrl());
+
+        var response = details.getServletResponse();
+        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        response.setHeader(Constants.HEADER_CONTENT_LOCATION,
+                String.format("%s/$export-poll-status?_jobId=%s", details.getFhirServerBase(), job.getId()));
+    }
+
+    /**
+     * Get the state of an export. While it is running, 202 is returned.
+     * Afterwards, the manifest lists the files of the export.
+     */
+    @Operation(name = "$export-poll-status", idempotent = true, manualResponse = true)
+    public void pollStatus(@OperationParam(name = "_jobId", min = 1, max = 1) StringType jobId,
+            ServletRequestDetails details) throws IOException {
+        var job = this.getJob(jobId);
+        var response = details.getServletResponse();
+        if (job.getState() == ExportJob.State.QUEUED) {
+            response.setStatus(HttpServletResponse.SC_ACCEPTED);
+            response.setHeader("X-Progress", "queued");
+            response.setHeader(Constants.HEADER_RETRY_AFTER, "30");
+            return;
+        } else if (job.getState() == ExportJob.State.RUNNING) {
+            response.setStatus(HttpServletResponse.SC_ACCEPTED);
+            response.setHeader("X-Progress", String.format("%d/%d subjects", job.getNumSubjectsDone(),
+                    job.getSubjects().size()));
+            response.setHeader(Constants.HEADER_RETRY_AFTER, "5");
+            return;
+        } else if (job.getState() == ExportJob.State.FAILED) {
+            var outcome = new OperationOutcome();
+            outcome.addIssue()
+                    .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                    .setCode(OperationOutcome.IssueType.EXCEPTION)
+                    .setDiagnostics(job.getError());
+            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            response.setContentType(Constants.CT_FHIR_JSON_NEW);
+            response.setCharacterEncoding("UTF-8");
+            details.getFhirContext().newJsonParser().encodeResourceToWriter(outcome, response.getWriter());
+            return;
+        }
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(Constants.CT_JSON);
+        response.setCharacterEncoding("UTF-8");
+        try (var manifest = JSON.createGenerator(response.getWriter())) {
+            manifest.writeStartObject();
+            manifest.writeStringField("transactionTime", job.getTransactionTime().toString());
+            manifest.writeStringField("request", job.getRequest());
+            manifest.writeBooleanField("requiresAccessToken", false);
+            manifest.writeArrayFieldStart("output");
+            for (var output : job.getOutputs()) {
+                manifest.writeStartObject();
+                manifest.writeStringField("type", output.getType());
+                manifest.writeStringField("url", String.format("%s/$export-file?_jobId=%s&file=%s",
+                        details.getFhirServerBase(), job.getId(), output.getName()));
+                manifest.writeNumberField("count", output.getCount());
+                manifest.writeEndObject();
+            }
+            manifest.writeEndArray();
+            manifest.writeArrayFieldStart("error");
+            manifest.writeEndArray();
+            manifest.writeEndObject();
+        }
+    }
+
+    /**
+     * Download a file of a completed export.
+     */
+    @Operation(name = "$export-file", idempotent = true, manualResponse = true)
+    public void downloadFile(@OperationParam(name = "_jobId", min = 1, max = 1) StringType jobId,
+            @OperationParam(name = "file", min = 1, max = 1) StringType file,
+            ServletRequestDetails details) throws IOException {
+        var job = this.getJob(jobId);
+
+        // Only files listed in the manifest are served, never arbitrary paths
+        var output = file != null ? job.getOutput(file.getValue()) : null;
+        if (output == null) {
+            throw new ResourceNotFoundException("The file is not part of the export");
+        }
+
+        var response = details.getServletResponse();
+        response.setStatus(HttpServletResponse.SC_OK);
+        if (output.getName().endsWith("." + ExportManager.FORMAT_COLUMNAR)) {
+            response.setContentType(CT_COLUMNAR);
+        } else {
+            response.setContentType(Constants.CT_FHIR_NDJSON);
+            response.setCharacterEncoding("UTF-8");
+        }
+        try {
+            Files.copy(job.getDirectory().resolve(output.getName()), response.getOutputStream());
+        } catch (IOException e) {
+            throw new InternalErrorException("Unable to read the file of the export", e);
+        }
+    }
+
+    private ExportJob getJob(StringType jobId) {
+        var job = jobId != null ? this.exports.get(jobId.getValue()) : null;
+        if (job == null) {
+            throw new ResourceNotFoundException("The export job is unknown");
+        }
+        return job;
+    }
+}
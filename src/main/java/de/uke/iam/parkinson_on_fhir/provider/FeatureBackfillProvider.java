@@ -0,0 +1,79 @@
+package de.uke.iam.parkinson_on_fhir.provider;
+
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.StringType;
+
+import ca.uhn.fhir.i18n.Msg;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+import de.uke.iam.parkinson_on_fhir.analysis.FeatureMaintainer;
+
+/**
+ * Recomputes the movement features of samples written before the feature
+ * store was installed, or after the length of the epochs changed. The
+ * features are searchable as observations of the category "activity".
+ */
+public class FeatureBackfillProvider {
+
+    private final FeatureMaintainer maintainer;
+
+    /**
+     * Create a new FeatureBackfillProvider.
+     *
+     * @param maintainer The maintainer marking and recomputing the epochs on
+     *                   connections of its pool.
+     */
+    public FeatureBackfillProvider(FeatureMaintainer maintainer) {
+        this.maintainer = maintainer;
+    }
+
+    /**
+     * Mark the epochs of a subject or of all subjects for recomputation. The
+     * features are computed in background.
+     */
+    @Operation(name = "$features-backfill", type = Observation.class)
+    public OperationOutcome backfill(@OperationParam(name = "subject", max = 1) StringType subject,
+            @OperationParam(name = "start", max = 1) DateTimeType start,
+            @OperationParam(name = "end", max = 1) DateTimeType end) {
+        Integer subjectId = null;
+        if (subject != null && subject.getValue() != null) {
+            try {
+                subjectId = new IdType(subject.getValue()).getIdPartAsLong().intValue();
+            } catch (NumberFormatException | NullPointerException e) {
+                throw new InvalidRequestException(String.format("%sMalformed subject ID: %s", Msg.code(639),
+                        subject.getValue()));
+            }
+        }
+
+        int numMarked;
+        try {
+            numMarked = this.maintainer.backfill(subjectId, toLocalDateTime(start), toLocalDateTime(end));
+        } catch (SQLException e) {
+            throw new InternalErrorException("Unable to mark the epochs", e);
+        }
+
+        var outcome = new OperationOutcome();
+        outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+                .setCode(OperationOutcome.IssueType.INFORMATIONAL)
+                .setDiagnostics(String.format("Marked %d epochs for recomputation", numMarked));
+        return outcome;
+    }
+
+    private static LocalDateTime toLocalDateTime(DateTimeType value) {
+        if (value == null || value.getValue() == null) {
+            return null;
+        }
+        return value.getValue().toInstant().atZone(ZoneOffset.UTC).toLocalDateTime();
+    }
+}
@@ -0,0 +1,140 @@
+package de.uke.iam.parkinson_on_fhir.provider;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.sql.SQLException;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.sql.DataSource;
+
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.OperationOutcome;
+
+import ca.uhn.fhir.i18n.Msg;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+import org.jooq.DSLContext;
+import org.jooq.exception.DataAccessException;
+
+import de.uke.iam.parkinson_on_fhir.ingest.FrameDecoder;
+import de.uke.iam.parkinson_on_fhir.ingest.MeasurementCopyWriter;
+import de.uke.iam.parkinson_on_fhir.ingest.SampleBlock;
+
+/**
+ * Accepts accelerometer samples of device gateways in a compact binary format
+ * instead of FHIR observations. See FrameDecoder for the format.
+ */
+public class FrameIngestProvider {
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(FrameIngestProvider.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final DataSource pool;
+    private final DimensionCache dimensions;
+    private final ObservationValidator validator;
+    private final int batchSize;
+
+    /**
+     * Create a new FrameIngestProvider.
+     *
+     * @param connection The connection used for creating missing sensors.
+     * @param pool       The pool providing the connections for COPY.
+     * @param dimensions The cache of the known body parts, devices and sensors.
+     * @param batchSize  The number of frames written per commit.
+     */
+    public FrameIngestProvider(DSLContext connection, DataSource pool, DimensionCache dimensions, int batchSize) {
+        this.pool = pool;
+        this.dimensions = dimensions;
+        this.validator = new ObservationValidator(connection, dimensions);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Create a FrameIngestProvider from the system properties.
+     */
+    public static FrameIngestProvider loadFromContext(DSLContext connection, DataSource pool,
+            DimensionCache dimensions) {
+        var batchSize = Integer.getInteger("de.uke.iam.parkinson_on_fhir.frames_batch_rows", 10000);
+        logger.info("Binary frame ingest with {} frames per commit", batchSize);
+        return new FrameIngestProvider(connection, pool, dimensions, batchSize);
+    }
+
+    /**
+     * Write the frames of a single sensor. The frames are written in blocks while
+     * the upload is still read, each block within its own commit. Answers 201 if
+     * any frame was new, 400 for malformed uploads and 422 for unknown subjects
+     * or devices.
+     */
+    @Operation(name = "$ingest-frames", type = Observation.class, manualRequest = true, manualResponse = true)
+    public void ingestFrames(ServletRequestDetails details) throws IOException {
+        var channel = Channels.newChannel(details.getServletRequest().getInputStream());
+
+        FrameDecoder decoder;
+        try {
+            decoder = new FrameDecoder(channel, BUFFER_SIZE);
+        } catch (FrameDecoder.MalformedFramesException e) {
+            throw new InvalidRequestException(Msg.code(639) + e.getMessage());
+        }
+        if (!this.dimensions.hasSubject(decoder.getSubject())) {
+            throw new UnprocessableEntityException(String.format("%sThe subject '%d' is not available within the "
+                    + "database", Msg.code(639), decoder.getSubject()));
+        }
+        Integer sensorId;
+        try {
+            sensorId = this.validator.getSensorId(decoder.getDevice(), decoder.getBodyPart());
+        } catch (DataAccessException e) {
+            throw new UnprocessableEntityException(
+                    Msg.code(639) + "Unable to identify the proper sensor for the measurement");
+        }
+        if (sensorId == null) {
+            throw new UnprocessableEntityException(String.format(
+                    "%sUnable to create combination of device and body part. Is the device '%s' "
+                            + "available within the database?",
+                    Msg.code(639), decoder.getDevice()));
+        }
+
+        var block = new SampleBlock(this.batchSize);
+        block.setKey(decoder.getSubject(), sensorId);
+        long numFrames = 0, numInserted = 0;
+        try {
+            while (decoder.read(block) > 0) {
+                // Slow uploads must not hold a connection of the pool
+                try (var connection = this.pool.getConnection()) {
+                    numInserted += MeasurementCopyWriter.write(connection, block);
+                }
+                numFrames += block.size();
+                block.clear();
+            }
+        } catch (FrameDecoder.MalformedFramesException e) {
+            throw new InvalidRequestException(String.format(
+                    "%s%s. The first %d frames were written nevertheless.", Msg.code(639), e.getMessage(),
+                    numFrames));
+        } catch (SQLException e) {
+            if (e.getSQLState() != null && e.getSQLState().startsWith("23")) {
+                throw new UnprocessableEntityException(String.format(
+                        "%sUnable to write the frames after %d ones. Is the subject '%d' available within the "
+                                + "database? %s",
+                        Msg.code(639), numFrames, decoder.getSubject(), e.getMessage()));
+            }
+            throw new InternalErrorException("Unable to write the frames", e);
+        }
+
+        var outcome = new OperationOutcome();
+        outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+                .setCode(OperationOutcome.IssueType.INFORMATIONAL)
+                .setDiagnostics(String.format("Read %d frames: %d created, %d already stored", numFrames,
+                        numInserted, numFrames - numInserted));
+
+        var response = details.getServletResponse();
+        response.setStatus(numInserted > 0 ? HttpServletResponse.SC_CREATED : HttpServletResponse.SC_OK);
+        response.setContentType(Constants.CT_FHIR_JSON_NEW);
+        response.setCharacterEncoding("UTF-8");
+        details.getFhirContext().newJsonParser().encodeResourceToWriter(outcome, response.getWriter());
+    }
+}
@@ -17,7 +17,6 @@ import org.hl7.fhir.r4.model.Group.GroupType;
 import org.hl7.fhir.r4.model.*;
 
 import org.jooq.DSLContext;
-import org.jooq.Record1;
 import org.jooq.exception.DataAccessException;
 import org.jooq.impl.DSL;
 import org.jooq.Condition;
@@ -111,8 +110,51 @@ public class GroupResourceProvider implements IResourceProvider {
       return groups;
    }
 
+   /**
+    * Get the IDs of all members of a group.
+    *
+    * @throws ResourceNotFoundException If the group does not exist.
+    */
+   static List<Integer> loadMembers(DSLContext connection, IdType theId) throws ResourceNotFoundException {
+      var id = parseId(theId);
+      if (!connection.fetchExists(SOURCES, SOURCES.SOURCE_ID.eq(id))) {
+         throw new ResourceNotFoundException(theId);
+      }
+      return connection.select(SUBJECTS.SUBJECT_ID)
+            .from(SUBJECTS)
+            .where(SUBJECTS.SOURCE.eq(id))
+            .orderBy(SUBJECTS.SUBJECT_ID)
+            .fetch(SUBJECTS.SUBJECT_ID);
+   }
+
    @Create
    public MethodOutcome createGroup(@ResourceParam Group group) {
+      var subjectIds = parseMembers(group);
+
+      // Create a transaction: If anything fails, everything failes
+      AtomicInteger sourceId = new AtomicInteger(0);
+      this.connection.transaction(config -> {
+         sourceId.set(insertGroups(config.dsl(), List.of(group), List.of(subjectIds)).get(0));
+      });
+
+      MethodOutcome result = new MethodOutcome();
+      result.setId(new IdType("Group", (long) sourceId.get()));
+      result.setOperationOutcome(new OperationOutcome());
+      return result;
+   }
+
+   @Delete
+   public void deleteGroup(@IdParam IdType theId) {
+      this.connection.transaction(config -> deleteGroup(config.dsl(), theId));
+   }
+
+   /**
+    * Check a group to be created and get the IDs of its members. Members are
+    * given either by an identifier of the system "Patient" or by a reference.
+    *
+    * @throws UnprocessableEntityException If the group is not supported.
+    */
+   static List<Integer> parseMembers(Group group) throws UnprocessableEntityException {
       if (!group.getActive()) {
          throw new UnprocessableEntityException(
                Msg.code(639) + "Group must be active");
@@ -131,9 +173,20 @@ public class GroupResourceProvider implements IResourceProvider {
       ArrayList<Integer> subjectIds = new ArrayList<Integer>(group.getMember().size());
       for (var raw_member : group.getMember()) {
          try {
+            var raw_reference = raw_member.getEntity().getReferenceElement();
+            if (raw_reference.hasIdPart()) {
+               // Ensure the proper type is given
+               if (!"Patient".equals(raw_reference.getResourceType())) {
+                  throw new UnprocessableEntityException(
+                        Msg.code(639) + "Only patients are supported");
+               }
+               subjectIds.add(raw_reference.getIdPartAsLong().intValue());
+               continue;
+            }
+
             // Ensure the proper type is given
             var raw_member_identifier = raw_member.getEntity().getIdentifier();
-            if (raw_member_identifier.getSystem().compareTo("Patient") != 0) {
+            if (!"Patient".equals(raw_member_identifier.getSystem())) {
                throw new UnprocessableEntityException(
                      Msg.code(639) + "Only patients are supported");
             }
@@ -146,67 +199,91 @@ public class GroupResourceProvider implements IResourceProvider {
                   Msg.code(639) + "The given ID is not a valid patient identifier");
          }
       }
+      return subjectIds;
+   }
 
-      // Create a transaction: If anything fails, everything failes
-      AtomicInteger sourceId = new AtomicInteger(0);
-      this.connection.transaction(config -> {
-         var context = config.dsl();
-
-         try {
-            // Generate the new ID
-            Record1<Integer> rawSourceId;
+   /**
+    * Insert groups with a single statement and assign their members. Must be
+    * called within a transaction.
+    *
+    * @param groups  The groups checked by parseMembers().
+    * @param members The IDs of the members of each group.
+    * @return The generated IDs in the order of the groups.
+    */
+   static List<Integer> insertGroups(DSLContext context, List<Group> groups, List<List<Integer>> members) {
+      // Generate the new IDs
+      List<Integer> sourceIds;
+      try {
+         var insert = context.insertInto(SOURCES, SOURCES.DESCRIPTION);
+         for (var group : groups) {
             var name = group.getName();
+            insert = insert.values(name != null ? DSL.val(name) : DSL.defaultValue(SOURCES.DESCRIPTION));
+         }
+         // The order of RETURNING is not guaranteed, so correlate the rows by their
+         // name. Groups sharing one are indistinguishable before adding members.
+         var generated = new HashMap<String, ArrayDeque<Integer>>();
+         for (var row : insert.returningResult(SOURCES.SOURCE_ID, SOURCES.DESCRIPTION).fetch()) {
+            generated.computeIfAbsent(row.value2(), key -> new ArrayDeque<Integer>()).add(row.value1());
+         }
+         sourceIds = new ArrayList<Integer>(Collections.nCopies(groups.size(), (Integer) null));
+         for (int i = 0; i < groups.size(); ++i) {
+            var name = groups.get(i).getName();
             if (name != null) {
-               rawSourceId = context.insertInto(SOURCES).set(SOURCES.DESCRIPTION, name)
-                     .returningResult(SOURCES.SOURCE_ID)
-                     .fetchOne();
-            } else {
-               rawSourceId = context.insertInto(SOURCES).values().returningResult(SOURCES.SOURCE_ID).fetchOne();
+               sourceIds.set(i, generated.get(name).poll());
             }
-            sourceId.set(rawSourceId.value1());
-         } catch (DataAccessException e) {
-            throw new UnprocessableEntityException(
-                  Msg.code(639) + "Unable to create the ID for the new group");
          }
-
-         // Update all subjects to belong to this group
-         for (var subjectId : subjectIds) {
-            if (context.update(SUBJECTS).set(SUBJECTS.SOURCE, sourceId.get())
-                  .where(SUBJECTS.SUBJECT_ID.eq(subjectId))
-                  .execute() != 1) {
-               throw new UnprocessableEntityException(
-                     String.format("%sUnable to find patient with the ID '%d'", Msg.code(639), subjectId));
+         // Unnamed groups got the default description, take the remaining rows
+         var remaining = generated.values().stream().flatMap(Collection::stream).iterator();
+         for (int i = 0; i < groups.size(); ++i) {
+            if (sourceIds.get(i) == null) {
+               sourceIds.set(i, remaining.next());
             }
          }
-      });
+      } catch (DataAccessException e) {
+         throw new UnprocessableEntityException(
+               Msg.code(639) + "Unable to create the ID for the new group");
+      }
 
-      MethodOutcome result = new MethodOutcome();
-      result.setId(new IdType("Group", (long) sourceId.get()));
-      result.setOperationOutcome(new OperationOutcome());
-      return result;
+      // Update all subjects to belong to their group
+      for (int i = 0; i < sourceIds.size(); ++i) {
+         var subjectIds = new HashSet<Integer>(members.get(i));
+         if (subjectIds.isEmpty()) {
+            continue;
+         }
+         subjectIds.removeAll(context.update(SUBJECTS).set(SUBJECTS.SOURCE, sourceIds.get(i))
+               .where(SUBJECTS.SUBJECT_ID.in(subjectIds))
+               .returningResult(SUBJECTS.SUBJECT_ID)
+               .fetch().getValues(SUBJECTS.SUBJECT_ID));
+         if (!subjectIds.isEmpty()) {
+            throw new UnprocessableEntityException(
+                  String.format("%sUnable to find patient with the ID '%d'", Msg.code(639),
+                        subjectIds.iterator().next()));
+         }
+      }
+      return sourceIds;
    }
 
-   @Delete
-   public void deleteGroup(@IdParam IdType theId) {
+   /**
+    * Delete a group and release its members. Must be called within a
+    * transaction.
+    */
+   static void deleteGroup(DSLContext context, IdType theId) {
       // Try to parse the ID
       var id = parseId(theId);
-      this.connection.transaction(config -> {
-         var context = config.dsl();
 
-         // Remove the association with all included subjects
-         context.update(SUBJECTS).setNull(SUBJECTS.SOURCE).where(SUBJECTS.SOURCE.eq(id)).execute();
+      // Remove the association with all included subjects
+      context.update(SUBJECTS).setNull(SUBJECTS.SOURCE).where(SUBJECTS.SOURCE.eq(id)).execute();
 
-         // Try to delete the group from the database
-         try {
-            // Check if anything was deleted
-            if (context.deleteFrom(SOURCES).where(SOURCES.SOURCE_ID.eq(id)).execute() == 0) {
-               throw new ResourceNotFoundException(theId);
-            }
-         } catch (DataAccessException e) {
-            throw new ResourceVersionConflictException(
-                  String.format("%sUnable to delete group '%d' as it is currently used", Msg.code(635), id));
+      // Try to delete the group from the database
+      try {
+         // Check if anything was deleted
+         if (context.deleteFrom(SOURCES).where(SOURCES.SOURCE_ID.eq(id)).execute() == 0) {
+            throw new ResourceNotFoundException(theId);
          }
-      });
+      } catch (DataAccessException e) {
+         throw new ResourceVersionConflictException(
+               String.format("%sUnable to delete group '%d' as it is currently used", Msg.code(635), id));
+      }
    }
 
    /**
@@ -1,14 +1,20 @@
 package de.uke.iam.parkinson_on_fhir.provider;
 
+import java.io.IOException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeParseException;
-import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Pattern;
 
 import javax.annotation.Nonnull;
+import javax.servlet.http.HttpServletResponse;
 
-import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IPrimitiveType;
 import org.hl7.fhir.r4.model.Observation;
@@ -23,27 +29,37 @@ import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.IntegerType;
 import org.hl7.fhir.r4.model.InstantType;
 import org.hl7.fhir.r4.model.Period;
 import org.hl7.fhir.r4.model.MarkdownType;
+import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.r4.model.Observation.ObservationReferenceRangeComponent;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+
 import ca.uhn.fhir.i18n.Msg;
 import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import ca.uhn.fhir.parser.DataFormatException;
 import ca.uhn.fhir.rest.annotation.*;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.DateRangeParam;
 import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.NotImplementedOperationException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
 
 import org.jooq.DSLContext;
 import org.jooq.Record;
-import org.jooq.Record8;
 import org.jooq.Record16;
 import org.jooq.TableField;
 import org.jooq.exception.DataAccessException;
@@ -53,6 +69,13 @@ import org.jooq.Cursor;
 
 import static de.uke.iam.parkinson_on_fhir.database.Tables.*;
 import de.uke.iam.parkinson_on_fhir.database.tables.records.MeasurementsRecord;
+import de.uke.iam.parkinson_on_fhir.ingest.BatchInserter;
+import de.uke.iam.parkinson_on_fhir.ingest.GroupCommitWriter;
+import de.uke.iam.parkinson_on_fhir.ingest.IngestJob;
+import de.uke.iam.parkinson_on_fhir.ingest.IngestQueue;
+import de.uke.iam.parkinson_on_fhir.ingest.ReplayFilter;
+import de.uke.iam.parkinson_on_fhir.schema.MovementFeatures;
+import de.uke.iam.parkinson_on_fhir.schema.RatingObservations;
 
 /**
  * A provider for observations both related to accelometer data and rating by
@@ -61,6 +84,13 @@ import de.uke.iam.parkinson_on_fhir.database.tables.records.MeasurementsRecord;
 public class ObservationResourceProvider implements IResourceProvider {
 
     private DSLContext connection;
+    private DimensionCache dimensions;
+    private Prefetcher prefetcher;
+    private RangeScanner scanner;
+    private GroupCommitWriter writer;
+    private IngestQueue ingest;
+    private ReplayFilter replays;
+    private ObservationValidator validator;
 
     /**
      * An abstract base class for fetched observations of a specific category.
@@ -75,15 +105,40 @@ public class ObservationResourceProvider implements IResourceProvider {
         private final InstantType searchTime;
         private int lastIndex;
 
+        // The state of the optional prefetching, guarded by "this"
+        private final Prefetcher prefetcher;
+        private final ArrayDeque<IBaseResource> buffered;
+        private CompletableFuture<List<IBaseResource>> prefetched;
+        private ScheduledFuture<?> lease;
+        private long generation;
+        private boolean expired;
+
+        // Serializes reading from the cursor with closing it, guarded by itself
+        private final Object cursor;
+        private boolean closed;
+
         /**
          * Initialize the underlying constants.
+         * 
+         * @param prefetcher The resources for prefetching the next page or null, if
+         *                   it is disabled.
          */
-        protected FetchedObservations(int numMeasurements, Coding category) {
+        protected FetchedObservations(int numMeasurements, Coding category, Prefetcher prefetcher) {
             this.searchTime = InstantType.withCurrentTime();
             this.numMeasurements = numMeasurements;
             this.category = Arrays.asList(new CodeableConcept(category));
 
             this.lastIndex = 0;
+
+            this.prefetcher = prefetcher;
+            this.buffered = new ArrayDeque<IBaseResource>();
+            this.prefetched = null;
+            this.lease = null;
+            this.generation = 0;
+            this.expired = false;
+
+            this.cursor = new Object();
+            this.closed = false;
         }
 
         /**
@@ -95,9 +150,14 @@ public class ObservationResourceProvider implements IResourceProvider {
         @Nonnull
         protected abstract List<IBaseResource> fetchNext(int numSamples);
 
+        /**
+         * Release the underlying database resources. No samples are read afterwards.
+         */
+        protected abstract void close();
+
         @Override
         @Nonnull
-        public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+        public synchronized List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
             var numSamples = theToIndex - theFromIndex;
             if (numSamples <= 0) {
                 return new ArrayList<IBaseResource>();
@@ -106,11 +166,90 @@ public class ObservationResourceProvider implements IResourceProvider {
             // By now, we do not support random access into the observations.
             if (lastIndex != theFromIndex) {
                 throw new NotImplementedOperationException("Random access querying is currently unsupported");
+            } else if (this.expired) {
+                throw new ResourceGoneException("The search expired as it was not continued in time");
             } else {
                 this.lastIndex = theToIndex;
             }
 
-            return this.fetchNext(numSamples);
+            // Use the page read in background, if any ...
+            this.generation += 1;
+            if (this.lease != null) {
+                this.lease.cancel(false);
+                this.lease = null;
+            }
+            if (this.prefetched != null) {
+                try {
+                    this.buffered.addAll(this.prefetched.join());
+                } finally {
+                    this.prefetched = null;
+                    this.prefetcher.release();
+                }
+            }
+
+            // ... and read the remaining samples directly.
+            var samples = new ArrayList<IBaseResource>(numSamples);
+            while (!this.buffered.isEmpty() && samples.size() < numSamples) {
+                samples.add(this.buffered.poll());
+            }
+            if (samples.size() < numSamples) {
+                samples.addAll(this.fetchFromCursor(numSamples - samples.size()));
+            }
+
+            // Prepare the next page while this one is sent
+            if (this.prefetcher != null && theToIndex < this.numMeasurements && this.prefetcher.tryAcquire()) {
+                this.prefetched = CompletableFuture.supplyAsync(() -> this.fetchFromCursor(numSamples),
+                        this.prefetcher.getExecutor());
+
+                var currentGeneration = this.generation;
+                this.lease = this.prefetcher.getExecutor().schedule(() -> this.expire(currentGeneration),
+                        this.prefetcher.getLeaseMillis(), TimeUnit.MILLISECONDS);
+            }
+
+            return samples;
+        }
+
+        /**
+         * Drop the prefetched page and close the search if it was not continued since
+         * the given generation.
+         */
+        private synchronized void expire(long generation) {
+            if (this.generation != generation || this.prefetched == null) {
+                return;
+            }
+
+            // Cancelling does not stop a prefetch already reading: Closing waits for
+            // it on a worker instead of blocking this one.
+            this.expired = true;
+            this.prefetched.cancel(false);
+            this.prefetcher.getExecutor().execute(this::closeCursor);
+            this.prefetched = null;
+            this.buffered.clear();
+            this.prefetcher.release();
+        }
+
+        /**
+         * Read from the cursor unless it was closed in the meantime.
+         */
+        private List<IBaseResource> fetchFromCursor(int numSamples) {
+            synchronized (this.cursor) {
+                if (this.closed) {
+                    return new ArrayList<IBaseResource>();
+                }
+                return this.fetchNext(numSamples);
+            }
+        }
+
+        /**
+         * Close the cursor once no read is in flight anymore.
+         */
+        private void closeCursor() {
+            synchronized (this.cursor) {
+                if (!this.closed) {
+                    this.closed = true;
+                    this.close();
+                }
+            }
         }
 
         @Override
@@ -134,77 +273,7 @@ public class ObservationResourceProvider implements IResourceProvider {
         }
 
         protected static Date castLocalDateTime(LocalDateTime localDateTime) {
-            return Date.from(localDateTime.atZone(ZoneId.systemDefault()).toInstant());
-        }
-
-        /**
-         * Try to parse a reference where one expect a specific identifier by ensuring
-         * the reference is proper and a value is available.
-         * 
-         * @param reference          The existing reference to be checked.
-         * @param expectedIdentifier The expected identifier.
-         * @throws UnprocessableEntityException Thrown when the reference is not
-         *                                      valid.
-         */
-        protected static String parseExpectedReference(Reference reference, String expectedIdentifier)
-                throws UnprocessableEntityException {
-
-            if (!reference.isEmpty()) {
-                var referenceString = reference.getReference();
-                if (referenceString != null) {
-                    // Check if the reference is relative
-                    if (!referenceString.startsWith(expectedIdentifier + "/")) {
-                        throw new UnprocessableEntityException(
-                                String.format(
-                                        "%sThe given reference '%s' is invalid as only relative references are supported",
-                                        Msg.code(639),
-                                        expectedIdentifier));
-                    }
-                    return referenceString.substring(expectedIdentifier.length() + 1);
-                }
-            }
-
-            throw new UnprocessableEntityException(
-                    String.format("%sThe given reference for expected identifier '%s' is invalid", Msg.code(639),
-                            expectedIdentifier));
-        }
-
-        /**
-         * Try to parse a list of codeable concepts if exactly one coding is required.
-         * 
-         * @param codeableConcepts The codable concepts.
-         * @param name             The name used for understandable error messages.
-         * @return The included Coding.
-         * @throws UnprocessableEntityException Thrown if there exists not exactly one
-         *                                      codable concept.
-         */
-        protected static Coding parseCodeableConcept(List<CodeableConcept> codeableConcepts, String name)
-                throws UnprocessableEntityException {
-            if (codeableConcepts.size() == 1) {
-                return parseCodeableConcept(codeableConcepts.get(0), name);
-            } else {
-                throw new UnprocessableEntityException(
-                        String.format("%sExactly one concept is expected for '%s'", Msg.code(639), name));
-            }
-        }
-
-        /**
-         * Try to parse a list of codings if exactly one coding is required.
-         * 
-         * @param codeableConcept The codable concepts.
-         * @param name            The name used for understandable error messages.
-         * @return The included Coding.
-         * @throws UnprocessableEntityException Thrown if there exists not exactly one
-         *                                      coding.
-         */
-        protected static Coding parseCodeableConcept(CodeableConcept codeableConcept, String name)
-                throws UnprocessableEntityException {
-            var codings = codeableConcept.getCoding();
-            if (codings.size() != 1) {
-                throw new UnprocessableEntityException(
-                        String.format("%sExactly one coding is expected for '%s'", Msg.code(639), name));
-            }
-            return codings.get(0);
+            return Date.from(localDateTime.atZone(ZoneOffset.UTC).toInstant());
         }
     }
 
@@ -234,29 +303,6 @@ public class ObservationResourceProvider implements IResourceProvider {
                 return value;
             }
 
-            /**
-             * Try to parse a ObservationComponentComponent as an instance of this
-             * AccelerationComponent. If the concept does not match, ignore it and return
-             * null.
-             * 
-             * @param component The potential resource.
-             * @return The value included in the resource or NULL if it does not match.
-             * @throws UnprocessableEntityException The resource matches but is ill-formed.
-             */
-            public Float tryParse(ObservationComponentComponent component) throws UnprocessableEntityException {
-                var code = component.getCode().getCodingFirstRep().getCode();
-                if (code != null && code.compareTo(this.concept.getCodingFirstRep().getCode()) == 0) {
-                    try {
-                        return (float) component.getValueQuantity().getValue().doubleValue();
-                    } catch (FHIRException | NullPointerException e) {
-                        throw new UnprocessableEntityException(
-                                "The observation component does not contain a valid quantity.");
-                    }
-                } else {
-                    return null;
-                }
-            }
-
             @Override
             public String toString() {
                 return this.concept.getCoding().get(0).getDisplay();
@@ -298,29 +344,48 @@ public class ObservationResourceProvider implements IResourceProvider {
                 }
             }
 
+            public MeasurementId(MeasurementsRecord measurement) {
+                this(measurement.getTimestamp(), measurement.getSubject(), measurement.getSensor());
+            }
+
             /**
              * Try to insert a specific measurement into the database.
-             * 
-             * @param connection The connection with the database.
-             * @param x          The x acceleration.
-             * @param y          The y acceleration.
-             * @param z          The z acceleration.
+             *
+             * @param connection  The connection with the database.
+             * @param writer      The writer grouping concurrent inserts into one commit or
+             *                    null, if the measurement is inserted directly.
+             * @param measurement The measurement with the same key as this ID.
+             * @return False, if the measurement is known to be stored already.
              * @throws UnprocessableEntityException When the inseration fails.
              */
-            public void insert(DSLContext connection, float x, float y, float z) throws UnprocessableEntityException {
+            public boolean insert(DSLContext connection, GroupCommitWriter writer, MeasurementsRecord measurement)
+                    throws UnprocessableEntityException {
                 try {
-                    connection.insertInto(MEASUREMENTS)
+                    if (writer != null) {
+                        return writer.write(measurement);
+                    }
+
+                    return connection.insertInto(MEASUREMENTS)
                             .set(MEASUREMENTS.TIMESTAMP, this.timestamp)
                             .set(MEASUREMENTS.SUBJECT, this.subjectId)
                             .set(MEASUREMENTS.SENSOR, this.sensorId)
-                            .set(MEASUREMENTS.X, x)
-                            .set(MEASUREMENTS.Y, y)
-                            .set(MEASUREMENTS.Z, z)
-                            .execute();
-                } catch (DataAccessException e) {
+                            .set(MEASUREMENTS.X, measurement.getX())
+                            .set(MEASUREMENTS.Y, measurement.getY())
+                            .set(MEASUREMENTS.Z, measurement.getZ())
+                            .onDuplicateKeyIgnore()
+                            .execute() == 1;
+                } catch (DataAccessException | IllegalStateException e) {
                     throw new UnprocessableEntityException(String
                             .format("%sUnable to create sample. Is there a subject '%d' already in the database?",
                                     Msg.code(639), subjectId));
+                } catch (RejectedExecutionException e) {
+                    throw new UnclassifiedServerFailureException(503,
+                            Msg.code(639) + "The server is shutting down. Please retry later.");
+                } catch (TimeoutException e) {
+                    throw new InternalErrorException("The sample was not committed in time", e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InternalErrorException("Interrupted while waiting for the writers", e);
                 }
             }
 
@@ -337,13 +402,22 @@ public class ObservationResourceProvider implements IResourceProvider {
                         .execute() == 1;
             }
 
+            /**
+             * Get a measurement without values holding the key of this ID.
+             */
+            public MeasurementsRecord toKey() {
+                return new MeasurementsRecord(this.timestamp, this.sensorId, this.subjectId, null, null, null);
+            }
+
             @Override
             public String toString() {
                 return String.format("A_%s_%d_%d", timestamp.toString(), subjectId, sensorId);
             }
         }
 
-        private Cursor<Record8<LocalDateTime, Integer, Float, Float, Float, String, String, String>> measurements;
+        private final DimensionCache dimensions;
+        private Cursor<MeasurementsRecord> measurements;
+        private RangeScanner.Scan slices;
 
         private static final AccelerationComponent[] ACCELERATION_COMPONENTS;
         public static final Coding CATEGORY;
@@ -359,123 +433,115 @@ public class ObservationResourceProvider implements IResourceProvider {
                     "Procedure");
         }
 
-        public FetchedAccelerationObservations(DSLContext connection, Integer subject, LocalDateTime start,
+        public FetchedAccelerationObservations(DSLContext connection, DimensionCache dimensions,
+                Prefetcher prefetcher, RangeScanner scanner, Integer subject, LocalDateTime start,
                 LocalDateTime end) {
             super(connection.selectCount().from(MEASUREMENTS).where(buildWhere(subject, start, end)).fetchOne(0,
-                    int.class), CATEGORY);
-
-            this.measurements = connection
-                    .select(MEASUREMENTS.TIMESTAMP, MEASUREMENTS.SUBJECT, MEASUREMENTS.X, MEASUREMENTS.Y,
-                            MEASUREMENTS.Z, SENSORS.BODY_PART, SENSORS.DEVICE, BODYPARTS.DESCRIPTION)
-                    .from(MEASUREMENTS)
-                    .join(SENSORS).on(MEASUREMENTS.SENSOR.eq(SENSORS.SENSOR_ID))
-                    .join(BODYPARTS).on(BODYPARTS.NAME.eq(SENSORS.BODY_PART))
-                    .where(buildWhere(subject, start, end))
-                    .fetchSize(FETCH_SIZE).fetchLazy();
+                    int.class), CATEGORY, prefetcher);
+
+            // Only the columns of the fact table are queried. Device and body part are
+            // resolved using the cache.
+            this.dimensions = dimensions;
+
+            // Large ranges are split and scanned in parallel, if enabled.
+            this.slices = scanner != null ? scanner.open(buildWhere(subject, null, null), start, end) : null;
+            if (this.slices == null) {
+                this.measurements = connection
+                        .selectFrom(MEASUREMENTS)
+                        .where(buildWhere(subject, start, end))
+                        .orderBy(RangeScanner.ORDER)
+                        .fetchSize(FETCH_SIZE).fetchLazy();
+            }
         }
 
         @Override
         @Nonnull
         protected List<IBaseResource> fetchNext(int numSamples) {
             var loaded_measurements = new ArrayList<IBaseResource>(numSamples);
-            for (var sample : measurements.fetchNext(numSamples)) {
-                LocalDateTime database_timestamp = sample.get(MEASUREMENTS.TIMESTAMP);
-                long subject = (long) sample.get(MEASUREMENTS.SUBJECT);
-                String body_part = sample.get(SENSORS.BODY_PART);
-
-                // Fill the observation with meaningful information
-                var observation = new Observation();
-                observation.setId(String.format("A-%s-%d", database_timestamp.toString(), subject));
-                observation.setStatus(ObservationStatus.FINAL);
-                observation.setCategory(this.category);
-                observation.setSubject(new Reference(new IdType(RESOURCE_TYPE, subject)));
-                observation.setEffective(new InstantType(
-                        castLocalDateTime(database_timestamp),
-                        TemporalPrecisionEnum.MILLI,
-                        TIME_ZONE));
-                observation.setComponent(Arrays.asList(
-                        ACCELERATION_COMPONENTS[0].createObservationComponent(sample),
-                        ACCELERATION_COMPONENTS[1].createObservationComponent(sample),
-                        ACCELERATION_COMPONENTS[2].createObservationComponent(sample)));
-                observation.setDevice(new Reference(new IdType("Device", sample.get(SENSORS.DEVICE))));
-                observation
-                        .setBodySite(new CodeableConcept(
-                                new Coding("Custom", body_part, sample.get(BODYPARTS.DESCRIPTION))));
-                loaded_measurements.add(observation);
+            List<MeasurementsRecord> samples = this.slices != null ? this.slices.fetchNext(numSamples)
+                    : this.measurements.fetchNext(numSamples);
+            for (var sample : samples) {
+                loaded_measurements.add(toObservation(sample, this.dimensions, this.category));
             }
 
             return loaded_measurements;
         }
 
         /**
-         * Try to insert the given observation. The "category" MUST be correct as it is
-         * not checked!
-         * 
-         * @param observation The given observation.
-         * @throws UnprocessableEntityException Thrown when the observation is not
-         *                                      valid.
+         * Represent a measurement as an observation.
          */
-        public static String insertObservation(DSLContext connection, Observation observation)
-                throws UnprocessableEntityException {
-
-            if (observation.getStatus() != ObservationStatus.FINAL) {
-                throw new UnprocessableEntityException(Msg.code(639) + "The observation must be FINAL.");
-            }
+        public static Observation toObservation(MeasurementsRecord sample, DimensionCache dimensions,
+                List<CodeableConcept> category) {
+            LocalDateTime database_timestamp = sample.getTimestamp();
+            long subject = (long) sample.getSubject();
+            var sensor = dimensions.getSensor(sample.getSensor());
+            String body_part = sensor.getBodyPart();
+
+            // Fill the observation with meaningful information
+            var observation = new Observation();
+            observation.setId(String.format("A-%s-%d", database_timestamp.toString(), subject));
+            observation.setStatus(ObservationStatus.FINAL);
+            observation.setCategory(category);
+            observation.setSubject(new Reference(new IdType(RESOURCE_TYPE, subject)));
+            observation.setEffective(new InstantType(
+                    castLocalDateTime(database_timestamp),
+                    TemporalPrecisionEnum.MILLI,
+                    TIME_ZONE));
+            observation.setComponent(Arrays.asList(
+                    ACCELERATION_COMPONENTS[0].createObservationComponent(sample),
+                    ACCELERATION_COMPONENTS[1].createObservationComponent(sample),
+                    ACCELERATION_COMPONENTS[2].createObservationComponent(sample)));
+            observation.setDevice(new Reference(new IdType("Device", sensor.getDevice())));
+            observation
+                    .setBodySite(new CodeableConcept(
+                            new Coding("Custom", body_part, dimensions.getBodyPartDescription(body_part))));
+            return observation;
+        }
 
-            LocalDateTime timestamp;
-            try {
-                timestamp = LocalDateTime.ofInstant(observation.getEffectiveInstantType().getValue().toInstant(),
-                        TIME_ZONE.toZoneId());
-            } catch (FHIRException e) {
-                throw new UnprocessableEntityException(
-                        Msg.code(639) + "An instant timestamp is required but not provided");
+        @Override
+        protected void close() {
+            if (this.slices != null) {
+                this.slices.close();
+            } else {
+                this.measurements.close();
             }
+        }
 
-            // Check the subject
-            int subjectId;
-            try {
-                subjectId = Integer.parseInt(parseExpectedReference(observation.getSubject(), RESOURCE_TYPE));
-            } catch (NumberFormatException e) {
-                throw new UnprocessableEntityException(Msg.code(639) + "The given subject ID is malformed");
-            }
-
-            // Extract (and create, if necessary) the sensor ID
-            int sensorId = getSensorId(connection, observation);
-
-            // Parse the accelerometer values
-            Float[] parsedValues = new Float[3];
-            int currentIndex = 0;
-            for (var knownComponent : ACCELERATION_COMPONENTS) {
-                // Search through all components ...
-                INNER_LOOP: for (var component : observation.getComponent()) {
-                    // ... and try to match to a known one.
-                    if ((parsedValues[currentIndex] = knownComponent.tryParse(component)) != null) {
-                        break INNER_LOOP;
-                    }
-                }
-                ++currentIndex;
-            }
-            for (int i = 0; i < parsedValues.length; ++i) {
-                if (parsedValues[i] == null) {
-                    throw new UnprocessableEntityException(String
-                            .format("%sUnable to parse acceleration value for component '%s'",
-                                    Msg.code(639), ACCELERATION_COMPONENTS[i].toString()));
-                }
-            }
+        /**
+         * Try to insert a measurement parsed before. Measurements already stored are
+         * skipped.
+         *
+         * @param measurement The measurement to be inserted.
+         * @param writer      The writer grouping concurrent inserts or null.
+         * @return False, if the measurement is known to be stored already.
+         * @throws UnprocessableEntityException Thrown when the measurement could not
+         *                                      be inserted.
+         */
+        public static boolean insert(DSLContext connection, GroupCommitWriter writer, MeasurementsRecord measurement)
+                throws UnprocessableEntityException {
+            return new MeasurementId(measurement).insert(connection, writer, measurement);
+        }
 
-            // Create an virtual ID for the measurement, insert it and return it
-            var measurement = new MeasurementId(timestamp, subjectId, sensorId);
-            measurement.insert(connection, parsedValues[0], parsedValues[1], parsedValues[2]);
-            return measurement.toString();
+        /**
+         * Get the ID of the observation representing a measurement.
+         */
+        public static String getId(MeasurementsRecord measurement) {
+            return new MeasurementId(measurement).toString();
         }
 
-        public static void delete(DSLContext connection, IdType theId) {
+        /**
+         * Delete the measurement with the given ID.
+         *
+         * @return The key of the deleted measurement.
+         */
+        public static MeasurementsRecord delete(DSLContext connection, IdType theId) {
             var measurementId = new MeasurementId(theId.getIdPart());
             if (!measurementId.delete(connection)) {
                 throw new ResourceNotFoundException(
                         String.format("%sAn observation with the ID '%d' not found.", Msg.code(634),
                                 theId.getIdPart()));
             }
+            return measurementId.toKey();
         }
 
         private static Condition buildWhere(Integer subject, LocalDateTime start, LocalDateTime end) {
@@ -491,66 +557,6 @@ public class ObservationResourceProvider implements IResourceProvider {
             }
             return where;
         }
-
-        private static int getSensorId(DSLContext connection, Observation observation)
-                throws UnprocessableEntityException {
-            // Extract device and body side and try to identify the sensor ID from them.
-            var device = parseExpectedReference(observation.getDevice(), "Device");
-            var bodyPart = getBodyPart(connection, observation);
-
-            // Try to query the sensor if it already exists
-            Integer sensorId;
-            try {
-                sensorId = connection.select(SENSORS.SENSOR_ID).from(SENSORS)
-                        .where(SENSORS.DEVICE.eq(device), SENSORS.BODY_PART.eq(bodyPart))
-                        .limit(1) // We might enforce uniqueness at the level of the schema
-                        .fetchOne(SENSORS.SENSOR_ID, Integer.class);
-            } catch (DataAccessException e) {
-                throw new UnprocessableEntityException(
-                        Msg.code(639) + "Unable to identify the proper sensor for the measurement");
-            }
-
-            // If the sensor does not already exist, create it.
-            if (sensorId == null) {
-                try {
-                    sensorId = connection.insertInto(SENSORS, SENSORS.BODY_PART, SENSORS.DEVICE)
-                            .values(bodyPart, device).returningResult(SENSORS.SENSOR_ID).fetchOne().value1();
-                } catch (DataAccessException e) {
-                    throw new UnprocessableEntityException(String.format(
-                            "%sUnable to create combination of device and body part. Is the device '%' available within the database?",
-                            Msg.code(639), device));
-                }
-            }
-
-            return sensorId.intValue();
-        }
-
-        /**
-         * Parse the body side of an observation. If it does not already exists, it will
-         * be created and stored within the database. In any case, the returned value is
-         * safe to use within the SENSORS table.
-         */
-        private static String getBodyPart(DSLContext connection, Observation observation)
-                throws UnprocessableEntityException {
-            // Extract the usable information from the observation
-            var bodySide = parseCodeableConcept(observation.getBodySite(), "BodySide");
-            var name = bodySide.getCode();
-            var description = bodySide.getDisplay();
-            if (description == null) {
-                description = name;
-            }
-
-            try {
-                connection.insertInto(BODYPARTS, BODYPARTS.NAME, BODYPARTS.DESCRIPTION)
-                        .values(name, description).onDuplicateKeyIgnore().execute();
-            } catch (DataAccessException e) {
-                throw new UnprocessableEntityException(String
-                        .format("%sUnable to query or insert the body part '%s' into the database", Msg.code(639),
-                                name));
-            }
-
-            return name;
-        }
     }
 
     /**
@@ -560,24 +566,25 @@ public class ObservationResourceProvider implements IResourceProvider {
 
         private Cursor<Record16<Float, String, Integer, String, Float, Float, String, Integer, LocalDateTime, LocalDateTime, Integer, String, String, String, String, String>> measurements;
 
-        public FetchedRatings(DSLContext connection, Integer subject, LocalDateTime start, LocalDateTime end) {
-            super(connection.selectCount().from(RATINGS).join(TASKS).on(RATINGS.TASK.eq(TASKS.TASK_ID))
+        public FetchedRatings(DSLContext connection, Prefetcher prefetcher, Integer subject, LocalDateTime start,
+                LocalDateTime end) {
+            super(connection.selectCount().from(RatingObservations.TABLE)
                     .where(buildWhere(subject, start, end))
                     .fetchOne(0, int.class),
-                    new Coding("http://terminology.hl7.org/CodeSystem/observation-category", "exam", "Exam"));
+                    new Coding("http://terminology.hl7.org/CodeSystem/observation-category", "exam", "Exam"),
+                    prefetcher);
+
+            // The projection is already denormalized - no joins required
             this.measurements = connection
-                    .select(RATINGS.RATING, RATINGS.COMMENT, RATINGS.SENSOR,
-                            ASSESSMENTS.NAME, ASSESSMENTS.MINIMAL_SEVERENESS, ASSESSMENTS.MAXIMAL_SEVERENESS,
-                            ASSESSMENTS.DESCRIPTION,
-                            TASKS.TASK_ID, TASKS.TASK_START, TASKS.TASK_END, TASKS.SUBJECT,
-                            TASKTYPES.NAME, TASKTYPES.DESCRIPTION, TASKTYPES.UPDRS_CODE,
-                            BODYPARTS.NAME, BODYPARTS.DESCRIPTION)
-                    .from(RATINGS)
-                    .join(ASSESSMENTS).on(RATINGS.ASSESSMENT.eq(ASSESSMENTS.NAME))
-                    .join(TASKS).on(RATINGS.TASK.eq(TASKS.TASK_ID))
-                    .join(TASKTYPES).on(TASKS.TASK_TYPE.eq(TASKTYPES.NAME))
-                    .join(SENSORS).on(RATINGS.SENSOR.eq(SENSORS.SENSOR_ID))
-                    .join(BODYPARTS).on(SENSORS.BODY_PART.eq(BODYPARTS.NAME))
+                    .select(RatingObservations.RATING, RatingObservations.COMMENT, RatingObservations.SENSOR,
+                            RatingObservations.ASSESSMENT, RatingObservations.MINIMAL_SEVERENESS,
+                            RatingObservations.MAXIMAL_SEVERENESS, RatingObservations.ASSESSMENT_DESCRIPTION,
+                            RatingObservations.TASK, RatingObservations.TASK_START, RatingObservations.TASK_END,
+                            RatingObservations.SUBJECT,
+                            RatingObservations.TASK_TYPE, RatingObservations.TASK_TYPE_DESCRIPTION,
+                            RatingObservations.UPDRS_CODE,
+                            RatingObservations.BODY_PART, RatingObservations.BODY_PART_DESCRIPTION)
+                    .from(RatingObservations.TABLE)
                     .where(buildWhere(subject, start, end)).fetchSize(FETCH_SIZE).fetchLazy();
         }
 
@@ -586,37 +593,41 @@ public class ObservationResourceProvider implements IResourceProvider {
         protected List<IBaseResource> fetchNext(int numSamples) {
             var loaded_measurements = new ArrayList<IBaseResource>(numSamples);
             for (var sample : measurements.fetchNext(numSamples)) {
-                var sensor = sample.get(RATINGS.SENSOR);
-                var assessment_name = sample.get(ASSESSMENTS.NAME);
-                var task = sample.get(TASKS.TASK_ID);
+                var sensor = sample.get(RatingObservations.SENSOR);
+                var assessment_name = sample.get(RatingObservations.ASSESSMENT);
+                var task = sample.get(RatingObservations.TASK);
 
                 // Fill the observation with meaningful information
                 var observation = new Observation();
                 observation.setId(String.format("R-%s-%d-%d", assessment_name, sensor, task));
                 observation.setStatus(ObservationStatus.FINAL);
                 observation.setCategory(this.category);
-                observation.setSubject(new Reference(new IdType("Patient", (long) sample.get(TASKS.SUBJECT))));
-                observation.setValue(new Quantity(sample.get(RATINGS.RATING)));
+                observation.setSubject(
+                        new Reference(new IdType("Patient", (long) sample.get(RatingObservations.SUBJECT))));
+                observation.setValue(new Quantity(sample.get(RatingObservations.RATING)));
                 observation.setReferenceRange(
                         Arrays.asList(new ObservationReferenceRangeComponent()
-                                .setLow(new Quantity(sample.get(ASSESSMENTS.MINIMAL_SEVERENESS)))
-                                .setHigh(new Quantity(sample.get(ASSESSMENTS.MAXIMAL_SEVERENESS)))));
+                                .setLow(new Quantity(sample.get(RatingObservations.MINIMAL_SEVERENESS)))
+                                .setHigh(new Quantity(sample.get(RatingObservations.MAXIMAL_SEVERENESS)))));
 
                 // Treat UPDRS and non-UPDRS assessments differently
-                var updrs_code = sample.get(TASKTYPES.UPDRS_CODE);
+                var updrs_code = sample.get(RatingObservations.UPDRS_CODE);
                 if (updrs_code == null) {
                     // If no UPDRS rating is given, set the code to specify WHAT symptom that
                     // assessed ...
                     observation.setCode(new CodeableConcept(
-                            new Coding("custom", assessment_name, sample.get(ASSESSMENTS.DESCRIPTION))));
+                            new Coding("custom", assessment_name,
+                                    sample.get(RatingObservations.ASSESSMENT_DESCRIPTION))));
 
                     // ... , at which body part,
                     observation.setBodySite(new CodeableConcept(
-                            new Coding("custom", sample.get(BODYPARTS.NAME), sample.get(BODYPARTS.DESCRIPTION))));
+                            new Coding("custom", sample.get(RatingObservations.BODY_PART),
+                                    sample.get(RatingObservations.BODY_PART_DESCRIPTION))));
 
                     // ... and during which task.
                     observation.setMethod(new CodeableConcept(
-                            new Coding("custom", sample.get(TASKTYPES.NAME), sample.get(TASKTYPES.DESCRIPTION))));
+                            new Coding("custom", sample.get(RatingObservations.TASK_TYPE),
+                                    sample.get(RatingObservations.TASK_TYPE_DESCRIPTION))));
                 } else {
                     // TODO: Set appropiate LOINC codes from https://loinc.org/77717-7/
                     observation.setCode(new CodeableConcept(
@@ -624,14 +635,14 @@ public class ObservationResourceProvider implements IResourceProvider {
                 }
 
                 // Encode optional comments
-                var note = sample.get(RATINGS.COMMENT);
+                var note = sample.get(RatingObservations.COMMENT);
                 if (note != null && !note.isEmpty()) {
                     observation.setNote(Arrays.asList(new Annotation(new MarkdownType(note))));
                 }
 
                 // Set the time of the test
-                var duration = new Period().setStart(castLocalDateTime(sample.get(TASKS.TASK_START)));
-                var end = sample.get(TASKS.TASK_END);
+                var duration = new Period().setStart(castLocalDateTime(sample.get(RatingObservations.TASK_START)));
+                var end = sample.get(RatingObservations.TASK_END);
                 if (end != null) {
                     duration = duration.setEnd(castLocalDateTime(end));
                 }
@@ -643,16 +654,146 @@ public class ObservationResourceProvider implements IResourceProvider {
             return loaded_measurements;
         }
 
+        @Override
+        protected void close() {
+            this.measurements.close();
+        }
+
+        private static Condition buildWhere(Integer subject, LocalDateTime start, LocalDateTime end) {
+            Condition where = DSL.trueCondition();
+            if (subject != null) {
+                where = where.and(RatingObservations.SUBJECT.eq(subject));
+            }
+            if (start != null) {
+                where = where.and(RatingObservations.TASK_START.ge(start));
+            }
+            if (end != null) {
+                where = where.and(RatingObservations.TASK_END.le(end));
+            }
+            return where;
+        }
+
+    }
+
+    /**
+     * A fetched set of precomputed movement features.
+     */
+    private static class FetchedFeatures extends FetchedObservations {
+
+        private static final String[] AXES = { "x", "y", "z" };
+
+        private final DimensionCache dimensions;
+        private Cursor<Record> features;
+
+        public FetchedFeatures(DSLContext connection, DimensionCache dimensions, Prefetcher prefetcher,
+                Integer subject, LocalDateTime start, LocalDateTime end) {
+            super(connection.selectCount().from(MovementFeatures.TABLE)
+                    .where(buildWhere(subject, start, end))
+                    .fetchOne(0, int.class),
+                    new Coding("http://terminology.hl7.org/CodeSystem/observation-category", "activity",
+                            "Activity"),
+                    prefetcher);
+
+            this.dimensions = dimensions;
+            this.features = connection
+                    .select()
+                    .from(MovementFeatures.TABLE)
+                    .where(buildWhere(subject, start, end))
+                    .orderBy(MovementFeatures.SUBJECT, MovementFeatures.WINDOW_START, MovementFeatures.SENSOR,
+                            MovementFeatures.KIND)
+                    .fetchSize(FETCH_SIZE).fetchLazy();
+        }
+
+        @Override
+        @Nonnull
+        protected List<IBaseResource> fetchNext(int numSamples) {
+            var loaded_features = new ArrayList<IBaseResource>(numSamples);
+            for (var window : this.features.fetchNext(numSamples)) {
+                var subject = window.get(MovementFeatures.SUBJECT);
+                var sensor = this.dimensions.getSensor(window.get(MovementFeatures.SENSOR));
+                var kind = window.get(MovementFeatures.KIND);
+                var start = window.get(MovementFeatures.WINDOW_START);
+
+                var observation = new Observation();
+                // Tasks may start at the same instant, so they are identified by their ID
+                var task = window.get(MovementFeatures.TASK);
+                observation.setId(task != null
+                        ? String.format("M-%s-%d-%d", kind, task, sensor.getSensorId())
+                        : String.format("M-%s-%s-%d-%d", kind, start.toString(), subject, sensor.getSensorId()));
+                observation.setStatus(ObservationStatus.FINAL);
+                observation.setCategory(this.category);
+                observation.setCode(new CodeableConcept(
+                        new Coding("Custom", "movement-features", "Features of the movement")));
+                observation.setMethod(new CodeableConcept(new Coding("Custom", kind,
+                        MovementFeatures.KIND_TASK.equals(kind) ? "Window of a task" : "Fixed epoch")));
+                observation.setSubject(new Reference(new IdType("Patient", (long) subject)));
+                observation.setDevice(new Reference(new IdType("Device", sensor.getDevice())));
+                observation.setBodySite(new CodeableConcept(new Coding("Custom", sensor.getBodyPart(),
+                        this.dimensions.getBodyPartDescription(sensor.getBodyPart()))));
+                observation.setEffective(new Period()
+                        .setStart(castLocalDateTime(start))
+                        .setEnd(castLocalDateTime(window.get(MovementFeatures.WINDOW_END))));
+
+                if (task != null) {
+                    observation.addComponent(new ObservationComponentComponent(
+                            new CodeableConcept(new Coding("Custom", "task", "Task")))
+                            .setValue(new IntegerType(task)));
+                }
+                observation.addComponent(new ObservationComponentComponent(
+                        new CodeableConcept(new Coding("Custom", "num-samples", "Number of samples")))
+                        .setValue(new IntegerType(window.get(MovementFeatures.NUM_SAMPLES))));
+                addComponent(observation, "sample-rate", "Estimated rate of the samples",
+                        window.get(MovementFeatures.SAMPLE_RATE), "Hz");
+                addComponent(observation, "sma", "Signal magnitude area", window.get(MovementFeatures.SMA),
+                        "m/s^2");
+                for (int axis = 0; axis < AXES.length; ++axis) {
+                    addComponent(observation, "rms-" + AXES[axis], "Root mean square",
+                            window.get(MovementFeatures.RMS.get(axis)), "m/s^2");
+                    addComponent(observation, "jerk-" + AXES[axis], "Mean absolute jerk",
+                            window.get(MovementFeatures.JERK.get(axis)), "m/s^3");
+                    addComponent(observation, "dominant-frequency-" + AXES[axis], "Dominant frequency",
+                            window.get(MovementFeatures.DOMINANT_FREQUENCY.get(axis)), "Hz");
+                    addComponent(observation, "entropy-" + AXES[axis], "Normalized spectral entropy",
+                            window.get(MovementFeatures.ENTROPY.get(axis)), null);
+                }
+
+                loaded_features.add(observation);
+            }
+
+            return loaded_features;
+        }
+
+        /**
+         * Add a feature as a component. Features not available are skipped.
+         */
+        private static void addComponent(Observation observation, String code, String description, Float value,
+                String unit) {
+            if (value == null) {
+                return;
+            }
+            var quantity = new Quantity(value.doubleValue());
+            if (unit != null) {
+                quantity.setUnit(unit);
+            }
+            observation.addComponent(new ObservationComponentComponent(
+                    new CodeableConcept(new Coding("Custom", code, description))).setValue(quantity));
+        }
+
+        @Override
+        protected void close() {
+            this.features.close();
+        }
+
         private static Condition buildWhere(Integer subject, LocalDateTime start, LocalDateTime end) {
             Condition where = DSL.trueCondition();
             if (subject != null) {
-                where = where.and(TASKS.SUBJECT.eq(subject));
+                where = where.and(MovementFeatures.SUBJECT.eq(subject));
             }
             if (start != null) {
-                where = where.and(TASKS.TASK_START.ge(start));
+                where = where.and(MovementFeatures.WINDOW_START.ge(start));
             }
             if (end != null) {
-                where = where.and(TASKS.TASK_END.le(end));
+                where = where.and(MovementFeatures.WINDOW_END.le(end));
             }
             return where;
         }
@@ -660,10 +801,18 @@ public class ObservationResourceProvider implements IResourceProvider {
     }
 
     /**
-     * Create a new PatientResourceProvider.
+     * Create a new ObservationResourceProvider.
      */
-    public ObservationResourceProvider(DSLContext connection) {
+    public ObservationResourceProvider(DSLContext connection, DimensionCache dimensions, Prefetcher prefetcher,
+            RangeScanner scanner, GroupCommitWriter writer, IngestQueue ingest, ReplayFilter replays) {
         this.connection = connection;
+        this.dimensions = dimensions;
+        this.prefetcher = prefetcher;
+        this.scanner = scanner;
+        this.writer = writer;
+        this.ingest = ingest;
+        this.replays = replays;
+        this.validator = new ObservationValidator(connection, dimensions);
     }
 
     @Override
@@ -695,34 +844,59 @@ public class ObservationResourceProvider implements IResourceProvider {
         if (range != null) {
             Date raw_start = range.getLowerBoundAsInstant();
             if (raw_start != null) {
-                start = raw_start.toInstant().atZone(ZoneId.systemDefault()).toLocalDateTime();
+                start = raw_start.toInstant().atZone(ZoneOffset.UTC).toLocalDateTime();
             }
 
             Date raw_end = range.getUpperBoundAsInstant();
             if (raw_end != null) {
-                end = raw_end.toInstant().atZone(ZoneId.systemDefault()).toLocalDateTime();
+                end = raw_end.toInstant().atZone(ZoneOffset.UTC).toLocalDateTime();
             }
         }
 
         if (category != null && category.getValue().compareTo("exam") == 0) {
-            return new FetchedRatings(this.connection, subject_id, start, end);
+            return new FetchedRatings(this.connection, this.prefetcher, subject_id, start, end);
         } else if (category != null && category.getValue().compareTo("procedure") == 0) {
-            return new FetchedAccelerationObservations(this.connection, subject_id, start, end);
+            return new FetchedAccelerationObservations(this.connection, this.dimensions, this.prefetcher,
+                    this.scanner, subject_id, start, end);
+        } else if (category != null && category.getValue().compareTo("activity") == 0) {
+            return new FetchedFeatures(this.connection, this.dimensions, this.prefetcher, subject_id, start, end);
         } else {
-            throw new ResourceNotFoundException("Please specify 'exam' or 'procedure' for category");
+            throw new ResourceNotFoundException("Please specify 'exam', 'procedure' or 'activity' for category");
         }
     }
 
     @Create
     public MethodOutcome createObservation(@ResourceParam Observation observation) {
-        var concept = FetchedObservations.parseCodeableConcept(observation.getCategory(), "Category");
-        if (concept.getCode().compareTo(FetchedAccelerationObservations.CATEGORY.getCode()) != 0) {
-            throw new UnprocessableEntityException("Unsupported observation");
+        // Single observations are posted concurrently: Let them share their commits.
+        return this.createObservation(observation, this.writer);
+    }
+
+    private MethodOutcome createObservation(Observation observation, GroupCommitWriter writer) {
+        var validated = this.validator.validate(observation);
+        if (!validated.isValid()) {
+            throw new UnprocessableEntityException(validated.getError());
+        }
+        return this.write(validated.getMeasurement(), writer);
+    }
+
+    /**
+     * Write a validated measurement.
+     *
+     * @param writer The writer grouping concurrent inserts or null.
+     */
+    private MethodOutcome write(MeasurementsRecord measurement, GroupCommitWriter writer) {
+        // Re-sent measurements are recognized without querying the database
+        boolean created = false;
+        if (this.replays == null || !this.replays.isDuplicate(measurement)) {
+            created = FetchedAccelerationObservations.insert(this.connection, writer, measurement);
+            if (this.replays != null) {
+                this.replays.record(measurement);
+            }
         }
 
         MethodOutcome result = new MethodOutcome();
-        result.setId(new IdType("Observation",
-                FetchedAccelerationObservations.insertObservation(this.connection, observation)));
+        result.setId(new IdType("Observation", FetchedAccelerationObservations.getId(measurement)));
+        result.setCreated(created);
         result.setOperationOutcome(new OperationOutcome());
         return result;
     }
@@ -730,39 +904,234 @@ public class ObservationResourceProvider implements IResourceProvider {
     @Delete
     public void deleteObservation(@IdParam IdType theId) {
         // ToDo: At some point in time, we might have to support ratings, too.
-        FetchedAccelerationObservations.delete(connection, theId);
+        this.delete(this.connection, theId);
     }
 
-    @Transaction
-    public Bundle transaction(@TransactionParam Bundle observations) {
-        // We only support a small subset
-        if (observations.getType() != Bundle.BundleType.BATCH) {
-            throw new UnprocessableEntityException("Only resources of type 'Outcome' are supported");
+    /**
+     * Get the validator shared by all write paths.
+     */
+    ObservationValidator getValidator() {
+        return this.validator;
+    }
+
+    /**
+     * Insert validated measurements with batched statements. Re-sent measurements
+     * recognized by the replay filter are skipped without querying the database.
+     * The measurements must be passed to record() once they are committed.
+     *
+     * @return For each measurement, whether a row was inserted for it.
+     */
+    boolean[] insert(DSLContext context, List<MeasurementsRecord> measurements) {
+        var created = new boolean[measurements.size()];
+        var batch = new ArrayList<MeasurementsRecord>(measurements.size());
+        for (int i = 0; i < measurements.size(); ++i) {
+            if (this.replays == null || !this.replays.isDuplicate(measurements.get(i))) {
+                batch.add(measurements.get(i));
+                created[i] = true;
+            }
         }
 
-        Bundle result = new Bundle();
-        for (BundleEntryComponent nextObservation : observations.getEntry()) {
-            // Check if the resource is really an observation
-            var resource = nextObservation.getResource();
-            if (resource == null || !(resource instanceof Observation)) {
-                throw new UnprocessableEntityException("Only resources of type 'Outcome' are supported");
+        // Measurements stored already are only known to the database
+        var inserted = BatchInserter.insertReturning(context, batch);
+        for (int i = 0, j = 0; i < created.length; ++i) {
+            if (created[i]) {
+                created[i] = inserted[j++];
             }
+        }
+        return created;
+    }
 
-            var response = new Bundle.BundleEntryResponseComponent();
-            try {
-                // Try to create the observation ...
-                var outcome = this.createObservation((Observation) resource);
-                response.setLocation(outcome.getId().toString());
-                response.setStatus("201 Created");
-            } catch (UnprocessableEntityException ex) {
-                // ... and fail otherwise.
-                response.setStatus(String.format("400 Bad Request ('%s')", ex.toString()));
+    /**
+     * Remember committed measurements such that re-sending them is cheap.
+     */
+    void record(List<MeasurementsRecord> measurements) {
+        if (this.replays != null) {
+            for (var measurement : measurements) {
+                this.replays.record(measurement);
             }
+        }
+    }
 
-            // Add the resource identifier
-            result.addEntry(new BundleEntryComponent().setResponse(response));
+    /**
+     * Delete an observation of acceleration using the given context.
+     */
+    void delete(DSLContext context, IdType theId) {
+        var measurement = FetchedAccelerationObservations.delete(context, theId);
+        if (this.replays != null) {
+            this.replays.forget(measurement);
         }
+    }
 
-        return result;
+    /**
+     * Represent a measurement of acceleration as an observation, just like
+     * searches do.
+     */
+    public static Observation toObservation(MeasurementsRecord measurement, DimensionCache dimensions) {
+        return FetchedAccelerationObservations.toObservation(measurement, dimensions,
+                Arrays.asList(new CodeableConcept(FetchedAccelerationObservations.CATEGORY)));
+    }
+
+    /**
+     * Get the relative location of the observation representing a measurement.
+     */
+    static String getLocation(MeasurementsRecord measurement) {
+        return new IdType("Observation", FetchedAccelerationObservations.getId(measurement)).toString();
+    }
+
+    /**
+     * Accept a batch of observations for asynchronous ingest. The observations are
+     * validated immediately and written in background. The client is referred to
+     * $ingest-status for the outcome of each entry.
+     */
+    @Operation(name = "$ingest", manualRequest = true, manualResponse = true)
+    public void ingest(ServletRequestDetails details) throws IOException {
+        if (this.ingest == null) {
+            throw new NotImplementedOperationException("Asynchronous ingest is disabled");
+        }
+
+        // Parse the batch ourselves: Operations only receive Parameters otherwise.
+        Bundle observations;
+        try {
+            var encoding = EncodingEnum.forContentType(details.getServletRequest().getContentType());
+            var parser = (encoding != null ? encoding : EncodingEnum.JSON).newParser(details.getFhirContext());
+            observations = parser.parseResource(Bundle.class, details.getServletRequest().getReader());
+        } catch (DataFormatException e) {
+            throw new UnprocessableEntityException(Msg.code(639) + "Unable to parse the bundle: " + e.getMessage());
+        }
+        if (observations.getType() != Bundle.BundleType.BATCH) {
+            throw new UnprocessableEntityException("Only bundles of type 'batch' are supported");
+        }
+
+        // Validate everything on the request thread such that the client is informed
+        // about malformed entries even before they are written.
+        var measurements = new ArrayList<MeasurementsRecord>(observations.getEntry().size());
+        var errors = new ArrayList<String>(observations.getEntry().size());
+        for (BundleEntryComponent nextObservation : observations.getEntry()) {
+            var validated = this.validator.validate(nextObservation.getResource());
+            measurements.add(validated.getMeasurement());
+            errors.add(validated.getError());
+        }
+
+        // Once submitted, the observations are journaled and must not get lost
+        var job = new IngestJob(measurements, errors);
+        boolean accepted;
+        try {
+            accepted = this.ingest.submit(job);
+        } catch (IOException e) {
+            throw new InternalErrorException("Unable to journal the observations", e);
+        }
+        if (!accepted) {
+            throw new UnclassifiedServerFailureException(429,
+                    "Too many observations are waiting for being written. Please retry later.");
+        }
+
+        // Refer to the status of the job
+        var outcome = new OperationOutcome();
+        outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+                .setCode(OperationOutcome.IssueType.INFORMATIONAL)
+                .setDiagnostics(String.format("Accepted %d observations for ingest", observations.getEntry().size()));
+
+        var response = details.getServletResponse();
+        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        response.setHeader(Constants.HEADER_CONTENT_LOCATION, getIngestStatusUrl(details, job));
+        writeResource(details, outcome);
+    }
+
+    /**
+     * Get the state of an asynchronous ingest. While it is running, 202 is
+     * returned. Afterwards, the outcome is returned just like for a batch.
+     */
+    @Operation(name = "$ingest-status", idempotent = true, manualResponse = true)
+    public void ingestStatus(@OperationParam(name = "job", min = 1, max = 1) StringType jobId,
+            ServletRequestDetails details) throws IOException {
+        var job = this.ingest != null && jobId != null ? this.ingest.get(jobId.getValue()) : null;
+        if (job == null) {
+            throw new ResourceNotFoundException("The ingest job is unknown or already expired");
+        }
+
+        var response = details.getServletResponse();
+        if (job.getState() != IngestJob.State.COMPLETED) {
+            response.setStatus(HttpServletResponse.SC_ACCEPTED);
+            response.setHeader("X-Progress", String.format("%d/%d", job.getNumProcessed(), job.size()));
+            response.setHeader(Constants.HEADER_RETRY_AFTER, "1");
+            return;
+        }
+
+        Bundle result = new Bundle();
+        result.setType(Bundle.BundleType.BATCHRESPONSE);
+        for (int i = 0; i < job.size(); ++i) {
+            var error = job.getError(i);
+            result.addEntry(error == null
+                    ? createResponseEntry(getLocation(job.getMeasurement(i)), !job.isDuplicate(i))
+                    : createErrorEntry(error));
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        writeResource(details, result);
+    }
+
+    /**
+     * Ingest observations streamed as NDJSON or as entries of a batch bundle.
+     * Unlike $ingest, the upload is never held in memory as a whole: Chunks are
+     * handed to the writers while the body is still read. The response is sent
+     * once all observations are written.
+     */
+    @Operation(name = "$ingest-stream", manualRequest = true, manualResponse = true)
+    public void ingestStream(ServletRequestDetails details) throws IOException {
+        if (this.ingest == null) {
+            throw new NotImplementedOperationException("Asynchronous ingest is disabled");
+        }
+
+        var request = details.getServletRequest();
+        var contentType = request.getContentType();
+        ResourceStream stream;
+        if (contentType != null && contentType.contains("ndjson")) {
+            stream = ResourceStream.ofNdjson(details.getFhirContext(), request.getReader());
+        } else if (contentType == null || EncodingEnum.forContentType(contentType) == EncodingEnum.JSON) {
+            stream = ResourceStream.ofBundle(details.getFhirContext(), request.getReader());
+        } else {
+            throw new UnprocessableEntityException(
+                    Msg.code(639) + "Only NDJSON or bundles encoded as JSON are supported");
+        }
+
+        var streaming = new StreamingIngest(this.ingest, this.validator);
+        OperationOutcome outcome;
+        try {
+            outcome = streaming.run(stream);
+        } catch (JsonProcessingException e) {
+            throw new UnprocessableEntityException(String.format(
+                    "%sThe upload is malformed after %d entries, which are written nevertheless: %s",
+                    Msg.code(639), streaming.getNumEntries(), e.getOriginalMessage()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalErrorException("Interrupted while waiting for the writers", e);
+        }
+
+        details.getServletResponse().setStatus(HttpServletResponse.SC_OK);
+        writeResource(details, outcome);
+    }
+
+    private static BundleEntryComponent createResponseEntry(String location, boolean created) {
+        var response = new Bundle.BundleEntryResponseComponent();
+        response.setLocation(location);
+        response.setStatus(created ? "201 Created" : "200 OK");
+        return new BundleEntryComponent().setResponse(response);
+    }
+
+    private static BundleEntryComponent createErrorEntry(String error) {
+        var response = new Bundle.BundleEntryResponseComponent();
+        response.setStatus(String.format("400 Bad Request ('%s')", error));
+        return new BundleEntryComponent().setResponse(response);
+    }
+
+    private static String getIngestStatusUrl(ServletRequestDetails details, IngestJob job) {
+        return String.format("%s/Observation/$ingest-status?job=%s", details.getFhirServerBase(), job.getId());
+    }
+
+    private static void writeResource(ServletRequestDetails details, IBaseResource resource) throws IOException {
+        var response = details.getServletResponse();
+        response.setContentType(Constants.CT_FHIR_JSON_NEW);
+        response.setCharacterEncoding("UTF-8");
+        details.getFhirContext().newJsonParser().encodeResourceToWriter(resource, response.getWriter());
     }
 }
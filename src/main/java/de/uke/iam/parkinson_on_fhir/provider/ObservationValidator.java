@@ -0,0 +1,316 @@
+package de.uke.iam.parkinson_on_fhir.provider;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.regex.Pattern;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Observation.ObservationStatus;
+
+import ca.uhn.fhir.i18n.Msg;
+
+import org.jooq.DSLContext;
+import org.jooq.exception.DataAccessException;
+
+import static de.uke.iam.parkinson_on_fhir.database.Tables.*;
+import de.uke.iam.parkinson_on_fhir.database.tables.records.MeasurementsRecord;
+
+/**
+ * Converts observations of acceleration into measurements. Malformed
+ * observations are reported as results instead of exceptions, such that
+ * batches with many bad entries stay cheap.
+ */
+public class ObservationValidator {
+
+    /**
+     * The outcome of validating a single observation.
+     */
+    public static final class Result {
+        private final MeasurementsRecord measurement;
+        private final String error;
+
+        private Result(MeasurementsRecord measurement, String error) {
+            this.measurement = measurement;
+            this.error = error;
+        }
+
+        private static Result invalid(String message, Object... arguments) {
+            return new Result(null, Msg.code(639) + String.format(message, arguments));
+        }
+
+        public boolean isValid() {
+            return this.measurement != null;
+        }
+
+        /**
+         * Get the measurement, or null if the observation is invalid.
+         */
+        public MeasurementsRecord getMeasurement() {
+            return this.measurement;
+        }
+
+        /**
+         * Get the reason why the observation is invalid, or null if it is valid.
+         */
+        public String getError() {
+            return this.error;
+        }
+    }
+
+    public static final String CATEGORY = "procedure";
+
+    private static final TimeZone TIME_ZONE = TimeZone.getTimeZone("UTC");
+    private static final String SUBJECT_TYPE = "Patient";
+    private static final String DEVICE_TYPE = "Device";
+    private static final Pattern NUMERIC_ID = Pattern.compile("[0-9]{1,9}");
+
+    private static final String[] COMPONENT_NAMES = { "Acceleration on the X axis", "Acceleration on the Y axis",
+            "Acceleration on the Z axis" };
+
+    private final DSLContext connection;
+    private final DimensionCache dimensions;
+    private final Set<String> pendingDevices;
+    private final Set<Integer> pendingSubjects;
+    private final Map<String, Integer> pendingSensors;
+
+    /**
+     * Create a new ObservationValidator.
+     *
+     * @param connection The connection used for creating missing body parts and
+     *                   sensors.
+     * @param dimensions The cache of the known body parts, devices and sensors.
+     */
+    public ObservationValidator(DSLContext connection, DimensionCache dimensions) {
+        this.connection = connection;
+        this.dimensions = dimensions;
+        this.pendingDevices = Set.of();
+        this.pendingSubjects = Set.of();
+        this.pendingSensors = null;
+    }
+
+    private ObservationValidator(DSLContext connection, DimensionCache dimensions, Set<String> pendingDevices,
+            Set<Integer> pendingSubjects) {
+        this.connection = connection;
+        this.dimensions = dimensions;
+        this.pendingDevices = pendingDevices;
+        this.pendingSubjects = pendingSubjects;
+        this.pendingSensors = new HashMap<String, Integer>();
+    }
+
+    /**
+     * Create a validator for observations written within a transaction. Rows
+     * written within the transaction are invisible to the dimension cache: The
+     * given devices and subjects are taken as known and sensors created are
+     * remembered by the validator itself. The returned validator is not
+     * thread-safe.
+     *
+     * @param context  The context of the transaction.
+     * @param devices  The devices inserted within the transaction.
+     * @param subjects The IDs of the subjects inserted within the transaction.
+     */
+    public ObservationValidator withinTransaction(DSLContext context, Collection<String> devices,
+            Collection<Integer> subjects) {
+        return new ObservationValidator(context, this.dimensions, new HashSet<String>(devices),
+                new HashSet<Integer>(subjects));
+    }
+
+    /**
+     * Validate a resource and convert it into a measurement. The sensor is
+     * created, if the combination of device and body part is new.
+     *
+     * @param resource The resource expected to be an acceleration observation.
+     * @return The measurement or the reason why the resource is invalid.
+     */
+    public Result validate(IBaseResource resource) {
+        if (!(resource instanceof Observation)) {
+            return Result.invalid("Only resources of type 'Observation' are supported");
+        }
+        var observation = (Observation) resource;
+
+        var category = getSingleCoding(observation.getCategory().size() == 1 ? observation.getCategoryFirstRep()
+                : null);
+        if (category == null || !CATEGORY.equals(category.getCode())) {
+            return Result.invalid("Unsupported observation");
+        }
+        if (observation.getStatus() != ObservationStatus.FINAL) {
+            return Result.invalid("The observation must be FINAL.");
+        }
+
+        // The timestamp
+        if (!(observation.getEffective() instanceof InstantType)
+                || ((InstantType) observation.getEffective()).getValue() == null) {
+            return Result.invalid("An instant timestamp is required but not provided");
+        }
+        var timestamp = LocalDateTime.ofInstant(((InstantType) observation.getEffective()).getValue().toInstant(),
+                TIME_ZONE.toZoneId());
+
+        // The subject
+        var subject = getRelativeReference(observation.getSubject(), SUBJECT_TYPE);
+        if (subject == null) {
+            return Result.invalid("The given reference for expected identifier '%s' is invalid", SUBJECT_TYPE);
+        } else if (!NUMERIC_ID.matcher(subject).matches()) {
+            return Result.invalid("The given subject ID is malformed");
+        }
+        var subjectId = Integer.parseInt(subject);
+        try {
+            if (!this.hasSubject(subjectId)) {
+                return Result.invalid("The subject '%d' is not available within the database", subjectId);
+            }
+        } catch (DataAccessException e) {
+            return Result.invalid("Unable to identify the subject of the measurement");
+        }
+
+        // The accelerometer values, matched in a single pass
+        float[] values = new float[3];
+        boolean[] found = new boolean[3];
+        for (var component : observation.getComponent()) {
+            int axis;
+            switch (component.getCode().getCodingFirstRep().getCode() != null
+                    ? component.getCode().getCodingFirstRep().getCode()
+                    : "") {
+                case "X42":
+                    axis = 0;
+                    break;
+                case "X43":
+                    axis = 1;
+                    break;
+                case "X44":
+                    axis = 2;
+                    break;
+                default:
+                    continue;
+            }
+            if (found[axis]) {
+                continue;
+            }
+
+            var value = component.getValue();
+            if (!(value instanceof Quantity) || ((Quantity) value).getValue() == null) {
+                return Result.invalid("The observation component does not contain a valid quantity.");
+            }
+            values[axis] = ((Quantity) value).getValue().floatValue();
+            found[axis] = true;
+        }
+        for (int i = 0; i < found.length; ++i) {
+            if (!found[i]) {
+                return Result.invalid("Unable to parse acceleration value for component '%s'", COMPONENT_NAMES[i]);
+            }
+        }
+
+        // The sensor, identified by device and body part
+        var device = getRelativeReference(observation.getDevice(), DEVICE_TYPE);
+        if (device == null) {
+            return Result.invalid("The given reference for expected identifier '%s' is invalid", DEVICE_TYPE);
+        }
+        var bodySite = getSingleCoding(observation.getBodySite());
+        if (bodySite == null || bodySite.getCode() == null) {
+            return Result.invalid("Exactly one coding is expected for '%s'", "BodySide");
+        }
+
+        Integer sensorId;
+        try {
+            sensorId = this.resolveSensor(device, bodySite);
+        } catch (DataAccessException e) {
+            return Result.invalid("Unable to identify the proper sensor for the measurement");
+        }
+        if (sensorId == null) {
+            return Result.invalid("Unable to create combination of device and body part. Is the device '%s' "
+                    + "available within the database?", device);
+        }
+
+        return new Result(
+                new MeasurementsRecord(timestamp, sensorId, subjectId, values[0], values[1], values[2]),
+                null);
+    }
+
+    /**
+     * Check whether a subject is available within the database or was created
+     * within the transaction of the validator.
+     */
+    public boolean hasSubject(int subjectId) {
+        return this.pendingSubjects.contains(subjectId) || this.dimensions.hasSubject(subjectId);
+    }
+
+    /**
+     * Find the sensor for a device and body part and create it, if necessary.
+     *
+     * @return The ID of the sensor or null, if the device is unknown.
+     */
+    public Integer getSensorId(String device, String bodyPart) {
+        return this.resolveSensor(device, new Coding().setCode(bodyPart));
+    }
+
+    /**
+     * Find the sensor for a device and body part and create it, if necessary.
+     *
+     * @return The ID of the sensor or null, if the device is unknown.
+     */
+    private Integer resolveSensor(String device, Coding bodySite) {
+        var bodyPart = bodySite.getCode();
+        var pendingKey = device + '\0' + bodyPart;
+        if (this.pendingSensors != null && this.pendingSensors.containsKey(pendingKey)) {
+            return this.pendingSensors.get(pendingKey);
+        }
+
+        // Devices inserted within the transaction have no sensors committed yet
+        Integer sensorId;
+        if (!this.pendingDevices.contains(device)) {
+            sensorId = this.dimensions.findSensorId(device, bodyPart);
+            if (sensorId != null) {
+                return sensorId;
+            } else if (!this.dimensions.hasDevice(device)) {
+                return null;
+            }
+        }
+
+        if (!this.dimensions.hasBodyPart(bodyPart)) {
+            var description = bodySite.getDisplay() != null ? bodySite.getDisplay() : bodyPart;
+            this.connection.insertInto(BODYPARTS, BODYPARTS.NAME, BODYPARTS.DESCRIPTION)
+                    .values(bodyPart, description).onDuplicateKeyIgnore().execute();
+        }
+        // A concurrent writer may have created the sensor since the lookup; the
+        // no-op update returns its ID instead of creating a second one
+        sensorId = this.connection.insertInto(SENSORS, SENSORS.BODY_PART, SENSORS.DEVICE)
+                .values(bodyPart, device).onConflict(SENSORS.DEVICE, SENSORS.BODY_PART).doUpdate()
+                .set(SENSORS.DEVICE, device).returningResult(SENSORS.SENSOR_ID).fetchOne().value1();
+        if (this.pendingSensors != null) {
+            this.pendingSensors.put(pendingKey, sensorId);
+        }
+        this.dimensions.invalidate();
+        return sensorId;
+    }
+
+    /**
+     * Get the ID of a relative reference to the given resource type.
+     *
+     * @return The ID or null, if the reference is missing or not relative.
+     */
+    private static String getRelativeReference(Reference reference, String resourceType) {
+        var value = reference.getReference();
+        if (value == null || !value.startsWith(resourceType + "/") || value.length() == resourceType.length() + 1) {
+            return null;
+        }
+        return value.substring(resourceType.length() + 1);
+    }
+
+    /**
+     * Get the coding of a concept if it has exactly one.
+     */
+    private static Coding getSingleCoding(CodeableConcept concept) {
+        if (concept == null || concept.getCoding().size() != 1) {
+            return null;
+        }
+        return concept.getCodingFirstRep();
+    }
+}
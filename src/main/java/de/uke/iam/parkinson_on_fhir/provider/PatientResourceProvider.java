@@ -26,12 +26,17 @@ import static de.uke.iam.parkinson_on_fhir.database.Tables.*;
 public class PatientResourceProvider implements IResourceProvider {
 
     private DSLContext connection;
+    private DimensionCache dimensions;
 
     /**
      * Create a new PatientResourceProvider.
+     *
+     * @param dimensions The cache invalidated once subjects are created or
+     *                   deleted.
      */
-    public PatientResourceProvider(DSLContext connection) {
+    public PatientResourceProvider(DSLContext connection, DimensionCache dimensions) {
         this.connection = connection;
+        this.dimensions = dimensions;
     }
 
     @Override
@@ -46,7 +51,7 @@ public class PatientResourceProvider implements IResourceProvider {
      * @return Returns all available patients.
      */
     public List<Patient> findPatients() {
-        return loadPatients(DSL.trueCondition());
+        return loadPatients(this.connection, DSL.trueCondition());
     }
 
     /**
@@ -71,7 +76,7 @@ public class PatientResourceProvider implements IResourceProvider {
         }
 
         // Query the groups
-        var groups = this.loadPatients(SUBJECTS.SUBJECT_ID.eq(id));
+        var groups = loadPatients(this.connection, SUBJECTS.SUBJECT_ID.eq(id));
         if (!groups.isEmpty()) {
             return groups.get(0);
         } else {
@@ -88,13 +93,16 @@ public class PatientResourceProvider implements IResourceProvider {
     @Search()
     public List<Patient> searchByIdentifier(@RequiredParam(name = Patient.SP_IDENTIFIER) StringParam identifier) {
         String valueToMatch = identifier.getValue();
-        return this.loadPatients(SUBJECTS.DESCRIPTION.eq(valueToMatch));
+        return loadPatients(this.connection, SUBJECTS.DESCRIPTION.eq(valueToMatch));
     }
 
-    private List<Patient> loadPatients(Condition where) {
+    /**
+     * Load the patients matching a condition on SUBJECTS.
+     */
+    public static List<Patient> loadPatients(DSLContext connection, Condition where) {
         ArrayList<Patient> patients = new ArrayList<Patient>();
 
-        for (var record : this.connection.select(SUBJECTS.SUBJECT_ID, SUBJECTS.DESCRIPTION)
+        for (var record : connection.select(SUBJECTS.SUBJECT_ID, SUBJECTS.DESCRIPTION)
                 .from(SUBJECTS)
                 .where(where)
                 .fetch()) {
@@ -114,33 +122,19 @@ public class PatientResourceProvider implements IResourceProvider {
 
     @Create
     public MethodOutcome createPatient(@ResourceParam Patient patient) {
-        if (!patient.getActive()) {
-            throw new UnprocessableEntityException(
-                    Msg.code(639) + "Patient must be active");
-        }
-
-        // Get the identifier of the patient
-        String identifier;
-        {
-            var identifiers = patient.getIdentifier();
-            if (identifiers.size() != 1) {
-                throw new UnprocessableEntityException(
-                        Msg.code(639) + "The patient requires exactly one understandable identifier");
-            }
-            identifier = identifiers.get(0).getValue();
-        }
+        var identifier = parseIdentifier(patient);
 
         // Try to insert the subject and get the ID
         int subjectId;
         try {
-            subjectId = this.connection.insertInto(SUBJECTS).set(SUBJECTS.DESCRIPTION, identifier)
-                    .returningResult(SUBJECTS.SUBJECT_ID).fetchOne().value1();
+            subjectId = insertPatients(this.connection, List.of(identifier)).get(0);
         } catch (DataAccessException e) {
             throw new UnprocessableEntityException(
                     String.format("%sGenerating patient ID with identifier '%s' failed: %s", Msg.code(639),
                             identifier,
                             e.toString()));
         }
+        this.dimensions.invalidate();
 
         MethodOutcome result = new MethodOutcome();
         result.setId(new IdType("Patient", (long) subjectId));
@@ -150,6 +144,58 @@ public class PatientResourceProvider implements IResourceProvider {
 
     @Delete
     public void deletePatient(@IdParam IdType rawId) {
+        deletePatient(this.connection, rawId);
+        this.dimensions.invalidate();
+    }
+
+    /**
+     * Check a patient to be created and get its understandable identifier.
+     *
+     * @throws UnprocessableEntityException If the patient is not supported.
+     */
+    static String parseIdentifier(Patient patient) throws UnprocessableEntityException {
+        if (!patient.getActive()) {
+            throw new UnprocessableEntityException(
+                    Msg.code(639) + "Patient must be active");
+        }
+
+        var identifiers = patient.getIdentifier();
+        if (identifiers.size() != 1) {
+            throw new UnprocessableEntityException(
+                    Msg.code(639) + "The patient requires exactly one understandable identifier");
+        }
+        return identifiers.get(0).getValue();
+    }
+
+    /**
+     * Insert subjects with a single statement.
+     *
+     * @param identifiers The understandable identifiers of the subjects.
+     * @return The generated IDs in the order of the identifiers.
+     */
+    static List<Integer> insertPatients(DSLContext connection, List<String> identifiers) {
+        var insert = connection.insertInto(SUBJECTS, SUBJECTS.DESCRIPTION);
+        for (var identifier : identifiers) {
+            insert = insert.values(identifier);
+        }
+
+        // The order of RETURNING is not guaranteed, so correlate the rows by their
+        // identifier. Subjects sharing one are indistinguishable at this point.
+        var generated = new HashMap<String, ArrayDeque<Integer>>();
+        for (var row : insert.returningResult(SUBJECTS.SUBJECT_ID, SUBJECTS.DESCRIPTION).fetch()) {
+            generated.computeIfAbsent(row.value2(), key -> new ArrayDeque<Integer>()).add(row.value1());
+        }
+        var ids = new ArrayList<Integer>(identifiers.size());
+        for (var identifier : identifiers) {
+            ids.add(generated.get(identifier).poll());
+        }
+        return ids;
+    }
+
+    /**
+     * Delete a subject not referenced anymore.
+     */
+    static void deletePatient(DSLContext connection, IdType rawId) {
         int id;
         try {
             id = rawId.getIdPartAsLong().intValue();
@@ -160,7 +206,7 @@ public class PatientResourceProvider implements IResourceProvider {
         // Try to delete the patient from the database
         try {
             // Check if anything was deleted
-            if (this.connection.deleteFrom(SUBJECTS).where(SUBJECTS.SUBJECT_ID.eq(id)).execute() == 0) {
+            if (connection.deleteFrom(SUBJECTS).where(SUBJECTS.SUBJECT_ID.eq(id)).execute() == 0) {
                 throw new ResourceNotFoundException(
                         String.format("%sAn subject with the ID '%d' not found.", Msg.code(634), id));
             }
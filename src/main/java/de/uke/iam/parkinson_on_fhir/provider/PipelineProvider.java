@@ -0,0 +1,201 @@
+package de.uke.iam.parkinson_on_fhir.provider;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Observation.ObservationComponentComponent;
+import org.hl7.fhir.r4.model.Observation.ObservationStatus;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+
+import ca.uhn.fhir.i18n.Msg;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+import org.jooq.Condition;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+
+import de.uke.iam.parkinson_on_fhir.analysis.SignalPipeline;
+
+import static de.uke.iam.parkinson_on_fhir.database.Tables.*;
+
+/**
+ * Runs a declarative chain of streaming operators over the samples of a
+ * subject on the server and returns just the aggregates of each window and
+ * sensor. See SignalPipeline for the operators.
+ */
+public class PipelineProvider {
+
+    private static final int FETCH_SIZE = 1000;
+    private static final int MAX_WINDOWS = 100000;
+    private static final Coding CATEGORY = new Coding("http://terminology.hl7.org/CodeSystem/observation-category",
+            "procedure", "Procedure");
+    private static final Coding CODE = new Coding("Custom", "pipeline", "Aggregates of a signal pipeline");
+
+    private final DataSource pool;
+    private final DimensionCache dimensions;
+
+    /**
+     * Create a new PipelineProvider.
+     *
+     * @param pool       The pool providing the connections of the cursors.
+     * @param dimensions The cache of the known body parts, devices and sensors.
+     */
+    public PipelineProvider(DataSource pool, DimensionCache dimensions) {
+        this.pool = pool;
+        this.dimensions = dimensions;
+    }
+
+    /**
+     * Stream the samples of a subject, optionally restricted to a single sensor
+     * and a range of time, through the pipeline. Each sensor runs through its own
+     * instance of the pipeline.
+     *
+     * @param spec The pipeline, e. g. "resample(50) | bandpass(3, 7) | magnitude |
+     *             window(256) | aggregate(rms)".
+     */
+    @Operation(name = "$pipeline", type = Observation.class, idempotent = true)
+    public Bundle pipeline(@OperationParam(name = "subject", min = 1, max = 1) StringType subject,
+            @OperationParam(name = "spec", min = 1, max = 1) StringType spec,
+            @OperationParam(name = "device", max = 1) StringType device,
+            @OperationParam(name = "bodyPart", max = 1) StringType bodyPart,
+            @OperationParam(name = "start", max = 1) DateTimeType start,
+            @OperationParam(name = "end", max = 1) DateTimeType end) {
+        int subjectId;
+        try {
+            subjectId = new IdType(subject.getValue()).getIdPartAsLong().intValue();
+        } catch (NumberFormatException | NullPointerException e) {
+            throw new InvalidRequestException(String.format("%sMalformed subject ID: %s", Msg.code(639),
+                    subject != null ? subject.getValue() : null));
+        }
+        if (spec == null || spec.getValue() == null) {
+            throw new InvalidRequestException(Msg.code(639) + "The parameter 'spec' is required");
+        }
+        var description = spec.getValue();
+        // Check the specification before reading any sample
+        var names = newPipeline(description, null).getNames();
+
+        Condition where = MEASUREMENTS.SUBJECT.eq(subjectId);
+        var hasDevice = device != null && device.getValue() != null;
+        var hasBodyPart = bodyPart != null && bodyPart.getValue() != null;
+        if (hasDevice != hasBodyPart) {
+            throw new InvalidRequestException(Msg.code(639) + "A sensor is identified by both 'device' and 'bodyPart'");
+        } else if (hasDevice) {
+            var sensorId = this.dimensions.findSensorId(device.getValue(), bodyPart.getValue());
+            where = where.and(sensorId != null ? MEASUREMENTS.SENSOR.eq(sensorId) : DSL.falseCondition());
+        }
+        if (start != null && start.getValue() != null) {
+            where = where.and(MEASUREMENTS.TIMESTAMP.ge(toLocalDateTime(start)));
+        }
+        if (end != null && end.getValue() != null) {
+            where = where.and(MEASUREMENTS.TIMESTAMP.le(toLocalDateTime(end)));
+        }
+
+        var bundle = new Bundle().setType(Bundle.BundleType.COLLECTION);
+        try (var connection = this.pool.getConnection()) {
+            // Postgres only streams results outside of auto-commit mode
+            connection.setAutoCommit(false);
+            try (var cursor = DSL.using(connection, SQLDialect.POSTGRES)
+                    .select(MEASUREMENTS.SENSOR, MEASUREMENTS.TIMESTAMP, MEASUREMENTS.X, MEASUREMENTS.Y,
+                            MEASUREMENTS.Z)
+                    .from(MEASUREMENTS)
+                    .where(where)
+                    .orderBy(MEASUREMENTS.SENSOR, MEASUREMENTS.TIMESTAMP)
+                    .fetchSize(FETCH_SIZE).fetchLazy()) {
+                SignalPipeline pipeline = null;
+                Integer currentSensor = null;
+                for (var sample : cursor) {
+                    if (!sample.value1().equals(currentSensor)) {
+                        if (pipeline != null) {
+                            pipeline.finish();
+                        }
+                        currentSensor = sample.value1();
+                        pipeline = this.newPipeline(description, names, bundle, subjectId, currentSensor);
+                    }
+                    var instant = sample.value2().atZone(ZoneOffset.UTC).toInstant();
+                    pipeline.push(instant.getEpochSecond() * 1000000 + instant.getNano() / 1000, sample.value3(),
+                            sample.value4(), sample.value5());
+                }
+                if (pipeline != null) {
+                    pipeline.finish();
+                }
+            } finally {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new InternalErrorException("Unable to read the samples", e);
+        }
+        bundle.setTotal(bundle.getEntry().size());
+        return bundle;
+    }
+
+    /**
+     * Create a pipeline adding an observation to the bundle for each window.
+     */
+    private SignalPipeline newPipeline(String description, List<String> names, Bundle bundle, int subject,
+            int sensorId) {
+        var sensor = this.dimensions.getSensor(sensorId);
+        return newPipeline(description, (startMicros, endMicros, values) -> {
+            if (bundle.getEntry().size() >= MAX_WINDOWS) {
+                throw new InvalidRequestException(String.format(
+                        "%sThe pipeline results in more than %d windows. Use larger windows or a shorter range.",
+                        Msg.code(639), MAX_WINDOWS));
+            }
+
+            var observation = new Observation();
+            observation.setId(String.format("P-%d-%d-%d", subject, sensorId, startMicros));
+            observation.setStatus(ObservationStatus.FINAL);
+            observation.addCategory(new CodeableConcept(CATEGORY));
+            observation.setCode(new CodeableConcept(CODE));
+            observation.setMethod(new CodeableConcept().setText(description));
+            observation.setSubject(new Reference(new IdType("Patient", (long) subject)));
+            observation.setDevice(new Reference(new IdType("Device", sensor.getDevice())));
+            observation.setBodySite(new CodeableConcept(new Coding("Custom", sensor.getBodyPart(),
+                    this.dimensions.getBodyPartDescription(sensor.getBodyPart()))));
+            observation.setEffective(new Period()
+                    .setStart(new Date(startMicros / 1000))
+                    .setEnd(new Date(endMicros / 1000)));
+
+            for (int i = 0; i < values.length; ++i) {
+                if (Double.isNaN(values[i]) || Double.isInfinite(values[i])) {
+                    continue;
+                }
+                observation.addComponent(new ObservationComponentComponent(
+                        new CodeableConcept(new Coding("Custom", names.get(i), null)))
+                        .setValue(new Quantity().setValue(BigDecimal.valueOf(values[i]))));
+            }
+            bundle.addEntry().setResource(observation);
+        });
+    }
+
+    private static SignalPipeline newPipeline(String description, SignalPipeline.Listener listener) {
+        try {
+            return new SignalPipeline(description, listener);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidRequestException(String.format("%sMalformed pipeline: %s", Msg.code(639),
+                    e.getMessage()));
+        }
+    }
+
+    private static LocalDateTime toLocalDateTime(DateTimeType value) {
+        return value.getValue().toInstant().atZone(ZoneOffset.UTC).toLocalDateTime();
+    }
+}
@@ -0,0 +1,82 @@
+package de.uke.iam.parkinson_on_fhir.provider;
+
+import java.util.concurrent.*;
+
+/**
+ * Shared resources for reading the next page of a search in background while
+ * the current one is serialized and sent.
+ *
+ * The number of pages held in memory is bounded for the whole server. If no
+ * slot is available, a search simply falls back to reading on demand.
+ */
+public class Prefetcher {
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(Prefetcher.class);
+
+    private final ScheduledExecutorService executor;
+    private final Semaphore pages;
+    private final long leaseMillis;
+
+    /**
+     * Create a new Prefetcher.
+     *
+     * @param numThreads  The number of threads reading pages in background.
+     * @param maxPages    The maximal number of pages prefetched at the same time.
+     * @param leaseMillis The time after which an untouched prefetched page is
+     *                    dropped and its search is closed.
+     */
+    public Prefetcher(int numThreads, int maxPages, long leaseMillis) {
+        this.executor = Executors.newScheduledThreadPool(numThreads, runnable -> {
+            var thread = new Thread(runnable, "prefetcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.pages = new Semaphore(maxPages);
+        this.leaseMillis = leaseMillis;
+    }
+
+    /**
+     * Create a Prefetcher from the system properties.
+     *
+     * @return The Prefetcher or null, if prefetching is disabled.
+     */
+    public static Prefetcher loadFromContext() {
+        var maxPages = Integer.getInteger("de.uke.iam.parkinson_on_fhir.prefetch_pages", 0);
+        if (maxPages <= 0) {
+            return null;
+        }
+        var numThreads = Integer.getInteger("de.uke.iam.parkinson_on_fhir.prefetch_threads", 4);
+        var leaseSeconds = Long.getLong("de.uke.iam.parkinson_on_fhir.prefetch_lease_seconds", 60);
+
+        logger.info("Prefetching up to {} pages with {} threads", maxPages, numThreads);
+        return new Prefetcher(numThreads, maxPages, leaseSeconds * 1000);
+    }
+
+    /**
+     * Stop all background threads.
+     */
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    ScheduledExecutorService getExecutor() {
+        return this.executor;
+    }
+
+    long getLeaseMillis() {
+        return this.leaseMillis;
+    }
+
+    /**
+     * Try to reserve the memory for one prefetched page.
+     *
+     * @return True, if the caller may prefetch a page and must call release()
+     *         once it is consumed or dropped.
+     */
+    boolean tryAcquire() {
+        return this.pages.tryAcquire();
+    }
+
+    void release() {
+        this.pages.release();
+    }
+}
@@ -0,0 +1,313 @@
+package de.uke.iam.parkinson_on_fhir.provider;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.sql.DataSource;
+
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import com.zaxxer.hikari.HikariDataSource;
+
+import org.jooq.Condition;
+import org.jooq.SQLDialect;
+import org.jooq.SortField;
+import org.jooq.impl.DSL;
+
+import static de.uke.iam.parkinson_on_fhir.database.Tables.*;
+import de.uke.iam.parkinson_on_fhir.database.tables.records.MeasurementsRecord;
+
+/**
+ * Splits large date ranges over MEASUREMENTS into sub-ranges, scans them
+ * concurrently on separate pooled connections and returns the samples in the
+ * same order as a sequential scan.
+ */
+public class RangeScanner {
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(RangeScanner.class);
+
+    /**
+     * The number of samples handed over from a worker at once.
+     */
+    private static final int CHUNK_SIZE = 256;
+
+    /**
+     * The number of chunks a worker may read ahead of the consumer.
+     */
+    private static final int MAX_CHUNKS = 16;
+
+    private static final List<MeasurementsRecord> END_OF_SLICE = new ArrayList<MeasurementsRecord>();
+
+    /**
+     * The order of the samples of sequential and parallel scans alike. Slices are
+     * disjoint ranges of timestamps, so concatenating them keeps it.
+     */
+    static final List<SortField<?>> ORDER = List.of(MEASUREMENTS.TIMESTAMP.asc(), MEASUREMENTS.SENSOR.asc(),
+            MEASUREMENTS.SUBJECT.asc());
+
+    private final DataSource dataSource;
+    private final ExecutorService executor;
+    private final Duration sliceDuration;
+    private final int parallelism;
+    private final long idleMillis;
+
+    /**
+     * Create a new RangeScanner.
+     *
+     * @param dataSource    The pool providing the connections for the workers.
+     * @param numThreads    The number of workers for the whole server.
+     * @param sliceDuration The length of the sub-ranges.
+     * @param parallelism   The maximal number of sub-ranges scanned concurrently
+     *                      for a single request, at most the number of workers.
+     * @param idleMillis    The time after which an abandoned scan is cancelled.
+     */
+    public RangeScanner(DataSource dataSource, int numThreads, Duration sliceDuration, int parallelism,
+            long idleMillis) {
+        this.dataSource = dataSource;
+        this.executor = Executors.newFixedThreadPool(numThreads, runnable -> {
+            var thread = new Thread(runnable, "range-scanner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.sliceDuration = sliceDuration;
+        this.parallelism = Math.min(parallelism, numThreads);
+        this.idleMillis = idleMillis;
+    }
+
+    /**
+     * Create a RangeScanner from the system properties.
+     *
+     * @return The RangeScanner or null, if parallel scans are disabled.
+     */
+    public static RangeScanner loadFromContext(DataSource dataSource) {
+        var parallelism = Integer.getInteger("de.uke.iam.parkinson_on_fhir.scan_parallelism", 4);
+        if (parallelism <= 1) {
+            return null;
+        }
+        var numThreads = Integer.getInteger("de.uke.iam.parkinson_on_fhir.scan_threads", parallelism);
+        if (dataSource instanceof HikariDataSource) {
+            // Each worker keeps its connection while its read-ahead waits for the
+            // consumer: Leave at least half of the pool to other requests
+            var maxThreads = Math.max(1, ((HikariDataSource) dataSource).getMaximumPoolSize() / 2);
+            if (numThreads > maxThreads) {
+                logger.warn("Limiting the range scan to {} workers, half of the connection pool", maxThreads);
+                numThreads = maxThreads;
+            }
+        }
+        var sliceHours = Long.getLong("de.uke.iam.parkinson_on_fhir.scan_slice_hours", 24);
+        var idleSeconds = Long.getLong("de.uke.iam.parkinson_on_fhir.scan_idle_seconds", 60);
+
+        logger.info("Scanning slices of {} hours with up to {} connections per request", sliceHours, parallelism);
+        return new RangeScanner(dataSource, numThreads, Duration.ofHours(sliceHours), parallelism,
+                idleSeconds * 1000);
+    }
+
+    /**
+     * Stop all background threads.
+     */
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Start a parallel scan if the range is large enough.
+     *
+     * @param where Further conditions on MEASUREMENTS.
+     * @param start The inclusive begin of the range.
+     * @param end   The inclusive end of the range.
+     * @return The running scan or null, if the range does not span multiple
+     *         slices and should be scanned sequentially.
+     */
+    Scan open(Condition where, LocalDateTime start, LocalDateTime end) {
+        if (start == null || end == null || !end.isAfter(start.plus(this.sliceDuration))) {
+            return null;
+        }
+        return new Scan(where, start, end);
+    }
+
+    /**
+     * A running scan over multiple slices.
+     */
+    class Scan {
+        private class Slice implements Runnable {
+            private final Condition where;
+            private final BlockingQueue<List<MeasurementsRecord>> chunks;
+            private volatile Exception error;
+
+            private Slice(Condition where) {
+                this.where = where;
+                this.chunks = new ArrayBlockingQueue<List<MeasurementsRecord>>(MAX_CHUNKS);
+                this.error = null;
+            }
+
+            @Override
+            public void run() {
+                if (cancelled) {
+                    this.chunks.offer(END_OF_SLICE);
+                    return;
+                }
+
+                try (Connection connection = dataSource.getConnection()) {
+                    // Postgres only streams results outside of auto-commit mode
+                    connection.setAutoCommit(false);
+                    try (var cursor = DSL.using(connection, SQLDialect.POSTGRES)
+                            .selectFrom(MEASUREMENTS)
+                            .where(this.where)
+                            .orderBy(ORDER)
+                            .fetchSize(CHUNK_SIZE).fetchLazy()) {
+                        while (!cancelled && cursor.hasNext()) {
+                            this.hand(cursor.fetchNext(CHUNK_SIZE));
+                        }
+                    } finally {
+                        connection.rollback();
+                    }
+                } catch (SQLException | RuntimeException e) {
+                    this.error = e;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancelled = true;
+                }
+
+                // Signal the end of the slice. Abandoned scans are not waited for.
+                try {
+                    if (cancelled) {
+                        this.chunks.clear();
+                        this.chunks.offer(END_OF_SLICE);
+                    } else {
+                        this.hand(END_OF_SLICE);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            /**
+             * Pass a chunk to the consumer, waiting as long as it is not abandoned.
+             * Slices reading ahead wait while the consumer pages through earlier
+             * ones, so abandonment is measured from the last chunk it took.
+             */
+            private void hand(List<MeasurementsRecord> chunk) throws InterruptedException {
+                while (!this.chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                    if (cancelled) {
+                        return;
+                    } else if (System.currentTimeMillis() > lastTakenMillis + idleMillis) {
+                        logger.warn("Cancelling a range scan that was not continued in time");
+                        cancelled = true;
+                        return;
+                    }
+                }
+            }
+        }
+
+        private final List<Slice> slices;
+        private int currentSlice;
+        private int nextToStart;
+        private volatile boolean cancelled;
+        private volatile long lastTakenMillis;
+
+        // The chunk currently consumed
+        private List<MeasurementsRecord> chunk;
+        private int chunkOffset;
+
+        private Scan(Condition where, LocalDateTime start, LocalDateTime end) {
+            // Split into half-open slices. The last one includes the end.
+            this.slices = new ArrayList<Slice>();
+            var sliceStart = start;
+            while (sliceStart.isBefore(end)) {
+                var sliceEnd = sliceStart.plus(sliceDuration);
+                var range = sliceEnd.isBefore(end)
+                        ? MEASUREMENTS.TIMESTAMP.ge(sliceStart).and(MEASUREMENTS.TIMESTAMP.lt(sliceEnd))
+                        : MEASUREMENTS.TIMESTAMP.ge(sliceStart).and(MEASUREMENTS.TIMESTAMP.le(end));
+                this.slices.add(new Slice(where.and(range)));
+                sliceStart = sliceEnd;
+            }
+
+            this.currentSlice = 0;
+            this.nextToStart = 0;
+            this.cancelled = false;
+            this.lastTakenMillis = System.currentTimeMillis();
+            this.chunk = END_OF_SLICE;
+            this.chunkOffset = 0;
+            while (this.nextToStart < Math.min(parallelism, this.slices.size())) {
+                executor.execute(this.slices.get(this.nextToStart++));
+            }
+        }
+
+        /**
+         * Read the next samples in timestamp order.
+         *
+         * @param numSamples The maximal number of samples to be read.
+         * @return The samples read. If less than requested, the scan is exhausted.
+         */
+        List<MeasurementsRecord> fetchNext(int numSamples) {
+            var samples = new ArrayList<MeasurementsRecord>(numSamples);
+            while (samples.size() < numSamples) {
+                // Consume the current chunk first ...
+                if (this.chunkOffset < this.chunk.size()) {
+                    var numTaken = Math.min(numSamples - samples.size(), this.chunk.size() - this.chunkOffset);
+                    samples.addAll(this.chunk.subList(this.chunkOffset, this.chunkOffset + numTaken));
+                    this.chunkOffset += numTaken;
+                    continue;
+                } else if (this.currentSlice >= this.slices.size()) {
+                    break;
+                }
+
+                // ... and wait for the next one otherwise.
+                var slice = this.slices.get(this.currentSlice);
+                var next = this.poll(slice);
+                if (this.cancelled) {
+                    throw new ResourceGoneException("The search expired as it was not continued in time");
+                } else if (slice.error != null) {
+                    this.close();
+                    throw new InternalErrorException("Unable to read the measurements", slice.error);
+                } else if (next == END_OF_SLICE) {
+                    // Continue with the next slice and start another worker
+                    this.currentSlice += 1;
+                    if (this.nextToStart < this.slices.size()) {
+                        executor.execute(this.slices.get(this.nextToStart++));
+                    }
+                } else {
+                    this.chunk = next;
+                    this.chunkOffset = 0;
+                }
+            }
+            return samples;
+        }
+
+        /**
+         * Wait for the next chunk of a slice. The workers are shared by all scans:
+         * If the slice does not get one in time, the scan is given up instead of
+         * blocking the request forever.
+         */
+        private List<MeasurementsRecord> poll(Slice slice) {
+            var deadline = System.currentTimeMillis() + idleMillis;
+            try {
+                List<MeasurementsRecord> next;
+                while ((next = slice.chunks.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                    if (this.cancelled) {
+                        throw new ResourceGoneException("The search expired as it was not continued in time");
+                    } else if (System.currentTimeMillis() > deadline) {
+                        this.close();
+                        throw new InternalErrorException("No worker became available for the range scan in time");
+                    }
+                }
+                this.lastTakenMillis = System.currentTimeMillis();
+                return next;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                this.close();
+                throw new InternalErrorException("Interrupted while reading the measurements", e);
+            }
+        }
+
+        /**
+         * Cancel all workers.
+         */
+        void close() {
+            this.cancelled = true;
+        }
+    }
+}
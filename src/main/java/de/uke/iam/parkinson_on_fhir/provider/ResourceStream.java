@@ -0,0 +1,135 @@
+package de.uke.iam.parkinson_on_fhir.provider;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Reads resources one by one from either NDJSON or the entries of a JSON
+ * bundle. Only a single resource is held in memory at any time, such that
+ * uploads may be arbitrarily large.
+ */
+public class ResourceStream {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final IParser parser;
+    private final BufferedReader lines;
+    private final JsonParser bundle;
+    private boolean inEntries;
+
+    private ResourceStream(FhirContext context, Reader reader, boolean ndjson) throws IOException {
+        this.parser = context.newJsonParser();
+        if (ndjson) {
+            this.lines = new BufferedReader(reader);
+            this.bundle = null;
+        } else {
+            this.lines = null;
+            this.bundle = JSON_FACTORY.createParser(reader);
+            if (this.bundle.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(this.bundle, "The body is not a JSON object");
+            }
+        }
+        this.inEntries = false;
+    }
+
+    /**
+     * Read NDJSON, i. e. a single resource per line.
+     */
+    public static ResourceStream ofNdjson(FhirContext context, Reader reader) throws IOException {
+        return new ResourceStream(context, reader, true);
+    }
+
+    /**
+     * Read the resources of the entries of a JSON bundle.
+     */
+    public static ResourceStream ofBundle(FhirContext context, Reader reader) throws IOException {
+        return new ResourceStream(context, reader, false);
+    }
+
+    /**
+     * Read the next resource.
+     *
+     * @return The resource or null, if the stream is exhausted.
+     * @throws DataFormatException If the resource is malformed. Reading may be
+     *                             continued with the next resource.
+     * @throws IOException         If the stream itself is malformed.
+     */
+    public IBaseResource next() throws IOException, DataFormatException {
+        var json = this.lines != null ? this.nextLine() : this.nextEntry();
+        return json != null ? this.parser.parseResource(json) : null;
+    }
+
+    private String nextLine() throws IOException {
+        String line;
+        do {
+            line = this.lines.readLine();
+        } while (line != null && line.isBlank());
+        return line;
+    }
+
+    /**
+     * Advance to the next entry and copy its resource. All other content of the
+     * bundle is skipped.
+     */
+    private String nextEntry() throws IOException {
+        while (true) {
+            if (!this.inEntries) {
+                var token = this.bundle.nextToken();
+                if (token == null || token == JsonToken.END_OBJECT) {
+                    return null;
+                }
+
+                var field = this.bundle.getCurrentName();
+                token = this.bundle.nextToken();
+                if ("resourceType".equals(field) && !"Bundle".equals(this.bundle.getValueAsString())) {
+                    throw new JsonParseException(this.bundle, "Only resources of type 'Bundle' are supported");
+                } else if ("entry".equals(field) && token == JsonToken.START_ARRAY) {
+                    this.inEntries = true;
+                } else {
+                    this.bundle.skipChildren();
+                }
+                continue;
+            }
+
+            var token = this.bundle.nextToken();
+            if (token == JsonToken.END_ARRAY) {
+                this.inEntries = false;
+                continue;
+            } else if (token != JsonToken.START_OBJECT) {
+                throw new JsonParseException(this.bundle, "Bundle entries must be objects");
+            }
+
+            String resource = null;
+            while (this.bundle.nextToken() == JsonToken.FIELD_NAME) {
+                var field = this.bundle.getCurrentName();
+                this.bundle.nextToken();
+                if ("resource".equals(field)) {
+                    var json = new StringWriter();
+                    try (var generator = JSON_FACTORY.createGenerator(json)) {
+                        generator.copyCurrentStructure(this.bundle);
+                    }
+                    resource = json.toString();
+                } else {
+                    this.bundle.skipChildren();
+                }
+            }
+            if (resource == null) {
+                throw new DataFormatException("Bundle entries must contain a resource");
+            }
+            return resource;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package de.uke.iam.parkinson_on_fhir.provider;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.sql.DataSource;
+
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.StringType;
+
+import ca.uhn.fhir.i18n.Msg;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+import org.jooq.Condition;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+
+import static de.uke.iam.parkinson_on_fhir.database.Tables.*;
+
+/**
+ * Exports raw samples as CSV or TSV for tools not speaking FHIR. Rows are
+ * copied from the database cursor to the response as they are read, without
+ * creating observations, such that a request needs constant memory only.
+ */
+public class SampleExportProvider {
+
+    private static final int FETCH_SIZE = 1000;
+    private static final String CT_TSV = "text/tab-separated-values";
+    private static final String CT_CSV = "text/csv";
+
+    private final DataSource pool;
+    private final DimensionCache dimensions;
+
+    /**
+     * Create a new SampleExportProvider.
+     *
+     * @param pool       The pool providing the connections of the cursors.
+     * @param dimensions The cache of the known body parts, devices and sensors.
+     */
+    public SampleExportProvider(DataSource pool, DimensionCache dimensions) {
+        this.pool = pool;
+        this.dimensions = dimensions;
+    }
+
+    /**
+     * Stream the samples of a subject or of all subjects as
+     * timestamp,subject,sensor,body_part,x,y,z where the sensor is named by its
+     * device. The response is compressed if the client accepts gzip.
+     */
+    @Operation(name = "$export-csv", type = Observation.class, idempotent = true, manualResponse = true)
+    public void exportCsv(@OperationParam(name = "subject", max = 1) StringType subject,
+            @OperationParam(name = "start", max = 1) DateTimeType start,
+            @OperationParam(name = "end", max = 1) DateTimeType end,
+            @OperationParam(name = "delimiter", max = 1) StringType delimiter,
+            ServletRequestDetails details) throws IOException {
+        Condition where = DSL.trueCondition();
+        if (subject != null && subject.getValue() != null) {
+            try {
+                var subjectId = new IdType(subject.getValue()).getIdPartAsLong().intValue();
+                where = where.and(MEASUREMENTS.SUBJECT.eq(subjectId));
+            } catch (NumberFormatException | NullPointerException e) {
+                throw new InvalidRequestException(String.format("%sMalformed subject ID: %s", Msg.code(639),
+                        subject.getValue()));
+            }
+        }
+        if (start != null && start.getValue() != null) {
+            where = where.and(MEASUREMENTS.TIMESTAMP.ge(toLocalDateTime(start)));
+        }
+        if (end != null && end.getValue() != null) {
+            where = where.and(MEASUREMENTS.TIMESTAMP.le(toLocalDateTime(end)));
+        }
+
+        char separator;
+        if (delimiter == null || delimiter.getValue() == null || delimiter.getValue().equals("comma")) {
+            separator = ',';
+        } else if (delimiter.getValue().equals("tab")) {
+            separator = '\t';
+        } else {
+            throw new InvalidRequestException(Msg.code(639) + "The delimiter must be either 'comma' or 'tab'");
+        }
+
+        var response = details.getServletResponse();
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(separator == '\t' ? CT_TSV : CT_CSV);
+        response.setCharacterEncoding("UTF-8");
+        var acceptEncoding = details.getHeader(Constants.HEADER_ACCEPT_ENCODING);
+        var compressed = acceptEncoding != null && acceptEncoding.contains("gzip");
+        if (compressed) {
+            response.setHeader(Constants.HEADER_CONTENT_ENCODING, "gzip");
+        }
+
+        // Without a content length, the container sends the rows in chunks
+        var stream = compressed ? new GZIPOutputStream(response.getOutputStream(), 64 * 1024)
+                : response.getOutputStream();
+        try (var writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 64 * 1024)) {
+            this.write(where, separator, writer);
+        } catch (SQLException e) {
+            throw new InternalErrorException("Unable to read the samples", e);
+        }
+    }
+
+    private void write(Condition where, char separator, Writer writer) throws IOException, SQLException {
+        writer.write(String.join(String.valueOf(separator), "timestamp", "subject", "sensor", "body_part", "x", "y",
+                "z"));
+        writer.write('\n');
+
+        try (var connection = this.pool.getConnection()) {
+            // Postgres only streams results outside of auto-commit mode
+            connection.setAutoCommit(false);
+            try (var cursor = DSL.using(connection, SQLDialect.POSTGRES)
+                    .selectFrom(MEASUREMENTS)
+                    .where(where)
+                    .orderBy(MEASUREMENTS.SUBJECT, MEASUREMENTS.TIMESTAMP, MEASUREMENTS.SENSOR)
+                    .fetchSize(FETCH_SIZE).fetchLazy()) {
+                for (var measurement : cursor) {
+                    var sensor = this.dimensions.getSensor(measurement.getSensor());
+                    writer.write(DateTimeFormatter.ISO_INSTANT
+                            .format(measurement.getTimestamp().atZone(ZoneOffset.UTC)));
+                    writer.write(separator);
+                    writer.write(Integer.toString(measurement.getSubject()));
+                    writer.write(separator);
+                    writeText(sensor.getDevice(), separator, writer);
+                    writer.write(separator);
+                    writeText(sensor.getBodyPart(), separator, writer);
+                    writer.write(separator);
+                    writer.write(Float.toString(measurement.getX()));
+                    writer.write(separator);
+                    writer.write(Float.toString(measurement.getY()));
+                    writer.write(separator);
+                    writer.write(Float.toString(measurement.getZ()));
+                    writer.write('\n');
+                }
+            } finally {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Write a name, quoted if it contains special characters.
+     */
+    private static void writeText(String value, char separator, Writer writer) throws IOException {
+        if (value.indexOf(separator) < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    private static LocalDateTime toLocalDateTime(DateTimeType value) {
+        return value.getValue().toInstant().atZone(ZoneOffset.UTC).toLocalDateTime();
+    }
+}
@@ -0,0 +1,143 @@
+package de.uke.iam.parkinson_on_fhir.provider;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.OperationOutcome;
+
+import ca.uhn.fhir.i18n.Msg;
+import ca.uhn.fhir.parser.DataFormatException;
+
+import de.uke.iam.parkinson_on_fhir.database.tables.records.MeasurementsRecord;
+import de.uke.iam.parkinson_on_fhir.ingest.IngestJob;
+import de.uke.iam.parkinson_on_fhir.ingest.IngestQueue;
+
+/**
+ * Feeds a stream of observations into the ingest queue in chunks. Reading
+ * blocks while the queue is full, such that only the queued chunks are held in
+ * memory regardless of the size of the upload.
+ */
+class StreamingIngest {
+
+    private static final int MAX_REPORTED_ERRORS = 100;
+
+    private final IngestQueue queue;
+    private final ObservationValidator validator;
+    private final ArrayDeque<IngestJob> pending;
+    private final ArrayDeque<Integer> offsets;
+    private final OperationOutcome outcome;
+    private int numEntries;
+    private int numCreated;
+    private int numDuplicates;
+    private int numRejected;
+
+    StreamingIngest(IngestQueue queue, ObservationValidator validator) {
+        this.queue = queue;
+        this.validator = validator;
+        this.pending = new ArrayDeque<IngestJob>();
+        this.offsets = new ArrayDeque<Integer>();
+        this.outcome = new OperationOutcome();
+    }
+
+    /**
+     * Read, validate and write all observations of the stream. Returns after all
+     * of them are written.
+     *
+     * @return The number of entries written and the first errors.
+     * @throws IOException If the stream is malformed. Entries read before are
+     *                     written nevertheless.
+     */
+    OperationOutcome run(ResourceStream stream) throws IOException, InterruptedException {
+        var chunkSize = this.queue.getBatchSize();
+        var measurements = new ArrayList<MeasurementsRecord>(chunkSize);
+        var errors = new ArrayList<String>(chunkSize);
+        try {
+            boolean exhausted = false;
+            while (!exhausted) {
+                try {
+                    var resource = stream.next();
+                    if (resource != null) {
+                        var validated = this.validator.validate(resource);
+                        measurements.add(validated.getMeasurement());
+                        errors.add(validated.getError());
+                    } else {
+                        exhausted = true;
+                    }
+                } catch (DataFormatException e) {
+                    measurements.add(null);
+                    errors.add(Msg.code(639) + e.getMessage());
+                }
+
+                if (measurements.size() == chunkSize || (exhausted && !measurements.isEmpty())) {
+                    this.submit(measurements, errors);
+                    measurements.clear();
+                    errors.clear();
+                }
+            }
+        } catch (IOException e) {
+            // Entries read before a malformed part are written nevertheless
+            if (!measurements.isEmpty()) {
+                this.submit(measurements, errors);
+            }
+            throw e;
+        }
+
+        while (!this.pending.isEmpty()) {
+            this.pending.peekFirst().awaitCompletion();
+            this.collect();
+        }
+
+        this.outcome.getIssue().add(0, new OperationOutcome.OperationOutcomeIssueComponent()
+                .setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+                .setCode(OperationOutcome.IssueType.INFORMATIONAL)
+                .setDiagnostics(String.format("Read %d observations: %d created, %d already stored, %d rejected",
+                        this.numEntries, this.numCreated, this.numDuplicates, this.numRejected)));
+        return this.outcome;
+    }
+
+    /**
+     * Get the number of entries read so far.
+     */
+    int getNumEntries() {
+        return this.numEntries;
+    }
+
+    private void submit(List<MeasurementsRecord> measurements, List<String> errors)
+            throws IOException, InterruptedException {
+        var job = new IngestJob(measurements, errors);
+        this.queue.put(job);
+        this.pending.addLast(job);
+        this.offsets.addLast(this.numEntries);
+        this.numEntries += job.size();
+        this.collect();
+    }
+
+    /**
+     * Count the outcome of completed jobs and release them.
+     */
+    private void collect() {
+        while (!this.pending.isEmpty() && this.pending.peekFirst().getState() == IngestJob.State.COMPLETED) {
+            var job = this.pending.removeFirst();
+            int offset = this.offsets.removeFirst();
+            for (int i = 0; i < job.size(); ++i) {
+                var error = job.getError(i);
+                if (error != null) {
+                    ++this.numRejected;
+                    if (this.outcome.getIssue().size() < MAX_REPORTED_ERRORS) {
+                        this.outcome.addIssue()
+                                .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                                .setCode(OperationOutcome.IssueType.INVALID)
+                                .setDiagnostics(error)
+                                .addExpression(String.format("Bundle.entry[%d]", offset + i));
+                    }
+                } else if (job.isDuplicate(i)) {
+                    ++this.numDuplicates;
+                } else {
+                    ++this.numCreated;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,545 @@
+package de.uke.iam.parkinson_on_fhir.provider;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import javax.sql.DataSource;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Device;
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+
+import ca.uhn.fhir.i18n.Msg;
+import ca.uhn.fhir.rest.annotation.Transaction;
+import ca.uhn.fhir.rest.annotation.TransactionParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import ca.uhn.fhir.util.FhirTerser;
+
+import org.jooq.DSLContext;
+import org.jooq.SQLDialect;
+import org.jooq.exception.DataAccessException;
+import org.jooq.exception.SQLStateClass;
+import org.jooq.impl.DSL;
+
+import de.uke.iam.parkinson_on_fhir.database.tables.records.DevicesRecord;
+import de.uke.iam.parkinson_on_fhir.database.tables.records.MeasurementsRecord;
+
+/**
+ * Processes batch and transaction bundles spanning devices, patients, groups
+ * and observations. Entries are grouped per table and written in the order of
+ * their dependencies, such that each table is touched by a few batched
+ * statements only. References to entries created within the same bundle, i. e.
+ * to their fullUrl, are replaced by the IDs generated without querying them.
+ */
+public class SystemTransactionProvider {
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(SystemTransactionProvider.class);
+
+    /**
+     * The supported resource types in the order they are created. Deletes are
+     * processed before in reverse order.
+     */
+    private static final List<String> RESOURCE_TYPES = List.of("Device", "Patient", "Group", "Observation");
+
+    private final DSLContext transactions;
+    private final DimensionCache dimensions;
+    private final ObservationResourceProvider observations;
+    private final ExecutorService workers;
+
+    /**
+     * A single entry of the bundle and its outcome.
+     */
+    private static class Entry {
+        private final int index;
+        private final BundleEntryComponent source;
+        private HTTPVerb method;
+        private String resourceType;
+        private Object parsed;
+        private String location;
+        private boolean created;
+        private int errorStatus;
+        private String error;
+
+        private Entry(int index, BundleEntryComponent source) {
+            this.index = index;
+            this.source = source;
+        }
+
+        private boolean isValid() {
+            return this.error == null;
+        }
+
+        private void succeed(String location, boolean created) {
+            this.location = location;
+            this.created = created;
+        }
+
+        private void fail(int status, String error) {
+            this.location = null;
+            this.errorStatus = status;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Writes a group of entries of the same table and verb.
+     */
+    @FunctionalInterface
+    private interface Writer {
+        void write(DSLContext context, List<Entry> entries);
+    }
+
+    /**
+     * Create a new SystemTransactionProvider.
+     *
+     * @param pool         The pool providing the connections of the transactions.
+     * @param dimensions   The cache of the known body parts, devices and sensors.
+     * @param observations The provider writing the observations.
+     * @param numWorkers   The number of subjects whose observations of a batch
+     *                     are written concurrently. Below 2, batches are written
+     *                     on the thread of the request only.
+     */
+    public SystemTransactionProvider(DataSource pool, DimensionCache dimensions,
+            ObservationResourceProvider observations, int numWorkers) {
+        this.transactions = DSL.using(pool, SQLDialect.POSTGRES);
+        this.dimensions = dimensions;
+        this.observations = observations;
+        if (numWorkers > 1) {
+            this.workers = Executors.newFixedThreadPool(numWorkers, runnable -> {
+                var thread = new Thread(runnable, "batch-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.workers = null;
+        }
+    }
+
+    /**
+     * Create a SystemTransactionProvider from the system properties.
+     */
+    public static SystemTransactionProvider loadFromContext(DataSource pool, DimensionCache dimensions,
+            ObservationResourceProvider observations) {
+        var numWorkers = Integer.getInteger("de.uke.iam.parkinson_on_fhir.batch_workers", 4);
+        logger.info("Writing the observations of batches with up to {} connections", Math.max(1, numWorkers));
+        return new SystemTransactionProvider(pool, dimensions, observations, numWorkers);
+    }
+
+    /**
+     * Stop all background threads.
+     */
+    public void shutdown() {
+        if (this.workers != null) {
+            this.workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Process a bundle of type 'batch' or 'transaction'. The entries of a batch
+     * succeed or fail independently, while a transaction is committed at once.
+     */
+    @Transaction
+    public Bundle transaction(@TransactionParam Bundle bundle, RequestDetails details) {
+        boolean atomic;
+        if (bundle.getType() == Bundle.BundleType.TRANSACTION) {
+            atomic = true;
+        } else if (bundle.getType() == Bundle.BundleType.BATCH) {
+            atomic = false;
+        } else {
+            throw new UnprocessableEntityException("Only bundles of type 'batch' or 'transaction' are supported");
+        }
+
+        var entries = new ArrayList<Entry>(bundle.getEntry().size());
+        for (int i = 0; i < bundle.getEntry().size(); ++i) {
+            entries.add(classify(i, bundle.getEntry().get(i)));
+        }
+
+        var processing = new Processing(entries, atomic, details.getFhirContext().newTerser());
+        try {
+            if (atomic) {
+                processing.checkFailures();
+                this.transactions.transaction(configuration -> processing.run(DSL.using(configuration)));
+            } else {
+                processing.run(this.transactions);
+            }
+        } catch (DataAccessException e) {
+            if (e.sqlStateClass() == SQLStateClass.C23_INTEGRITY_CONSTRAINT_VIOLATION) {
+                throw new UnprocessableEntityException(String.format(
+                        "%sThe transaction was rolled back as it conflicts with the database: %s",
+                        Msg.code(639), e.getMessage()));
+            }
+            throw new InternalErrorException("The transaction was rolled back", e);
+        } finally {
+            if (entries.stream().anyMatch(
+                    entry -> "Device".equals(entry.resourceType) || "Patient".equals(entry.resourceType))) {
+                this.dimensions.invalidate();
+            }
+        }
+
+        // Only committed measurements are known to be stored
+        var committed = new ArrayList<MeasurementsRecord>();
+        for (var entry : entries) {
+            if (entry.isValid() && entry.method == HTTPVerb.POST && entry.parsed instanceof MeasurementsRecord) {
+                committed.add((MeasurementsRecord) entry.parsed);
+            }
+        }
+        this.observations.record(committed);
+
+        Bundle result = new Bundle();
+        result.setType(atomic ? Bundle.BundleType.TRANSACTIONRESPONSE : Bundle.BundleType.BATCHRESPONSE);
+        for (var entry : entries) {
+            result.addEntry(createResponseEntry(entry));
+        }
+        return result;
+    }
+
+    /**
+     * The state of processing a single bundle.
+     */
+    private class Processing {
+        private final List<Entry> entries;
+        private final boolean atomic;
+        private final FhirTerser terser;
+        private final Map<String, String> references;
+        private DSLContext context;
+
+        private Processing(List<Entry> entries, boolean atomic, FhirTerser terser) {
+            this.entries = entries;
+            this.atomic = atomic;
+            this.terser = terser;
+            this.references = new HashMap<String, String>();
+        }
+
+        private void run(DSLContext context) {
+            this.context = context;
+
+            // Delete dependent resources before the ones they depend on
+            for (int i = RESOURCE_TYPES.size() - 1; i >= 0; --i) {
+                this.write(this.select(HTTPVerb.DELETE, RESOURCE_TYPES.get(i)), (connection, group) -> {
+                    for (var entry : group) {
+                        var id = new IdType(entry.source.getRequest().getUrl());
+                        this.delete(connection, entry.resourceType, id);
+                        entry.succeed(id.toUnqualifiedVersionless().getValue(), false);
+                    }
+                });
+            }
+
+            // The ID of a device is known in advance
+            var devices = this.select(HTTPVerb.POST, "Device");
+            for (var entry : devices) {
+                this.parse(entry, () -> DeviceResourceProvider.parseDevice((Device) entry.source.getResource()));
+            }
+            this.checkFailures();
+            this.write(this.valid(devices), (connection, group) -> {
+                var records = new ArrayList<DevicesRecord>(group.size());
+                for (var entry : group) {
+                    records.add((DevicesRecord) entry.parsed);
+                }
+                DeviceResourceProvider.insertDevices(connection, records);
+                for (var entry : group) {
+                    entry.succeed("Device/" + ((DevicesRecord) entry.parsed).getDevice(), true);
+                }
+            });
+            this.register(devices);
+
+            var patients = this.select(HTTPVerb.POST, "Patient");
+            for (var entry : patients) {
+                this.parse(entry, () -> PatientResourceProvider.parseIdentifier((Patient) entry.source.getResource()));
+            }
+            this.checkFailures();
+            this.write(this.valid(patients), (connection, group) -> {
+                var identifiers = new ArrayList<String>(group.size());
+                for (var entry : group) {
+                    identifiers.add((String) entry.parsed);
+                }
+                var subjectIds = PatientResourceProvider.insertPatients(connection, identifiers);
+                for (int i = 0; i < group.size(); ++i) {
+                    group.get(i).succeed("Patient/" + subjectIds.get(i), true);
+                }
+            });
+            this.register(patients);
+
+            var groups = this.select(HTTPVerb.POST, "Group");
+            for (var entry : groups) {
+                this.parse(entry, () -> GroupResourceProvider.parseMembers((Group) this.resolve(entry)));
+            }
+            this.checkFailures();
+            this.write(this.valid(groups), (connection, group) -> {
+                var resources = new ArrayList<Group>(group.size());
+                var members = new ArrayList<List<Integer>>(group.size());
+                for (var entry : group) {
+                    resources.add((Group) entry.source.getResource());
+                    @SuppressWarnings("unchecked")
+                    var subjectIds = (List<Integer>) entry.parsed;
+                    members.add(subjectIds);
+                }
+                var sourceIds = GroupResourceProvider.insertGroups(connection, resources, members);
+                for (int i = 0; i < group.size(); ++i) {
+                    group.get(i).succeed("Group/" + sourceIds.get(i), true);
+                }
+            });
+            this.register(groups);
+
+            // Devices and subjects created before are still invisible to the cache.
+            // Missing sensors and body parts are created on the context of the
+            // transaction, such that they are rolled back together with it.
+            var createdDevices = new ArrayList<String>();
+            for (var entry : this.valid(devices)) {
+                createdDevices.add(((DevicesRecord) entry.parsed).getDevice());
+            }
+            var createdSubjects = new ArrayList<Integer>();
+            for (var entry : this.valid(patients)) {
+                createdSubjects.add(Integer.parseInt(entry.location.substring("Patient/".length())));
+            }
+            var validator = observations.getValidator().withinTransaction(this.context, createdDevices,
+                    createdSubjects);
+            var measurements = this.select(HTTPVerb.POST, "Observation");
+            for (var entry : measurements) {
+                var validated = validator.validate(this.resolve(entry));
+                if (validated.isValid()) {
+                    entry.parsed = validated.getMeasurement();
+                } else {
+                    entry.fail(Constants.STATUS_HTTP_400_BAD_REQUEST, validated.getError());
+                }
+            }
+            this.checkFailures();
+            Writer insertMeasurements = (connection, group) -> {
+                var records = new ArrayList<MeasurementsRecord>(group.size());
+                for (var entry : group) {
+                    records.add((MeasurementsRecord) entry.parsed);
+                }
+                var created = observations.insert(connection, records);
+                for (int i = 0; i < group.size(); ++i) {
+                    group.get(i).succeed(ObservationResourceProvider.getLocation(records.get(i)), created[i]);
+                }
+            };
+
+            // The measurements of different subjects never conflict with each other
+            var partitions = new LinkedHashMap<Integer, List<Entry>>();
+            for (var entry : this.valid(measurements)) {
+                partitions.computeIfAbsent(((MeasurementsRecord) entry.parsed).getSubject(),
+                        subject -> new ArrayList<Entry>()).add(entry);
+            }
+            if (this.atomic || workers == null || partitions.size() < 2) {
+                this.write(this.valid(measurements), insertMeasurements);
+            } else {
+                this.writeConcurrently(partitions.values(), insertMeasurements);
+            }
+        }
+
+        private void delete(DSLContext connection, String resourceType, IdType id) {
+            switch (resourceType) {
+                case "Observation":
+                    observations.delete(connection, id);
+                    break;
+                case "Group":
+                    GroupResourceProvider.deleteGroup(connection, id);
+                    break;
+                case "Patient":
+                    PatientResourceProvider.deletePatient(connection, id);
+                    break;
+                default:
+                    DeviceResourceProvider.deleteDevice(connection, id);
+                    break;
+            }
+        }
+
+        /**
+         * Write a group of entries. Within a batch, the group is committed on its
+         * own and retried entry by entry if it fails.
+         */
+        private void write(List<Entry> group, Writer writer) {
+            if (group.isEmpty()) {
+                return;
+            } else if (this.atomic) {
+                writer.write(this.context, group);
+                return;
+            }
+
+            try {
+                this.context.transaction(configuration -> writer.write(DSL.using(configuration), group));
+                return;
+            } catch (DataAccessException | BaseServerResponseException e) {
+                if (group.size() == 1) {
+                    fail(group.get(0), e);
+                    return;
+                }
+            }
+
+            // Identify the failing entries
+            for (var entry : group) {
+                try {
+                    this.context.transaction(configuration -> writer.write(DSL.using(configuration),
+                            List.of(entry)));
+                } catch (DataAccessException | BaseServerResponseException e) {
+                    fail(entry, e);
+                }
+            }
+        }
+
+        /**
+         * Write the partitions of a batch on separate connections. Each partition
+         * is written like a single group, the entries are updated in place.
+         */
+        private void writeConcurrently(Collection<List<Entry>> partitions, Writer writer) {
+            var pending = new ArrayList<Future<?>>(partitions.size());
+            for (var partition : partitions) {
+                pending.add(workers.submit(() -> this.write(partition, writer)));
+            }
+
+            try {
+                for (var future : pending) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                for (var future : pending) {
+                    future.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                throw new InternalErrorException("Interrupted while writing the batch", e);
+            } catch (ExecutionException e) {
+                throw new InternalErrorException("Unable to write the batch", e.getCause());
+            }
+        }
+
+        private void parse(Entry entry, Supplier<Object> parser) {
+            try {
+                entry.parsed = parser.get();
+            } catch (BaseServerResponseException e) {
+                entry.fail(Constants.STATUS_HTTP_400_BAD_REQUEST, e.getMessage());
+            }
+        }
+
+        /**
+         * Replace references to entries created before by their IDs.
+         */
+        private IBaseResource resolve(Entry entry) {
+            var resource = entry.source.getResource();
+            for (var reference : this.terser.getAllPopulatedChildElementsOfType(resource, Reference.class)) {
+                var target = this.references.get(reference.getReference());
+                if (target != null) {
+                    reference.setReference(target);
+                }
+            }
+            return resource;
+        }
+
+        private void register(List<Entry> created) {
+            for (var entry : created) {
+                if (entry.isValid() && entry.source.hasFullUrl()) {
+                    this.references.put(entry.source.getFullUrl(), entry.location);
+                }
+            }
+        }
+
+        private List<Entry> select(HTTPVerb method, String resourceType) {
+            var selected = new ArrayList<Entry>();
+            for (var entry : this.entries) {
+                if (entry.isValid() && entry.method == method && resourceType.equals(entry.resourceType)) {
+                    selected.add(entry);
+                }
+            }
+            return selected;
+        }
+
+        private List<Entry> valid(List<Entry> entries) {
+            var selected = new ArrayList<Entry>(entries.size());
+            for (var entry : entries) {
+                if (entry.isValid()) {
+                    selected.add(entry);
+                }
+            }
+            return selected;
+        }
+
+        /**
+         * Abort a transaction if any of its entries is invalid.
+         */
+        private void checkFailures() {
+            if (!this.atomic) {
+                return;
+            }
+
+            var outcome = new OperationOutcome();
+            for (var entry : this.entries) {
+                if (!entry.isValid()) {
+                    outcome.addIssue()
+                            .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                            .setCode(OperationOutcome.IssueType.INVALID)
+                            .setDiagnostics(entry.error)
+                            .addExpression(String.format("Bundle.entry[%d]", entry.index));
+                }
+            }
+            if (outcome.hasIssue()) {
+                throw new UnprocessableEntityException(
+                        String.format("%sThe transaction contains %d invalid entries", Msg.code(639),
+                                outcome.getIssue().size()),
+                        outcome);
+            }
+        }
+    }
+
+    /**
+     * Determine verb and resource type of an entry.
+     */
+    private static Entry classify(int index, BundleEntryComponent source) {
+        var entry = new Entry(index, source);
+        entry.method = source.getRequest().getMethod();
+        if (entry.method == null && source.getResource() != null) {
+            // Entries without a request have always been taken as creates
+            entry.method = HTTPVerb.POST;
+        }
+
+        if (entry.method == HTTPVerb.POST && source.getResource() != null) {
+            entry.resourceType = source.getResource().fhirType();
+        } else if (entry.method == HTTPVerb.DELETE && source.getRequest().getUrl() != null) {
+            entry.resourceType = new IdType(source.getRequest().getUrl()).getResourceType();
+        } else {
+            entry.fail(Constants.STATUS_HTTP_400_BAD_REQUEST,
+                    Msg.code(639) + "Only entries with the verbs POST and DELETE are supported");
+            return entry;
+        }
+
+        if (!RESOURCE_TYPES.contains(entry.resourceType)) {
+            entry.fail(Constants.STATUS_HTTP_400_BAD_REQUEST,
+                    String.format("%sResources of type '%s' are not supported", Msg.code(639), entry.resourceType));
+        }
+        return entry;
+    }
+
+    private static void fail(Entry entry, RuntimeException e) {
+        if (e instanceof BaseServerResponseException) {
+            entry.fail(((BaseServerResponseException) e).getStatusCode(), e.getMessage());
+        } else {
+            entry.fail(Constants.STATUS_HTTP_422_UNPROCESSABLE_ENTITY, e.getMessage());
+        }
+    }
+
+    private static BundleEntryComponent createResponseEntry(Entry entry) {
+        var response = new Bundle.BundleEntryResponseComponent();
+        if (!entry.isValid()) {
+            response.setStatus(String.format("%d %s ('%s')", entry.errorStatus,
+                    Constants.HTTP_STATUS_NAMES.get(entry.errorStatus), entry.error));
+        } else if (entry.method == HTTPVerb.DELETE) {
+            response.setStatus("204 No Content");
+        } else {
+            response.setLocation(entry.location);
+            response.setStatus(entry.created ? "201 Created" : "200 OK");
+        }
+        return new BundleEntryComponent().setResponse(response);
+    }
+}
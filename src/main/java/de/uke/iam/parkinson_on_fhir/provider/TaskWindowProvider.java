@@ -0,0 +1,274 @@
+package de.uke.iam.parkinson_on_fhir.provider;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Date;
+
+import javax.sql.DataSource;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Observation.ObservationComponentComponent;
+import org.hl7.fhir.r4.model.Observation.ObservationStatus;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.SampledData;
+import org.hl7.fhir.r4.model.StringType;
+
+import ca.uhn.fhir.i18n.Msg;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+import org.jooq.Condition;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+
+import static de.uke.iam.parkinson_on_fhir.database.Tables.*;
+
+/**
+ * Returns the samples recorded during tasks. The tasks and their samples are
+ * read with a single range join using the index of MEASUREMENTS by subject
+ * and timestamp instead of one query per task.
+ *
+ * Each task and sensor is represented by one observation, either holding all
+ * samples as SampledData or statistics of each axis. As the response is built
+ * in memory, the number of samples returned as SampledData is limited.
+ */
+public class TaskWindowProvider {
+
+    public static final String MODE_SAMPLED = "sampled";
+    public static final String MODE_AGGREGATE = "aggregate";
+
+    private static final int FETCH_SIZE = 1000;
+    private static final int MAX_SAMPLES = 1000000;
+    private static final Coding CATEGORY = new Coding("http://terminology.hl7.org/CodeSystem/observation-category",
+            "procedure", "Procedure");
+    private static final String[] AXES = { "X42", "X43", "X44" };
+    private static final String[] AXIS_DESCRIPTIONS = { "Acceleration on the X axis", "Acceleration on the Y axis",
+            "Acceleration on the Z axis" };
+    private static final String[] STATISTICS = { "mean", "min", "max", "stddev" };
+
+    private final DataSource pool;
+    private final DimensionCache dimensions;
+
+    /**
+     * Create a new TaskWindowProvider.
+     *
+     * @param pool       The pool providing the connections of the cursors.
+     * @param dimensions The cache of the known body parts, devices and sensors.
+     */
+    public TaskWindowProvider(DataSource pool, DimensionCache dimensions) {
+        this.pool = pool;
+        this.dimensions = dimensions;
+    }
+
+    /**
+     * Return the windows of a single task or of all tasks of a subject.
+     *
+     * @param mode Either "sampled" (the default) or "aggregate".
+     */
+    @Operation(name = "$task-window", type = Observation.class, idempotent = true)
+    public Bundle taskWindow(@OperationParam(name = "task", max = 1) IntegerType task,
+            @OperationParam(name = "subject", max = 1) StringType subject,
+            @OperationParam(name = "mode", max = 1) StringType mode) {
+        Condition tasks = DSL.trueCondition();
+        boolean restricted = false;
+        if (task != null && task.getValue() != null) {
+            tasks = tasks.and(TASKS.TASK_ID.eq(task.getValue()));
+            restricted = true;
+        }
+        if (subject != null && subject.getValue() != null) {
+            int subjectId;
+            try {
+                subjectId = new IdType(subject.getValue()).getIdPartAsLong().intValue();
+            } catch (NumberFormatException | NullPointerException e) {
+                throw new InvalidRequestException(String.format("%sMalformed subject ID: %s", Msg.code(639),
+                        subject.getValue()));
+            }
+            tasks = tasks.and(TASKS.SUBJECT.eq(subjectId));
+            restricted = true;
+        }
+        if (!restricted) {
+            throw new InvalidRequestException(Msg.code(639) + "Either 'task' or 'subject' is required");
+        }
+
+        var selectedMode = mode != null && mode.getValue() != null ? mode.getValue() : MODE_SAMPLED;
+        var bundle = new Bundle().setType(Bundle.BundleType.COLLECTION);
+        try (var connection = this.pool.getConnection()) {
+            // Postgres only streams results outside of auto-commit mode
+            connection.setAutoCommit(false);
+            try {
+                var context = DSL.using(connection, SQLDialect.POSTGRES);
+                if (MODE_SAMPLED.equals(selectedMode)) {
+                    this.addSampled(context, tasks, bundle);
+                } else if (MODE_AGGREGATE.equals(selectedMode)) {
+                    this.addAggregated(context, tasks, bundle);
+                } else {
+                    throw new InvalidRequestException(String.format("%sUnknown mode '%s'. Supported are '%s' and "
+                            + "'%s'", Msg.code(639), selectedMode, MODE_SAMPLED, MODE_AGGREGATE));
+                }
+            } finally {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new InternalErrorException("Unable to read the samples", e);
+        }
+        bundle.setTotal(bundle.getEntry().size());
+        return bundle;
+    }
+
+    /**
+     * Read the samples of all tasks in a single pass, ordered by task and sensor,
+     * and encode them as SampledData.
+     */
+    private void addSampled(DSLContext context, Condition tasks, Bundle bundle) {
+        var data = new StringBuilder[] { new StringBuilder(), new StringBuilder(), new StringBuilder() };
+        Observation current = null;
+        LocalDateTime first = null, last = null;
+        int numSamples = 0, numTotalSamples = 0;
+        Integer currentTask = null, currentSensor = null;
+        try (var cursor = context
+                .select(TASKS.TASK_ID, TASKS.SUBJECT, TASKS.TASK_START, TASKS.TASK_END, MEASUREMENTS.SENSOR,
+                        MEASUREMENTS.TIMESTAMP, MEASUREMENTS.X, MEASUREMENTS.Y, MEASUREMENTS.Z)
+                .from(TASKS)
+                .join(MEASUREMENTS).on(MEASUREMENTS.SUBJECT.eq(TASKS.SUBJECT)
+                        .and(MEASUREMENTS.TIMESTAMP.between(TASKS.TASK_START, TASKS.TASK_END)))
+                .where(tasks)
+                .orderBy(TASKS.TASK_ID, MEASUREMENTS.SENSOR, MEASUREMENTS.TIMESTAMP)
+                .fetchSize(FETCH_SIZE).fetchLazy()) {
+            for (var sample : cursor) {
+                if (++numTotalSamples > MAX_SAMPLES) {
+                    throw new InvalidRequestException(String.format(
+                            "%sThe tasks hold more than %d samples. Request a single task or use mode '%s'.",
+                            Msg.code(639), MAX_SAMPLES, MODE_AGGREGATE));
+                }
+                if (!sample.value1().equals(currentTask) || !sample.value5().equals(currentSensor)) {
+                    if (current != null) {
+                        setSampledData(current, data, first, last, numSamples);
+                        bundle.addEntry().setResource(current);
+                    }
+                    currentTask = sample.value1();
+                    currentSensor = sample.value5();
+                    current = this.createObservation(currentTask, sample.value2(), currentSensor, sample.value3(),
+                            sample.value4());
+                    first = sample.value6();
+                    numSamples = 0;
+                    for (var axis : data) {
+                        axis.setLength(0);
+                    }
+                }
+
+                last = sample.value6();
+                var separator = numSamples++ > 0 ? " " : "";
+                data[0].append(separator).append(sample.value7());
+                data[1].append(separator).append(sample.value8());
+                data[2].append(separator).append(sample.value9());
+            }
+        }
+        if (current != null) {
+            setSampledData(current, data, first, last, numSamples);
+            bundle.addEntry().setResource(current);
+        }
+    }
+
+    /**
+     * Let the database compute the statistics of each task and sensor.
+     */
+    private void addAggregated(DSLContext context, Condition tasks, Bundle bundle) {
+        var axes = Arrays.asList(MEASUREMENTS.X, MEASUREMENTS.Y, MEASUREMENTS.Z);
+        var count = DSL.count();
+        var statistics = new Field<?>[AXES.length][];
+        for (int i = 0; i < AXES.length; ++i) {
+            var axis = axes.get(i);
+            statistics[i] = new Field<?>[] { DSL.avg(axis), DSL.min(axis), DSL.max(axis), DSL.stddevPop(axis) };
+        }
+
+        var query = context
+                .select(TASKS.TASK_ID, TASKS.SUBJECT, TASKS.TASK_START, TASKS.TASK_END, MEASUREMENTS.SENSOR, count)
+                .select(statistics[0]).select(statistics[1]).select(statistics[2])
+                .from(TASKS)
+                .join(MEASUREMENTS).on(MEASUREMENTS.SUBJECT.eq(TASKS.SUBJECT)
+                        .and(MEASUREMENTS.TIMESTAMP.between(TASKS.TASK_START, TASKS.TASK_END)))
+                .where(tasks)
+                .groupBy(TASKS.TASK_ID, TASKS.SUBJECT, TASKS.TASK_START, TASKS.TASK_END, MEASUREMENTS.SENSOR)
+                .orderBy(TASKS.TASK_ID, MEASUREMENTS.SENSOR);
+        for (var row : query.fetch()) {
+            var observation = this.createObservation(row.get(TASKS.TASK_ID), row.get(TASKS.SUBJECT),
+                    row.get(MEASUREMENTS.SENSOR), row.get(TASKS.TASK_START), row.get(TASKS.TASK_END));
+            observation.addComponent(new ObservationComponentComponent(
+                    new CodeableConcept(new Coding("Custom", "count", "Number of samples")))
+                    .setValue(new Quantity(row.get(count))));
+            for (int i = 0; i < AXES.length; ++i) {
+                for (int j = 0; j < STATISTICS.length; ++j) {
+                    var value = row.get(statistics[i][j]);
+                    if (value == null) {
+                        continue;
+                    }
+                    observation.addComponent(new ObservationComponentComponent(new CodeableConcept(
+                            new Coding("Custom", String.format("%s-%s", AXES[i], STATISTICS[j]),
+                                    String.format("%s (%s)", AXIS_DESCRIPTIONS[i], STATISTICS[j]))))
+                            .setValue(new Quantity().setValue(new BigDecimal(value.toString())).setUnit("m/s^2")));
+                }
+            }
+            bundle.addEntry().setResource(observation);
+        }
+    }
+
+    private Observation createObservation(int task, int subject, int sensorId, LocalDateTime start,
+            LocalDateTime end) {
+        var sensor = this.dimensions.getSensor(sensorId);
+        var observation = new Observation();
+        observation.setId(String.format("T-%d-%d", task, sensorId));
+        observation.setStatus(ObservationStatus.FINAL);
+        observation.addCategory(new CodeableConcept(CATEGORY));
+        observation.setSubject(new Reference(new IdType("Patient", (long) subject)));
+        observation.setDevice(new Reference(new IdType("Device", sensor.getDevice())));
+        observation.setBodySite(new CodeableConcept(new Coding("Custom", sensor.getBodyPart(),
+                this.dimensions.getBodyPartDescription(sensor.getBodyPart()))));
+        var period = new Period().setStart(toDate(start));
+        if (end != null) {
+            period.setEnd(toDate(end));
+        }
+        observation.setEffective(period);
+        return observation;
+    }
+
+    /**
+     * SampledData requires a fixed period: The average distance of the samples is
+     * used.
+     */
+    private static void setSampledData(Observation observation, StringBuilder[] data, LocalDateTime first,
+            LocalDateTime last, int numSamples) {
+        var periodMs = numSamples > 1
+                ? Duration.between(first, last).toNanos() / 1e6 / (numSamples - 1)
+                : 0.0;
+        for (int i = 0; i < AXES.length; ++i) {
+            var sampled = new SampledData()
+                    .setOrigin(new Quantity().setValue(0).setUnit("m/s^2"))
+                    .setPeriod(periodMs)
+                    .setDimensions(1)
+                    .setData(data[i].toString());
+            observation.addComponent(new ObservationComponentComponent(
+                    new CodeableConcept(new Coding("http://loinc.org", AXES[i], AXIS_DESCRIPTIONS[i])))
+                    .setValue(sampled));
+        }
+    }
+
+    private static Date toDate(LocalDateTime timestamp) {
+        return Date.from(timestamp.atZone(ZoneOffset.UTC).toInstant());
+    }
+}
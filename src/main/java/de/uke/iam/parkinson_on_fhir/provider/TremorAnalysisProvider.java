@@ -0,0 +1,281 @@
+package de.uke.iam.parkinson_on_fhir.provider;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Observation.ObservationComponentComponent;
+import org.hl7.fhir.r4.model.Observation.ObservationStatus;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+
+import ca.uhn.fhir.i18n.Msg;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+import org.jooq.Condition;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+
+import de.uke.iam.parkinson_on_fhir.analysis.TremorSpectrum;
+
+import static de.uke.iam.parkinson_on_fhir.database.Tables.*;
+
+/**
+ * Computes the spectrum of the acceleration magnitude within sliding windows on
+ * the server, such that clients assessing tremor do not need to download the
+ * raw samples. Each window is returned as an observation holding its dominant
+ * frequency and the power within the tremor band of 3 to 7 Hz.
+ *
+ * The sensors of a subject are analyzed concurrently, each streaming its
+ * samples through its own cursor. As the response is built in memory, the
+ * number of windows is limited.
+ */
+public class TremorAnalysisProvider {
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(TremorAnalysisProvider.class);
+
+    public static final double BAND_LOW_HZ = 3.0;
+    public static final double BAND_HIGH_HZ = 7.0;
+
+    private static final int FETCH_SIZE = 1000;
+    private static final int MIN_WINDOW_SIZE = 16;
+    private static final int MAX_WINDOW_SIZE = 65536;
+    private static final int MAX_WINDOWS = 100000;
+    private static final Coding CATEGORY = new Coding("http://terminology.hl7.org/CodeSystem/observation-category",
+            "procedure", "Procedure");
+    private static final Coding CODE = new Coding("Custom", "tremor-spectrum",
+            "Spectrum of the acceleration magnitude");
+
+    private final DataSource pool;
+    private final DimensionCache dimensions;
+    private final ExecutorService workers;
+
+    /**
+     * Create a new TremorAnalysisProvider.
+     *
+     * @param pool       The pool providing the connections of the cursors.
+     * @param dimensions The cache of the known body parts, devices and sensors.
+     * @param numWorkers The number of sensors analyzed concurrently for the
+     *                   whole server.
+     */
+    public TremorAnalysisProvider(DataSource pool, DimensionCache dimensions, int numWorkers) {
+        this.pool = pool;
+        this.dimensions = dimensions;
+        this.workers = Executors.newFixedThreadPool(Math.max(1, numWorkers), runnable -> {
+            var thread = new Thread(runnable, "analysis-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Create a TremorAnalysisProvider from the system properties.
+     */
+    public static TremorAnalysisProvider loadFromContext(DataSource pool, DimensionCache dimensions) {
+        var numWorkers = Integer.getInteger("de.uke.iam.parkinson_on_fhir.analysis_workers", 4);
+        logger.info("Analyzing up to {} sensors concurrently", Math.max(1, numWorkers));
+        return new TremorAnalysisProvider(pool, dimensions, numWorkers);
+    }
+
+    /**
+     * Stop the workers.
+     */
+    public void shutdown() {
+        this.workers.shutdownNow();
+    }
+
+    /**
+     * Analyze the samples of a subject, optionally restricted to a single sensor
+     * and a range of time.
+     *
+     * @param window The number of samples per window, a power of two and 256 by
+     *               default.
+     * @param step   The number of samples between the starts of consecutive
+     *               windows, half of the window by default.
+     */
+    @Operation(name = "$tremor-analysis", type = Observation.class, idempotent = true)
+    public Bundle tremorAnalysis(@OperationParam(name = "subject", min = 1, max = 1) StringType subject,
+            @OperationParam(name = "device", max = 1) StringType device,
+            @OperationParam(name = "bodyPart", max = 1) StringType bodyPart,
+            @OperationParam(name = "start", max = 1) DateTimeType start,
+            @OperationParam(name = "end", max = 1) DateTimeType end,
+            @OperationParam(name = "window", max = 1) IntegerType window,
+            @OperationParam(name = "step", max = 1) IntegerType step) {
+        int subjectId;
+        try {
+            subjectId = new IdType(subject.getValue()).getIdPartAsLong().intValue();
+        } catch (NumberFormatException | NullPointerException e) {
+            throw new InvalidRequestException(String.format("%sMalformed subject ID: %s", Msg.code(639),
+                    subject != null ? subject.getValue() : null));
+        }
+
+        var windowSize = window != null && window.getValue() != null ? window.getValue() : 256;
+        var stepSize = step != null && step.getValue() != null ? step.getValue() : windowSize / 2;
+        if (windowSize < MIN_WINDOW_SIZE || windowSize > MAX_WINDOW_SIZE || Integer.bitCount(windowSize) != 1
+                || stepSize < 1 || stepSize > windowSize) {
+            throw new InvalidRequestException(String.format(
+                    "%sThe window must be a power of two between %d and %d samples and the step must be between 1 "
+                            + "and the window",
+                    Msg.code(639), MIN_WINDOW_SIZE, MAX_WINDOW_SIZE));
+        }
+
+        Condition where = MEASUREMENTS.SUBJECT.eq(subjectId);
+        if (start != null && start.getValue() != null) {
+            where = where.and(MEASUREMENTS.TIMESTAMP.ge(toLocalDateTime(start)));
+        }
+        if (end != null && end.getValue() != null) {
+            where = where.and(MEASUREMENTS.TIMESTAMP.le(toLocalDateTime(end)));
+        }
+
+        List<Integer> sensors;
+        var hasDevice = device != null && device.getValue() != null;
+        var hasBodyPart = bodyPart != null && bodyPart.getValue() != null;
+        if (hasDevice != hasBodyPart) {
+            throw new InvalidRequestException(Msg.code(639) + "A sensor is identified by both 'device' and 'bodyPart'");
+        } else if (hasDevice) {
+            var sensorId = this.dimensions.findSensorId(device.getValue(), bodyPart.getValue());
+            sensors = sensorId != null ? List.of(sensorId) : List.of();
+        } else {
+            try (var connection = this.pool.getConnection()) {
+                sensors = DSL.using(connection, SQLDialect.POSTGRES)
+                        .selectDistinct(MEASUREMENTS.SENSOR)
+                        .from(MEASUREMENTS)
+                        .where(where)
+                        .orderBy(MEASUREMENTS.SENSOR)
+                        .fetch(MEASUREMENTS.SENSOR);
+            } catch (SQLException e) {
+                throw new InternalErrorException("Unable to read the sensors", e);
+            }
+        }
+
+        var analyses = new ArrayList<Future<List<Observation>>>(sensors.size());
+        var numWindows = new AtomicInteger();
+        for (var sensor : sensors) {
+            var condition = where.and(MEASUREMENTS.SENSOR.eq(sensor));
+            analyses.add(this.workers.submit(
+                    () -> this.analyze(subjectId, sensor, condition, windowSize, stepSize, numWindows)));
+        }
+
+        var bundle = new Bundle().setType(Bundle.BundleType.COLLECTION);
+        try {
+            for (var analysis : analyses) {
+                for (var observation : analysis.get()) {
+                    bundle.addEntry().setResource(observation);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalErrorException("Interrupted while analyzing the samples", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof InvalidRequestException) {
+                throw (InvalidRequestException) e.getCause();
+            }
+            throw new InternalErrorException("Unable to analyze the samples", e.getCause());
+        } finally {
+            for (var analysis : analyses) {
+                analysis.cancel(true);
+            }
+        }
+        bundle.setTotal(bundle.getEntry().size());
+        return bundle;
+    }
+
+    /**
+     * Stream the samples of a single sensor through the spectrum.
+     *
+     * @param numWindows The number of windows of all sensors, shared between
+     *                   the workers to enforce MAX_WINDOWS.
+     */
+    private List<Observation> analyze(int subject, int sensor, Condition where, int windowSize, int stepSize,
+            AtomicInteger numWindows) throws SQLException {
+        var spectrum = new TremorSpectrum(windowSize, stepSize, BAND_LOW_HZ, BAND_HIGH_HZ);
+        var observations = new ArrayList<Observation>();
+        try (var connection = this.pool.getConnection()) {
+            // Postgres only streams results outside of auto-commit mode
+            connection.setAutoCommit(false);
+            try (var cursor = DSL.using(connection, SQLDialect.POSTGRES)
+                    .select(MEASUREMENTS.TIMESTAMP, MEASUREMENTS.X, MEASUREMENTS.Y, MEASUREMENTS.Z)
+                    .from(MEASUREMENTS)
+                    .where(where)
+                    .orderBy(MEASUREMENTS.TIMESTAMP)
+                    .fetchSize(FETCH_SIZE).fetchLazy()) {
+                for (var sample : cursor) {
+                    var instant = sample.value1().atZone(ZoneOffset.UTC).toInstant();
+                    var micros = instant.getEpochSecond() * 1000000 + instant.getNano() / 1000;
+                    if (!spectrum.add(micros, sample.value2(), sample.value3(), sample.value4())) {
+                        continue;
+                    }
+                    if (numWindows.incrementAndGet() > MAX_WINDOWS) {
+                        throw new InvalidRequestException(String.format(
+                                "%sThe analysis results in more than %d windows. Use a larger step or a shorter "
+                                        + "range.",
+                                Msg.code(639), MAX_WINDOWS));
+                    }
+                    observations.add(this.toObservation(subject, sensor, spectrum));
+                }
+            } finally {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        }
+        return observations;
+    }
+
+    private Observation toObservation(int subject, int sensorId, TremorSpectrum spectrum) {
+        var sensor = this.dimensions.getSensor(sensorId);
+        var observation = new Observation();
+        observation.setId(String.format("F-%d-%d-%d", subject, sensorId, spectrum.getStartMicros()));
+        observation.setStatus(ObservationStatus.FINAL);
+        observation.addCategory(new CodeableConcept(CATEGORY));
+        observation.setCode(new CodeableConcept(CODE));
+        observation.setSubject(new Reference(new IdType("Patient", (long) subject)));
+        observation.setDevice(new Reference(new IdType("Device", sensor.getDevice())));
+        observation.setBodySite(new CodeableConcept(new Coding("Custom", sensor.getBodyPart(),
+                this.dimensions.getBodyPartDescription(sensor.getBodyPart()))));
+        observation.setEffective(new Period()
+                .setStart(new Date(spectrum.getStartMicros() / 1000))
+                .setEnd(new Date(spectrum.getEndMicros() / 1000)));
+
+        observation.addComponent(component("dominant-frequency", "Frequency with the highest power",
+                spectrum.getDominantFrequency(), "Hz"));
+        observation.addComponent(component("band-power", String.format("Power between %.0f and %.0f Hz",
+                BAND_LOW_HZ, BAND_HIGH_HZ), spectrum.getBandPower(), "(m/s^2)^2"));
+        observation.addComponent(component("total-power", "Power of all frequencies", spectrum.getTotalPower(),
+                "(m/s^2)^2"));
+        observation.addComponent(component("sample-rate", "Estimated rate of the samples",
+                spectrum.getSampleRate(), "Hz"));
+        return observation;
+    }
+
+    private static ObservationComponentComponent component(String code, String description, double value,
+            String unit) {
+        return new ObservationComponentComponent(new CodeableConcept(new Coding("Custom", code, description)))
+                .setValue(new Quantity().setValue(BigDecimal.valueOf(value)).setUnit(unit));
+    }
+
+    private static LocalDateTime toLocalDateTime(DateTimeType value) {
+        return value.getValue().toInstant().atZone(ZoneOffset.UTC).toLocalDateTime();
+    }
+}
@@ -0,0 +1,69 @@
+package de.uke.iam.parkinson_on_fhir.schema;
+
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import org.jooq.DSLContext;
+import org.jooq.SQLDialect;
+import org.jooq.exception.DataAccessException;
+import org.jooq.impl.DSL;
+
+/**
+ * An index on MEASUREMENTS by subject and timestamp. The primary key starts
+ * with the timestamp, so without it, reading the samples of a subject within a
+ * range, like the window of a task, scans all subjects. The range joins with
+ * the tasks do not restrict the sensor, so it is not part of the index.
+ *
+ * It is created at runtime such that existing databases receive it, too.
+ */
+public final class MeasurementIndex {
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(MeasurementIndex.class);
+
+    public static final String NAME = "measurements_subject_timestamp_idx";
+
+    private MeasurementIndex() {
+    }
+
+    /**
+     * Create the index in background. Building it reads all measurements, which
+     * must not delay the start of the server.
+     *
+     * @param pool The pool providing the connection of the build.
+     * @return The daemon thread building the index.
+     */
+    public static Thread installInBackground(DataSource pool) {
+        var thread = new Thread(() -> {
+            try (var connection = pool.getConnection()) {
+                install(DSL.using(connection, SQLDialect.POSTGRES));
+                logger.info("The index of measurements by subject and timestamp is ready");
+            } catch (SQLException | DataAccessException e) {
+                // An unfinished build is dropped and started again on the next start
+                logger.error("Unable to install the index of measurements: {}", e.toString());
+            }
+        }, "measurement-index");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Create the index if it is not already available. It is built without
+     * blocking concurrent writes, which requires a connection in auto-commit
+     * mode.
+     *
+     * @param context The connection with the database.
+     */
+    public static void install(DSLContext context) {
+        // An interrupted concurrent build leaves an invalid index behind
+        var valid = context.fetchValue("SELECT i.indisvalid FROM pg_index i WHERE i.indexrelid = to_regclass(?)",
+                NAME);
+        if (Boolean.TRUE.equals(valid)) {
+            return;
+        } else if (valid != null) {
+            context.execute(String.format("DROP INDEX CONCURRENTLY %s", NAME));
+        }
+        context.execute(String.format(
+                "CREATE INDEX CONCURRENTLY IF NOT EXISTS %s ON measurements (subject, \"timestamp\")", NAME));
+    }
+}
@@ -0,0 +1,201 @@
+package de.uke.iam.parkinson_on_fhir.schema;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import org.jooq.Condition;
+import org.jooq.DataType;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.Table;
+import org.jooq.impl.DSL;
+import org.jooq.impl.SQLDataType;
+
+/**
+ * Movement features precomputed per sensor, either for fixed epochs of time or
+ * for the window of a task. Epochs are keyed by their start, tasks by their ID,
+ * as several tasks may start at the same instant. Statement-level triggers on
+ * MEASUREMENTS record the epochs whose samples changed in MARKS using
+ * transition tables; the FeatureMaintainer recomputes just them and the tasks
+ * overlapping them. Marking an epoch again bumps the generation of its mark,
+ * such that a recomputation running meanwhile does not remove it.
+ *
+ * Both tables are created at runtime and therefore excluded from the jOOQ code
+ * generation.
+ */
+public final class MovementFeatures {
+
+    public static final String NAME = "movement_features";
+    public static final Table<Record> TABLE = DSL.table(DSL.name(NAME));
+
+    public static final String KIND_EPOCH = "epoch";
+    public static final String KIND_TASK = "task";
+
+    public static final Field<Integer> SUBJECT = field("subject", SQLDataType.INTEGER);
+    public static final Field<Integer> SENSOR = field("sensor", SQLDataType.INTEGER);
+    public static final Field<String> KIND = field("kind", SQLDataType.CLOB);
+    public static final Field<LocalDateTime> WINDOW_START = field("window_start", SQLDataType.LOCALDATETIME);
+    public static final Field<LocalDateTime> WINDOW_END = field("window_end", SQLDataType.LOCALDATETIME);
+    public static final Field<Integer> TASK = field("task", SQLDataType.INTEGER);
+    public static final Field<Integer> NUM_SAMPLES = field("num_samples", SQLDataType.INTEGER);
+    public static final Field<Float> SAMPLE_RATE = field("sample_rate", SQLDataType.REAL);
+    public static final Field<Float> SMA = field("sma", SQLDataType.REAL);
+    public static final List<Field<Float>> RMS = axisFields("rms");
+    public static final List<Field<Float>> JERK = axisFields("jerk");
+    public static final List<Field<Float>> DOMINANT_FREQUENCY = axisFields("dominant_frequency");
+    public static final List<Field<Float>> ENTROPY = axisFields("entropy");
+    public static final Field<LocalDateTime> COMPUTED_AT = field("computed_at", SQLDataType.LOCALDATETIME);
+
+    public static final String MARKS_NAME = "movement_feature_marks";
+    public static final Table<Record> MARKS = DSL.table(DSL.name(MARKS_NAME));
+    public static final Field<Integer> MARK_SUBJECT = DSL.field(DSL.name(MARKS_NAME, "subject"), SQLDataType.INTEGER);
+    public static final Field<Integer> MARK_SENSOR = DSL.field(DSL.name(MARKS_NAME, "sensor"), SQLDataType.INTEGER);
+    public static final Field<LocalDateTime> MARK_EPOCH_START = DSL.field(DSL.name(MARKS_NAME, "epoch_start"),
+            SQLDataType.LOCALDATETIME);
+    public static final Field<LocalDateTime> MARK_EPOCH_END = DSL.field(DSL.name(MARKS_NAME, "epoch_end"),
+            SQLDataType.LOCALDATETIME);
+    public static final Field<Long> MARK_GENERATION = DSL.field(DSL.name(MARKS_NAME, "generation"),
+            SQLDataType.BIGINT);
+    public static final Field<LocalDateTime> MARK_CLAIMED_AT = DSL.field(DSL.name(MARKS_NAME, "claimed_at"),
+            SQLDataType.LOCALDATETIME);
+
+    private static final String[] AXES = { "x", "y", "z" };
+    private static final String EPOCH_FUNCTION = NAME + "_epoch";
+    private static final String EPOCH_END_FUNCTION = NAME + "_epoch_end";
+    private static final String ON_INSERT = NAME + "_on_measurements_insert";
+    private static final String ON_UPDATE = NAME + "_on_measurements_update";
+    private static final String ON_DELETE = NAME + "_on_measurements_delete";
+    private static final String ON_TASKS = NAME + "_on_tasks";
+    private static final String REMARK = String.format("ON CONFLICT (subject, sensor, epoch_start) DO UPDATE "
+            + "SET generation = %s.generation + 1, claimed_at = NULL", MARKS_NAME);
+
+    private MovementFeatures() {
+    }
+
+    private static <T> Field<T> field(String name, DataType<T> type) {
+        return DSL.field(DSL.name(NAME, name), type);
+    }
+
+    private static List<Field<Float>> axisFields(String prefix) {
+        return List.of(field(prefix + "_x", SQLDataType.REAL), field(prefix + "_y", SQLDataType.REAL),
+                field(prefix + "_z", SQLDataType.REAL));
+    }
+
+    /**
+     * Create the tables and their triggers if they are not already available.
+     * The triggers are replaced, such that a changed length of the epochs applies
+     * to all samples written afterwards.
+     *
+     * @param context      The connection with the database.
+     * @param epochSeconds The length of the epochs.
+     */
+    public static void install(DSLContext context, int epochSeconds) {
+        if (context.fetchValue("SELECT to_regclass(?)::text", NAME) == null) {
+            var features = new StringBuilder();
+            for (var prefix : new String[] { "rms", "jerk", "dominant_frequency", "entropy" }) {
+                for (var axis : AXES) {
+                    features.append(String.format(", %s_%s real", prefix, axis));
+                }
+            }
+            context.execute(String.format("CREATE TABLE %s (subject integer NOT NULL, sensor integer NOT NULL, "
+                    + "kind text NOT NULL, window_start timestamp NOT NULL, window_end timestamp NOT NULL, "
+                    + "task integer, num_samples integer NOT NULL, sample_rate real, sma real%s, "
+                    + "computed_at timestamp NOT NULL DEFAULT now())", NAME, features));
+            context.execute(String.format("CREATE UNIQUE INDEX %s_epoch_key ON %s (subject, sensor, window_start) "
+                    + "WHERE kind = '%s'", NAME, NAME, KIND_EPOCH));
+            context.execute(String.format("CREATE UNIQUE INDEX %s_task_key ON %s (task, sensor) WHERE kind = '%s'",
+                    NAME, NAME, KIND_TASK));
+            context.execute(String.format("CREATE INDEX %s_start_idx ON %s (window_start)", NAME, NAME));
+        }
+        context.execute(String.format("CREATE TABLE IF NOT EXISTS %s (subject integer NOT NULL, "
+                + "sensor integer NOT NULL, epoch_start timestamp NOT NULL, epoch_end timestamp NOT NULL, "
+                + "generation bigint NOT NULL DEFAULT 0, claimed_at timestamp, "
+                + "PRIMARY KEY (subject, sensor, epoch_start))", MARKS_NAME));
+
+        // The epoch of a timestamp is computed in the database, such that the
+        // triggers and the backfill agree. Marks carry their end, as the length
+        // of the epochs may change in between.
+        context.execute(String.format("CREATE OR REPLACE FUNCTION %s(value timestamp) RETURNS timestamp AS $$\n"
+                + "  SELECT timestamp 'epoch' + floor(extract(epoch FROM value) / %d) * %d * interval '1 second'\n"
+                + "$$ LANGUAGE sql IMMUTABLE", EPOCH_FUNCTION, epochSeconds, epochSeconds));
+        context.execute(String.format("CREATE OR REPLACE FUNCTION %s(value timestamp) RETURNS timestamp AS $$\n"
+                + "  SELECT %s(value) + %d * interval '1 second'\n"
+                + "$$ LANGUAGE sql IMMUTABLE", EPOCH_END_FUNCTION, EPOCH_FUNCTION, epochSeconds));
+
+        // Transition tables allow marking each epoch once per statement instead of
+        // once per sample
+        var mark = String.format("  INSERT INTO %s (subject, sensor, epoch_start, epoch_end)\n"
+                + "  SELECT DISTINCT subject, sensor, %s(\"timestamp\"), %s(\"timestamp\") FROM %%1$s\n"
+                + "  %s;\n", MARKS_NAME, EPOCH_FUNCTION, EPOCH_END_FUNCTION, REMARK);
+        context.execute(String.format("CREATE OR REPLACE FUNCTION %s() RETURNS trigger AS $$\n"
+                + "BEGIN\n%s  RETURN NULL;\n"
+                + "END $$ LANGUAGE plpgsql", ON_INSERT, String.format(mark, "new_rows")));
+        context.execute(String.format("CREATE OR REPLACE FUNCTION %s() RETURNS trigger AS $$\n"
+                + "BEGIN\n%s%s  RETURN NULL;\n"
+                + "END $$ LANGUAGE plpgsql", ON_UPDATE, String.format(mark, "old_rows"),
+                String.format(mark, "new_rows")));
+        context.execute(String.format("CREATE OR REPLACE FUNCTION %s() RETURNS trigger AS $$\n"
+                + "BEGIN\n%s  RETURN NULL;\n"
+                + "END $$ LANGUAGE plpgsql", ON_DELETE, String.format(mark, "old_rows")));
+
+        // A trigger with transition tables may only fire on a single event
+        String[][] triggers = {
+                { ON_INSERT, "INSERT", "NEW TABLE AS new_rows" },
+                { ON_UPDATE, "UPDATE", "OLD TABLE AS old_rows NEW TABLE AS new_rows" },
+                { ON_DELETE, "DELETE", "OLD TABLE AS old_rows" },
+        };
+        for (var trigger : triggers) {
+            context.execute(String.format("DROP TRIGGER IF EXISTS %s ON measurements", trigger[0]));
+            context.execute(String.format("CREATE TRIGGER %s AFTER %s ON measurements REFERENCING %s "
+                    + "FOR EACH STATEMENT EXECUTE FUNCTION %s()", trigger[0], trigger[1], trigger[2], trigger[0]));
+        }
+
+        // Changed tasks are recomputed from the samples within their new window
+        context.execute(String.format("CREATE OR REPLACE FUNCTION %s() RETURNS trigger AS $$\n"
+                + "BEGIN\n"
+                + "  IF TG_OP <> 'INSERT' THEN\n"
+                + "    DELETE FROM %s WHERE kind = '%s' AND task = OLD.task_id;\n"
+                + "  END IF;\n"
+                + "  IF TG_OP <> 'DELETE' THEN\n"
+                + "    INSERT INTO %s (subject, sensor, epoch_start, epoch_end)\n"
+                + "    SELECT DISTINCT subject, sensor, %s(\"timestamp\"), %s(\"timestamp\") FROM measurements\n"
+                + "    WHERE subject = NEW.subject AND \"timestamp\" BETWEEN NEW.task_start AND NEW.task_end\n"
+                + "    %s;\n"
+                + "  END IF;\n"
+                + "  RETURN NULL;\n"
+                + "END $$ LANGUAGE plpgsql", ON_TASKS, NAME, KIND_TASK, MARKS_NAME, EPOCH_FUNCTION,
+                EPOCH_END_FUNCTION, REMARK));
+        context.execute(String.format("DROP TRIGGER IF EXISTS %s ON tasks", ON_TASKS));
+        context.execute(String.format(
+                "CREATE TRIGGER %s AFTER INSERT OR UPDATE OR DELETE ON tasks FOR EACH ROW EXECUTE FUNCTION %s()",
+                ON_TASKS, ON_TASKS));
+    }
+
+    /**
+     * Remove the triggers, such that writing samples does not mark epochs while
+     * nobody maintains the features. The tables and their features are kept.
+     *
+     * @param context The connection with the database.
+     */
+    public static void uninstall(DSLContext context) {
+        for (var trigger : new String[] { ON_INSERT, ON_UPDATE, ON_DELETE }) {
+            context.execute(String.format("DROP TRIGGER IF EXISTS %s ON measurements", trigger));
+        }
+        context.execute(String.format("DROP TRIGGER IF EXISTS %s ON tasks", ON_TASKS));
+    }
+
+    /**
+     * Mark the epochs of the selected samples for recomputation, e. g. for
+     * filling the features of samples written before the installation.
+     *
+     * @param context The connection with the database.
+     * @param where   The condition selecting the samples from MEASUREMENTS.
+     * @return The number of marked epochs.
+     */
+    public static int mark(DSLContext context, Condition where) {
+        return context.execute(String.format("INSERT INTO %s (subject, sensor, epoch_start, epoch_end) "
+                + "SELECT DISTINCT subject, sensor, %s(\"timestamp\"), %s(\"timestamp\") FROM measurements "
+                + "WHERE {0} %s", MARKS_NAME, EPOCH_FUNCTION, EPOCH_END_FUNCTION, REMARK), where);
+    }
+}
@@ -0,0 +1,173 @@
+package de.uke.iam.parkinson_on_fhir.schema;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.jooq.DataType;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.Table;
+import org.jooq.impl.DSL;
+import org.jooq.impl.SQLDataType;
+
+/**
+ * A denormalized projection of RATINGS joined with ASSESSMENTS, TASKS,
+ * TASKTYPES, SENSORS and BODYPARTS. The table is maintained incrementally by
+ * row-level triggers on all of its sources, so readers never have to join.
+ *
+ * It is created at runtime and therefore excluded from the jOOQ code
+ * generation.
+ */
+public final class RatingObservations {
+
+    public static final String NAME = "rating_observations";
+    public static final Table<Record> TABLE = DSL.table(DSL.name(NAME));
+
+    public static final Field<Integer> SENSOR = field("sensor", SQLDataType.INTEGER);
+    public static final Field<Integer> TASK = field("task", SQLDataType.INTEGER);
+    public static final Field<String> ASSESSMENT = field("assessment", SQLDataType.CLOB);
+    public static final Field<Float> RATING = field("rating", SQLDataType.REAL);
+    public static final Field<String> COMMENT = field("comment", SQLDataType.CLOB);
+    public static final Field<Float> MINIMAL_SEVERENESS = field("minimal_severeness", SQLDataType.REAL);
+    public static final Field<Float> MAXIMAL_SEVERENESS = field("maximal_severeness", SQLDataType.REAL);
+    public static final Field<String> ASSESSMENT_DESCRIPTION = field("assessment_description", SQLDataType.CLOB);
+    public static final Field<LocalDateTime> TASK_START = field("task_start", SQLDataType.LOCALDATETIME);
+    public static final Field<LocalDateTime> TASK_END = field("task_end", SQLDataType.LOCALDATETIME);
+    public static final Field<Integer> SUBJECT = field("subject", SQLDataType.INTEGER);
+    public static final Field<String> TASK_TYPE = field("task_type", SQLDataType.CLOB);
+    public static final Field<String> TASK_TYPE_DESCRIPTION = field("task_type_description", SQLDataType.CLOB);
+    public static final Field<String> UPDRS_CODE = field("updrs_code", SQLDataType.CLOB);
+    public static final Field<String> BODY_PART = field("body_part", SQLDataType.CLOB);
+    public static final Field<String> BODY_PART_DESCRIPTION = field("body_part_description", SQLDataType.CLOB);
+
+    /**
+     * The columns of the projection together with the expression over the joined
+     * source tables they are derived from.
+     */
+    private static final String[][] COLUMNS = {
+            { "sensor", "integer NOT NULL", "r.sensor" },
+            { "task", "integer NOT NULL", "r.task" },
+            { "assessment", "text NOT NULL", "r.assessment" },
+            { "rating", "real", "r.rating" },
+            { "comment", "text", "r.comment" },
+            { "minimal_severeness", "real", "a.minimal_severeness" },
+            { "maximal_severeness", "real", "a.maximal_severeness" },
+            { "assessment_description", "text", "a.description" },
+            { "task_start", "timestamp", "t.task_start" },
+            { "task_end", "timestamp", "t.task_end" },
+            { "subject", "integer", "t.subject" },
+            { "task_type", "text", "tt.name" },
+            { "task_type_description", "text", "tt.description" },
+            { "updrs_code", "text", "tt.updrs_code" },
+            { "body_part", "text", "b.name" },
+            { "body_part_description", "text", "b.description" },
+    };
+
+    private static final String SOURCE = "ratings r"
+            + " JOIN assessments a ON r.assessment = a.name"
+            + " JOIN tasks t ON r.task = t.task_id"
+            + " JOIN tasktypes tt ON t.task_type = tt.name"
+            + " JOIN sensors s ON r.sensor = s.sensor_id"
+            + " JOIN bodyparts b ON s.body_part = b.name";
+
+    /**
+     * The source tables whose changes affect the projection. Each entry lists the
+     * table, followed by pairs of the affected projection column and the column of
+     * the changed row.
+     */
+    private static final String[][] DEPENDENCIES = {
+            { "ratings", "sensor", "sensor", "task", "task", "assessment", "assessment" },
+            { "tasks", "task", "task_id" },
+            { "assessments", "assessment", "name" },
+            { "tasktypes", "task_type", "name" },
+            { "sensors", "sensor", "sensor_id" },
+            { "bodyparts", "body_part", "name" },
+    };
+
+    private RatingObservations() {
+    }
+
+    private static <T> Field<T> field(String name, DataType<T> type) {
+        return DSL.field(DSL.name(NAME, name), type);
+    }
+
+    /**
+     * Create the projection and its triggers if they are not already available.
+     * Creating the table fills it from the current content of the source tables.
+     *
+     * Everything is installed within a single transaction, such that a failed
+     * start leaves no empty projection behind. The triggers are created before
+     * the projection is filled: They lock their tables until the commit, so no
+     * rating written meanwhile is missed.
+     *
+     * @param context The connection with the database.
+     */
+    public static void install(DSLContext context) {
+        context.transaction(configuration -> installWithin(DSL.using(configuration)));
+    }
+
+    private static void installWithin(DSLContext context) {
+        var columnNames = columnList(column -> column[0]);
+        var created = context.fetchValue("SELECT to_regclass(?)::text", NAME) == null;
+        if (created) {
+            context.execute(String.format("CREATE TABLE %s (%s, PRIMARY KEY (sensor, task, assessment))", NAME,
+                    columnList(column -> column[0] + " " + column[1])));
+            context.execute(String.format("CREATE INDEX %s_subject_idx ON %s (subject, task_start)", NAME, NAME));
+            context.execute(String.format("CREATE INDEX %s_start_idx ON %s (task_start)", NAME, NAME));
+        }
+
+        // (Re-)create the triggers keeping the projection up-to-date
+        for (var dependency : DEPENDENCIES) {
+            var table = dependency[0];
+            var function = String.format("%s_on_%s", NAME, table);
+
+            var deleteCondition = new StringBuilder();
+            var insertCondition = new StringBuilder();
+            for (int i = 1; i < dependency.length; i += 2) {
+                var separator = i > 1 ? " AND " : "";
+                deleteCondition.append(String.format("%s%s = OLD.%s", separator, dependency[i], dependency[i + 1]));
+                insertCondition.append(String.format("%s%s = NEW.%s", separator, sourceOf(dependency[i]),
+                        dependency[i + 1]));
+            }
+
+            context.execute(String.format("CREATE OR REPLACE FUNCTION %s() RETURNS trigger AS $$\n"
+                    + "BEGIN\n"
+                    + "  IF TG_OP <> 'INSERT' THEN\n"
+                    + "    DELETE FROM %s WHERE %s;\n"
+                    + "  END IF;\n"
+                    + "  IF TG_OP <> 'DELETE' THEN\n"
+                    + "    INSERT INTO %s (%s) SELECT %s FROM %s WHERE %s\n"
+                    + "    ON CONFLICT (sensor, task, assessment) DO UPDATE SET %s;\n"
+                    + "  END IF;\n"
+                    + "  RETURN NULL;\n"
+                    + "END $$ LANGUAGE plpgsql",
+                    function, NAME, deleteCondition, NAME, columnNames, columnList(column -> column[2]), SOURCE,
+                    insertCondition, columnList(column -> String.format("%s = EXCLUDED.%s", column[0], column[0]))));
+            context.execute(String.format("DROP TRIGGER IF EXISTS %s ON %s", function, table));
+            context.execute(String.format(
+                    "CREATE TRIGGER %s AFTER INSERT OR UPDATE OR DELETE ON %s FOR EACH ROW EXECUTE FUNCTION %s()",
+                    function, table, function));
+        }
+
+        if (created) {
+            context.execute(String.format("INSERT INTO %s (%s) SELECT %s FROM %s", NAME, columnNames,
+                    columnList(column -> column[2]), SOURCE));
+        }
+    }
+
+    private static String sourceOf(String column) {
+        for (var candidate : COLUMNS) {
+            if (candidate[0].equals(column)) {
+                return candidate[2];
+            }
+        }
+        throw new IllegalArgumentException(column);
+    }
+
+    private static String columnList(Function<String[], String> mapper) {
+        return List.of(COLUMNS).stream().map(mapper).collect(Collectors.joining(", "));
+    }
+}
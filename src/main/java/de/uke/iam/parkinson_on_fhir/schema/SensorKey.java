@@ -0,0 +1,38 @@
+package de.uke.iam.parkinson_on_fhir.schema;
+
+import org.jooq.DSLContext;
+import org.jooq.exception.DataAccessException;
+
+/**
+ * A unique index on SENSORS by device and body part. Sensors are created on
+ * demand by concurrent writers, which rely on it for resolving a conflicting
+ * insert to the sensor stored already.
+ *
+ * It is created at runtime such that existing databases receive it, too.
+ */
+public final class SensorKey {
+
+    public static final String NAME = "sensors_device_body_part_key";
+
+    private SensorKey() {
+    }
+
+    /**
+     * Create the index if it is not already available. The table is small, so it
+     * is built within the caller's connection.
+     *
+     * @param context The connection with the database.
+     * @throws DataAccessException If the table contains the same sensor several
+     *                             times. The error names the affected pairs,
+     *                             which must be merged first.
+     */
+    public static void install(DSLContext context) {
+        var duplicates = context.fetch("SELECT device, body_part FROM sensors"
+                + " GROUP BY device, body_part HAVING count(*) > 1");
+        if (duplicates.isNotEmpty()) {
+            throw new DataAccessException(String.format(
+                    "Sensors stored several times, merge them before starting: %s", duplicates.formatCSV(false)));
+        }
+        context.execute(String.format("CREATE UNIQUE INDEX IF NOT EXISTS %s ON sensors (device, body_part)", NAME));
+    }
+}
@@ -28,10 +28,17 @@ public class AuthorizationHandler extends AuthorizationInterceptor {
         this.expectedHeader = String.format("Basic %s", encodedCredentials);
     }
 
+    /**
+     * Check the value of an Authorization header.
+     */
+    public boolean isAuthorized(String authHeader) {
+        return this.expectedHeader.equals(authHeader);
+    }
+
     @Override
     public List<IAuthRule> buildRuleList(RequestDetails theRequestDetails) {
         String authHeader = theRequestDetails.getHeader("Authorization");
-        if (this.expectedHeader.equals(authHeader)) {
+        if (this.isAuthorized(authHeader)) {
             return new RuleBuilder().allowAll().build();
         } else {
             var exception = new AuthenticationException(
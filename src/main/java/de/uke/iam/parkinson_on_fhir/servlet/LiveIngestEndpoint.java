@@ -0,0 +1,214 @@
+package de.uke.iam.parkinson_on_fhir.servlet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import javax.websocket.CloseReason;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.HandshakeResponse;
+import javax.websocket.MessageHandler;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.Session;
+import javax.websocket.server.HandshakeRequest;
+import javax.websocket.server.ServerEndpointConfig;
+
+import org.jooq.exception.DataAccessException;
+
+import de.uke.iam.parkinson_on_fhir.ingest.LiveIngest;
+import de.uke.iam.parkinson_on_fhir.provider.ObservationValidator;
+
+/**
+ * A WebSocket receiving the samples of a live session. The subject, device and
+ * body part are given as query parameters when connecting; binary messages
+ * carry the frames as described by LiveIngest. After each flush, a text message
+ * {"ack":[first,last]} acknowledges the written range of sequence numbers.
+ * Acknowledgements are sent asynchronously; while one is still being sent to a
+ * slow client, the following ones are merged into a single range.
+ */
+public class LiveIngestEndpoint extends Endpoint {
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(LiveIngestEndpoint.class);
+
+    public static final String PATH = "/live/Observation";
+
+    private static final String AUTHORIZED = "authorized";
+
+    private final LiveIngest ingest;
+    private final ObservationValidator validator;
+    private LiveIngest.Session session;
+
+    // The acknowledgement waiting for the previous one to be sent, guarded by "this"
+    private long[] pendingAck;
+    private boolean sending;
+
+    /**
+     * Creates the endpoints of new connections and checks their authorization.
+     */
+    public static class Configurator extends ServerEndpointConfig.Configurator {
+        private final LiveIngest ingest;
+        private final ObservationValidator validator;
+        private final AuthorizationHandler authorization;
+
+        public Configurator(LiveIngest ingest, ObservationValidator validator, AuthorizationHandler authorization) {
+            this.ingest = ingest;
+            this.validator = validator;
+            this.authorization = authorization;
+        }
+
+        // The container passes a copy of the configuration per connection
+        @Override
+        public void modifyHandshake(ServerEndpointConfig config, HandshakeRequest request,
+                HandshakeResponse response) {
+            List<String> header = request.getHeaders().get("Authorization");
+            var authorized = this.authorization == null
+                    || (header != null && header.size() == 1 && this.authorization.isAuthorized(header.get(0)));
+            config.getUserProperties().put(AUTHORIZED, authorized);
+        }
+
+        @Override
+        public <T> T getEndpointInstance(Class<T> endpointClass) throws InstantiationException {
+            return endpointClass.cast(new LiveIngestEndpoint(this.ingest, this.validator));
+        }
+    }
+
+    private LiveIngestEndpoint(LiveIngest ingest, ObservationValidator validator) {
+        this.ingest = ingest;
+        this.validator = validator;
+    }
+
+    @Override
+    public void onOpen(Session connection, EndpointConfig config) {
+        if (!Boolean.TRUE.equals(config.getUserProperties().remove(AUTHORIZED))) {
+            close(connection, CloseReason.CloseCodes.VIOLATED_POLICY, "Missing or invalid Authorization header");
+            return;
+        }
+
+        // Identify the subject and sensor once for the whole session
+        int subject;
+        String device, bodyPart;
+        try {
+            subject = Integer.parseInt(getParameter(connection, "subject"));
+            device = getParameter(connection, "device");
+            bodyPart = getParameter(connection, "bodyPart");
+        } catch (IllegalArgumentException e) {
+            close(connection, CloseReason.CloseCodes.CANNOT_ACCEPT,
+                    "The parameters 'subject', 'device' and 'bodyPart' are required");
+            return;
+        }
+        Integer sensorId;
+        try {
+            if (!this.validator.hasSubject(subject)) {
+                close(connection, CloseReason.CloseCodes.CANNOT_ACCEPT, "The subject is unknown");
+                return;
+            }
+            sensorId = this.validator.getSensorId(device, bodyPart);
+        } catch (DataAccessException e) {
+            logger.warn("Unable to identify the sensor of a live session: {}", e.getMessage());
+            close(connection, CloseReason.CloseCodes.TRY_AGAIN_LATER, "Unable to identify the sensor");
+            return;
+        }
+        if (sensorId == null) {
+            close(connection, CloseReason.CloseCodes.CANNOT_ACCEPT, "The device is unknown");
+            return;
+        }
+
+        var remote = connection.getAsyncRemote();
+        this.session = this.ingest.open(subject, sensorId, new LiveIngest.Listener() {
+            @Override
+            public void onFlushed(long firstSequence, long lastSequence) {
+                acknowledge(remote, firstSequence, lastSequence);
+            }
+
+            @Override
+            public void onFailed(String reason, boolean permanent) {
+                if (permanent) {
+                    close(connection, CloseReason.CloseCodes.CANNOT_ACCEPT, "The frames were rejected");
+                } else {
+                    close(connection, CloseReason.CloseCodes.TRY_AGAIN_LATER, "Unable to write the frames");
+                }
+            }
+        });
+
+        connection.addMessageHandler(ByteBuffer.class, new MessageHandler.Whole<ByteBuffer>() {
+            @Override
+            public void onMessage(ByteBuffer message) {
+                try {
+                    session.append(message);
+                } catch (IllegalArgumentException e) {
+                    close(connection, CloseReason.CloseCodes.CANNOT_ACCEPT, e.getMessage());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onClose(Session connection, CloseReason reason) {
+        if (this.session != null) {
+            this.session.close();
+        }
+    }
+
+    @Override
+    public void onError(Session connection, Throwable error) {
+        logger.warn("Live session failed: {}", error.toString());
+    }
+
+    /**
+     * Send an acknowledgement without waiting for the client. If the previous one
+     * is still being sent, the range is merged into the pending one instead.
+     */
+    private void acknowledge(RemoteEndpoint.Async remote, long firstSequence, long lastSequence) {
+        synchronized (this) {
+            if (this.pendingAck != null) {
+                this.pendingAck[1] = lastSequence;
+            } else {
+                this.pendingAck = new long[] { firstSequence, lastSequence };
+            }
+            if (this.sending) {
+                return;
+            }
+            this.sending = true;
+        }
+        this.sendPendingAck(remote);
+    }
+
+    private void sendPendingAck(RemoteEndpoint.Async remote) {
+        long[] ack;
+        synchronized (this) {
+            ack = this.pendingAck;
+            this.pendingAck = null;
+            if (ack == null) {
+                this.sending = false;
+                return;
+            }
+        }
+
+        remote.sendText(String.format("{\"ack\":[%d,%d]}", ack[0], ack[1]), result -> {
+            if (result.isOK()) {
+                this.sendPendingAck(remote);
+                return;
+            }
+            logger.warn("Unable to acknowledge live frames: {}", result.getException().toString());
+            synchronized (this) {
+                this.sending = false;
+            }
+        });
+    }
+
+    private static String getParameter(Session connection, String name) {
+        var values = connection.getRequestParameterMap().get(name);
+        if (values == null || values.size() != 1 || values.get(0).isEmpty()) {
+            throw new IllegalArgumentException(name);
+        }
+        return values.get(0);
+    }
+
+    private static void close(Session connection, CloseReason.CloseCode code, String reason) {
+        try {
+            connection.close(new CloseReason(code, reason));
+        } catch (IOException e) {
+            logger.warn("Unable to close live session: {}", e.getMessage());
+        }
+    }
+}
@@ -1,9 +1,19 @@
 package de.uke.iam.parkinson_on_fhir.servlet;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.sql.*;
 
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import javax.websocket.DeploymentException;
+import javax.websocket.server.ServerContainer;
+import javax.websocket.server.ServerEndpointConfig;
+
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.narrative.DefaultThymeleafNarrativeGenerator;
 import ca.uhn.fhir.narrative.INarrativeGenerator;
@@ -12,17 +22,44 @@ import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.interceptor.ResponseHighlighterInterceptor;
 import ca.uhn.fhir.rest.openapi.OpenApiInterceptor;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
 import org.jooq.SQLDialect;
 import org.jooq.DDLExportConfiguration;
 import org.jooq.DSLContext;
 import org.jooq.Query;
+import org.jooq.exception.DataAccessException;
 import org.jooq.impl.DSL;
 
+import de.uke.iam.parkinson_on_fhir.provider.DatasetExportProvider;
 import de.uke.iam.parkinson_on_fhir.provider.DeviceResourceProvider;
+import de.uke.iam.parkinson_on_fhir.provider.DimensionCache;
+import de.uke.iam.parkinson_on_fhir.provider.ExportProvider;
+import de.uke.iam.parkinson_on_fhir.provider.FeatureBackfillProvider;
+import de.uke.iam.parkinson_on_fhir.provider.FrameIngestProvider;
 import de.uke.iam.parkinson_on_fhir.provider.GroupResourceProvider;
 import de.uke.iam.parkinson_on_fhir.provider.ObservationResourceProvider;
+import de.uke.iam.parkinson_on_fhir.provider.ObservationValidator;
 import de.uke.iam.parkinson_on_fhir.provider.PatientResourceProvider;
+import de.uke.iam.parkinson_on_fhir.provider.PipelineProvider;
+import de.uke.iam.parkinson_on_fhir.provider.Prefetcher;
+import de.uke.iam.parkinson_on_fhir.provider.RangeScanner;
+import de.uke.iam.parkinson_on_fhir.provider.SampleExportProvider;
+import de.uke.iam.parkinson_on_fhir.provider.SystemTransactionProvider;
+import de.uke.iam.parkinson_on_fhir.provider.TaskWindowProvider;
+import de.uke.iam.parkinson_on_fhir.provider.TremorAnalysisProvider;
+import de.uke.iam.parkinson_on_fhir.analysis.FeatureMaintainer;
 import de.uke.iam.parkinson_on_fhir.database.Public;
+import de.uke.iam.parkinson_on_fhir.export.ExportManager;
+import de.uke.iam.parkinson_on_fhir.ingest.GroupCommitWriter;
+import de.uke.iam.parkinson_on_fhir.ingest.IngestJournal;
+import de.uke.iam.parkinson_on_fhir.ingest.IngestQueue;
+import de.uke.iam.parkinson_on_fhir.ingest.LiveIngest;
+import de.uke.iam.parkinson_on_fhir.ingest.ReplayFilter;
+import de.uke.iam.parkinson_on_fhir.schema.MeasurementIndex;
+import de.uke.iam.parkinson_on_fhir.schema.MovementFeatures;
+import de.uke.iam.parkinson_on_fhir.schema.RatingObservations;
+import de.uke.iam.parkinson_on_fhir.schema.SensorKey;
 
 /**
  * This servlet is the actual FHIR server itself
@@ -32,6 +69,19 @@ public class RestfulServlet extends RestfulServer {
 	private static final long serialVersionUID = 1L;
 	private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(RestfulServlet.class);
 
+	private transient HikariDataSource pool;
+	private transient Prefetcher prefetcher;
+	private transient RangeScanner scanner;
+	private transient GroupCommitWriter writer;
+	private transient IngestJournal journal;
+	private transient IngestQueue ingest;
+	private transient LiveIngest live;
+	private transient SystemTransactionProvider transactions;
+	private transient TremorAnalysisProvider tremor;
+	private transient FeatureMaintainer features;
+	private transient ExportManager exports;
+	private final AtomicInteger activeRequests = new AtomicInteger();
+
 	/**
 	 * Constructor
 	 */
@@ -65,6 +115,15 @@ public class RestfulServlet extends RestfulServer {
 			logger.info("Initializing jOOQ");
 			context = DSL.using(connection, SQLDialect.POSTGRES);
 
+			// Concurrent workers get their own connections from a pool
+			var poolConfig = new HikariConfig();
+			poolConfig.setPoolName("parkinson-fhir");
+			poolConfig.setJdbcUrl(url);
+			poolConfig.setUsername(user);
+			poolConfig.setPassword(password);
+			poolConfig.setMaximumPoolSize(Integer.getInteger("de.uke.iam.parkinson_on_fhir.pool_size", 8));
+			this.pool = new HikariDataSource(poolConfig);
+
 			logger.info("Database ready");
 		} catch (Exception e) {
 			logger.error("Unable to establish database connection: {}", e.toString());
@@ -90,17 +149,131 @@ public class RestfulServlet extends RestfulServer {
 			logger.info("Database schema already created during buid");
 		}
 
+		// Install the objects created at runtime on top of the generated schema
+		try {
+			logger.info("Installing the denormalized ratings projection");
+			RatingObservations.install(context);
+		} catch (DataAccessException e) {
+			logger.error("Unable to install the ratings projection: {}", e.toString());
+			return;
+		}
+		try {
+			logger.info("Installing the unique key of sensors");
+			SensorKey.install(context);
+		} catch (DataAccessException e) {
+			logger.error("Unable to install the unique key of sensors: {}", e.toString());
+			return;
+		}
+		logger.info("Installing the index of measurements by subject and timestamp in background");
+		MeasurementIndex.installInBackground(this.pool);
+		var maintainFeatures = FeatureMaintainer.isEnabled();
+		try {
+			if (maintainFeatures) {
+				var epochSeconds = Integer.getInteger("de.uke.iam.parkinson_on_fhir.feature_epoch_seconds", 60);
+				logger.info("Installing the movement feature store with epochs of {} s", epochSeconds);
+				MovementFeatures.install(context, epochSeconds);
+			} else {
+				logger.info("Movement features are not maintained, removing their triggers");
+				MovementFeatures.uninstall(context);
+			}
+		} catch (DataAccessException e) {
+			logger.error("Unable to install the movement feature store, continuing without: {}", e.toString());
+			maintainFeatures = false;
+		}
+
+		// Write measurements accepted but not committed before the last shutdown
+		try {
+			this.journal = IngestJournal.loadFromContext();
+		} catch (IOException e) {
+			logger.error("Unable to open the ingest journal, accepting measurements without it: {}", e.toString());
+		}
+		if (this.journal != null) {
+			// Batches not replayed stay within the journal and are retried on the next start
+			try {
+				var numReplayed = this.journal.replay(context);
+				logger.info("Replayed {} measurements from the ingest journal", numReplayed);
+			} catch (IOException | DataAccessException e) {
+				logger.error("Unable to replay the ingest journal: {}", e.toString());
+			}
+		}
+
 		/*
 		 * Two resource providers are defined. Each one handles a specific
 		 * type of resource.
 		 */
+		DimensionCache dimensions = new DimensionCache(context);
+		this.prefetcher = Prefetcher.loadFromContext();
+		this.scanner = RangeScanner.loadFromContext(this.pool);
+		this.writer = GroupCommitWriter.loadFromContext(this.pool);
+		ReplayFilter replays = ReplayFilter.loadFromContext();
+		this.ingest = IngestQueue.loadFromContext(this.pool, this.journal, replays);
 		List<IResourceProvider> providers = new ArrayList<IResourceProvider>();
 		providers.add(new GroupResourceProvider(context));
-		providers.add(new PatientResourceProvider(context));
-		providers.add(new ObservationResourceProvider(context));
-		providers.add(new DeviceResourceProvider(context));
+		providers.add(new PatientResourceProvider(context, dimensions));
+		ObservationResourceProvider observations = new ObservationResourceProvider(context, dimensions,
+				this.prefetcher, this.scanner, this.writer, this.ingest, replays);
+		providers.add(observations);
+		providers.add(new DeviceResourceProvider(context, dimensions));
 		setResourceProviders(providers);
 
+		/*
+		 * Batches and transactions may span all of the resource types above.
+		 */
+		this.transactions = SystemTransactionProvider.loadFromContext(this.pool, dimensions, observations);
+		registerProvider(this.transactions);
+
+		/*
+		 * Device gateways may upload samples without encoding them as FHIR.
+		 */
+		registerProvider(FrameIngestProvider.loadFromContext(context, this.pool, dimensions));
+
+		/*
+		 * Raw samples are streamed as CSV for tools not speaking FHIR.
+		 */
+		registerProvider(new SampleExportProvider(this.pool, dimensions));
+
+		/*
+		 * Training data joins the samples with the tasks and their ratings.
+		 */
+		registerProvider(new DatasetExportProvider(this.pool, dimensions));
+
+		/*
+		 * The samples of tasks are read with a single range join.
+		 */
+		registerProvider(new TaskWindowProvider(this.pool, dimensions));
+
+		/*
+		 * Spectra of the samples are computed on the server, one sensor per worker.
+		 */
+		this.tremor = TremorAnalysisProvider.loadFromContext(this.pool, dimensions);
+		registerProvider(this.tremor);
+
+		/*
+		 * Further analyses are declared as chains of streaming operators.
+		 */
+		registerProvider(new PipelineProvider(this.pool, dimensions));
+
+		/*
+		 * Movement features are recomputed in background for the epochs and tasks
+		 * whose samples changed.
+		 */
+		if (maintainFeatures) {
+			this.features = FeatureMaintainer.loadFromContext(this.pool);
+		}
+		if (this.features != null) {
+			registerProvider(new FeatureBackfillProvider(this.features));
+		}
+
+		/*
+		 * Whole groups are exported in background as NDJSON files. Exports
+		 * interrupted by a restart are resumed.
+		 */
+		this.exports = ExportManager.loadFromContext(this.pool, dimensions, getFhirContext(),
+				this.activeRequests::get);
+		if (this.exports != null) {
+			registerProvider(new ExportProvider(context, this.exports));
+		}
+
 		/*
 		 * Use a narrative generator. This is a completely optional step,
 		 * but can be useful as it causes HAPI to generate narratives for
@@ -138,5 +311,90 @@ public class RestfulServlet extends RestfulServer {
 		} else {
 			logger.warn("Server is running without HTTP authorization");
 		}
+
+		/*
+		 * Live sessions push their samples over a WebSocket
+		 */
+		this.live = LiveIngest.loadFromContext(this.pool);
+		if (this.live != null) {
+			var container = (ServerContainer) getServletContext()
+					.getAttribute("javax.websocket.server.ServerContainer");
+			try {
+				if (container == null) {
+					throw new DeploymentException("The container does not support WebSockets");
+				}
+				container.addEndpoint(ServerEndpointConfig.Builder
+						.create(LiveIngestEndpoint.class, LiveIngestEndpoint.PATH)
+						.configurator(new LiveIngestEndpoint.Configurator(this.live,
+								new ObservationValidator(context, dimensions), authorization))
+						.build());
+				logger.info("Live sessions accepted at '{}'", LiveIngestEndpoint.PATH);
+			} catch (DeploymentException | IllegalStateException e) {
+				logger.error("Unable to register the WebSocket for live sessions: {}", e.toString());
+			}
+		}
+	}
+
+	/**
+	 * Count the interactive requests in progress, letting background exports
+	 * yield to them. Operations are not counted: Uploads, downloads and analyses
+	 * may run for minutes and would stall the exports throughout.
+	 */
+	@Override
+	protected void service(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+		var pathInfo = request.getPathInfo();
+		if (pathInfo != null && pathInfo.contains("$")) {
+			super.service(request, response);
+			return;
+		}
+
+		this.activeRequests.incrementAndGet();
+		try {
+			super.service(request, response);
+		} finally {
+			this.activeRequests.decrementAndGet();
+		}
+	}
+
+	/**
+	 * This method is called automatically when the servlet is shut down.
+	 */
+	@Override
+	public void destroy() {
+		if (this.prefetcher != null) {
+			this.prefetcher.shutdown();
+		}
+		if (this.scanner != null) {
+			this.scanner.shutdown();
+		}
+		if (this.writer != null) {
+			this.writer.shutdown();
+		}
+		if (this.transactions != null) {
+			this.transactions.shutdown();
+		}
+		if (this.tremor != null) {
+			this.tremor.shutdown();
+		}
+		if (this.features != null) {
+			this.features.shutdown();
+		}
+		if (this.ingest != null) {
+			this.ingest.shutdown();
+		}
+		if (this.journal != null) {
+			this.journal.shutdown();
+		}
+		if (this.live != null) {
+			this.live.shutdown();
+		}
+		if (this.exports != null) {
+			this.exports.shutdown();
+		}
+		if (this.pool != null) {
+			this.pool.close();
+		}
+		super.destroy();
 	}
 }
@@ -1,13 +1,35 @@
+import datetime
+import json
 import requests
 import unittest
 import re
 import string
+import struct
 import random
+import time
+import websocket
+import io
+import math
+import os
+import zipfile
+import psycopg2
 
 # The server where the REST interface run. By default, this points to the Docker host.
 SERVER = "http://172.17.0.1:50202/parkinson-fhir"
 
 
+def connectDatabase():
+    """Connect the database directly for data the REST interface does not accept, e.g. tasks."""
+    host, port = os.environ.get("POSTGRES_SERVER", "172.17.0.1:50201").split(":")
+    return psycopg2.connect(
+        host=host,
+        port=port,
+        dbname=os.environ.get("POSTGRES_DATABASE", "parkinson"),
+        user=os.environ.get("POSTGRES_USER", "gundler"),
+        password=os.environ.get("POSTGRES_PASSWORD", "test1234"),
+    )
+
+
 class TestDevice(unittest.TestCase):
     def __init__(self, *kargs, **kwargs) -> None:
         super().__init__(*kargs, **kwargs)
@@ -252,6 +274,17 @@ class TestObservation(unittest.TestCase):
     def testInsertAndDelete(self):
         pass
 
+    def testUnknownSubject(self):
+        payload = self.payload.copy()
+        payload["subject"] = {"reference": "Patient/999999999"}
+        r = requests.post(f"{SERVER}/Observation", json=payload)
+        self.assertEqual(r.status_code, 422, msg=r.text)
+
+    def testCreateTwice(self):
+        # The second payload of setUp() is stored already
+        r = requests.post(f"{SERVER}/Observation", json=self.payload)
+        self.assertEqual(r.status_code, 200, msg=r.text)
+
     def testGet(self):
         r = requests.get(
             f"{SERVER}/Observation?category=procedure&subject={self.subject_reference}&date=ge2011-01-02"
@@ -326,6 +359,715 @@ class TestObservation(unittest.TestCase):
             # Remove the resources during cleaning
             self.observation_urls.append(f"{SERVER}/{response['location']}")
 
+    def testTransaction(self):
+        entry1 = self.payload.copy()
+        entry2 = self.payload.copy()
+        entry1["effectiveInstant"] = "2022-02-07T13:28:17.239+02:00"
+        entry2["effectiveInstant"] = "2022-03-10T13:28:18.240+02:00"
+        entry2["status"] = "preliminary"
+        bundle_payload = {
+            "resourceType": "Bundle",
+            "type": "transaction",
+            "entry": [{"resource": entry1}, {"resource": entry2}],
+        }
+
+        # A single invalid entry rejects the whole transaction ...
+        r = requests.post(f"{SERVER}", json=bundle_payload)
+        self.assertEqual(r.status_code, 422, msg=r.text)
+        r = requests.get(
+            f"{SERVER}/Observation?category=procedure&subject={self.subject_reference}&date=ge2022-01-01"
+        )
+        self.assertEqual(r.status_code, 200, msg=r.text)
+        self.assertEqual(len(r.json().get("entry", [])), 0)
+
+        # ... while valid ones are written together.
+        entry2["status"] = "final"
+        r = requests.post(f"{SERVER}", json=bundle_payload)
+        self.assertEqual(r.status_code, 200, msg=r.text)
+        entries = r.json()["entry"]
+        self.assertEqual(len(entries), 2, msg=entries)
+        for entry in entries:
+            response = entry["response"]
+            self.assertEqual(response["status"], "201 Created", msg=entries)
+            self.observation_urls.append(f"{SERVER}/{response['location']}")
+
+        # Sending the transaction once more stores nothing new
+        r = requests.post(f"{SERVER}", json=bundle_payload)
+        self.assertEqual(r.status_code, 200, msg=r.text)
+        for entry in r.json()["entry"]:
+            self.assertEqual(entry["response"]["status"], "200 OK", msg=r.text)
+
+    def testMixedTransaction(self):
+        device_payload = self.device_payload.copy()
+        device_payload["distinctIdentifier"] += "-T"
+        observation = self.payload.copy()
+        observation["effectiveInstant"] = "2023-02-07T13:28:17.239+02:00"
+        observation["subject"] = {"reference": "urn:uuid:patient"}
+        observation["device"] = {"reference": "urn:uuid:device"}
+        bundle_payload = {
+            "resourceType": "Bundle",
+            "type": "transaction",
+            "entry": [
+                {
+                    "fullUrl": "urn:uuid:device",
+                    "resource": device_payload,
+                    "request": {"method": "POST", "url": "Device"},
+                },
+                {
+                    "fullUrl": "urn:uuid:patient",
+                    "resource": {
+                        "resourceType": "Patient",
+                        "active": True,
+                        "identifier": {"value": "Transaction Patient"},
+                    },
+                    "request": {"method": "POST", "url": "Patient"},
+                },
+                {
+                    "resource": {
+                        "resourceType": "Group",
+                        "active": True,
+                        "actual": True,
+                        "type": "person",
+                        "name": "Transaction Group",
+                        "member": [{"entity": {"reference": "urn:uuid:patient"}}],
+                    },
+                    "request": {"method": "POST", "url": "Group"},
+                },
+                {
+                    "resource": observation,
+                    "request": {"method": "POST", "url": "Observation"},
+                },
+            ],
+        }
+
+        # References within the bundle are resolved to the created resources
+        r = requests.post(f"{SERVER}", json=bundle_payload)
+        self.assertEqual(r.status_code, 200, msg=r.text)
+        entries = r.json()["entry"]
+        self.assertEqual(len(entries), 4, msg=entries)
+        locations = [entry["response"]["location"] for entry in entries]
+        for entry in entries:
+            self.assertEqual(entry["response"]["status"], "201 Created", msg=entries)
+
+        r = requests.get(f"{SERVER}/{locations[2]}")
+        self.assertEqual(r.status_code, 200, msg=r.text)
+        self.assertEqual(
+            r.json()["member"][0]["entity"]["reference"], locations[1], msg=r.text
+        )
+
+        # Deletes are ordered by their dependencies
+        bundle_payload = {
+            "resourceType": "Bundle",
+            "type": "transaction",
+            "entry": [
+                {"request": {"method": "DELETE", "url": location}}
+                for location in locations[1:]
+            ],
+        }
+        r = requests.post(f"{SERVER}", json=bundle_payload)
+        self.assertEqual(r.status_code, 200, msg=r.text)
+        for entry in r.json()["entry"]:
+            self.assertEqual(entry["response"]["status"], "204 No Content", msg=r.text)
+
+    def testIngest(self):
+        entry1 = self.payload.copy()
+        entry2 = self.payload.copy()
+        entry1["effectiveInstant"] = "2021-02-07T13:28:17.239+02:00"
+        entry2["effectiveInstant"] = "2021-03-10T13:28:18.240+02:00"
+        bundle_payload = {
+            "resourceType": "Bundle",
+            "type": "batch",
+            "entry": [{"resource": entry1}, {"resource": entry2}],
+        }
+
+        r = requests.post(f"{SERVER}/Observation/$ingest", json=bundle_payload)
+        self.assertEqual(r.status_code, 202, msg=r.text)
+        status_url = r.headers["content-location"]
+
+        # Poll until all observations are written
+        for _ in range(100):
+            r = requests.get(status_url)
+            if r.status_code != 202:
+                break
+            time.sleep(0.1)
+        self.assertEqual(r.status_code, 200, msg=r.text)
+
+        entries = r.json()["entry"]
+        self.assertEqual(len(entries), 2, msg=entries)
+        for entry in entries:
+            response = entry["response"]
+            self.assertEqual(response["status"], "201 Created", msg=entries)
+            self.observation_urls.append(f"{SERVER}/{response['location']}")
+
+    def testIngestStream(self):
+        entry1 = self.payload.copy()
+        entry2 = self.payload.copy()
+        entry1["effectiveInstant"] = "2021-04-07T13:28:17.239+02:00"
+        entry2["effectiveInstant"] = "2021-05-10T13:28:18.240+02:00"
+        body = "\n".join(json.dumps(entry) for entry in [entry1, entry2])
+
+        r = requests.post(
+            f"{SERVER}/Observation/$ingest-stream",
+            data=body,
+            headers={"Content-Type": "application/fhir+ndjson"},
+        )
+        self.assertEqual(r.status_code, 200, msg=r.text)
+        self.assertIn("2 created", r.json()["issue"][0]["diagnostics"], msg=r.text)
+
+        r = requests.get(
+            f"{SERVER}/Observation?category=procedure&subject={self.subject_reference}&date=ge2021-04-01&date=lt2021-06-01"
+        )
+        self.assertEqual(r.status_code, 200, msg=r.text)
+        for entry in r.json()["entry"]:
+            self.observation_urls.append(f"{SERVER}/Observation/{entry['resource']['id']}")
+        self.assertEqual(len(r.json()["entry"]), 2, msg=r.text)
+
+    def testExportCsv(self):
+        r = requests.get(
+            f"{SERVER}/Observation/$export-csv?subject={self.subject_reference}&delimiter=tab"
+        )
+        self.assertEqual(r.status_code, 200, msg=r.text)
+        lines = r.text.strip().split("\n")
+        self.assertEqual(
+            lines[0].split("\t"),
+            ["timestamp", "subject", "sensor", "body_part", "x", "y", "z"],
+        )
+        self.assertEqual(len(lines), 3, msg=r.text)
+        self.assertEqual(lines[1].split("\t")[4:], ["1.0", "2.0", "3.0"])
+
+    @staticmethod
+    def _encodeFrames(subject, start_micros, device, body_part, frames):
+        upload = b"PoF1" + struct.pack("<iq", subject, start_micros)
+        for text in (device, body_part):
+            encoded = text.encode("utf-8")
+            upload += struct.pack("<H", len(encoded)) + encoded
+        for delta, x, y, z in frames:
+            upload += struct.pack("<Ifff", delta, x, y, z)
+        return upload
+
+    def testIngestFrames(self):
+        subject = int(self.subject_reference.split("/")[1])
+        device = self.device_payload["distinctIdentifier"]
+        start = 1704067200 * 1000000  # 2024-01-01T00:00:00Z
+
+        # The third frame repeats the timestamp of the second one
+        upload = TestObservation._encodeFrames(
+            subject, start, device, "wrist", [(0, 1, 2, 3), (10000, 4, 5, 6), (0, 4, 5, 6)]
+        )
+        headers = {"Content-Type": "application/octet-stream"}
+        r = requests.post(f"{SERVER}/Observation/$ingest-frames", data=upload, headers=headers)
+        self.assertEqual(r.status_code, 201, msg=r.text)
+        self.assertIn("Read 3 frames: 2 created, 1 already stored", r.text)
+
+        # Sending the upload again creates nothing
+        r = requests.post(f"{SERVER}/Observation/$ingest-frames", data=upload, headers=headers)
+        self.assertEqual(r.status_code, 200, msg=r.text)
+        self.assertIn("0 created, 3 already stored", r.text)
+
+        r = requests.get(
+            f"{SERVER}/Observation?category=procedure&subject={self.subject_reference}&date=ge2024-01-01"
+        )
+        self.assertEqual(r.status_code, 200, msg=r.text)
+        entries = r.json().get("entry", [])
+        self.assertEqual(len(entries), 2, msg=r.text)
+        for entry in entries:
+            self.observation_urls.append(f"{SERVER}/Observation/{entry['resource']['id']}")
+
+        # A malformed header is rejected, an unknown subject is unprocessable
+        r = requests.post(f"{SERVER}/Observation/$ingest-frames", data=b"PoF2" + upload[4:], headers=headers)
+        self.assertEqual(r.status_code, 400, msg=r.text)
+        upload = TestObservation._encodeFrames(999999999, start, device, "wrist", [(0, 1, 2, 3)])
+        r = requests.post(f"{SERVER}/Observation/$ingest-frames", data=upload, headers=headers)
+        self.assertEqual(r.status_code, 422, msg=r.text)
+
+    def _insertTask(self, task_type, start, end):
+        """Insert a task of the subject, which is deleted again after the test."""
+        subject = int(self.subject_reference.split("/")[1])
+        with connectDatabase() as connection, connection.cursor() as cursor:
+            cursor.execute(
+                "INSERT INTO tasktypes (name, description) VALUES (%s, %s) ON CONFLICT DO NOTHING",
+                (task_type, "Inserted by the integration tests"),
+            )
+            cursor.execute(
+                "INSERT INTO tasks (task_start, task_end, subject, task_type, is_precisely_annotated) "
+                "VALUES (%s, %s, %s, %s, TRUE) RETURNING task_id",
+                (start, end, subject, task_type),
+            )
+            task_id = cursor.fetchone()[0]
+
+        def deleteTask():
+            with connectDatabase() as connection, connection.cursor() as cursor:
+                cursor.execute("DELETE FROM tasks WHERE task_id = %s", (task_id,))
+
+        self.addCleanup(deleteTask)
+        return task_id
+
+    def _ingestSamples(self, start_micros, frames):
+        """Upload samples of the device at the wrist and remove them after the test."""
+        subject = int(self.subject_reference.split("/")[1])
+        upload = TestObservation._encodeFrames(
+            subject, start_micros, self.device_payload["distinctIdentifier"], "wrist", frames
+        )
+        r = requests.post(
+            f"{SERVER}/Observation/$ingest-frames",
+            data=upload,
+            headers={"Content-Type": "application/octet-stream"},
+        )
+        self.assertEqual(r.status_code, 201, msg=r.text)
+
+        r = requests.get(
+            f"{SERVER}/Observation",
+            params={
+                "category": "procedure",
+                "subject": self.subject_reference,
+                "date": f"ge{time.strftime('%Y-%m-%dT%H:%M:%SZ', time.gmtime(start_micros // 1000000))}",
+                "_count": len(frames),
+            },
+        )
+        self.assertEqual(r.status_code, 200, msg=r.text)
+        entries = r.json().get("entry", [])
+        self.assertEqual(len(entries), len(frames), msg=r.text)
+        for entry in entries:
+            self.observation_urls.append(f"{SERVER}/Observation/{entry['resource']['id']}")
+
+    def testExportDataset(self):
+        # Ten samples 10 ms apart within a task, x counting them up
+        start = 1717200000 * 1000000  # 2024-06-01T00:00:00Z
+        self._ingestSamples(
+            start, [(0 if i == 0 else 10000, i, 2 * i, 3 * i) for i in range(10)]
+        )
+        # The task spans a day in each direction, regardless of the time zone of the server
+        task_id = self._insertTask("Dataset test", "2024-05-31 00:00:00", "2024-06-02 00:00:00")
+
+        r = requests.get(
+            f"{SERVER}/Observation/$export-dataset",
+            params={"subject": self.subject_reference, "window": 4, "stride": 2},
+        )
+        self.assertEqual(r.status_code, 200, msg=r.text)
+        archive = zipfile.ZipFile(io.BytesIO(r.content))
+
+        # Windows start at the samples 0, 2, 4 and 6, the rest does not fill one
+        windows = archive.read("windows.f32")
+        self.assertEqual(struct.unpack_from("<4i", windows), (0x54466F50, 1, 4, 3))
+        self.assertEqual(len(windows), 16 + 4 * 4 * 3 * 4)
+        for window in range(4):
+            samples = struct.unpack_from("<12f", windows, 16 + window * 48)
+            self.assertEqual(samples[0::3], tuple(float(2 * window + i) for i in range(4)))
+            self.assertEqual(samples[1], 4.0 * window)
+
+        labels = [json.loads(line) for line in archive.read("index.ndjson").decode().splitlines()]
+        self.assertEqual([label["window"] for label in labels], [0, 1, 2, 3])
+        for label in labels:
+            self.assertEqual(label["task"], task_id)
+            self.assertEqual(label["taskType"], "Dataset test")
+            self.assertEqual(label["bodyPart"], "wrist")
+
+    def testTaskWindow(self):
+        start = 1717286400 * 1000000  # 2024-06-02T00:00:00Z
+        self._ingestSamples(
+            start, [(0 if i == 0 else 10000, i, 2 * i, 3 * i) for i in range(10)]
+        )
+        task_id = self._insertTask("Window test", "2024-06-01 00:00:00", "2024-06-03 00:00:00")
+
+        # All samples of the task and sensor are returned as SampledData ...
+        r = requests.get(
+            f"{SERVER}/Observation/$task-window", params={"task": task_id, "mode": "sampled"}
+        )
+        self.assertEqual(r.status_code, 200, msg=r.text)
+        self.assertEqual(r.json()["total"], 1, msg=r.text)
+        components = r.json()["entry"][0]["resource"]["component"]
+        self.assertEqual(
+            [float(value) for value in components[0]["valueSampledData"]["data"].split(" ")],
+            [float(i) for i in range(10)],
+        )
+        self.assertAlmostEqual(components[0]["valueSampledData"]["period"], 10.0)
+
+        # ... or aggregated by the database
+        r = requests.get(
+            f"{SERVER}/Observation/$task-window",
+            params={"subject": self.subject_reference, "mode": "aggregate"},
+        )
+        self.assertEqual(r.status_code, 200, msg=r.text)
+        self.assertEqual(r.json()["total"], 1, msg=r.text)
+        components = {
+            component["code"]["coding"][0]["code"]: component["valueQuantity"]["value"]
+            for component in r.json()["entry"][0]["resource"]["component"]
+        }
+        self.assertEqual(components["count"], 10, msg=r.text)
+        self.assertAlmostEqual(components["X42-mean"], 4.5, msg=r.text)
+        self.assertAlmostEqual(components["X44-max"], 27.0, msg=r.text)
+
+        r = requests.get(f"{SERVER}/Observation/$task-window")
+        self.assertEqual(r.status_code, 400, msg=r.text)
+
+    def _openLive(self, subject, device):
+        url = SERVER.replace("http", "ws", 1)
+        return websocket.create_connection(
+            f"{url}/live/Observation?subject={subject}&device={device}&bodyPart=wrist",
+            timeout=10,
+        )
+
+    def _expectClose(self, connection, code):
+        opcode, data = connection.recv_data(control_frame=True)
+        self.assertEqual(opcode, websocket.ABNF.OPCODE_CLOSE)
+        self.assertEqual(struct.unpack(">H", data[:2])[0], code, msg=data)
+
+    def testLiveIngest(self):
+        subject = int(self.subject_reference.split("/")[1])
+        device = self.device_payload["distinctIdentifier"]
+
+        # Sessions of unknown subjects or devices are refused
+        self._expectClose(self._openLive(999999999, device), 1003)
+        self._expectClose(self._openLive(subject, device + "-unknown"), 1003)
+
+        # Frames are acknowledged by their sequence numbers once written
+        start = 1735689600 * 1000000  # 2025-01-01T00:00:00Z
+        message = struct.pack("<q", 7)
+        for i in range(3):
+            message += struct.pack("<qfff", start + i * 10000, 1, 2, 3)
+        connection = self._openLive(subject, device)
+        connection.send_binary(message)
+        self.assertEqual(json.loads(connection.recv()), {"ack": [7, 9]})
+        connection.close()
+
+        r = requests.get(
+            f"{SERVER}/Observation?category=procedure&subject={self.subject_reference}&date=ge2025-01-01"
+        )
+        self.assertEqual(r.status_code, 200, msg=r.text)
+        entries = r.json().get("entry", [])
+        self.assertEqual(len(entries), 3, msg=r.text)
+        for entry in entries:
+            self.observation_urls.append(f"{SERVER}/Observation/{entry['resource']['id']}")
+
+    def testTremorAnalysis(self):
+        # A single sample does not fill a window
+        r = requests.get(
+            f"{SERVER}/Observation/$tremor-analysis?subject={self.subject_reference}&window=16"
+        )
+        self.assertEqual(r.status_code, 200, msg=r.text)
+        self.assertEqual(r.json()["total"], 0, msg=r.text)
+
+        r = requests.get(
+            f"{SERVER}/Observation/$tremor-analysis?subject={self.subject_reference}&window=100"
+        )
+        self.assertEqual(r.status_code, 400, msg=r.text)
+
+        # A 5 Hz sine on top of gravity, sampled at 64 Hz, fills a window of 64
+        # samples exactly. The resolution of the spectrum is 1 Hz.
+        start = 1717372800 * 1000000  # 2024-06-03T00:00:00Z
+        self._ingestSamples(
+            start,
+            [
+                (0 if i == 0 else 15625, 0, 0, 9.81 + 2 * math.sin(2 * math.pi * 5 * i / 64))
+                for i in range(64)
+            ],
+        )
+        r = requests.get(
+            f"{SERVER}/Observation/$tremor-analysis",
+            params={
+                "subject": self.subject_reference,
+                "device": self.device_payload["distinctIdentifier"],
+                "bodyPart": "wrist",
+                "window": 64,
+                "step": 64,
+            },
+        )
+        self.assertEqual(r.status_code, 200, msg=r.text)
+        self.assertEqual(r.json()["total"], 1, msg=r.text)
+        components = {
+            component["code"]["coding"][0]["code"]: component["valueQuantity"]["value"]
+            for component in r.json()["entry"][0]["resource"]["component"]
+        }
+        self.assertAlmostEqual(components["sample-rate"], 64.0, places=3, msg=r.text)
+        self.assertAlmostEqual(components["dominant-frequency"], 5.0, places=3, msg=r.text)
+        self.assertGreater(components["band-power"], 0.9 * components["total-power"], msg=r.text)
+
+    def testFeatureBackfill(self):
+        r = requests.post(
+            f"{SERVER}/Observation/$features-backfill",
+            json={
+                "resourceType": "Parameters",
+                "parameter": [{"name": "subject", "valueString": self.subject_reference}],
+            },
+        )
+        self.assertEqual(r.status_code, 200, msg=r.text)
+        self.assertIn("epochs", r.json()["issue"][0]["diagnostics"], msg=r.text)
+
+        # The features are computed in background
+        for _ in range(60):
+            r = requests.get(
+                f"{SERVER}/Observation?category=activity&subject={self.subject_reference}"
+            )
+            self.assertEqual(r.status_code, 200, msg=r.text)
+            if r.json().get("entry"):
+                break
+            time.sleep(0.5)
+        entries = r.json().get("entry", [])
+        self.assertGreater(len(entries), 0, msg=r.text)
+
+        # Each epoch holds one of the samples of setUp() with x=1, y=2 and z=3
+        for entry in entries:
+            resource = entry["resource"]
+            self.assertEqual(resource["method"]["coding"][0]["code"], "epoch", msg=resource)
+            components = {
+                component["code"]["coding"][0]["code"]: component.get(
+                    "valueQuantity", {}
+                ).get("value", component.get("valueInteger"))
+                for component in resource["component"]
+            }
+            self.assertEqual(components["num-samples"], 1, msg=resource)
+            self.assertAlmostEqual(components["rms-x"], 1.0, places=5, msg=resource)
+            self.assertAlmostEqual(components["rms-y"], 2.0, places=5, msg=resource)
+            self.assertAlmostEqual(components["rms-z"], 3.0, places=5, msg=resource)
+
+    def testTaskFeatures(self):
+        # Two tasks starting at the same instant get features of their own
+        start = 1727740800 * 1000000  # 2024-10-01T00:00:00Z
+        self._ingestSamples(start, [(0 if i == 0 else 10000, 1, 2, 3) for i in range(10)])
+        task_ids = {
+            self._insertTask("Feature test", "2024-10-01 00:00:00", "2024-10-01 00:00:01"),
+            self._insertTask("Feature test", "2024-10-01 00:00:00", "2024-10-01 00:00:02"),
+        }
+
+        for _ in range(60):
+            r = requests.get(
+                f"{SERVER}/Observation",
+                params={
+                    "category": "activity",
+                    "subject": self.subject_reference,
+                    "date": "ge2024-10-01",
+                },
+            )
+            self.assertEqual(r.status_code, 200, msg=r.text)
+            tasks = [
+                entry["resource"]
+                for entry in r.json().get("entry", [])
+                if entry["resource"]["method"]["coding"][0]["code"] == "task"
+            ]
+            if len(tasks) == 2:
+                break
+            time.sleep(0.5)
+        self.assertEqual(len(tasks), 2, msg=r.text)
+        self.assertNotEqual(tasks[0]["id"], tasks[1]["id"])
+        self.assertEqual(
+            {
+                component["valueInteger"]
+                for resource in tasks
+                for component in resource["component"]
+                if component["code"]["coding"][0]["code"] == "task"
+            },
+            task_ids,
+        )
+
+    def testPipeline(self):
+        r = requests.get(
+            f"{SERVER}/Observation/$pipeline",
+            params={
+                "subject": self.subject_reference,
+                "spec": "magnitude | aggregate(count, max)",
+            },
+        )
+        self.assertEqual(r.status_code, 200, msg=r.text)
+        self.assertEqual(r.json()["total"], 1, msg=r.text)
+        components = r.json()["entry"][0]["resource"]["component"]
+        self.assertEqual(components[0]["code"]["coding"][0]["code"], "count-magnitude")
+        self.assertEqual(components[0]["valueQuantity"]["value"], 2, msg=r.text)
+
+        r = requests.get(
+            f"{SERVER}/Observation/$pipeline",
+            params={"subject": self.subject_reference, "spec": "magnitude"},
+        )
+        self.assertEqual(r.status_code, 400, msg=r.text)
+
+        # Only aggregate may follow a window
+        r = requests.get(
+            f"{SERVER}/Observation/$pipeline",
+            params={
+                "subject": self.subject_reference,
+                "spec": "window(4) | magnitude | aggregate(count)",
+            },
+        )
+        self.assertEqual(r.status_code, 400, msg=r.text)
+
+    def testGroupExport(self):
+        r = requests.post(
+            f"{SERVER}/Group",
+            json={
+                "resourceType": "Group",
+                "type": "person",
+                "actual": True,
+                "active": True,
+                "name": "Export cohort",
+                "member": [{"entity": {"reference": self.subject_reference}}],
+            },
+        )
+        self.assertEqual(r.status_code, 201, msg=r.text)
+        group_url = r.headers["location"]
+
+        try:
+            r = requests.get(
+                f"{group_url}/$export", headers={"Prefer": "respond-async"}
+            )
+            self.assertEqual(r.status_code, 202, msg=r.text)
+            status_url = r.headers["Content-Location"]
+
+            for _ in range(60):
+                r = requests.get(status_url)
+                if r.status_code != 202:
+                    break
+                time.sleep(1)
+            self.assertEqual(r.status_code, 200, msg=r.text)
+
+            outputs = {output["type"]: output for output in r.json()["output"]}
+            self.assertEqual(outputs["Patient"]["count"], 1, msg=r.text)
+            self.assertEqual(outputs["Observation"]["count"], 2, msg=r.text)
+
+            r = requests.get(outputs["Observation"]["url"])
+            self.assertEqual(r.status_code, 200, msg=r.text)
+            lines = r.text.strip().split("\n")
+            self.assertEqual(len(lines), 2)
+            self.assertEqual(json.loads(lines[0])["resourceType"], "Observation")
+        finally:
+            r = requests.delete(group_url)
+            self.assertEqual(r.status_code, 204, msg=r.text)
+
+    def testGroupExportColumnar(self):
+        # More samples of the wrist than fit into a single row group
+        subject = int(self.subject_reference.split("/")[1])
+        start = 1725148800 * 1000000  # 2024-09-01T00:00:00Z
+        frames = [(0 if i == 0 else 10000, i, -i, 0.5 * i) for i in range(10000)]
+        upload = TestObservation._encodeFrames(
+            subject, start, self.device_payload["distinctIdentifier"], "wrist", frames
+        )
+        r = requests.post(
+            f"{SERVER}/Observation/$ingest-frames",
+            data=upload,
+            headers={"Content-Type": "application/octet-stream"},
+        )
+        self.assertEqual(r.status_code, 201, msg=r.text)
+
+        def deleteSamples():
+            with connectDatabase() as connection, connection.cursor() as cursor:
+                cursor.execute(
+                    "DELETE FROM measurements WHERE subject = %s AND \"timestamp\" >= %s",
+                    (subject, "2024-09-01 00:00:00"),
+                )
+
+        self.addCleanup(deleteSamples)
+
+        # The source rows, keyed by sensor and microseconds since the epoch
+        epoch = datetime.datetime(1970, 1, 1)
+        expected = {}
+        with connectDatabase() as connection, connection.cursor() as cursor:
+            cursor.execute(
+                "SELECT \"timestamp\", sensor, x, y, z FROM measurements WHERE subject = %s",
+                (subject,),
+            )
+            for timestamp, sensor, x, y, z in cursor.fetchall():
+                micros = (timestamp - epoch) // datetime.timedelta(microseconds=1)
+                expected[(sensor, micros)] = struct.unpack("<fff", struct.pack("<fff", x, y, z))
+        self.assertEqual(len(expected), 10002)
+
+        r = requests.post(
+            f"{SERVER}/Group",
+            json={
+                "resourceType": "Group",
+                "type": "person",
+                "actual": True,
+                "active": True,
+                "name": "Columnar export cohort",
+                "member": [{"entity": {"reference": self.subject_reference}}],
+            },
+        )
+        self.assertEqual(r.status_code, 201, msg=r.text)
+        group_url = r.headers["location"]
+
+        try:
+            r = requests.get(
+                f"{group_url}/$export",
+                params={"_outputFormat": "application/vnd.parkinson-fhir.columnar"},
+                headers={"Prefer": "respond-async"},
+            )
+            self.assertEqual(r.status_code, 202, msg=r.text)
+            status_url = r.headers["Content-Location"]
+
+            for _ in range(60):
+                r = requests.get(status_url)
+                if r.status_code != 202:
+                    break
+                time.sleep(1)
+            self.assertEqual(r.status_code, 200, msg=r.text)
+            outputs = {output["type"]: output for output in r.json()["output"]}
+            self.assertEqual(outputs["Observation"]["count"], 10002, msg=r.text)
+
+            r = requests.get(outputs["Observation"]["url"])
+            self.assertEqual(r.status_code, 200, msg=r.text)
+            content = r.content
+        finally:
+            r = requests.delete(group_url)
+            self.assertEqual(r.status_code, 204, msg=r.text)
+
+        # Header and the trailer locating the footer
+        self.assertEqual(content[:4], b"PoFC")
+        self.assertEqual(struct.unpack_from("<i", content, 4)[0], 1)
+        self.assertEqual(content[-4:], b"PoFC")
+        footer_start = len(content) - struct.unpack_from("<i", content, len(content) - 8)[0]
+
+        # The footer lists the sensors and the offsets of the row groups
+        footer_subject, num_sensors = struct.unpack_from("<ii", content, footer_start)
+        self.assertEqual(footer_subject, subject)
+        position = footer_start + 8
+        sensors = {}
+        for _ in range(num_sensors):
+            sensor = struct.unpack_from("<i", content, position)[0]
+            position += 4
+            names = []
+            for _ in range(2):
+                length = struct.unpack_from("<H", content, position)[0]
+                names.append(content[position + 2 : position + 2 + length].decode("utf-8"))
+                position += 2 + length
+            sensors[sensor] = tuple(names)
+        num_groups = struct.unpack_from("<i", content, position)[0]
+        offsets = struct.unpack_from(f"<{num_groups}q", content, position + 4)
+        self.assertEqual(position + 4 + 8 * num_groups + 8, len(content))
+        self.assertEqual(
+            sorted(sensors.values()),
+            sorted(
+                (self.device_payload["distinctIdentifier"], body_part)
+                for body_part in ("leftWrist", "wrist")
+            ),
+        )
+
+        # The row groups follow each other without gaps up to the footer
+        rows = {}
+        sizes = {}
+        expected_offset = 8
+        for offset in offsets:
+            self.assertEqual(offset, expected_offset)
+            sensor, num_rows, min_micros, max_micros = struct.unpack_from("<iiqq", content, offset)
+            min_x, max_x, min_y, max_y, min_z, max_z = struct.unpack_from("<6f", content, offset + 24)
+            columns = offset + 48
+            micros = struct.unpack_from(f"<{num_rows}q", content, columns)
+            x = struct.unpack_from(f"<{num_rows}f", content, columns + 8 * num_rows)
+            y = struct.unpack_from(f"<{num_rows}f", content, columns + 12 * num_rows)
+            z = struct.unpack_from(f"<{num_rows}f", content, columns + 16 * num_rows)
+            expected_offset = columns + 20 * num_rows
+
+            self.assertIn(sensor, sensors)
+            self.assertEqual((min_micros, max_micros), (min(micros), max(micros)))
+            self.assertEqual((min_x, max_x), (min(x), max(x)))
+            self.assertEqual((min_y, max_y), (min(y), max(y)))
+            self.assertEqual((min_z, max_z), (min(z), max(z)))
+            for i in range(num_rows):
+                rows[(sensor, micros[i])] = (x[i], y[i], z[i])
+            sizes.setdefault(sensor, []).append(num_rows)
+        self.assertEqual(expected_offset, footer_start)
+        self.assertEqual(rows, expected)
+
+        # Only the last row group of a sensor may be cut short
+        for sensor_sizes in sizes.values():
+            self.assertTrue(all(size == 8192 for size in sensor_sizes[:-1]), msg=sizes)
+
     @staticmethod
     def _extractRelativeReference(value: str) -> str:
         relative_reference = re.search(r".*\/([A-Za-z]+\/.+)$", value)